@@ -0,0 +1,221 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import ca.uqac.lif.cep.functions.Function;
+import ca.uqac.lif.cep.ltl.Troolean;
+import ca.uqac.lif.cep.propman.PropositionalMachine.Transition;
+import ca.uqac.lif.cep.propman.PropositionalMachine.TransitionOtherwise;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static ca.uqac.lif.cep.propman.MultiMonitor.EMPTY;
+import static ca.uqac.lif.cep.propman.MultiMonitor.EPSILON;
+import static ca.uqac.lif.cep.propman.MultiMonitor.NU;
+
+/**
+ * Generates the random inputs shared by the benchmarks. All the methods
+ * take the random source as an argument, so that a benchmark seeded with a
+ * fixed value always runs on the same inputs.
+ */
+public class BenchmarkSupport
+{
+  /**
+   * The number of transitions, besides the otherwise transition, leaving
+   * each state of a generated machine
+   */
+  public static final int TRANSITIONS_PER_STATE = 3;
+
+  /**
+   * The number of clauses per variable in generated formulas; around this
+   * ratio, random 3-CNF formulas have few satisfying valuations
+   */
+  public static final int CLAUSES_PER_VARIABLE = 4;
+
+  private BenchmarkSupport()
+  {
+    super();
+  }
+
+  /**
+   * Gets the names of the variables of a domain
+   * @param size The number of variables
+   * @return The names
+   */
+  public static String[] getVariables(int size)
+  {
+    String[] names = new String[size];
+    for (int i = 0; i < size; i++)
+    {
+      names[i] = "x" + i;
+    }
+    return names;
+  }
+
+  /**
+   * Creates a random Boolean valuation
+   * @param r The random source
+   * @param variables The variables of the valuation
+   * @return The valuation
+   */
+  public static Valuation getValuation(Random r, String[] variables)
+  {
+    Valuation v = new Valuation();
+    for (String x : variables)
+    {
+      v.put(x, r.nextBoolean() ? Troolean.Value.TRUE : Troolean.Value.FALSE);
+    }
+    return v;
+  }
+
+  /**
+   * Creates a concrete multi-event made of distinct random valuations
+   * @param r The random source
+   * @param variables The variables of the valuations
+   * @param cardinality The number of valuations; it is capped to the
+   * number of possible valuations
+   * @return The multi-event
+   */
+  public static ConcreteMultiEvent getConcreteEvent(Random r, String[] variables, int cardinality)
+  {
+    Set<Valuation> valuations = new HashSet<Valuation>();
+    int size = (int) Math.min(cardinality, 1L << Math.min(variables.length, 62));
+    while (valuations.size() < size)
+    {
+      valuations.add(getValuation(r, variables));
+    }
+    return new ConcreteMultiEvent(valuations);
+  }
+
+  /**
+   * Creates a random literal
+   * @param r The random source
+   * @param variables The variables to choose from
+   * @return A variable or its negation
+   */
+  public static Function getLiteral(Random r, String[] variables)
+  {
+    PropositionalVariable x = PropositionalVariable.get(variables[r.nextInt(variables.length)]);
+    if (r.nextBoolean())
+    {
+      return x;
+    }
+    return new PropositionalFormula(Troolean.NOT_FUNCTION, x);
+  }
+
+  /**
+   * Creates a random formula in conjunctive normal form, with clauses of
+   * three literals
+   * @param r The random source
+   * @param variables The variables of the formula
+   * @return The formula
+   */
+  public static PropositionalFormula getFormula(Random r, String[] variables)
+  {
+    Function f = null;
+    for (int i = 0; i < CLAUSES_PER_VARIABLE * variables.length; i++)
+    {
+      Function clause = new PropositionalFormula(Troolean.OR_FUNCTION, getLiteral(r, variables), new PropositionalFormula(Troolean.OR_FUNCTION, getLiteral(r, variables), getLiteral(r, variables)));
+      f = f == null ? clause : new PropositionalFormula(Troolean.AND_FUNCTION, f, clause);
+    }
+    return (PropositionalFormula) f;
+  }
+
+  /**
+   * Creates a random deterministic machine
+   * @param r The random source
+   * @param variables The variables of the conditions
+   * @param num_states The number of states
+   * @param symbolic Set to <tt>true</tt> to use symbolic conditions,
+   * <tt>false</tt> to use concrete ones
+   * @return The machine
+   */
+  public static ExplicitPropositionalMachine getMachine(Random r, String[] variables, int num_states, boolean symbolic)
+  {
+    MultiEventFunction[] functions = new MultiEventFunction[] {NU, EMPTY, EPSILON};
+    ExplicitPropositionalMachine machine = new ExplicitPropositionalMachine();
+    for (int s = 0; s < num_states; s++)
+    {
+      MultiEvent[] conditions = symbolic ? getSymbolicConditions(r, variables) : getConcreteConditions(r, variables);
+      for (MultiEvent c : conditions)
+      {
+        machine.addTransition(s, new Transition(r.nextInt(num_states), c, functions[r.nextInt(functions.length)]));
+      }
+      machine.addTransition(s, new TransitionOtherwise(r.nextInt(num_states), EPSILON));
+    }
+    return machine;
+  }
+
+  /**
+   * Creates pairwise disjoint concrete conditions
+   * @param r The random source
+   * @param variables The variables of the conditions
+   * @return The conditions
+   */
+  protected static MultiEvent[] getConcreteConditions(Random r, String[] variables)
+  {
+    Set<Valuation> used = new HashSet<Valuation>();
+    int per_condition = (int) Math.max(1, Math.min(4, (1L << Math.min(variables.length, 62)) / (TRANSITIONS_PER_STATE + 1)));
+    MultiEvent[] conditions = new MultiEvent[TRANSITIONS_PER_STATE];
+    for (int i = 0; i < conditions.length; i++)
+    {
+      Set<Valuation> valuations = new HashSet<Valuation>();
+      while (valuations.size() < per_condition)
+      {
+        Valuation v = getValuation(r, variables);
+        if (used.add(v))
+        {
+          valuations.add(v);
+        }
+      }
+      conditions[i] = new ConcreteMultiEvent(valuations);
+    }
+    return conditions;
+  }
+
+  /**
+   * Creates pairwise disjoint symbolic conditions, in the form of a
+   * decision list: condition <i>k</i> is <i>c<sub>k</sub></i> &and;
+   * &not;(<i>c<sub>1</sub></i> &or; &hellip; &or; <i>c<sub>k-1</sub></i>),
+   * where each <i>c<sub>i</sub></i> is a conjunction of two random literals
+   * @param r The random source
+   * @param variables The variables of the conditions
+   * @return The conditions
+   */
+  protected static MultiEvent[] getSymbolicConditions(Random r, String[] variables)
+  {
+    MultiEvent[] conditions = new MultiEvent[TRANSITIONS_PER_STATE];
+    PropositionalFormula previous = null;
+    for (int i = 0; i < conditions.length; i++)
+    {
+      PropositionalFormula c = new PropositionalFormula(Troolean.AND_FUNCTION, getLiteral(r, variables), getLiteral(r, variables));
+      if (previous == null)
+      {
+        conditions[i] = new SymbolicMultiEvent(c);
+        previous = c;
+      }
+      else
+      {
+        conditions[i] = new SymbolicMultiEvent(new PropositionalFormula(Troolean.AND_FUNCTION, c, new PropositionalFormula(Troolean.NOT_FUNCTION, previous)));
+        previous = new PropositionalFormula(Troolean.OR_FUNCTION, previous, c);
+      }
+    }
+    return conditions;
+  }
+}
@@ -0,0 +1,165 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import ca.uqac.lif.cep.Connector;
+import ca.uqac.lif.cep.Pushable;
+import ca.uqac.lif.cep.tmf.SinkLast;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time taken by a {@link MultiMonitor} to process a trace of
+ * concrete multi-events, from its initial state. The uni-monitor is a
+ * random deterministic machine. The caches of the monitor, if any, are
+ * kept from one trace to the next.
+ * <p>
+ * The default parameters only vary the dimensions that the caches and
+ * transfer matrices are sensitive to; other values can be given to JMH
+ * with <tt>-p</tt>, e.g. <tt>-p m_domainSize=4,8,12</tt>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultiMonitorBenchmark
+{
+  /**
+   * The number of variables of the multi-events
+   */
+  @Param({"8"})
+  public int m_domainSize;
+
+  /**
+   * The number of states of the uni-monitor
+   */
+  @Param({"10", "1000"})
+  public int m_stateCount;
+
+  /**
+   * The number of valuations in each input multi-event
+   */
+  @Param({"16", "256"})
+  public int m_eventCardinality;
+
+  /**
+   * The number of multi-events in the trace
+   */
+  @Param({"100"})
+  public int m_traceLength;
+
+  /**
+   * Whether the conditions of the uni-monitor are symbolic or concrete
+   */
+  @Param({"false", "true"})
+  public boolean m_symbolic;
+
+  /**
+   * The number of distinct multi-events in the trace, which are read in
+   * random order
+   */
+  @Param({"10"})
+  public int m_distinctEvents;
+
+  /**
+   * How steps are computed: without any cache, with a
+   * {@link StepCache}, or with {@link TransferMatrix transfer matrices}
+   */
+  @Param({"plain", "cache", "matrix"})
+  public String m_mode;
+
+  /**
+   * The multi-monitor
+   */
+  protected MultiMonitor m_monitor;
+
+  /**
+   * The pushable of the multi-monitor's input
+   */
+  protected Pushable m_pushable;
+
+  /**
+   * The sink receiving the verdicts
+   */
+  protected SinkLast m_sink;
+
+  /**
+   * The input trace
+   */
+  protected MultiEvent[] m_trace;
+
+  /**
+   * Creates the monitor and the trace
+   */
+  @Setup
+  public void setup()
+  {
+    Random r = new Random(0);
+    String[] variables = BenchmarkSupport.getVariables(m_domainSize);
+    m_monitor = new MultiMonitor(BenchmarkSupport.getMachine(r, variables, m_stateCount, m_symbolic));
+    if (m_mode.equals("cache"))
+    {
+      m_monitor.setStepCache(m_distinctEvents);
+    }
+    else if (m_mode.equals("matrix"))
+    {
+      m_monitor.setTransferMatrixCache(m_distinctEvents);
+    }
+    m_sink = new SinkLast();
+    Connector.connect(m_monitor, m_sink);
+    m_pushable = m_monitor.getPushableInput();
+    MultiEvent[] events = new MultiEvent[m_distinctEvents];
+    for (int i = 0; i < events.length; i++)
+    {
+      events[i] = BenchmarkSupport.getConcreteEvent(r, variables, m_eventCardinality);
+    }
+    m_trace = new MultiEvent[m_traceLength];
+    for (int i = 0; i < m_trace.length; i++)
+    {
+      m_trace[i] = events[r.nextInt(events.length)];
+    }
+  }
+
+  /**
+   * Processes the whole trace
+   * @return The last verdict
+   */
+  @Benchmark
+  public Object processTrace()
+  {
+    m_monitor.reset();
+    for (MultiEvent e : m_trace)
+    {
+      m_pushable.push(e);
+    }
+    return m_sink.getLast();
+  }
+}
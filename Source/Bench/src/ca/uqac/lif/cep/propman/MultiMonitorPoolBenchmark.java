@@ -0,0 +1,140 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time taken by a {@link MultiMonitorPool} to make each of
+ * its sessions read a short trace from their initial state. The
+ * uni-monitor is a random deterministic machine, and the events are drawn
+ * from a small set of distinct concrete multi-events. Traces are short
+ * enough for path counts to fit in a <tt>long</tt>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultiMonitorPoolBenchmark
+{
+  /**
+   * The number of states of the uni-monitor
+   */
+  @Param({"4", "16"})
+  public int m_stateCount;
+
+  /**
+   * The number of sessions in the pool
+   */
+  @Param({"1000", "100000"})
+  public int m_sessionCount;
+
+  /**
+   * The number of multi-events read by each session
+   */
+  @Param({"8"})
+  public int m_traceLength;
+
+  /**
+   * Where the sessions are kept: <tt>heap</tt> or <tt>direct</tt> (off
+   * heap)
+   */
+  @Param({"heap", "direct"})
+  public String m_storage;
+
+  /**
+   * The pool
+   */
+  protected MultiMonitorPool m_pool;
+
+  /**
+   * The sessions of the pool
+   */
+  protected int[] m_sessions;
+
+  /**
+   * The distinct multi-events
+   */
+  protected MultiEvent[] m_events;
+
+  /**
+   * For each session, the index of the first multi-event of its trace
+   */
+  protected int[] m_offsets;
+
+  /**
+   * Creates the pool and opens its sessions
+   */
+  @Setup
+  public void setup()
+  {
+    Random r = new Random(0);
+    String[] variables = BenchmarkSupport.getVariables(8);
+    PropositionalMachine monitor = BenchmarkSupport.getMachine(r, variables, m_stateCount, false);
+    m_pool = new MultiMonitorPool(monitor, CompiledMachine.compile(monitor), "direct".equals(m_storage));
+    m_events = new MultiEvent[10];
+    for (int i = 0; i < m_events.length; i++)
+    {
+      m_events[i] = BenchmarkSupport.getConcreteEvent(r, variables, 16);
+    }
+    m_sessions = new int[m_sessionCount];
+    m_offsets = new int[m_sessionCount];
+    for (int i = 0; i < m_sessions.length; i++)
+    {
+      m_sessions[i] = m_pool.open();
+      m_offsets[i] = r.nextInt(m_events.length);
+    }
+  }
+
+  /**
+   * Resets every session and makes it read its trace, one multi-event at
+   * a time for all sessions
+   * @return Whether the last step fired a transition
+   */
+  @Benchmark
+  public boolean processTraces()
+  {
+    for (int i = 0; i < m_sessions.length; i++)
+    {
+      m_pool.reset(m_sessions[i]);
+    }
+    boolean moved = false;
+    for (int j = 0; j < m_traceLength; j++)
+    {
+      for (int i = 0; i < m_sessions.length; i++)
+      {
+        moved = m_pool.step(m_sessions[i], m_events[(m_offsets[i] + j) % m_events.length]);
+      }
+    }
+    return moved;
+  }
+}
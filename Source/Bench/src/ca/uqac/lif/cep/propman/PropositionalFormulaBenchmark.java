@@ -0,0 +1,110 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the evaluation of a random 3-CNF formula on a batch of
+ * valuations, with {@link PropositionalFormula#evaluate(Valuation)} and
+ * with the reference {@link PropositionalFormula#evaluateTree(Valuation)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropositionalFormulaBenchmark
+{
+  /**
+   * The number of valuations evaluated per invocation
+   */
+  public static final int BATCH_SIZE = 1024;
+
+  /**
+   * The number of variables of the formula
+   */
+  @Param({"4", "8", "16", "24"})
+  public int m_domainSize;
+
+  /**
+   * The formula
+   */
+  protected PropositionalFormula m_formula;
+
+  /**
+   * The valuations on which the formula is evaluated
+   */
+  protected Valuation[] m_valuations;
+
+  /**
+   * Creates the formula and the valuations
+   */
+  @Setup
+  public void setup()
+  {
+    Random r = new Random(0);
+    String[] variables = BenchmarkSupport.getVariables(m_domainSize);
+    m_formula = BenchmarkSupport.getFormula(r, variables);
+    m_valuations = new Valuation[BATCH_SIZE];
+    for (int i = 0; i < m_valuations.length; i++)
+    {
+      m_valuations[i] = BenchmarkSupport.getValuation(r, variables);
+    }
+  }
+
+  /**
+   * Evaluates the formula on the batch of valuations
+   * @param bh The sink for the values
+   */
+  @Benchmark
+  public void evaluate(Blackhole bh)
+  {
+    for (Valuation v : m_valuations)
+    {
+      bh.consume(m_formula.evaluate(v));
+    }
+  }
+
+  /**
+   * Evaluates the function tree of the formula on the batch of valuations
+   * @param bh The sink for the values
+   */
+  @Benchmark
+  public void evaluateTree(Blackhole bh)
+  {
+    for (Valuation v : m_valuations)
+    {
+      bh.consume(m_formula.evaluateTree(v));
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the intersection of symbolic multi-events with other symbolic
+ * and concrete multi-events. The formulas are random 3-CNF formulas, which
+ * have few satisfying valuations. Formulas cache their truth table and
+ * decision diagram: the benchmark measures the steady state, once these
+ * have been computed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SymbolicMultiEventBenchmark
+{
+  /**
+   * The number of variables of the multi-events
+   */
+  @Param({"4", "8", "16", "24"})
+  public int m_domainSize;
+
+  /**
+   * The number of valuations of the concrete multi-event
+   */
+  @Param({"16", "256"})
+  public int m_eventCardinality;
+
+  /**
+   * The first symbolic multi-event
+   */
+  protected SymbolicMultiEvent m_first;
+
+  /**
+   * The second symbolic multi-event
+   */
+  protected SymbolicMultiEvent m_second;
+
+  /**
+   * The concrete multi-event
+   */
+  protected ConcreteMultiEvent m_concrete;
+
+  /**
+   * Creates the multi-events
+   */
+  @Setup
+  public void setup()
+  {
+    Random r = new Random(0);
+    String[] variables = BenchmarkSupport.getVariables(m_domainSize);
+    m_first = new SymbolicMultiEvent(BenchmarkSupport.getFormula(r, variables));
+    m_second = new SymbolicMultiEvent(BenchmarkSupport.getFormula(r, variables));
+    m_concrete = BenchmarkSupport.getConcreteEvent(r, variables, m_eventCardinality);
+  }
+
+  /**
+   * Intersects two symbolic multi-events
+   * @return The intersection
+   */
+  @Benchmark
+  public Object intersectSymbolic()
+  {
+    return m_first.getIntersection(m_second);
+  }
+
+  /**
+   * Counts the valuations common to two symbolic multi-events
+   * @return The count
+   */
+  @Benchmark
+  public long countSymbolic()
+  {
+    return m_first.getIntersectionCount(m_second);
+  }
+
+  /**
+   * Intersects a symbolic and a concrete multi-event
+   * @return The intersection
+   */
+  @Benchmark
+  public Object intersectConcrete()
+  {
+    return m_first.getIntersection(m_concrete);
+  }
+}
@@ -0,0 +1,79 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the enumeration of all the valuations of a domain with a
+ * {@link ValuationIterator}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValuationIteratorBenchmark
+{
+  /**
+   * The number of variables of the domain
+   */
+  @Param({"4", "8", "12", "16"})
+  public int m_domainSize;
+
+  /**
+   * The variables of the domain
+   */
+  protected String[] m_variables;
+
+  /**
+   * Creates the domain
+   */
+  @Setup
+  public void setup()
+  {
+    m_variables = BenchmarkSupport.getVariables(m_domainSize);
+  }
+
+  /**
+   * Enumerates all the valuations of the domain
+   * @param bh The sink for the valuations
+   */
+  @Benchmark
+  public void enumerate(Blackhole bh)
+  {
+    ValuationIterator it = new ValuationIterator(m_variables);
+    while (it.hasNext())
+    {
+      bh.consume(it.next());
+    }
+  }
+}
@@ -0,0 +1,456 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import ca.uqac.lif.cep.SynchronousProcessor;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The machinery shared by the processors that are lifted from a uni-monitor
+ * expressed as a propositional machine: for each input multi-event and
+ * each state of the uni-monitor, it counts the valuations of the event that
+ * fire each outgoing transition of the state. What is done with these
+ * counts is left to descendants.
+ * <p>
+ * The data prepared for a multi-event by {@link #startStep(MultiEvent)} is
+ * stored in fields of the processor, and read by
+ * {@link #countFirings(int, MultiEvent, long[])} until
+ * {@link #endStep()} is called. A step is therefore not reentrant: a
+ * processor must not be given a new event while it processes another one.
+ * Tasks spawned by a step can call
+ * {@link #countFirings(int, MultiEvent, long[])} concurrently, provided
+ * each uses its own buffer.
+ */
+public abstract class AbstractMultiMonitor extends SynchronousProcessor
+{
+  /**
+   * The default number of valuations of a concrete multi-event classified
+   * by each task, when the valuations are classified in parallel
+   */
+  public static final int DEFAULT_SHARD_SIZE = 4096;
+
+  /**
+   * The uni-monitor from which the processor is lifted
+   */
+  /* @ non_null @ */ protected PropositionalMachine m_monitor;
+
+  /**
+   * The transition relation of the uni-monitor, compiled into arrays
+   */
+  /* @ non_null @ */ protected CompiledMachine m_machine;
+
+  /**
+   * The number of valuations of the multi-event being processed, computed
+   * at most once per step and only when an otherwise transition needs it;
+   * -1 if not computed
+   */
+  protected transient long m_inputCount = -1;
+
+  /**
+   * The pool used to process each multi-event in parallel; <tt>null</tt>
+   * to process it on the calling thread
+   */
+  /*@ null @*/ protected transient ForkJoinPool m_pool = null;
+
+  /**
+   * A buffer receiving the number of valuations that fire each outgoing
+   * transition of a state, as computed by
+   * {@link #countFirings(int, MultiEvent, long[])}. Its length is the
+   * largest number of outgoing transitions of a state.
+   */
+  /*@ non_null @*/ protected transient long[] m_counts;
+
+  /**
+   * For each atom of the valuations of the concrete multi-event being
+   * processed, the transition it fires from each state (as given by
+   * {@link AtomPartition#getTransitions(int)}). Only the first
+   * {@link #m_atomCount} elements are meaningful.
+   */
+  /*@ non_null @*/ protected transient int[][] m_atomTransitions = new int[0][];
+
+  /**
+   * The number of valuations of the multi-event being processed that
+   * belong to each atom of {@link #m_atomTransitions}
+   */
+  /*@ non_null @*/ protected transient long[] m_atomWeights = new long[0];
+
+  /**
+   * The ID in the {@link AtomPartition} of each atom of
+   * {@link #m_atomTransitions}
+   */
+  /*@ non_null @*/ protected transient int[] m_atomIds = new int[0];
+
+  /**
+   * The position plus one of each atom in {@link #m_atomTransitions},
+   * indexed by atom ID; 0 for atoms that do not occur in the multi-event
+   * being processed
+   */
+  /*@ non_null @*/ protected transient int[] m_atomPositions = new int[0];
+
+  /**
+   * The number of distinct atoms in the multi-event being processed; -1 if
+   * the multi-event is not concrete
+   */
+  protected transient int m_atomCount = -1;
+
+  /**
+   * Whether {@link #startStep(MultiEvent)} has been called for the
+   * multi-event being processed
+   */
+  protected transient boolean m_stepStarted = false;
+
+  /**
+   * The object into which the valuations of concrete input multi-events
+   * are read one after the other
+   */
+  /*@ non_null @*/ protected transient Valuation m_valuation = new Valuation();
+
+  /**
+   * The number of valuations of a concrete multi-event classified by each
+   * task, when the valuations are classified in parallel
+   */
+  protected int m_shardSize = DEFAULT_SHARD_SIZE;
+
+  /**
+   * Creates a new processor lifted from a uni-monitor whose transition
+   * relation has already been compiled
+   * 
+   * @param monitor
+   *          The uni-monitor
+   * @param machine
+   *          The compiled transition relation of the uni-monitor
+   */
+  public AbstractMultiMonitor(/* @ non_null @ */ PropositionalMachine monitor, /* @ non_null @ */ CompiledMachine machine)
+  {
+    super(1, 1);
+    m_monitor = monitor;
+    m_machine = machine;
+    m_counts = new long[getMaxDegree()];
+  }
+
+  /**
+   * Checks that the uni-monitor has not been modified since its transition
+   * relation was compiled. The multi-monitor cannot follow such changes:
+   * the IDs of the states, and all the data indexed by them, would differ.
+   * @throws IllegalStateException If the uni-monitor has been modified
+   */
+  protected void checkMachine()
+  {
+    if (m_monitor.getVersion() != m_machine.getVersion())
+    {
+      throw new IllegalStateException("The uni-monitor has been modified since it was compiled");
+    }
+  }
+
+  /**
+   * Prepares the data shared by all states for processing an input
+   * multi-event. When the event is concrete, its valuations are
+   * classified into the atoms of the uni-monitor's conditions (see
+   * {@link AtomPartition}), so that the transitions fired from each state
+   * can then be counted per atom rather than per valuation. The arrays
+   * holding these atoms are kept from one step to the next, and only grow
+   * when an event has more distinct atoms than all the previous ones.
+   * @param input_event The input multi-event
+   */
+  protected void startStep(MultiEvent input_event)
+  {
+    m_stepStarted = true;
+    m_inputCount = -1;
+    m_atomCount = -1;
+    if (!(input_event instanceof ConcreteMultiEvent))
+    {
+      return;
+    }
+    AtomPartition atoms = m_machine.getAtomPartition();
+    ConcreteMultiEvent concrete = (ConcreteMultiEvent) input_event;
+    int size = (int) concrete.getValuationCount();
+    m_atomCount = 0;
+    if (m_pool != null && size >= 2 * m_shardSize)
+    {
+      // Large events are split into shards classified by separate tasks,
+      // whose histograms are then added
+      long[] histogram = m_pool.invoke(new ClassifyTask(atoms, concrete, 0, size));
+      for (int a = 0; a < histogram.length; a++)
+      {
+        if (histogram[a] > 0)
+        {
+          addAtom(a, histogram[a]);
+        }
+      }
+    }
+    else
+    {
+      // The valuations are read one after the other into the same object
+      Valuation v = m_valuation;
+      for (int i = 0; i < size; i++)
+      {
+        addAtom(atoms.getAtom(concrete.getValuation(i, v)), 1);
+      }
+    }
+    for (int i = 0; i < m_atomCount; i++)
+    {
+      m_atomTransitions[i] = atoms.getTransitions(m_atomIds[i]);
+      // Only the entries that were set are reset for the next event
+      m_atomPositions[m_atomIds[i]] = 0;
+    }
+  }
+
+  /**
+   * Adds valuations of the multi-event being processed to the count of
+   * their atom
+   * @param a The atom ID
+   * @param weight The number of valuations to add
+   */
+  protected void addAtom(int a, long weight)
+  {
+    if (a >= m_atomPositions.length)
+    {
+      m_atomPositions = Arrays.copyOf(m_atomPositions, Math.max(a + 1, m_atomPositions.length * 2));
+    }
+    int p = m_atomPositions[a] - 1;
+    if (p < 0)
+    {
+      if (m_atomCount == m_atomIds.length)
+      {
+        int length = Math.max(16, m_atomCount * 2);
+        m_atomIds = Arrays.copyOf(m_atomIds, length);
+        m_atomWeights = Arrays.copyOf(m_atomWeights, length);
+        m_atomTransitions = Arrays.copyOf(m_atomTransitions, length);
+      }
+      p = m_atomCount++;
+      m_atomIds[p] = a;
+      m_atomWeights[p] = 0;
+      m_atomPositions[a] = p + 1;
+    }
+    m_atomWeights[p] += weight;
+  }
+
+  /**
+   * Releases the data prepared by {@link #startStep(MultiEvent)}
+   */
+  protected void endStep()
+  {
+    m_stepStarted = false;
+    m_inputCount = -1;
+    m_atomCount = -1;
+  }
+
+  /**
+   * Gets the largest number of outgoing transitions of a state of the
+   * uni-monitor
+   * @return The number of transitions
+   */
+  protected int getMaxDegree()
+  {
+    int max = 0;
+    for (int s = 0; s < m_machine.getStateCount(); s++)
+    {
+      max = Math.max(max, m_machine.getFirstTransition(s + 1) - m_machine.getFirstTransition(s));
+    }
+    return max;
+  }
+
+  /**
+   * Sets the pool used to classify the valuations of large concrete
+   * multi-events in parallel (see {@link #setShardSize(int)})
+   * @param pool The pool, or <tt>null</tt> to classify all valuations on
+   * the calling thread
+   * @return This processor
+   */
+  public AbstractMultiMonitor setParallel(/*@ null @*/ ForkJoinPool pool)
+  {
+    m_pool = pool;
+    return this;
+  }
+
+  /**
+   * Sets the number of valuations of a concrete multi-event classified by
+   * each task. When a {@link #setParallel(ForkJoinPool) pool} is set, the
+   * valuations of multi-events that have at least twice this number of
+   * valuations are classified into atoms in parallel; since the work done
+   * for each state then only depends on the number of atoms, this bounds
+   * the time taken by a step on very large multi-events.
+   * @param size The number of valuations
+   * @return This processor
+   */
+  public AbstractMultiMonitor setShardSize(int size)
+  {
+    m_shardSize = Math.max(1, size);
+    return this;
+  }
+
+  /**
+   * Classifies a range of valuations into atoms, splitting it among
+   * subtasks if it is larger than the shard size.
+   */
+  protected class ClassifyTask extends RecursiveTask<long[]>
+  {
+    /**
+     * Dummy UID
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The partition into which valuations are classified
+     */
+    /*@ non_null @*/ protected final AtomPartition m_atoms;
+
+    /**
+     * The multi-event containing the valuations
+     */
+    /*@ non_null @*/ protected final ConcreteMultiEvent m_event;
+
+    /**
+     * The position of the first valuation of the range (inclusive)
+     */
+    protected final int m_from;
+
+    /**
+     * The position of the last valuation of the range (exclusive)
+     */
+    protected final int m_to;
+
+    /**
+     * Creates a new task
+     * @param atoms The partition into which valuations are classified
+     * @param event The multi-event containing the valuations
+     * @param from The position of the first valuation of the range
+     * (inclusive)
+     * @param to The position of the last valuation of the range
+     * (exclusive)
+     */
+    public ClassifyTask(/*@ non_null @*/ AtomPartition atoms, /*@ non_null @*/ ConcreteMultiEvent event, int from, int to)
+    {
+      super();
+      m_atoms = atoms;
+      m_event = event;
+      m_from = from;
+      m_to = to;
+    }
+
+    /**
+     * Computes the histogram of the atoms of the range
+     * @return The number of valuations of the range in each atom, indexed
+     * by atom ID
+     */
+    @Override
+    protected long[] compute()
+    {
+      if (m_to - m_from <= m_shardSize)
+      {
+        long[] histogram = new long[16];
+        Valuation v = new Valuation();
+        for (int i = m_from; i < m_to; i++)
+        {
+          int a = m_atoms.getAtom(m_event.getValuation(i, v));
+          if (a >= histogram.length)
+          {
+            histogram = Arrays.copyOf(histogram, Math.max(a + 1, histogram.length * 2));
+          }
+          histogram[a]++;
+        }
+        return histogram;
+      }
+      int middle = (m_from + m_to) >>> 1;
+      ClassifyTask left = new ClassifyTask(m_atoms, m_event, m_from, middle);
+      ClassifyTask right = new ClassifyTask(m_atoms, m_event, middle, m_to);
+      invokeAll(left, right);
+      long[] h_left = left.getRawResult();
+      long[] h_right = right.getRawResult();
+      if (h_left.length < h_right.length)
+      {
+        long[] h = h_left;
+        h_left = h_right;
+        h_right = h;
+      }
+      for (int a = 0; a < h_right.length; a++)
+      {
+        h_left[a] += h_right[a];
+      }
+      return h_left;
+    }
+  }
+
+  /**
+   * Counts the input valuations that fire each outgoing transition of a
+   * uni-monitor state.
+   * @param state The ID of the state in {@link #m_machine}
+   * @param input_event The input multi-event
+   * @param counts A buffer of at least {@link #getMaxDegree()} elements
+   * where to write, for each outgoing transition of the state (in the
+   * order of their position), the number of valuations of the input that
+   * fire it
+   * @return The number of outgoing transitions of the state, i.e. the
+   * number of elements of the buffer that were written
+   * @throws IllegalStateException If the conditions of the state match
+   * more valuations than the input contains. This happens when the
+   * uni-monitor is not deterministic, or when its conditions are not
+   * defined over the same variables as the input; the number of
+   * valuations taking the otherwise transition would then be wrong.
+   */
+  protected int countFirings(int state, /*@ non_null @*/ MultiEvent input_event, /*@ non_null @*/ long[] counts)
+  {
+    int first = m_machine.getFirstTransition(state);
+    int degree = m_machine.getFirstTransition(state + 1) - first;
+    Arrays.fill(counts, 0, degree, 0);
+    int otherwise = m_machine.getOtherwise(state);
+    if (m_atomCount >= 0)
+    {
+      // All the valuations of an atom fire the same transition
+      for (int i = 0; i < m_atomCount; i++)
+      {
+        int t = m_atomTransitions[i][state];
+        if (t >= 0)
+        {
+          counts[t - first] += m_atomWeights[i];
+        }
+      }
+      return degree;
+    }
+    // Otherwise, each condition is intersected with the input. Since the
+    // monitor is deterministic, each valuation fires at most one
+    // transition, and the valuations that fire none take the otherwise
+    // transition: their number is obtained by subtraction, without
+    // creating any set
+    long matched = 0;
+    for (int i = 0; i < degree; i++)
+    {
+      MultiEvent condition = m_machine.getCondition(first + i);
+      if (condition != null)
+      {
+        counts[i] = condition.getIntersectionCount(input_event);
+        matched += counts[i];
+      }
+    }
+    if (otherwise >= 0)
+    {
+      if (m_inputCount < 0)
+      {
+        m_inputCount = input_event.getValuationCount();
+      }
+      if (matched > m_inputCount)
+      {
+        throw new IllegalStateException("The conditions of state " + m_machine.getState(state) + " match " + matched + " valuations of an event that has " + m_inputCount);
+      }
+      counts[otherwise - first] = m_inputCount - matched;
+    }
+    return degree;
+  }
+}
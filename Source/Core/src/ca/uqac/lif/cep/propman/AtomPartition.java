@@ -0,0 +1,273 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Partitions input valuations according to the transition conditions of a
+ * {@link CompiledMachine} they belong to. Two valuations that satisfy
+ * exactly the same conditions fire the same transition from every state
+ * of the machine; each class of this partition (the minterms of the
+ * conditions) is called an <em>atom</em>. A processor can therefore
+ * classify the valuations of an input multi-event into atoms once, and
+ * then compute the transitions fired from each state by looking at atoms
+ * instead of valuations.
+ * <p>
+ * Since the number of minterms can be exponential in the number of
+ * conditions, atoms are not enumerated in advance: they are numbered in
+ * the order in which valuations belonging to them are first classified.
+ * The atom of each valuation is remembered, up to
+ * {@link #MAX_CACHED_VALUATIONS} valuations.
+ * <p>
+ * Valuations can be classified by several threads at the same time: the
+ * atoms of valuations already seen are read without locking, and the
+ * conditions are evaluated outside of any lock; only the discovery of a
+ * new atom is synchronized.
+ */
+public class AtomPartition
+{
+  /**
+   * The maximum number of valuations whose atom is remembered; when it is
+   * exceeded, the memory of valuations is cleared (the atoms themselves
+   * are kept)
+   */
+  public static final int MAX_CACHED_VALUATIONS = 1 << 16;
+
+  /**
+   * The machine
+   */
+  /*@ non_null @*/ protected final CompiledMachine m_machine;
+
+  /**
+   * The distinct conditions of the machine
+   */
+  /*@ non_null @*/ protected final MultiEvent[] m_conditions;
+
+  /**
+   * For each transition of the machine, the index of its condition in
+   * {@link #m_conditions}, or -1 for otherwise transitions
+   */
+  /*@ non_null @*/ protected final int[] m_conditionOf;
+
+  /**
+   * The association between condition signatures and atom IDs
+   */
+  /*@ non_null @*/ protected final Map<Signature,Integer> m_atoms;
+
+  /**
+   * For each atom, the position of the transition it fires from each state
+   * of the machine (-1 if none)
+   */
+  /*@ non_null @*/ protected final List<int[]> m_transitions;
+
+  /**
+   * The atom of the valuations classified so far
+   */
+  /*@ non_null @*/ protected final ConcurrentHashMap<Valuation,Integer> m_valuations;
+
+  /**
+   * Creates the partition for a compiled machine
+   * @param machine The machine
+   */
+  public AtomPartition(/*@ non_null @*/ CompiledMachine machine)
+  {
+    super();
+    m_machine = machine;
+    Map<MultiEvent,Integer> distinct = new IdentityHashMap<MultiEvent,Integer>();
+    List<MultiEvent> conditions = new ArrayList<MultiEvent>();
+    m_conditionOf = new int[machine.getTransitionCount()];
+    for (int t = 0; t < m_conditionOf.length; t++)
+    {
+      MultiEvent c = machine.getCondition(t);
+      if (c == null)
+      {
+        m_conditionOf[t] = -1;
+        continue;
+      }
+      Integer i = distinct.get(c);
+      if (i == null)
+      {
+        i = conditions.size();
+        distinct.put(c, i);
+        conditions.add(c);
+      }
+      m_conditionOf[t] = i;
+    }
+    m_conditions = conditions.toArray(new MultiEvent[conditions.size()]);
+    m_atoms = new HashMap<Signature,Integer>();
+    m_transitions = new ArrayList<int[]>();
+    m_valuations = new ConcurrentHashMap<Valuation,Integer>();
+  }
+
+  /**
+   * Gets the atom a valuation belongs to
+   * @param v The valuation; it is not kept by the partition, and can
+   * therefore be modified by the caller afterwards
+   * @return The atom ID
+   */
+  public int getAtom(/*@ non_null @*/ Valuation v)
+  {
+    Integer a = m_valuations.get(v);
+    if (a != null)
+    {
+      return a;
+    }
+    long[] bits = new long[(m_conditions.length + 63) >>> 6];
+    for (int i = 0; i < m_conditions.length; i++)
+    {
+      if (StateDispatch.contains(m_conditions[i], v))
+      {
+        bits[i >>> 6] |= 1L << i;
+      }
+    }
+    a = getAtom(bits);
+    if (m_valuations.size() >= MAX_CACHED_VALUATIONS)
+    {
+      m_valuations.clear();
+    }
+    m_valuations.put(new Valuation(v), a);
+    return a;
+  }
+
+  /**
+   * Gets the atom of the valuations that satisfy a given set of
+   * conditions, creating it if needed
+   * @param bits The set of satisfied conditions
+   * @return The atom ID
+   */
+  protected synchronized int getAtom(long[] bits)
+  {
+    Signature sig = new Signature(bits);
+    Integer a = m_atoms.get(sig);
+    if (a == null)
+    {
+      a = m_transitions.size();
+      m_atoms.put(sig, a);
+      m_transitions.add(getTransitions(bits));
+    }
+    return a;
+  }
+
+  /**
+   * Gets the transition fired from a state by the valuations of an atom
+   * @param atom The atom ID
+   * @param state The state ID
+   * @return The position of the transition in the compiled machine, or -1
+   * if the valuations of the atom fire no transition from this state
+   */
+  public synchronized int getTransition(int atom, int state)
+  {
+    return m_transitions.get(atom)[state];
+  }
+
+  /**
+   * Gets the transitions fired from each state by the valuations of an
+   * atom
+   * @param atom The atom ID
+   * @return An array indexed by state ID, giving the position of the
+   * transition in the compiled machine, or -1 if no transition fires. This
+   * array must not be modified.
+   */
+  /*@ non_null @*/ public synchronized int[] getTransitions(int atom)
+  {
+    return m_transitions.get(atom);
+  }
+
+  /**
+   * Gets the number of atoms discovered so far
+   * @return The number of atoms
+   */
+  public synchronized int getAtomCount()
+  {
+    return m_transitions.size();
+  }
+
+  /**
+   * Computes the transition fired from each state by the valuations that
+   * satisfy a given set of conditions. As in {@link StateDispatch}, the
+   * last transition whose condition is satisfied wins, and the otherwise
+   * transition is taken if there is none.
+   * @param bits The set of satisfied conditions
+   * @return The array of transition positions, indexed by state ID
+   */
+  protected int[] getTransitions(long[] bits)
+  {
+    int num_states = m_machine.getStateCount();
+    int[] transitions = new int[num_states];
+    for (int s = 0; s < num_states; s++)
+    {
+      int t = m_machine.getFirstTransition(s + 1) - 1;
+      int first = m_machine.getFirstTransition(s);
+      while (t >= first)
+      {
+        int c = m_conditionOf[t];
+        if (c >= 0 && (bits[c >>> 6] & (1L << c)) != 0)
+        {
+          break;
+        }
+        t--;
+      }
+      transitions[s] = t >= first ? t : m_machine.getOtherwise(s);
+    }
+    return transitions;
+  }
+
+  /**
+   * The set of conditions satisfied by a valuation, usable as a map key
+   */
+  protected static class Signature
+  {
+    /**
+     * The bits of the satisfied conditions
+     */
+    protected final long[] m_bits;
+
+    /**
+     * Creates a new signature
+     * @param bits The bits of the satisfied conditions
+     */
+    public Signature(long[] bits)
+    {
+      super();
+      m_bits = bits;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return Arrays.hashCode(m_bits);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof Signature))
+      {
+        return false;
+      }
+      return Arrays.equals(m_bits, ((Signature) o).m_bits);
+    }
+  }
+}
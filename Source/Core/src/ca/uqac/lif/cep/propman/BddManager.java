@@ -0,0 +1,651 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import ca.uqac.lif.cep.ltl.Troolean;
+
+/**
+ * Manages a collection of reduced ordered binary decision diagrams (BDDs)
+ * over propositional variables. Diagrams are designated by the integer ID
+ * of their root node; all the diagrams of a manager share the same node
+ * table, so that two equivalent formulas are always represented by the
+ * same node. The variable order is the order of the indices given to
+ * variables by the {@link VariableRegistry}.
+ * <p>
+ * Nodes are never reclaimed individually. Instead, the manager returned by
+ * {@link #getInstance()} is replaced by an empty one once it holds more
+ * than a maximum number of nodes; formulas rebuild their diagram in the
+ * new manager the next time it is asked for, and the old manager is
+ * reclaimed by the garbage collector once no formula refers to it. Callers
+ * that combine several diagrams must therefore get the manager once, and
+ * ask every formula for its diagram in that manager.
+ * <p>
+ * Only the methods that create nodes are synchronized. The node table is
+ * published through a volatile field, and nodes are never modified once
+ * created, so that {@link #satCount(int, int[])} and
+ * {@link #getValuations(int, int[])} can be called concurrently on the
+ * diagrams of a manager while other threads keep adding nodes to it.
+ */
+public class BddManager
+{
+  /**
+   * The default maximum number of nodes of the manager returned by
+   * {@link #getInstance()}
+   */
+  public static final int DEFAULT_MAX_NODES = 1 << 21;
+
+  /**
+   * The manager currently returned by {@link #getInstance()}
+   */
+  protected static volatile BddManager s_current = new BddManager();
+
+  /**
+   * The maximum number of nodes of the managers returned by
+   * {@link #getInstance()}
+   */
+  protected static volatile int s_maxNodes = DEFAULT_MAX_NODES;
+
+  /**
+   * The ID of the terminal node "false"
+   */
+  public static final int FALSE = 0;
+
+  /**
+   * The ID of the terminal node "true"
+   */
+  public static final int TRUE = 1;
+
+  /**
+   * Truth table of the conjunction, as used by {@link #apply(int, int, int)}
+   */
+  public static final int OP_AND = 0x8;
+
+  /**
+   * Truth table of the disjunction, as used by {@link #apply(int, int, int)}
+   */
+  public static final int OP_OR = 0xE;
+
+  /**
+   * Truth table of the negation of the first operand, as used by
+   * {@link #apply(int, int, int)}
+   */
+  public static final int OP_NOT = 0x3;
+
+  /**
+   * The variable index given to terminal nodes. It is larger than any
+   * variable index, so that terminals come last in the variable order.
+   */
+  protected static final int TERMINAL = Integer.MAX_VALUE;
+
+  /**
+   * The number of entries in the operation cache
+   */
+  protected static final int CACHE_SIZE = 1 << 16;
+
+  /**
+   * The nodes of the manager. The table is replaced by a larger copy when
+   * it is full.
+   */
+  protected volatile NodeTable m_nodes;
+
+  /**
+   * The number of nodes in the manager
+   */
+  protected volatile int m_nodeCount;
+
+  /**
+   * The unique table, an open-addressing hash table of node IDs; 0 marks
+   * an empty bucket
+   */
+  protected int[] m_unique;
+
+  /**
+   * The operation of each entry of the operation cache; -1 marks an empty
+   * entry
+   */
+  protected int[] m_cacheOp;
+
+  /**
+   * The first operand of each entry of the operation cache
+   */
+  protected int[] m_cacheLeft;
+
+  /**
+   * The second operand of each entry of the operation cache
+   */
+  protected int[] m_cacheRight;
+
+  /**
+   * The result of each entry of the operation cache
+   */
+  protected int[] m_cacheResult;
+
+  /**
+   * Creates a new empty BDD manager
+   */
+  public BddManager()
+  {
+    super();
+    NodeTable nodes = new NodeTable(1024);
+    nodes.m_var[FALSE] = TERMINAL;
+    nodes.m_var[TRUE] = TERMINAL;
+    m_nodes = nodes;
+    m_nodeCount = 2;
+    m_unique = new int[2048];
+    m_cacheOp = new int[CACHE_SIZE];
+    m_cacheLeft = new int[CACHE_SIZE];
+    m_cacheRight = new int[CACHE_SIZE];
+    m_cacheResult = new int[CACHE_SIZE];
+    Arrays.fill(m_cacheOp, -1);
+  }
+
+  /**
+   * Gets the manager where formulas build their diagrams. If the current
+   * manager holds more than the maximum number of nodes, it is replaced
+   * by an empty one.
+   * @return The manager
+   */
+  /*@ non_null @*/ public static BddManager getInstance()
+  {
+    BddManager m = s_current;
+    if (m.getNodeCount() > s_maxNodes)
+    {
+      synchronized (BddManager.class)
+      {
+        if (s_current == m)
+        {
+          s_current = new BddManager();
+        }
+        m = s_current;
+      }
+    }
+    return m;
+  }
+
+  /**
+   * Sets the maximum number of nodes of the manager returned by
+   * {@link #getInstance()}. A manager may exceed this number while a
+   * diagram is being built; it is replaced on the next call to
+   * {@link #getInstance()}.
+   * @param max_nodes The maximum number of nodes
+   */
+  public static void setMaxNodes(int max_nodes)
+  {
+    s_maxNodes = max_nodes;
+  }
+
+  /**
+   * Gets the diagram of a single variable
+   * @param index The index of the variable in the {@link VariableRegistry}
+   * @return The ID of the diagram
+   */
+  public synchronized int variable(int index)
+  {
+    return makeNode(index, FALSE, TRUE);
+  }
+
+  /**
+   * Computes the conjunction of two diagrams
+   * @param f The ID of the first diagram
+   * @param g The ID of the second diagram
+   * @return The ID of the resulting diagram
+   */
+  public synchronized int and(int f, int g)
+  {
+    return applyRec(OP_AND, f, g);
+  }
+
+  /**
+   * Computes the disjunction of two diagrams
+   * @param f The ID of the first diagram
+   * @param g The ID of the second diagram
+   * @return The ID of the resulting diagram
+   */
+  public synchronized int or(int f, int g)
+  {
+    return applyRec(OP_OR, f, g);
+  }
+
+  /**
+   * Computes the negation of a diagram
+   * @param f The ID of the diagram
+   * @return The ID of the resulting diagram
+   */
+  public synchronized int not(int f)
+  {
+    return applyRec(OP_NOT, f, TRUE);
+  }
+
+  /**
+   * Combines two diagrams with an arbitrary binary Boolean operator.
+   * @param op The truth table of the operator, as a 4-bit integer: bit
+   * <i>2a+b</i> is the value of the operator when its operands have
+   * the values <i>a</i> and <i>b</i>
+   * @param f The ID of the first diagram
+   * @param g The ID of the second diagram
+   * @return The ID of the resulting diagram
+   */
+  public synchronized int apply(int op, int f, int g)
+  {
+    return applyRec(op & 0xF, f, g);
+  }
+
+  /**
+   * Gets the number of nodes in the manager, including the two terminals
+   * @return The number of nodes
+   */
+  public int getNodeCount()
+  {
+    return m_nodeCount;
+  }
+
+  /**
+   * Counts the valuations of a domain that satisfy a diagram.
+   * @param f The ID of the diagram
+   * @param domain The indices of the variables of the domain, sorted in
+   * ascending order. All the variables tested by the diagram must be part
+   * of this domain.
+   * @return The number of satisfying valuations
+   */
+  public BigInteger satCount(int f, int[] domain)
+  {
+    return satCountRec(m_nodes, f, domain, 0, new HashMap<Integer,BigInteger>());
+  }
+
+  /**
+   * Enumerates the valuations of a domain that satisfy a diagram. The
+   * enumeration only visits the paths of the diagram that lead to the
+   * "true" terminal, so that its cost is proportional to the size of its
+   * output rather than to the size of the domain.
+   * @param f The ID of the diagram
+   * @param domain The indices of the variables of the domain, sorted in
+   * ascending order. All the variables tested by the diagram must be part
+   * of this domain.
+   * @return The set of satisfying valuations
+   */
+  public Set<Valuation> getValuations(int f, int[] domain)
+  {
+    Set<Valuation> valuations = new HashSet<Valuation>();
+    getValuationsRec(m_nodes, f, domain, 0, new Valuation(), valuations);
+    return valuations;
+  }
+
+  /**
+   * Converts a set of variable names into the sorted array of their
+   * indices, as expected by {@link #satCount(int, int[])} and
+   * {@link #getValuations(int, int[])}.
+   * @param domain The variable names
+   * @return The sorted array of indices
+   */
+  public static int[] getDomain(Collection<String> domain)
+  {
+    int[] indices = new int[domain.size()];
+    int i = 0;
+    for (String s : domain)
+    {
+      indices[i++] = VariableRegistry.instance.getIndex(s);
+    }
+    Arrays.sort(indices);
+    return indices;
+  }
+
+  /**
+   * Builds the diagram obtained by applying a function to the diagrams
+   * of its arguments. The function is only evaluated on Boolean inputs;
+   * an output other than {@link Troolean.Value#TRUE} is considered false.
+   * @param table The truth table of the function, as computed by
+   * {@link PropositionalFormula#getBooleanTable(ca.uqac.lif.cep.functions.Function, int)}
+   * @param args The IDs of the diagrams of the arguments
+   * @return The ID of the resulting diagram
+   */
+  public synchronized int compose(int table, int[] args)
+  {
+    switch (args.length)
+    {
+    case 0:
+      return (table & 1) != 0 ? TRUE : FALSE;
+    case 1:
+      // Bit 0: f(false), bit 1: f(true)
+      return applyRec(((table & 1) != 0 ? 0x3 : 0) | ((table & 2) != 0 ? 0xC : 0), args[0], TRUE);
+    case 2:
+      // Bit i of the table has argument 0 as its least significant bit
+      int op = 0;
+      for (int a = 0; a < 2; a++)
+      {
+        for (int b = 0; b < 2; b++)
+        {
+          if ((table & (1 << (a | (b << 1)))) != 0)
+          {
+            op |= 1 << ((a << 1) | b);
+          }
+        }
+      }
+      return applyRec(op, args[0], args[1]);
+    default:
+      // Disjunction of the minterms for which the function is true
+      int result = FALSE;
+      for (int i = 0; i < (1 << args.length); i++)
+      {
+        if ((table & (1 << i)) == 0)
+        {
+          continue;
+        }
+        int term = TRUE;
+        for (int j = 0; j < args.length && term != FALSE; j++)
+        {
+          term = applyRec((i & (1 << j)) != 0 ? OP_AND : 0x2, args[j], term);
+        }
+        result = applyRec(OP_OR, result, term);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Recursively applies a binary operator to two diagrams
+   * @param op The truth table of the operator
+   * @param f The ID of the first diagram
+   * @param g The ID of the second diagram
+   * @return The ID of the resulting diagram
+   */
+  protected int applyRec(int op, int f, int g)
+  {
+    if (f <= TRUE && g <= TRUE)
+    {
+      return (op >>> ((f << 1) | g)) & 1;
+    }
+    if (op == OP_AND)
+    {
+      if (f == FALSE || g == FALSE)
+      {
+        return FALSE;
+      }
+      if (f == TRUE || f == g)
+      {
+        return g;
+      }
+      if (g == TRUE)
+      {
+        return f;
+      }
+      if (f > g)
+      {
+        int tmp = f;
+        f = g;
+        g = tmp;
+      }
+    }
+    else if (op == OP_OR)
+    {
+      if (f == TRUE || g == TRUE)
+      {
+        return TRUE;
+      }
+      if (f == FALSE || f == g)
+      {
+        return g;
+      }
+      if (g == FALSE)
+      {
+        return f;
+      }
+      if (f > g)
+      {
+        int tmp = f;
+        f = g;
+        g = tmp;
+      }
+    }
+    int slot = hash(op, f, g) & (CACHE_SIZE - 1);
+    if (m_cacheOp[slot] == op && m_cacheLeft[slot] == f && m_cacheRight[slot] == g)
+    {
+      return m_cacheResult[slot];
+    }
+    NodeTable nodes = m_nodes;
+    int var_f = nodes.m_var[f], var_g = nodes.m_var[g];
+    int var = Math.min(var_f, var_g);
+    int low_f = nodes.m_low[f], high_f = nodes.m_high[f];
+    int low_g = nodes.m_low[g], high_g = nodes.m_high[g];
+    int low = applyRec(op, var_f == var ? low_f : f, var_g == var ? low_g : g);
+    int high = applyRec(op, var_f == var ? high_f : f, var_g == var ? high_g : g);
+    int result = makeNode(var, low, high);
+    m_cacheOp[slot] = op;
+    m_cacheLeft[slot] = f;
+    m_cacheRight[slot] = g;
+    m_cacheResult[slot] = result;
+    return result;
+  }
+
+  /**
+   * Gets the node with given variable and children, creating it if it does
+   * not exist yet
+   * @param var The variable index
+   * @param low The ID of the low child
+   * @param high The ID of the high child
+   * @return The ID of the node
+   */
+  protected int makeNode(int var, int low, int high)
+  {
+    if (low == high)
+    {
+      return low;
+    }
+    NodeTable nodes = m_nodes;
+    int mask = m_unique.length - 1;
+    int slot = hash(var, low, high) & mask;
+    while (m_unique[slot] != 0)
+    {
+      int n = m_unique[slot];
+      if (nodes.m_var[n] == var && nodes.m_low[n] == low && nodes.m_high[n] == high)
+      {
+        return n;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if (m_nodeCount == nodes.m_var.length)
+    {
+      // Readers that hold the old table only visit the nodes it contains
+      nodes = new NodeTable(nodes, nodes.m_var.length * 2);
+    }
+    int n = m_nodeCount;
+    nodes.m_var[n] = var;
+    nodes.m_low[n] = low;
+    nodes.m_high[n] = high;
+    // Publishes the new node along with the table
+    m_nodes = nodes;
+    m_nodeCount++;
+    m_unique[slot] = n;
+    if (m_nodeCount * 2 > m_unique.length)
+    {
+      rehash();
+    }
+    return n;
+  }
+
+  /**
+   * Doubles the size of the unique table
+   */
+  protected void rehash()
+  {
+    NodeTable nodes = m_nodes;
+    int[] unique = new int[m_unique.length * 2];
+    int mask = unique.length - 1;
+    for (int n = 2; n < m_nodeCount; n++)
+    {
+      int slot = hash(nodes.m_var[n], nodes.m_low[n], nodes.m_high[n]) & mask;
+      while (unique[slot] != 0)
+      {
+        slot = (slot + 1) & mask;
+      }
+      unique[slot] = n;
+    }
+    m_unique = unique;
+  }
+
+  /**
+   * Recursively counts the satisfying valuations of a diagram
+   * @param nodes The node table
+   * @param f The ID of the diagram
+   * @param domain The sorted indices of the variables of the domain
+   * @param from The position in the domain of the first variable not yet
+   * fixed
+   * @param memo A map from nodes to their number of satisfying valuations
+   * over the variables of the domain from the node's own variable onward
+   * @return The number of satisfying valuations
+   */
+  protected static BigInteger satCountRec(NodeTable nodes, int f, int[] domain, int from, Map<Integer,BigInteger> memo)
+  {
+    if (f == FALSE)
+    {
+      return BigInteger.ZERO;
+    }
+    if (f == TRUE)
+    {
+      return BigInteger.ONE.shiftLeft(domain.length - from);
+    }
+    int pos = position(nodes.m_var[f], domain);
+    BigInteger count = memo.get(f);
+    if (count == null)
+    {
+      count = satCountRec(nodes, nodes.m_low[f], domain, pos + 1, memo).add(satCountRec(nodes, nodes.m_high[f], domain, pos + 1, memo));
+      memo.put(f, count);
+    }
+    return count.shiftLeft(pos - from);
+  }
+
+  /**
+   * Recursively enumerates the satisfying valuations of a diagram
+   * @param nodes The node table
+   * @param f The ID of the diagram
+   * @param domain The sorted indices of the variables of the domain
+   * @param from The position in the domain of the next variable to fix
+   * @param current The valuation built so far
+   * @param valuations The set where complete valuations are added
+   */
+  protected static void getValuationsRec(NodeTable nodes, int f, int[] domain, int from, Valuation current, Set<Valuation> valuations)
+  {
+    if (f == FALSE)
+    {
+      return;
+    }
+    if (from == domain.length)
+    {
+      if (f != TRUE)
+      {
+        throw new IllegalArgumentException("Diagram tests a variable outside of the domain");
+      }
+      valuations.add(new Valuation(current));
+      return;
+    }
+    int var = domain[from];
+    if (nodes.m_var[f] < var)
+    {
+      throw new IllegalArgumentException("Diagram tests a variable outside of the domain");
+    }
+    boolean tested = nodes.m_var[f] == var;
+    current.put(var, Troolean.Value.FALSE);
+    getValuationsRec(nodes, tested ? nodes.m_low[f] : f, domain, from + 1, current, valuations);
+    current.put(var, Troolean.Value.TRUE);
+    getValuationsRec(nodes, tested ? nodes.m_high[f] : f, domain, from + 1, current, valuations);
+    current.put(var, null);
+  }
+
+  /**
+   * Finds the position of a variable in a domain
+   * @param var The variable index
+   * @param domain The sorted indices of the variables of the domain
+   * @return The position
+   */
+  protected static int position(int var, int[] domain)
+  {
+    int pos = Arrays.binarySearch(domain, var);
+    if (pos < 0)
+    {
+      throw new IllegalArgumentException("Diagram tests a variable outside of the domain");
+    }
+    return pos;
+  }
+
+  /**
+   * Hashes a triplet of integers
+   * @param a The first integer
+   * @param b The second integer
+   * @param c The third integer
+   * @return The hash value
+   */
+  protected static int hash(int a, int b, int c)
+  {
+    int h = a * 0x9E3779B1 + b;
+    h = h * 0x85EBCA6B + c;
+    return h ^ (h >>> 15);
+  }
+
+  /**
+   * The nodes of a manager, stored as three parallel arrays
+   */
+  protected static class NodeTable
+  {
+    /**
+     * The variable index of each node
+     */
+    protected final int[] m_var;
+
+    /**
+     * The "low" (variable is false) child of each node
+     */
+    protected final int[] m_low;
+
+    /**
+     * The "high" (variable is true) child of each node
+     */
+    protected final int[] m_high;
+
+    /**
+     * Creates a new empty node table
+     * @param size The number of nodes the table can hold
+     */
+    protected NodeTable(int size)
+    {
+      super();
+      m_var = new int[size];
+      m_low = new int[size];
+      m_high = new int[size];
+    }
+
+    /**
+     * Creates a copy of a node table with a larger size
+     * @param t The table to copy
+     * @param size The number of nodes the new table can hold
+     */
+    protected NodeTable(NodeTable t, int size)
+    {
+      super();
+      m_var = Arrays.copyOf(t.m_var, size);
+      m_low = Arrays.copyOf(t.m_low, size);
+      m_high = Arrays.copyOf(t.m_high, size);
+    }
+  }
+}
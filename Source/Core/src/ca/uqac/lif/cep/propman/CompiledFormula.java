@@ -0,0 +1,502 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import ca.uqac.lif.cep.functions.Function;
+import ca.uqac.lif.cep.ltl.Troolean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link PropositionalFormula} compiled into a flat program in postfix
+ * notation. The program reads variables by their index in the
+ * {@link VariableRegistry}, and replaces each function of the formula by a
+ * lookup in its truth table over Troolean values. Evaluating it therefore
+ * creates no intermediate arrays and makes no virtual calls, while giving
+ * the same result as the evaluation of the original function tree. The
+ * stack of the program is either given by the caller, or taken from a
+ * buffer kept by each thread and shared by all compiled formulas, so
+ * that no evaluation allocates memory once this buffer is large enough.
+ * <p>
+ * Inside a program, Troolean values are represented by the integers
+ * 0 (false), 1 (true) and 2 (inconclusive).
+ */
+public class CompiledFormula
+{
+  /**
+   * Instruction pushing the value of a variable
+   */
+  protected static final byte OP_VAR = 0;
+
+  /**
+   * Instruction pushing a constant value
+   */
+  protected static final byte OP_CONST = 1;
+
+  /**
+   * Instruction applying a function of one argument
+   */
+  protected static final byte OP_UNARY = 2;
+
+  /**
+   * Instruction applying a function of two arguments
+   */
+  protected static final byte OP_BINARY = 3;
+
+  /**
+   * Instruction applying a function of more than two arguments
+   */
+  protected static final byte OP_NARY = 4;
+
+  /**
+   * The maximum number of arguments of a function in a compiled formula
+   */
+  protected static final int MAX_ARITY = 5;
+
+  /**
+   * The Troolean values, in the order of their integer representation
+   */
+  protected static final Troolean.Value[] VALUES = {Troolean.Value.FALSE, Troolean.Value.TRUE, Troolean.Value.INCONCLUSIVE};
+
+  /**
+   * The stack of each thread, grown to the largest depth of the formulas
+   * it evaluates. Since the evaluation of a formula never evaluates
+   * another one, the same stack can be used by all formulas.
+   */
+  protected static final ThreadLocal<int[]> STACKS = new ThreadLocal<int[]>()
+  {
+    @Override
+    protected int[] initialValue()
+    {
+      return new int[16];
+    }
+  };
+
+  /**
+   * The instructions of the program
+   */
+  protected final byte[] m_ops;
+
+  /**
+   * The operand of each instruction: a variable index for
+   * {@link #OP_VAR}, a value for {@link #OP_CONST}, and an offset in
+   * {@link #m_tables} for the other instructions
+   */
+  protected final int[] m_operands;
+
+  /**
+   * The number of arguments of each {@link #OP_NARY} instruction
+   */
+  protected final byte[] m_arities;
+
+  /**
+   * The truth tables of all the functions of the program, one after the
+   * other. The table of a function of arity <i>k</i> has 3<sup>k</sup>
+   * entries; the entry for arguments <i>v</i><sub>0</sub>, &hellip;,
+   * <i>v</i><sub>k-1</sub> is at position
+   * &Sigma;<sub>j</sub> <i>v</i><sub>j</sub>&times;3<sup>j</sup>.
+   */
+  protected final byte[] m_tables;
+
+  /**
+   * The maximum depth of the stack during the execution of the program
+   */
+  protected final int m_maxDepth;
+
+  /**
+   * Creates a new compiled formula
+   * @param ops The instructions of the program
+   * @param operands The operand of each instruction
+   * @param arities The number of arguments of each instruction
+   * @param tables The truth tables of the functions
+   * @param max_depth The maximum depth of the stack
+   */
+  protected CompiledFormula(byte[] ops, int[] operands, byte[] arities, byte[] tables, int max_depth)
+  {
+    super();
+    m_ops = ops;
+    m_operands = operands;
+    m_arities = arities;
+    m_tables = tables;
+    m_maxDepth = max_depth;
+  }
+
+  /**
+   * Compiles a propositional formula.
+   * @param f The formula
+   * @return The compiled formula, or <tt>null</tt> if the formula contains
+   * a function that cannot be compiled
+   */
+  /*@ null @*/ public static CompiledFormula compile(/*@ non_null @*/ PropositionalFormula f)
+  {
+    Builder b = new Builder();
+    if (!b.add(f))
+    {
+      return null;
+    }
+    return b.build();
+  }
+
+  /**
+   * Evaluates the formula on a given valuation.
+   * @param v The valuation
+   * @return The value of the formula for this valuation
+   */
+  public Troolean.Value evaluate(Valuation v)
+  {
+    return VALUES[evaluateCode(v)];
+  }
+
+  /**
+   * Evaluates the formula on a given valuation, using a stack provided by
+   * the caller.
+   * @param v The valuation
+   * @param stack An array of at least {@link #getStackSize()} elements;
+   * its contents are overwritten
+   * @return The value of the formula for this valuation
+   */
+  public Troolean.Value evaluate(Valuation v, int[] stack)
+  {
+    return VALUES[evaluateCode(v, stack)];
+  }
+
+  /**
+   * Gets the number of elements of the stack needed to evaluate the
+   * formula
+   * @return The number of elements
+   */
+  public int getStackSize()
+  {
+    return m_maxDepth;
+  }
+
+  /**
+   * Evaluates the formula on a given valuation, and returns the integer
+   * representation of the result.
+   * @param v The valuation
+   * @return The value of the formula: 0 (false), 1 (true) or 2
+   * (inconclusive)
+   */
+  public int evaluateCode(Valuation v)
+  {
+    int[] stack = STACKS.get();
+    if (stack.length < m_maxDepth)
+    {
+      stack = new int[m_maxDepth];
+      STACKS.set(stack);
+    }
+    return evaluateCode(v, stack);
+  }
+
+  /**
+   * Evaluates the formula on a given valuation, using a stack provided by
+   * the caller, and returns the integer representation of the result.
+   * @param v The valuation
+   * @param stack An array of at least {@link #getStackSize()} elements;
+   * its contents are overwritten
+   * @return The value of the formula: 0 (false), 1 (true) or 2
+   * (inconclusive)
+   */
+  public int evaluateCode(Valuation v, int[] stack)
+  {
+    final byte[] ops = m_ops;
+    final int[] operands = m_operands;
+    final byte[] tables = m_tables;
+    if (ops.length == 1)
+    {
+      // Single variable or constant: no need for a stack
+      return ops[0] == OP_VAR ? v.getCode(operands[0]) : operands[0];
+    }
+    int top = 0;
+    for (int pc = 0; pc < ops.length; pc++)
+    {
+      switch (ops[pc])
+      {
+      case OP_VAR:
+        stack[top++] = v.getCode(operands[pc]);
+        break;
+      case OP_CONST:
+        stack[top++] = operands[pc];
+        break;
+      case OP_UNARY:
+        stack[top - 1] = tables[operands[pc] + stack[top - 1]];
+        break;
+      case OP_BINARY:
+        top--;
+        stack[top - 1] = tables[operands[pc] + stack[top - 1] + 3 * stack[top]];
+        break;
+      default:
+        int arity = m_arities[pc];
+        int pos = 0;
+        for (int j = arity - 1; j >= 0; j--)
+        {
+          pos = 3 * pos + stack[top - arity + j];
+        }
+        top -= arity - 1;
+        stack[top - 1] = tables[operands[pc] + pos];
+        break;
+      }
+    }
+    return stack[0];
+  }
+
+  /**
+   * Computes the truth table of a function over Troolean values.
+   * @param f The function
+   * @param arity The number of arguments of the function
+   * @return The table, in the format of {@link #m_tables}, or <tt>null</tt>
+   * if the function cannot be evaluated on Troolean values or does not
+   * return a Troolean value
+   */
+  /*@ null @*/ protected static byte[] getTrooleanTable(Function f, int arity)
+  {
+    int size = 1;
+    for (int j = 0; j < arity; j++)
+    {
+      size *= 3;
+    }
+    byte[] table = new byte[size];
+    Object[] inputs = new Object[arity];
+    Object[] outputs = new Object[1];
+    for (int i = 0; i < size; i++)
+    {
+      int pos = i;
+      for (int j = 0; j < arity; j++)
+      {
+        inputs[j] = VALUES[pos % 3];
+        pos /= 3;
+      }
+      try
+      {
+        f.evaluate(inputs, outputs);
+      }
+      catch (RuntimeException e)
+      {
+        return null;
+      }
+      if (outputs[0] == Troolean.Value.FALSE)
+      {
+        table[i] = 0;
+      }
+      else if (outputs[0] == Troolean.Value.TRUE)
+      {
+        table[i] = 1;
+      }
+      else if (outputs[0] == Troolean.Value.INCONCLUSIVE)
+      {
+        table[i] = 2;
+      }
+      else
+      {
+        return null;
+      }
+    }
+    return table;
+  }
+
+  /**
+   * Translates a function tree into a program
+   */
+  protected static class Builder
+  {
+    /**
+     * The instructions of the program
+     */
+    protected List<Byte> m_ops = new ArrayList<Byte>();
+
+    /**
+     * The operands of the instructions
+     */
+    protected List<Integer> m_operands = new ArrayList<Integer>();
+
+    /**
+     * The number of arguments of the instructions
+     */
+    protected List<Byte> m_arities = new ArrayList<Byte>();
+
+    /**
+     * The truth tables of the functions
+     */
+    protected List<Byte> m_tables = new ArrayList<Byte>();
+
+    /**
+     * The current depth of the stack
+     */
+    protected int m_depth = 0;
+
+    /**
+     * The maximum depth of the stack
+     */
+    protected int m_maxDepth = 0;
+
+    /**
+     * Adds the instructions evaluating a function to the program
+     * @param f The function
+     * @return <tt>true</tt> if the function could be compiled,
+     * <tt>false</tt> otherwise
+     */
+    public boolean add(Function f)
+    {
+      if (f instanceof PropositionalVariable)
+      {
+        emit(OP_VAR, ((PropositionalVariable) f).m_index, 0);
+        push(1);
+        return true;
+      }
+      Function root = f;
+      Function[] children = new Function[0];
+      if (f instanceof PropositionalFormula)
+      {
+        root = ((PropositionalFormula) f).getConnective();
+        children = ((PropositionalFormula) f).getOperands();
+      }
+      int arity = children.length;
+      if (arity > MAX_ARITY || root.getInputArity() != arity)
+      {
+        return false;
+      }
+      byte[] table = getTrooleanTable(root, arity);
+      if (table == null)
+      {
+        return false;
+      }
+      int first = m_ops.size();
+      for (Function c : children)
+      {
+        if (!add(c))
+        {
+          return false;
+        }
+      }
+      if (allConstant(first))
+      {
+        // Constant folding: replace the arguments by their result
+        int pos = 0;
+        for (int j = arity - 1; j >= 0; j--)
+        {
+          pos = 3 * pos + m_operands.get(first + j);
+        }
+        truncate(first);
+        m_depth -= arity;
+        emit(OP_CONST, table[pos], 0);
+        push(1);
+        return true;
+      }
+      int offset = m_tables.size();
+      for (byte b : table)
+      {
+        m_tables.add(b);
+      }
+      if (arity == 1)
+      {
+        emit(OP_UNARY, offset, 1);
+      }
+      else if (arity == 2)
+      {
+        emit(OP_BINARY, offset, 2);
+      }
+      else
+      {
+        emit(OP_NARY, offset, arity);
+      }
+      m_depth -= arity;
+      push(1);
+      return true;
+    }
+
+    /**
+     * Creates the compiled formula
+     * @return The compiled formula
+     */
+    public CompiledFormula build()
+    {
+      byte[] ops = new byte[m_ops.size()];
+      int[] operands = new int[ops.length];
+      byte[] arities = new byte[ops.length];
+      for (int i = 0; i < ops.length; i++)
+      {
+        ops[i] = m_ops.get(i);
+        operands[i] = m_operands.get(i);
+        arities[i] = m_arities.get(i);
+      }
+      byte[] tables = new byte[m_tables.size()];
+      for (int i = 0; i < tables.length; i++)
+      {
+        tables[i] = m_tables.get(i);
+      }
+      return new CompiledFormula(ops, operands, arities, tables, m_maxDepth);
+    }
+
+    /**
+     * Appends an instruction to the program
+     * @param op The instruction
+     * @param operand The operand
+     * @param arity The number of arguments
+     */
+    protected void emit(byte op, int operand, int arity)
+    {
+      m_ops.add(op);
+      m_operands.add(operand);
+      m_arities.add((byte) arity);
+    }
+
+    /**
+     * Increases the depth of the stack
+     * @param n The number of values pushed
+     */
+    protected void push(int n)
+    {
+      m_depth += n;
+      m_maxDepth = Math.max(m_maxDepth, m_depth);
+    }
+
+    /**
+     * Determines if all the instructions from a given position are
+     * constants
+     * @param from The position
+     * @return <tt>true</tt> if all instructions are constants,
+     * <tt>false</tt> otherwise
+     */
+    protected boolean allConstant(int from)
+    {
+      for (int i = from; i < m_ops.size(); i++)
+      {
+        if (m_ops.get(i) != OP_CONST)
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Removes all the instructions from a given position
+     * @param from The position
+     */
+    protected void truncate(int from)
+    {
+      while (m_ops.size() > from)
+      {
+        int last = m_ops.size() - 1;
+        m_ops.remove(last);
+        m_operands.remove(last);
+        m_arities.remove(last);
+      }
+    }
+  }
+}
@@ -0,0 +1,431 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import ca.uqac.lif.cep.ltl.Troolean;
+import ca.uqac.lif.cep.propman.MultiEventFunction.EmitConstant;
+import ca.uqac.lif.cep.propman.PropositionalMachine.Transition;
+import ca.uqac.lif.cep.propman.PropositionalMachine.TransitionOtherwise;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable, array-based copy of the transition relation of a
+ * {@link PropositionalMachine}. States are given dense integer identifiers
+ * starting at 0, and the transitions are laid out in "compressed sparse
+ * row" form: the outgoing transitions of state <i>s</i> occupy the
+ * positions <tt>getFirstTransition(s)</tt> (inclusive) to
+ * <tt>getFirstTransition(s+1)</tt> (exclusive) of the transition
+ * columns, in the order in which the machine lists them. This allows
+ * processors that step through the machine to index their data structures
+ * by state and transition number instead of hashing state objects.
+ * <p>
+ * Unless other states are explicitly given, only the states reachable from
+ * the initial state are kept.
+ */
+public class CompiledMachine
+{
+  /**
+   * The original state objects, indexed by state ID
+   */
+  /*@ non_null @*/ protected final Object[] m_states;
+
+  /**
+   * The association between original state objects and state IDs
+   */
+  /*@ non_null @*/ protected final Map<Object,Integer> m_ids;
+
+  /**
+   * The ID of the initial state
+   */
+  protected final int m_initialState;
+
+  /**
+   * For each state, the position of its first outgoing transition; the
+   * array has one more element than there are states
+   */
+  /*@ non_null @*/ protected final int[] m_offsets;
+
+  /**
+   * The original transitions
+   */
+  /*@ non_null @*/ protected final Transition[] m_transitions;
+
+  /**
+   * The condition of each transition; <tt>null</tt> for otherwise
+   * transitions
+   */
+  /*@ non_null @*/ protected final MultiEvent[] m_conditions;
+
+  /**
+   * The destination state ID of each transition
+   */
+  /*@ non_null @*/ protected final int[] m_destinations;
+
+  /**
+   * The output function of each transition
+   */
+  /*@ non_null @*/ protected final MultiEventFunction[] m_functions;
+
+  /**
+   * The verdict produced by each transition, when its output function
+   * emits a constant; <tt>null</tt> otherwise
+   */
+  /*@ non_null @*/ protected final Troolean.Value[] m_verdicts;
+
+  /**
+   * For each state, the position of its otherwise transition, or -1 if it
+   * has none
+   */
+  /*@ non_null @*/ protected final int[] m_otherwise;
+
+  /**
+   * For each state, its outgoing transitions as a read-only list
+   */
+  /*@ non_null @*/ protected final List<List<Transition>> m_rows;
+
+  /**
+   * For each state, the structure that maps input valuations to the
+   * transition they fire; created on demand
+   */
+  /*@ non_null @*/ protected final StateDispatch[] m_dispatch;
+
+  /**
+   * The partition of input valuations into atoms; created on demand
+   */
+  /*@ null @*/ protected AtomPartition m_atoms = null;
+
+  /**
+   * The version of the original machine that was compiled (see
+   * {@link PropositionalMachine#getVersion()})
+   */
+  protected final long m_version;
+
+  /**
+   * Compiles a propositional machine
+   * @param machine The machine
+   * @return The compiled machine
+   */
+  /*@ non_null @*/ public static CompiledMachine compile(/*@ non_null @*/ PropositionalMachine machine)
+  {
+    return compile(machine, new ArrayList<Object>(0));
+  }
+
+  /**
+   * Compiles a propositional machine, keeping the states reachable from
+   * the initial state as well as those reachable from other given states
+   * @param machine The machine
+   * @param roots The other states to start from
+   * @return The compiled machine
+   */
+  /*@ non_null @*/ public static CompiledMachine compile(/*@ non_null @*/ PropositionalMachine machine, /*@ non_null @*/ Collection<?> roots)
+  {
+    // Number the states in the order of a breadth-first traversal
+    Map<Object,Integer> ids = new HashMap<Object,Integer>();
+    List<Object> states = new ArrayList<Object>();
+    List<List<Transition>> rows = new ArrayList<List<Transition>>();
+    ArrayDeque<Object> to_visit = new ArrayDeque<Object>();
+    Object initial = machine.getInitialState();
+    ids.put(initial, 0);
+    states.add(initial);
+    to_visit.add(initial);
+    for (Object root : roots)
+    {
+      if (!ids.containsKey(root))
+      {
+        ids.put(root, states.size());
+        states.add(root);
+        to_visit.add(root);
+      }
+    }
+    int num_transitions = 0;
+    while (!to_visit.isEmpty())
+    {
+      Object current = to_visit.poll();
+      List<Transition> row = machine.getTransitionsFor(current);
+      rows.add(Collections.unmodifiableList(new ArrayList<Transition>(row)));
+      num_transitions += row.size();
+      for (Transition t : row)
+      {
+        Object dest = t.getDestination();
+        if (!ids.containsKey(dest))
+        {
+          ids.put(dest, states.size());
+          states.add(dest);
+          to_visit.add(dest);
+        }
+      }
+    }
+    return new CompiledMachine(states, ids, rows, num_transitions, machine.getVersion());
+  }
+
+  /**
+   * Creates a new compiled machine
+   * @param states The original states, in the order of their ID; the
+   * initial state comes first
+   * @param ids The association between original states and their ID
+   * @param rows The outgoing transitions of each state, in the order of
+   * their ID
+   * @param num_transitions The total number of transitions
+   * @param version The version of the original machine
+   */
+  protected CompiledMachine(List<Object> states, Map<Object,Integer> ids, List<List<Transition>> rows, int num_transitions, long version)
+  {
+    super();
+    m_version = version;
+    int num_states = states.size();
+    m_states = states.toArray();
+    m_ids = ids;
+    m_initialState = 0;
+    m_rows = rows;
+    m_offsets = new int[num_states + 1];
+    m_otherwise = new int[num_states];
+    m_dispatch = new StateDispatch[num_states];
+    m_transitions = new Transition[num_transitions];
+    m_conditions = new MultiEvent[num_transitions];
+    m_destinations = new int[num_transitions];
+    m_functions = new MultiEventFunction[num_transitions];
+    m_verdicts = new Troolean.Value[num_transitions];
+    int pos = 0;
+    for (int s = 0; s < num_states; s++)
+    {
+      m_offsets[s] = pos;
+      m_otherwise[s] = -1;
+      for (Transition t : rows.get(s))
+      {
+        m_transitions[pos] = t;
+        m_destinations[pos] = ids.get(t.getDestination());
+        m_functions[pos] = t.getFunction();
+        if (t instanceof TransitionOtherwise)
+        {
+          // If a state has more than one, the last one wins, as in
+          // ExplicitPropositionalMachine
+          m_otherwise[s] = pos;
+        }
+        else
+        {
+          m_conditions[pos] = t.getCondition();
+        }
+        if (t.getFunction() instanceof EmitConstant)
+        {
+          m_verdicts[pos] = MultiMonitor.getVerdict(t.getFunction().getValue(null));
+        }
+        pos++;
+      }
+    }
+    m_offsets[num_states] = pos;
+  }
+
+  /**
+   * Gets the number of states of the machine
+   * @return The number of states
+   */
+  public int getStateCount()
+  {
+    return m_states.length;
+  }
+
+  /**
+   * Gets the version of the original machine that was compiled
+   * @return The version
+   */
+  public long getVersion()
+  {
+    return m_version;
+  }
+
+  /**
+   * Gets the number of transitions of the machine
+   * @return The number of transitions
+   */
+  public int getTransitionCount()
+  {
+    return m_transitions.length;
+  }
+
+  /**
+   * Gets the ID of the initial state
+   * @return The ID
+   */
+  public int getInitialState()
+  {
+    return m_initialState;
+  }
+
+  /**
+   * Gets the ID given to a state of the original machine
+   * @param state The state
+   * @return The ID, or -1 if the state is not reachable from the initial
+   * state
+   */
+  public int getStateId(/*@ null @*/ Object state)
+  {
+    Integer id = m_ids.get(state);
+    if (id == null)
+    {
+      return -1;
+    }
+    return id;
+  }
+
+  /**
+   * Gets the state of the original machine that corresponds to an ID
+   * @param id The ID
+   * @return The state
+   */
+  /*@ null @*/ public Object getState(int id)
+  {
+    return m_states[id];
+  }
+
+  /**
+   * Gets the position of the first outgoing transition of a state. The
+   * outgoing transitions of state <i>s</i> end right before the position
+   * returned for <i>s</i>+1.
+   * @param state The state ID
+   * @return The position
+   */
+  public int getFirstTransition(int state)
+  {
+    return m_offsets[state];
+  }
+
+  /**
+   * Gets the position of the otherwise transition of a state
+   * @param state The state ID
+   * @return The position, or -1 if the state has no otherwise transition
+   */
+  public int getOtherwise(int state)
+  {
+    return m_otherwise[state];
+  }
+
+  /**
+   * Gets the structure that maps input valuations to the transition they
+   * fire from a state
+   * @param state The state ID
+   * @return The dispatch structure
+   */
+  /*@ non_null @*/ public StateDispatch getDispatch(int state)
+  {
+    StateDispatch d = m_dispatch[state];
+    if (d == null)
+    {
+      // Concurrent callers may build it twice; both copies are identical
+      d = new StateDispatch(this, state);
+      m_dispatch[state] = d;
+    }
+    return d;
+  }
+
+  /**
+   * Gets the partition of input valuations into atoms according to the
+   * conditions of this machine
+   * @return The partition
+   */
+  /*@ non_null @*/ public synchronized AtomPartition getAtomPartition()
+  {
+    if (m_atoms == null)
+    {
+      m_atoms = new AtomPartition(this);
+    }
+    return m_atoms;
+  }
+
+  /**
+   * Gets the outgoing transitions of a state
+   * @param state The state ID
+   * @return A read-only list of transitions, in the same order as the
+   * transition positions
+   */
+  /*@ non_null @*/ public List<Transition> getTransitionsFor(int state)
+  {
+    return m_rows.get(state);
+  }
+
+  /**
+   * Gets the original transition at some position
+   * @param t The position
+   * @return The transition
+   */
+  /*@ non_null @*/ public Transition getTransition(int t)
+  {
+    return m_transitions[t];
+  }
+
+  /**
+   * Gets the condition of the transition at some position
+   * @param t The position
+   * @return The condition, or <tt>null</tt> for an otherwise transition
+   */
+  /*@ null @*/ public MultiEvent getCondition(int t)
+  {
+    return m_conditions[t];
+  }
+
+  /**
+   * Gets the destination state ID of the transition at some position
+   * @param t The position
+   * @return The state ID
+   */
+  public int getDestination(int t)
+  {
+    return m_destinations[t];
+  }
+
+  /**
+   * Gets the output function of the transition at some position
+   * @param t The position
+   * @return The function
+   */
+  /*@ non_null @*/ public MultiEventFunction getFunction(int t)
+  {
+    return m_functions[t];
+  }
+
+  /**
+   * Gets the verdict produced by the transition at some position, as
+   * defined by {@link MultiMonitor#getVerdict(MultiEvent)}
+   * @param t The position
+   * @param input_event The input multi-event that fires the transition
+   * @return The verdict
+   */
+  /*@ non_null @*/ public Troolean.Value getVerdict(int t, MultiEvent input_event)
+  {
+    Troolean.Value v = m_verdicts[t];
+    if (v != null)
+    {
+      return v;
+    }
+    return MultiMonitor.getVerdict(m_functions[t].getValue(input_event));
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder out = new StringBuilder();
+    out.append("states: ").append(Arrays.toString(m_states)).append(", offsets: ").append(Arrays.toString(m_offsets)).append(", destinations: ").append(Arrays.toString(m_destinations));
+    return out.toString();
+  }
+}
@@ -19,27 +19,65 @@ package ca.uqac.lif.cep.propman;
 
 import ca.uqac.lif.cep.ltl.Troolean;
 
+import java.util.AbstractSet;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
- * A multi-event that contains a concrete set of valuations
+ * A multi-event that contains a concrete set of valuations.
+ * <p>
+ * The valuations are not kept as objects: their bit planes (see
+ * {@link Valuation}) are copied one after the other in a single array of
+ * <tt>long</tt>s, and an open-addressing table of positions in this array
+ * is used to look them up. Each valuation thus takes three <tt>long</tt>s
+ * and a table entry, instead of an object and a hash set entry.
+ * Valuation objects are only created when the valuations are requested
+ * through {@link #getValuations()}; {@link #getValuation(int, Valuation)}
+ * visits them without creating any object. A concrete multi-event is
+ * immutable; later changes to the valuations it was created from have no
+ * effect on it.
  * @author Sylvain Hallé, Rania Taleb
  */
 public class ConcreteMultiEvent implements MultiEvent
 {
   /**
-   * The set of valuations contained in this multi-event
+   * The bit planes of the valuations contained in this multi-event; the
+   * planes of valuation <i>i</i> start at position <i>i</i> &times;
+   * {@link #m_width}
    */
-  protected Set<Valuation> m_valuations;
+  /*@ non_null @*/ protected final long[] m_planes;
+
+  /**
+   * The number of elements of {@link #m_planes} occupied by each valuation
+   */
+  protected final int m_width;
+
+  /**
+   * The number of valuations contained in this multi-event
+   */
+  protected final int m_size;
+
+  /**
+   * An open-addressing hash table giving the position of each valuation
+   * plus one; 0 marks an empty slot. Its length is a power of two.
+   */
+  /*@ non_null @*/ protected final int[] m_table;
+
+  /**
+   * The hash code of the set of valuations, computed once when the
+   * multi-event is created
+   */
+  protected final int m_hashCode;
 
   /**
    * Creates a new empty concrete multi-event
    */
   public ConcreteMultiEvent()
   {
-    super();
-    m_valuations = new HashSet<Valuation>();
+    this(Collections.<Valuation>emptySet());
   }
 
   /**
@@ -49,8 +87,37 @@ public class ConcreteMultiEvent implements MultiEvent
   public ConcreteMultiEvent(Set<Valuation> valuations)
   {
     super();
-    m_valuations = new HashSet<Valuation>(valuations.size());
-    m_valuations.addAll(valuations);
+    int width = 3;
+    for (Valuation v : valuations)
+    {
+      width = Math.max(width, v.getWidth());
+    }
+    m_width = width;
+    m_planes = new long[valuations.size() * width];
+    m_table = new int[Integer.highestOneBit(Math.max(1, 2 * valuations.size() - 1)) << 1];
+    int size = 0;
+    int hash = 0;
+    for (Valuation v : valuations)
+    {
+      int h = v.hashCode();
+      if (indexOf(v, h) >= 0)
+      {
+        // Only possible if the valuations were modified after being added
+        // to the set
+        continue;
+      }
+      v.write(m_planes, size * width);
+      int p = getSlot(h);
+      while (m_table[p] != 0)
+      {
+        p = (p + 1) & (m_table.length - 1);
+      }
+      m_table[p] = ++size;
+      hash += h;
+    }
+    m_size = size;
+    // Same as the hash code of a set containing the valuations
+    m_hashCode = hash;
   }
 
   /**
@@ -59,25 +126,102 @@ public class ConcreteMultiEvent implements MultiEvent
    */
   public ConcreteMultiEvent(Valuation valuation)
   {
-    super();
-    m_valuations = new HashSet<Valuation>(1);
-    m_valuations.add(valuation);
+    this(Collections.singleton(valuation));
   }
 
+  /**
+   * Gets the set of valuations contained in this multi-event. The set is
+   * a read-only view; each call to its iterator creates new valuation
+   * objects.
+   * @return The set of valuations
+   */
   @Override
   public Set<Valuation> getValuations()
   {
-    return m_valuations;
+    return new ValuationSet();
+  }
+
+  @Override
+  public long getValuationCount()
+  {
+    return m_size;
+  }
+
+  /**
+   * Gets a valuation of this multi-event
+   * @param i The position of the valuation, between 0 and
+   * {@link #getValuationCount()} (exclusive)
+   * @return A new valuation object
+   */
+  /*@ non_null @*/ public Valuation getValuation(int i)
+  {
+    return getValuation(i, new Valuation());
+  }
+
+  /**
+   * Gets a valuation of this multi-event by overwriting an existing
+   * valuation object. This allows all the valuations to be visited
+   * without creating objects.
+   * @param i The position of the valuation, between 0 and
+   * {@link #getValuationCount()} (exclusive)
+   * @param v The valuation object to overwrite
+   * @return <tt>v</tt>
+   */
+  /*@ non_null @*/ public Valuation getValuation(int i, /*@ non_null @*/ Valuation v)
+  {
+    return v.read(m_planes, i * m_width, m_width);
+  }
+
+  /**
+   * Determines if a valuation belongs to this multi-event
+   * @param v The valuation
+   * @return <tt>true</tt> if the valuation belongs to the multi-event,
+   * <tt>false</tt> otherwise
+   */
+  public boolean contains(/*@ non_null @*/ Valuation v)
+  {
+    return indexOf(v, v.hashCode()) >= 0;
+  }
+
+  /**
+   * Finds the position of a valuation in this multi-event
+   * @param v The valuation
+   * @param h The hash code of the valuation
+   * @return The position, or -1 if the valuation does not belong to the
+   * multi-event
+   */
+  protected int indexOf(/*@ non_null @*/ Valuation v, int h)
+  {
+    for (int p = getSlot(h); m_table[p] != 0; p = (p + 1) & (m_table.length - 1))
+    {
+      int i = m_table[p] - 1;
+      if (v.equals(m_planes, i * m_width, m_width))
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Gets the slot of the hash table where the lookup of a hash code starts
+   * @param h The hash code
+   * @return The slot
+   */
+  protected int getSlot(int h)
+  {
+    h ^= h >>> 16;
+    return (h * 0x9E3779B9) & (m_table.length - 1);
   }
 
   @Override
   public Set<String> getDomain()
   {
-    for (Valuation v : m_valuations)
+    if (m_size == 0)
     {
-      return v.keySet();
+      return new HashSet<String>(0);
     }
-    return new HashSet<String>(0);
+    return getValuation(0).keySet();
   }
 
   @Override
@@ -94,6 +238,20 @@ public class ConcreteMultiEvent implements MultiEvent
     return null;
   }
 
+  @Override
+  public long getIntersectionCount(MultiEvent e)
+  {
+    if (e instanceof ConcreteMultiEvent)
+    {
+      return countCommon((ConcreteMultiEvent) e);
+    }
+    if (e instanceof SymbolicMultiEvent)
+    {
+      return countCommon((SymbolicMultiEvent) e);
+    }
+    return 0;
+  }
+
   /**
    * Determines if this multi-event intersects with another concrete
    * multi-event.
@@ -103,14 +261,11 @@ public class ConcreteMultiEvent implements MultiEvent
   protected Set<Valuation> intersectsWith(ConcreteMultiEvent e)
   {
     Set<Valuation> common_valuations = new HashSet<Valuation>();
-    if (e instanceof ConcreteMultiEvent.All)
+    boolean all = e instanceof ConcreteMultiEvent.All;
+    for (int i = 0; i < m_size; i++)
     {
-      common_valuations.addAll(m_valuations);
-      return common_valuations;
-    }
-    for (Valuation v : m_valuations)
-    {
-      if (e.m_valuations.contains(v))
+      Valuation v = getValuation(i);
+      if (all || e.contains(v))
       {
         common_valuations.add(v);
       }
@@ -127,19 +282,16 @@ public class ConcreteMultiEvent implements MultiEvent
   protected Set<Valuation> intersectsWith(SymbolicMultiEvent e)
   {
     Set<Valuation> common_valuations = new HashSet<Valuation>();
-    if (e instanceof SymbolicMultiEvent.All)
-    {
-      common_valuations.addAll(m_valuations);
-      return common_valuations;
-    }
     if (e instanceof SymbolicMultiEvent.Nothing)
     {
       return common_valuations;
     }
+    boolean all = e instanceof SymbolicMultiEvent.All;
     PropositionalFormula f = e.getFormula();
-    for (Valuation v : m_valuations)
+    for (int i = 0; i < m_size; i++)
     {
-      if (f.evaluate(v) == Troolean.Value.TRUE)
+      Valuation v = getValuation(i);
+      if (all || f.evaluate(v) == Troolean.Value.TRUE)
       {
         common_valuations.add(v);
       }
@@ -147,10 +299,110 @@ public class ConcreteMultiEvent implements MultiEvent
     return common_valuations;
   }
 
+  /**
+   * Counts the common valuations between this multi-event and another
+   * concrete multi-event.
+   * @param e The other multi-event
+   * @return The number of common valuations
+   */
+  protected long countCommon(ConcreteMultiEvent e)
+  {
+    if (e instanceof ConcreteMultiEvent.All)
+    {
+      return m_size;
+    }
+    // Iterate over the smaller of the two events
+    ConcreteMultiEvent small = this, large = e;
+    if (small.m_size > large.m_size)
+    {
+      small = e;
+      large = this;
+    }
+    Valuation v = new Valuation();
+    long count = 0;
+    for (int i = 0; i < small.m_size; i++)
+    {
+      if (large.contains(small.getValuation(i, v)))
+      {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Counts the common valuations between this multi-event and a symbolic
+   * multi-event.
+   * @param e The other multi-event
+   * @return The number of common valuations
+   */
+  protected long countCommon(SymbolicMultiEvent e)
+  {
+    if (e instanceof SymbolicMultiEvent.All)
+    {
+      return m_size;
+    }
+    if (e instanceof SymbolicMultiEvent.Nothing)
+    {
+      return 0;
+    }
+    PropositionalFormula f = e.getFormula();
+    Valuation v = new Valuation();
+    long count = 0;
+    for (int i = 0; i < m_size; i++)
+    {
+      if (f.evaluate(getValuation(i, v)) == Troolean.Value.TRUE)
+      {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Two concrete multi-events are equal if they contain the same
+   * valuations. This allows a concrete multi-event to be used as the key
+   * of a map, such as a {@link StepCache}. Since the hash code is computed
+   * when the event is created, events with different hash codes are told
+   * apart without comparing their valuations.
+   */
+  @Override
+  public boolean equals(Object o)
+  {
+    if (o == this)
+    {
+      return true;
+    }
+    if (o == null || !(o instanceof ConcreteMultiEvent))
+    {
+      return false;
+    }
+    ConcreteMultiEvent e = (ConcreteMultiEvent) o;
+    if (m_hashCode != e.m_hashCode || m_size != e.m_size)
+    {
+      return false;
+    }
+    Valuation v = new Valuation();
+    for (int i = 0; i < m_size; i++)
+    {
+      if (!e.contains(getValuation(i, v)))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return m_hashCode;
+  }
+
   @Override
   public String toString()
   {
-    return m_valuations.toString();
+    return getValuations().toString();
   }
 
   /**
@@ -162,21 +414,72 @@ public class ConcreteMultiEvent implements MultiEvent
   public String toString(String ... variables)
   {
     StringBuilder out = new StringBuilder();
-    boolean first = true;
-    for (Valuation v : m_valuations)
+    Valuation v = new Valuation();
+    for (int i = 0; i < m_size; i++)
     {
-      if (first)
-      {
-        first = false;
-      }
-      else
+      if (i > 0)
       {
         out.append(",");
       }
-      out.append(v.toString(variables));
+      out.append(getValuation(i, v).toString(variables));
     }
     return out.toString();
   }
+
+  /**
+   * A read-only view of the valuations of the multi-event as a set
+   */
+  protected class ValuationSet extends AbstractSet<Valuation>
+  {
+    @Override
+    public int size()
+    {
+      return m_size;
+    }
+
+    @Override
+    public boolean contains(Object o)
+    {
+      return o instanceof Valuation && ConcreteMultiEvent.this.contains((Valuation) o);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return m_hashCode;
+    }
+
+    @Override
+    public Iterator<Valuation> iterator()
+    {
+      return new Iterator<Valuation>()
+      {
+        protected int m_next = 0;
+
+        @Override
+        public boolean hasNext()
+        {
+          return m_next < m_size;
+        }
+
+        @Override
+        public Valuation next()
+        {
+          if (m_next >= m_size)
+          {
+            throw new NoSuchElementException();
+          }
+          return getValuation(m_next++);
+        }
+
+        @Override
+        public void remove()
+        {
+          throw new UnsupportedOperationException("A concrete multi-event cannot be modified");
+        }
+      };
+    }
+  }
   
   public static class All extends ConcreteMultiEvent
   {
@@ -192,6 +495,18 @@ public class ConcreteMultiEvent implements MultiEvent
     {
       super(new HashSet<Valuation>(0));
     }
+    
+    @Override
+    protected long countCommon(ConcreteMultiEvent e)
+    {
+      return 0;
+    }
+    
+    @Override
+    protected long countCommon(SymbolicMultiEvent e)
+    {
+      return 0;
+    }
   }
   
   protected static Set<Valuation> getAllValuations(String ... variables)
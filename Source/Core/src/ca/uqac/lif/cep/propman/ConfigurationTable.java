@@ -0,0 +1,442 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import ca.uqac.lif.cep.propman.MultiMonitor.VerdictCount;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A table of the distinct configurations reached by multi-monitors lifted
+ * from the same uni-monitor. A configuration is the state of a
+ * multi-monitor: its mapping &sigma; and the verdicts of its last step.
+ * In practice, most monitors of a large set of sessions are in one of a
+ * few configurations (all uni-traces in the initial state, all of them in
+ * a sink, etc.). The table hash-conses these configurations, so that
+ * monitors in the same configuration share the same immutable object,
+ * and memory grows with the number of distinct configurations rather than
+ * with the number of monitors.
+ * <p>
+ * The table also remembers, for a bounded number of pairs made of a
+ * configuration and an input multi-event, the configuration reached by
+ * the step; a step already seen by any monitor of the table is therefore
+ * reduced to a lookup. Other steps are computed with the
+ * {@link TransferMatrix transfer matrix} of the multi-event, which is
+ * also cached. When the number of memoized steps reaches its maximum, they
+ * are all forgotten.
+ * <p>
+ * Configurations that are no longer referenced by any monitor, nor by the
+ * memoized steps, are removed from the table by the garbage collector.
+ * The table can be shared by monitors running on different threads. The
+ * memoized steps are read without locking; a step that is not memoized is
+ * computed outside of any lock, and only the lookup of its transfer matrix
+ * and the interning of the configuration it reaches are synchronized.
+ * Threads that compute the same step at the same time thus reach the same
+ * configuration, and each of them counts a miss.
+ */
+public class ConfigurationTable
+{
+  /**
+   * The default maximum number of memoized steps
+   */
+  public static final int DEFAULT_STEP_CAPACITY = 4096;
+
+  /**
+   * The uni-monitor
+   */
+  /*@ non_null @*/ protected final PropositionalMachine m_monitor;
+
+  /**
+   * The compiled uni-monitor
+   */
+  /*@ non_null @*/ protected final CompiledMachine m_machine;
+
+  /**
+   * The multi-monitor used to compute transfer matrices, and that keeps
+   * them in its cache
+   */
+  /*@ non_null @*/ protected final MultiMonitor m_builder;
+
+  /**
+   * The distinct configurations, each associated to a weak reference to
+   * itself
+   */
+  /*@ non_null @*/ protected final Map<Configuration,WeakReference<Configuration>> m_configurations;
+
+  /**
+   * The memoized steps
+   */
+  /*@ non_null @*/ protected volatile ConcurrentHashMap<Step,Configuration> m_steps;
+
+  /**
+   * The maximum number of memoized steps
+   */
+  protected volatile int m_stepCapacity = DEFAULT_STEP_CAPACITY;
+
+  /**
+   * The configuration of a monitor that has not read any event
+   */
+  /*@ non_null @*/ protected final Configuration m_initial;
+
+  /**
+   * The number of steps found in the memoized steps
+   */
+  /*@ non_null @*/ protected final AtomicLong m_hits = new AtomicLong();
+
+  /**
+   * The number of steps that had to be computed
+   */
+  /*@ non_null @*/ protected final AtomicLong m_misses = new AtomicLong();
+
+  /**
+   * Creates a new table
+   * @param monitor The uni-monitor; its transition relation is compiled at
+   * this moment
+   */
+  public ConfigurationTable(/*@ non_null @*/ PropositionalMachine monitor)
+  {
+    this(monitor, CompiledMachine.compile(monitor));
+  }
+
+  /**
+   * Creates a new table for a uni-monitor that has already been compiled
+   * @param monitor The uni-monitor
+   * @param machine The compiled transition relation of the uni-monitor
+   */
+  public ConfigurationTable(/*@ non_null @*/ PropositionalMachine monitor, /*@ non_null @*/ CompiledMachine machine)
+  {
+    super();
+    m_monitor = monitor;
+    m_machine = machine;
+    m_builder = new MultiMonitor(monitor, machine).setTransferMatrixCache(MultiMonitorPool.DEFAULT_MATRIX_CACHE_CAPACITY);
+    m_configurations = new WeakHashMap<Configuration,WeakReference<Configuration>>();
+    m_steps = new ConcurrentHashMap<Step,Configuration>();
+    CountVector sigma = new CountVector(machine.getStateCount());
+    sigma.set(machine.getInitialState(), 1);
+    m_initial = intern(new Configuration(sigma, new VerdictCount()));
+  }
+
+  /**
+   * Sets the maximum number of memoized steps. The steps memoized so far
+   * are forgotten.
+   * @param capacity The number of steps
+   * @return This table
+   */
+  public ConfigurationTable setStepCapacity(int capacity)
+  {
+    m_stepCapacity = Math.max(1, capacity);
+    m_steps = new ConcurrentHashMap<Step,Configuration>();
+    return this;
+  }
+
+  /**
+   * Creates a multi-monitor whose configurations are kept in this table
+   * @return The multi-monitor
+   */
+  /*@ non_null @*/ public MultiMonitor newMonitor()
+  {
+    return new MultiMonitor(m_monitor, m_machine).setConfigurationTable(this);
+  }
+
+  /**
+   * Gets the compiled uni-monitor of this table
+   * @return The compiled machine
+   */
+  /*@ non_null @*/ public CompiledMachine getMachine()
+  {
+    return m_machine;
+  }
+
+  /**
+   * Gets the configuration of a monitor that has not read any event
+   * @return The configuration
+   */
+  /*@ non_null @*/ public Configuration getInitial()
+  {
+    return m_initial;
+  }
+
+  /**
+   * Gets the configuration of the table equal to a mapping &sigma; and a
+   * verdict count, adding it to the table if there is none. The arguments
+   * are copied if they are added, and can be modified afterwards.
+   * @param sigma The mapping &sigma;
+   * @param verdicts The verdict count
+   * @return The configuration
+   */
+  /*@ non_null @*/ public synchronized Configuration intern(/*@ non_null @*/ CountVector sigma, /*@ non_null @*/ VerdictCount verdicts)
+  {
+    Configuration c = get(new Configuration(sigma, verdicts));
+    if (c != null)
+    {
+      return c;
+    }
+    return intern(new Configuration(new CountVector(sigma), new VerdictCount(verdicts)));
+  }
+
+  /**
+   * Gets the configuration reached by a step from a configuration of the
+   * table
+   * @param c The configuration
+   * @param input_event The input multi-event
+   * @return The configuration reached; it contains no uni-trace if no
+   * input valuation fired a transition
+   */
+  /*@ non_null @*/ public Configuration step(/*@ non_null @*/ Configuration c, /*@ non_null @*/ MultiEvent input_event)
+  {
+    // The hash code of the key is that of the event, which concrete
+    // multi-events compute once when they are created
+    Step key = new Step(c, input_event);
+    ConcurrentHashMap<Step,Configuration> steps = m_steps;
+    Configuration next = steps.get(key);
+    if (next != null)
+    {
+      m_hits.incrementAndGet();
+      return next;
+    }
+    m_misses.incrementAndGet();
+    TransferMatrix m;
+    synchronized (m_builder)
+    {
+      m = m_builder.getTransferMatrix(input_event);
+    }
+    // Transfer matrices are immutable: the product needs no lock
+    CountVector sigma_prime = new CountVector(m_machine.getStateCount());
+    VerdictCount beta = new VerdictCount();
+    m.multiply(c.m_sigma, sigma_prime, beta);
+    next = intern(new Configuration(sigma_prime, beta));
+    if (steps.size() >= m_stepCapacity)
+    {
+      steps.clear();
+    }
+    steps.put(key, next);
+    return next;
+  }
+
+  /**
+   * Gets the number of distinct configurations in the table. This number
+   * may include configurations that are no longer used, but have not been
+   * removed by the garbage collector yet.
+   * @return The number of configurations
+   */
+  public synchronized int size()
+  {
+    return m_configurations.size();
+  }
+
+  /**
+   * Gets the number of steps found in the memoized steps
+   * @return The number of hits
+   */
+  public long getHits()
+  {
+    return m_hits.get();
+  }
+
+  /**
+   * Gets the number of steps that had to be computed
+   * @return The number of misses
+   */
+  public long getMisses()
+  {
+    return m_misses.get();
+  }
+
+  /**
+   * Gets the configuration of the table equal to a configuration
+   * @param c The configuration
+   * @return The configuration of the table, or <tt>null</tt> if there is
+   * none
+   */
+  /*@ null @*/ protected Configuration get(/*@ non_null @*/ Configuration c)
+  {
+    WeakReference<Configuration> ref = m_configurations.get(c);
+    return ref == null ? null : ref.get();
+  }
+
+  /**
+   * Gets the configuration of the table equal to a configuration, adding
+   * this configuration to the table if there is none
+   * @param c The configuration, whose contents are not modified afterwards
+   * @return The configuration of the table
+   */
+  /*@ non_null @*/ protected synchronized Configuration intern(/*@ non_null @*/ Configuration c)
+  {
+    Configuration existing = get(c);
+    if (existing != null)
+    {
+      return existing;
+    }
+    m_configurations.put(c, new WeakReference<Configuration>(c));
+    return c;
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return m_configurations.size() + " configurations, " + m_steps.size() + " steps, " + m_hits.get() + " hits, " + m_misses.get() + " misses";
+  }
+
+  /**
+   * The state of a multi-monitor: its mapping &sigma; and the verdicts of
+   * its last step. Configurations are immutable; their contents are only
+   * accessed by copy outside of this package.
+   */
+  public static class Configuration
+  {
+    /**
+     * The mapping &sigma;
+     */
+    /*@ non_null @*/ protected final CountVector m_sigma;
+
+    /**
+     * The verdicts of the last step
+     */
+    /*@ non_null @*/ protected final VerdictCount m_verdicts;
+
+    /**
+     * The hash code of the configuration
+     */
+    protected final int m_hashCode;
+
+    /**
+     * Creates a new configuration
+     * @param sigma The mapping &sigma;
+     * @param verdicts The verdicts of the last step
+     */
+    protected Configuration(/*@ non_null @*/ CountVector sigma, /*@ non_null @*/ VerdictCount verdicts)
+    {
+      super();
+      m_sigma = sigma;
+      m_verdicts = verdicts;
+      m_hashCode = 31 * sigma.hashCode() + verdicts.hashCode();
+    }
+
+    /**
+     * Gets the mapping &sigma; of the configuration
+     * @return A copy of the mapping
+     */
+    /*@ non_null @*/ public CountVector getSigma()
+    {
+      return new CountVector(m_sigma);
+    }
+
+    /**
+     * Gets the verdicts of the last step of the configuration
+     * @return A copy of the verdict count
+     */
+    /*@ non_null @*/ public VerdictCount getVerdicts()
+    {
+      return new VerdictCount(m_verdicts);
+    }
+
+    /**
+     * Determines if no uni-trace is in any state of the configuration
+     * @return <tt>true</tt> if the configuration is empty, <tt>false</tt>
+     * otherwise
+     */
+    public boolean isEmpty()
+    {
+      for (int s = 0; s < m_sigma.size(); s++)
+      {
+        if (!m_sigma.isZero(s))
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (o == this)
+      {
+        return true;
+      }
+      if (o == null || !(o instanceof Configuration))
+      {
+        return false;
+      }
+      Configuration c = (Configuration) o;
+      return m_hashCode == c.m_hashCode && m_sigma.equals(c.m_sigma) && m_verdicts.equals(c.m_verdicts);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return m_hashCode;
+    }
+
+    @Override
+    public String toString()
+    {
+      return m_sigma + " " + m_verdicts;
+    }
+  }
+
+  /**
+   * The key of a memoized step: a configuration of the table and an input
+   * multi-event. Since configurations are interned, they are compared by
+   * identity.
+   */
+  protected static class Step
+  {
+    /**
+     * The configuration
+     */
+    /*@ non_null @*/ protected final Configuration m_from;
+
+    /**
+     * The input multi-event
+     */
+    /*@ non_null @*/ protected final MultiEvent m_event;
+
+    /**
+     * Creates a new key
+     * @param from The configuration
+     * @param event The input multi-event
+     */
+    public Step(/*@ non_null @*/ Configuration from, /*@ non_null @*/ MultiEvent event)
+    {
+      super();
+      m_from = from;
+      m_event = event;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (o == null || !(o instanceof Step))
+      {
+        return false;
+      }
+      Step s = (Step) o;
+      return m_from == s.m_from && m_event.equals(s.m_event);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return 31 * System.identityHashCode(m_from) + m_event.hashCode();
+    }
+  }
+}
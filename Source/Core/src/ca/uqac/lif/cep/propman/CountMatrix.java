@@ -0,0 +1,209 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+/**
+ * A dense square matrix of non-negative path counts, used to compose the
+ * effect of several steps of a {@link MultiMonitor}. Row <i>s</i> gives,
+ * for each state <i>d</i>, the number of ways a uni-trace in state
+ * <i>s</i> can reach <i>d</i>; the matrices are therefore applied to row
+ * vectors, and the product <i>A</i>&middot;<i>B</i> represents the effect
+ * of <i>A</i> followed by that of <i>B</i>. Each row is a
+ * {@link CountVector}, so that entries are only promoted to
+ * arbitrary-precision numbers when they overflow.
+ */
+public class CountMatrix
+{
+  /**
+   * The rows of the matrix
+   */
+  /*@ non_null @*/ protected final CountVector[] m_rows;
+
+  /**
+   * Creates a new matrix whose entries are all zero
+   * @param size The number of rows and columns
+   */
+  public CountMatrix(int size)
+  {
+    super();
+    m_rows = new CountVector[size];
+    for (int s = 0; s < size; s++)
+    {
+      m_rows[s] = new CountVector(size);
+    }
+  }
+
+  /**
+   * Creates the dense matrix corresponding to a transfer matrix
+   * @param m The transfer matrix
+   * @return The dense matrix
+   */
+  /*@ non_null @*/ public static CountMatrix of(/*@ non_null @*/ TransferMatrix m)
+  {
+    CountMatrix a = new CountMatrix(m.getSize());
+    for (int s = 0; s < m.getSize(); s++)
+    {
+      for (int k = m.getFirstEntry(s); k < m.getFirstEntry(s + 1); k++)
+      {
+        a.m_rows[s].add(m.getDestination(k), m.getMultiplier(k));
+      }
+    }
+    return a;
+  }
+
+  /**
+   * Creates an identity matrix
+   * @param size The number of rows and columns
+   * @return The matrix
+   */
+  /*@ non_null @*/ public static CountMatrix identity(int size)
+  {
+    CountMatrix a = new CountMatrix(size);
+    for (int s = 0; s < size; s++)
+    {
+      a.m_rows[s].set(s, 1);
+    }
+    return a;
+  }
+
+  /**
+   * Gets the number of rows and columns of the matrix
+   * @return The size
+   */
+  public int getSize()
+  {
+    return m_rows.length;
+  }
+
+  /**
+   * Gets a row of the matrix
+   * @param s The position of the row
+   * @return The row
+   */
+  /*@ non_null @*/ public CountVector getRow(int s)
+  {
+    return m_rows[s];
+  }
+
+  /**
+   * Adds the product of a row vector by this matrix to another vector
+   * @param x The row vector
+   * @param y The vector where the product is added
+   */
+  public void apply(/*@ non_null @*/ CountVector x, /*@ non_null @*/ CountVector y)
+  {
+    for (int s = 0; s < m_rows.length; s++)
+    {
+      if (x.isZero(s))
+      {
+        continue;
+      }
+      addProducts(y, x, s, m_rows[s]);
+    }
+  }
+
+  /**
+   * Computes the product of this matrix by another one, i.e. the effect of
+   * this matrix followed by the other
+   * @param b The other matrix
+   * @return The product
+   */
+  /*@ non_null @*/ public CountMatrix then(/*@ non_null @*/ CountMatrix b)
+  {
+    CountMatrix c = new CountMatrix(m_rows.length);
+    for (int s = 0; s < m_rows.length; s++)
+    {
+      CountVector row = m_rows[s];
+      for (int m = 0; m < m_rows.length; m++)
+      {
+        if (row.isZero(m))
+        {
+          continue;
+        }
+        addProducts(c.m_rows[s], row, m, b.m_rows[m]);
+      }
+    }
+    return c;
+  }
+
+  /**
+   * Computes the product of this matrix by a transfer matrix, i.e. the
+   * effect of this matrix followed by one step on a multi-event
+   * @param m The transfer matrix
+   * @return The product
+   */
+  /*@ non_null @*/ public CountMatrix then(/*@ non_null @*/ TransferMatrix m)
+  {
+    CountMatrix c = new CountMatrix(m_rows.length);
+    for (int s = 0; s < m_rows.length; s++)
+    {
+      CountVector row = m_rows[s];
+      CountVector c_row = c.m_rows[s];
+      for (int i = 0; i < m_rows.length; i++)
+      {
+        if (row.isZero(i))
+        {
+          continue;
+        }
+        for (int k = m.getFirstEntry(i); k < m.getFirstEntry(i + 1); k++)
+        {
+          c_row.addProduct(m.getDestination(k), row, i, m.getMultiplier(k));
+        }
+      }
+    }
+    return c;
+  }
+
+  /**
+   * Adds to each element of a vector the product of a number by the
+   * corresponding element of a row
+   * @param y The vector to update
+   * @param x The vector containing the number
+   * @param i The position of the number in <tt>x</tt>
+   * @param row The row
+   */
+  protected static void addProducts(CountVector y, CountVector x, int i, CountVector row)
+  {
+    for (int d = 0; d < row.size(); d++)
+    {
+      if (row.isZero(d))
+      {
+        continue;
+      }
+      if (row.isLong(d))
+      {
+        y.addProduct(d, x, i, row.longValue(d));
+      }
+      else
+      {
+        y.add(d, x.get(i).multiply(row.get(d)));
+      }
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder out = new StringBuilder();
+    for (int s = 0; s < m_rows.length; s++)
+    {
+      out.append(m_rows[s]).append("\n");
+    }
+    return out.toString();
+  }
+}
@@ -0,0 +1,360 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * A fixed-size array of non-negative path counts. Each element is stored
+ * as a primitive <tt>long</tt> and is promoted to a {@link Counter} only
+ * once an operation overflows; the array of counters is itself only
+ * allocated when the first promotion occurs. Promoted elements are
+ * updated in place, like any counter.
+ */
+public class CountVector
+{
+  /**
+   * The values that fit in a long
+   */
+  /*@ non_null @*/ protected final long[] m_values;
+
+  /**
+   * The values that have been promoted; <tt>null</tt> as long as no
+   * element has overflowed, and otherwise <tt>null</tt> at the position of
+   * each element that has not
+   */
+  /*@ null @*/ protected Counter[] m_big;
+
+  /**
+   * Creates a new vector whose elements are all zero
+   * @param size The number of elements
+   */
+  public CountVector(int size)
+  {
+    super();
+    m_values = new long[size];
+    m_big = null;
+  }
+
+  /**
+   * Creates a copy of a vector
+   * @param v The vector to copy
+   */
+  public CountVector(/*@ non_null @*/ CountVector v)
+  {
+    super();
+    m_values = v.m_values.clone();
+    if (v.m_big != null)
+    {
+      m_big = new Counter[v.m_big.length];
+      for (int i = 0; i < m_big.length; i++)
+      {
+        if (v.m_big[i] != null)
+        {
+          m_big[i] = new Counter(v.m_big[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the number of elements of the vector
+   * @return The number of elements
+   */
+  public int size()
+  {
+    return m_values.length;
+  }
+
+  /**
+   * Determines if an element is zero
+   * @param i The position of the element
+   * @return <tt>true</tt> if the element is zero, <tt>false</tt> otherwise
+   */
+  public boolean isZero(int i)
+  {
+    if (m_big != null && m_big[i] != null)
+    {
+      return m_big[i].isZero();
+    }
+    return m_values[i] == 0;
+  }
+
+  /**
+   * Determines if an element still fits in a long
+   * @param i The position of the element
+   * @return <tt>true</tt> if it does, <tt>false</tt> otherwise
+   */
+  public boolean isLong(int i)
+  {
+    return m_big == null || m_big[i] == null;
+  }
+
+  /**
+   * Gets the value of an element as a long. This value is meaningful only
+   * if {@link #isLong(int)} returns <tt>true</tt>.
+   * @param i The position of the element
+   * @return The value
+   */
+  public long longValue(int i)
+  {
+    return m_values[i];
+  }
+
+  /**
+   * Gets the value of an element
+   * @param i The position of the element
+   * @return The value
+   */
+  /*@ non_null @*/ public BigInteger get(int i)
+  {
+    if (m_big != null && m_big[i] != null)
+    {
+      return m_big[i].get();
+    }
+    return BigInteger.valueOf(m_values[i]);
+  }
+
+  /**
+   * Sets the value of an element
+   * @param i The position of the element
+   * @param value The value
+   */
+  public void set(int i, long value)
+  {
+    m_values[i] = value;
+    if (m_big != null)
+    {
+      m_big[i] = null;
+    }
+  }
+
+  /**
+   * Adds a value to an element
+   * @param i The position of the element
+   * @param x The value to add
+   */
+  public void add(int i, long x)
+  {
+    if (isLong(i))
+    {
+      try
+      {
+        m_values[i] = Math.addExact(m_values[i], x);
+        return;
+      }
+      catch (ArithmeticException e)
+      {
+        // Overflow: promote the element
+      }
+    }
+    promote(i).add(x);
+  }
+
+  /**
+   * Adds a value to an element
+   * @param i The position of the element
+   * @param x The value to add
+   */
+  public void add(int i, /*@ non_null @*/ BigInteger x)
+  {
+    if (x.bitLength() < 64)
+    {
+      add(i, x.longValue());
+      return;
+    }
+    promote(i).add(x);
+  }
+
+  /**
+   * Adds to an element the product of an element of another vector and
+   * a factor
+   * @param i The position of the element to update
+   * @param source The other vector
+   * @param j The position of the element in the other vector
+   * @param factor The factor
+   */
+  public void addProduct(int i, /*@ non_null @*/ CountVector source, int j, long factor)
+  {
+    if (isLong(i) && source.isLong(j))
+    {
+      try
+      {
+        m_values[i] = Math.addExact(m_values[i], Math.multiplyExact(source.m_values[j], factor));
+        return;
+      }
+      catch (ArithmeticException e)
+      {
+        // Overflow: promote the element
+      }
+    }
+    promote(i).addProduct(source, j, factor);
+  }
+
+  /**
+   * Adds another vector of the same size to this one, element by element
+   * @param v The other vector
+   */
+  public void add(/*@ non_null @*/ CountVector v)
+  {
+    for (int i = 0; i < m_values.length; i++)
+    {
+      if (isLong(i) && v.isLong(i))
+      {
+        try
+        {
+          m_values[i] = Math.addExact(m_values[i], v.m_values[i]);
+          continue;
+        }
+        catch (ArithmeticException e)
+        {
+          // Overflow: promote the element
+        }
+      }
+      promote(i).addProduct(v, i, 1);
+    }
+  }
+
+  /**
+   * Determines if all the elements of the vector fit in a <tt>long</tt>
+   * @return <tt>true</tt> if all elements fit, <tt>false</tt> otherwise
+   */
+  public boolean isLong()
+  {
+    if (m_big == null)
+    {
+      return true;
+    }
+    for (int i = 0; i < m_big.length; i++)
+    {
+      if (m_big[i] != null)
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Sets all the elements of the vector to zero. The array of
+   * arbitrary-precision values, if one has been created, is kept so that a
+   * vector reused from one step to the next does not allocate it again.
+   */
+  public void clear()
+  {
+    Arrays.fill(m_values, 0);
+    if (m_big != null)
+    {
+      Arrays.fill(m_big, null);
+    }
+  }
+
+  /**
+   * Switches an element to its arbitrary-precision representation, if it
+   * is not already in it
+   * @param i The position of the element
+   * @return The counter holding the element
+   */
+  /*@ non_null @*/ protected Counter promote(int i)
+  {
+    if (m_big == null)
+    {
+      m_big = new Counter[m_values.length];
+    }
+    if (m_big[i] == null)
+    {
+      m_big[i] = new Counter(m_values[i]);
+    }
+    return m_big[i];
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if (o == null || !(o instanceof CountVector))
+    {
+      return false;
+    }
+    CountVector v = (CountVector) o;
+    if (v.m_values.length != m_values.length)
+    {
+      return false;
+    }
+    for (int i = 0; i < m_values.length; i++)
+    {
+      if (isLong(i) && v.isLong(i))
+      {
+        if (m_values[i] != v.m_values[i])
+        {
+          return false;
+        }
+      }
+      else if (isLong(i) || v.isLong(i))
+      {
+        // A promoted element no longer fits in a long
+        return false;
+      }
+      else if (!m_big[i].equals(v.m_big[i]))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    // Counts are never negative, so an element is only promoted once its
+    // value no longer fits in a long: equal elements are stored the same
+    // way and have the same hash code
+    int h = 0;
+    for (int i = 0; i < m_values.length; i++)
+    {
+      int e;
+      if (isLong(i))
+      {
+        e = (int) (m_values[i] ^ (m_values[i] >>> 32));
+      }
+      else
+      {
+        e = m_big[i].hashCode();
+      }
+      h = 31 * h + e;
+    }
+    return h;
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder out = new StringBuilder();
+    out.append("[");
+    for (int i = 0; i < m_values.length; i++)
+    {
+      if (i > 0)
+      {
+        out.append(",");
+      }
+      out.append(get(i));
+    }
+    out.append("]");
+    return out.toString();
+  }
+}
@@ -0,0 +1,509 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * A mutable non-negative integer counter. As long as its value fits in a
+ * <tt>long</tt>, the counter uses primitive arithmetic and creates no
+ * object; the first operation that overflows promotes it to an
+ * arbitrary-precision value. This value is stored as an array of 32-bit
+ * words that additions update in place, so that a promoted counter only
+ * allocates memory when its value needs more words. A {@link BigInteger}
+ * is only created when the value is asked for, or when a negative number
+ * or a {@link BigInteger} is added.
+ */
+public class Counter
+{
+  /**
+   * The mask selecting the low 32 bits of a <tt>long</tt>
+   */
+  protected static final long MASK = 0xFFFFFFFFL;
+
+  /**
+   * The value of the counter, as long as it fits in a <tt>long</tt>. A
+   * value that fits is always stored here, so that each value has a single
+   * representation.
+   */
+  protected long m_value;
+
+  /**
+   * The words of the value of the counter once it has overflowed, least
+   * significant first; <tt>null</tt> before. Only the first
+   * {@link #m_length} words are meaningful.
+   */
+  protected int[] m_mag;
+
+  /**
+   * The number of words of {@link #m_mag} in use
+   */
+  protected int m_length;
+
+  /**
+   * Creates a new counter with value zero
+   */
+  public Counter()
+  {
+    this(0);
+  }
+
+  /**
+   * Creates a new counter with a given value
+   * @param value The value
+   */
+  public Counter(long value)
+  {
+    super();
+    m_value = value;
+    m_mag = null;
+  }
+
+  /**
+   * Creates a new counter with the same value as another counter
+   * @param c The other counter
+   */
+  public Counter(Counter c)
+  {
+    super();
+    set(c);
+  }
+
+  /**
+   * Determines if the value of the counter is zero
+   * @return <tt>true</tt> if the value is zero, <tt>false</tt> otherwise
+   */
+  public boolean isZero()
+  {
+    return m_mag == null ? m_value == 0 : m_length == 0;
+  }
+
+  /**
+   * Determines if the value of the counter fits in a <tt>long</tt>
+   * @return <tt>true</tt> if the value fits, <tt>false</tt> otherwise
+   */
+  public boolean isLong()
+  {
+    return m_mag == null;
+  }
+
+  /**
+   * Gets the value of the counter as a <tt>long</tt>
+   * @return The value
+   * @throws ArithmeticException If the value does not fit in a
+   * <tt>long</tt>
+   */
+  public long longValue()
+  {
+    if (m_mag != null)
+    {
+      throw new ArithmeticException("Counter value does not fit in a long");
+    }
+    return m_value;
+  }
+
+  /**
+   * Gets the value of the counter
+   * @return The value
+   */
+  public BigInteger get()
+  {
+    if (m_mag == null)
+    {
+      return BigInteger.valueOf(m_value);
+    }
+    byte[] bytes = new byte[4 * m_length];
+    for (int i = 0; i < m_length; i++)
+    {
+      int w = m_mag[i];
+      int pos = bytes.length - 4 * i;
+      bytes[pos - 1] = (byte) w;
+      bytes[pos - 2] = (byte) (w >>> 8);
+      bytes[pos - 3] = (byte) (w >>> 16);
+      bytes[pos - 4] = (byte) (w >>> 24);
+    }
+    return new BigInteger(1, bytes);
+  }
+
+  /**
+   * Sets the value of the counter
+   * @param value The value
+   */
+  public void set(long value)
+  {
+    m_value = value;
+    m_mag = null;
+  }
+
+  /**
+   * Sets the value of the counter to that of another counter
+   * @param c The other counter
+   */
+  public void set(Counter c)
+  {
+    m_value = c.m_value;
+    m_mag = c.m_mag == null ? null : Arrays.copyOf(c.m_mag, c.m_length + 1);
+    m_length = c.m_length;
+  }
+
+  /**
+   * Sets the value of the counter
+   * @param value The value
+   * @throws IllegalArgumentException If the value is negative and does
+   * not fit in a <tt>long</tt>
+   */
+  public void set(BigInteger value)
+  {
+    if (value.bitLength() < 64)
+    {
+      m_value = value.longValue();
+      m_mag = null;
+      return;
+    }
+    if (value.signum() < 0)
+    {
+      throw new IllegalArgumentException("A counter cannot hold " + value);
+    }
+    byte[] bytes = value.toByteArray();
+    m_value = 0;
+    m_mag = new int[(bytes.length + 3) / 4 + 1];
+    for (int i = 0; i < bytes.length; i++)
+    {
+      m_mag[i >>> 2] |= (bytes[bytes.length - 1 - i] & 0xFF) << (8 * (i & 3));
+    }
+    m_length = m_mag.length;
+    trim();
+  }
+
+  /**
+   * Adds a value to the counter
+   * @param x The value to add
+   */
+  public void add(long x)
+  {
+    if (m_mag == null)
+    {
+      try
+      {
+        m_value = Math.addExact(m_value, x);
+        return;
+      }
+      catch (ArithmeticException e)
+      {
+        // Overflow: promote the counter
+      }
+    }
+    if (x < 0 || !promote())
+    {
+      set(get().add(BigInteger.valueOf(x)));
+      return;
+    }
+    addAt(0, x);
+    demote();
+  }
+
+  /**
+   * Adds a value to the counter
+   * @param x The value to add
+   */
+  public void add(BigInteger x)
+  {
+    if (m_mag == null && x.bitLength() < 64)
+    {
+      add(x.longValue());
+      return;
+    }
+    set(get().add(x));
+  }
+
+  /**
+   * Adds the value of another counter to this counter
+   * @param c The other counter
+   */
+  public void add(Counter c)
+  {
+    if (c.m_mag == null)
+    {
+      add(c.m_value);
+      return;
+    }
+    addProduct(c, 1);
+  }
+
+  /**
+   * Adds the product of another counter and a factor to this counter
+   * @param c The other counter
+   * @param factor The factor
+   */
+  public void addProduct(Counter c, long factor)
+  {
+    if (c.m_mag == null)
+    {
+      addProduct(c.m_value, factor);
+      return;
+    }
+    if (factor < 0 || !promote())
+    {
+      set(get().add(c.get().multiply(BigInteger.valueOf(factor))));
+      return;
+    }
+    int[] src = c.m_mag;
+    int length = c.m_length;
+    if (c == this)
+    {
+      src = Arrays.copyOf(m_mag, m_length);
+    }
+    addProduct(src, length, factor & MASK, 0);
+    if ((factor >>> 32) != 0)
+    {
+      addProduct(src, length, factor >>> 32, 1);
+    }
+    demote();
+  }
+
+  /**
+   * Adds the product of an element of a vector of path counts and a
+   * factor to this counter
+   * @param v The vector
+   * @param i The position of the element in the vector
+   * @param factor The factor
+   */
+  public void addProduct(/*@ non_null @*/ CountVector v, int i, long factor)
+  {
+    if (v.isLong(i))
+    {
+      addProduct(v.m_values[i], factor);
+    }
+    else
+    {
+      addProduct(v.m_big[i], factor);
+    }
+  }
+
+  /**
+   * Adds the product of two numbers to this counter
+   * @param x The first number
+   * @param factor The second number
+   */
+  public void addProduct(long x, long factor)
+  {
+    if (m_mag == null)
+    {
+      try
+      {
+        m_value = Math.addExact(m_value, Math.multiplyExact(x, factor));
+        return;
+      }
+      catch (ArithmeticException e)
+      {
+        // Overflow: promote the counter
+      }
+    }
+    if (x < 0 || factor < 0 || !promote())
+    {
+      set(get().add(BigInteger.valueOf(x).multiply(BigInteger.valueOf(factor))));
+      return;
+    }
+    // The product of the 32-bit halves of both numbers, each of which fits
+    // in an unsigned long
+    long x_lo = x & MASK;
+    long x_hi = x >>> 32;
+    long f_lo = factor & MASK;
+    long f_hi = factor >>> 32;
+    addAt(0, x_lo * f_lo);
+    addAt(1, x_lo * f_hi);
+    addAt(1, x_hi * f_lo);
+    addAt(2, x_hi * f_hi);
+    demote();
+  }
+
+  /**
+   * Switches the counter to its arbitrary-precision representation, if it
+   * is not already in it
+   * @return <tt>true</tt> if the counter is in this representation,
+   * <tt>false</tt> if its value is negative and cannot be stored in it
+   */
+  protected boolean promote()
+  {
+    if (m_mag != null)
+    {
+      return true;
+    }
+    if (m_value < 0)
+    {
+      return false;
+    }
+    m_mag = new int[4];
+    m_mag[0] = (int) m_value;
+    m_mag[1] = (int) (m_value >>> 32);
+    m_length = 2;
+    m_value = 0;
+    trim();
+    return true;
+  }
+
+  /**
+   * Switches the counter back to a <tt>long</tt> if its value fits in one
+   */
+  protected void demote()
+  {
+    if (m_length < 2 || (m_length == 2 && m_mag[1] >= 0))
+    {
+      m_value = (m_length > 0 ? m_mag[0] & MASK : 0) | (m_length > 1 ? (long) m_mag[1] << 32 : 0);
+      m_mag = null;
+      m_length = 0;
+    }
+  }
+
+  /**
+   * Adds to the arbitrary-precision value a number shifted by a number of
+   * words
+   * @param pos The number of words
+   * @param x The number, read as an unsigned 64-bit integer
+   */
+  protected void addAt(int pos, long x)
+  {
+    ensureLength(Math.max(m_length, pos + 2) + 1);
+    long sum = (m_mag[pos] & MASK) + (x & MASK);
+    m_mag[pos] = (int) sum;
+    sum = (m_mag[pos + 1] & MASK) + (x >>> 32) + (sum >>> 32);
+    m_mag[pos + 1] = (int) sum;
+    propagate(pos + 2, sum >>> 32);
+  }
+
+  /**
+   * Adds to the arbitrary-precision value the product of a number and a
+   * 32-bit factor, shifted by a number of words
+   * @param src The words of the number, least significant first
+   * @param length The number of words of the number
+   * @param factor The factor, between 0 and 2<sup>32</sup>-1
+   * @param pos The number of words
+   */
+  protected void addProduct(int[] src, int length, long factor, int pos)
+  {
+    ensureLength(Math.max(m_length, length + pos) + 1);
+    long carry = 0;
+    for (int i = 0; i < length; i++)
+    {
+      // At most (2^32-1)^2 + 2(2^32-1) = 2^64-1, read as unsigned
+      long p = (src[i] & MASK) * factor + (m_mag[i + pos] & MASK) + carry;
+      m_mag[i + pos] = (int) p;
+      carry = p >>> 32;
+    }
+    propagate(length + pos, carry);
+  }
+
+  /**
+   * Propagates a carry from a word of the arbitrary-precision value
+   * @param pos The position of the word
+   * @param carry The carry, between 0 and 2<sup>32</sup>-1
+   */
+  protected void propagate(int pos, long carry)
+  {
+    while (carry != 0)
+    {
+      long sum = (m_mag[pos] & MASK) + carry;
+      m_mag[pos] = (int) sum;
+      carry = sum >>> 32;
+      pos++;
+    }
+    m_length = Math.max(m_length, pos);
+    trim();
+  }
+
+  /**
+   * Makes sure that the array of words has a given number of elements,
+   * and that the words past those in use are zero
+   * @param length The number of elements
+   */
+  protected void ensureLength(int length)
+  {
+    if (m_mag.length < length)
+    {
+      m_mag = Arrays.copyOf(m_mag, Math.max(length, 2 * m_mag.length));
+    }
+  }
+
+  /**
+   * Removes the most significant words of the value that are zero
+   */
+  protected void trim()
+  {
+    while (m_length > 0 && m_mag[m_length - 1] == 0)
+    {
+      m_length--;
+    }
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if (o == null || !(o instanceof Counter))
+    {
+      return false;
+    }
+    Counter c = (Counter) o;
+    if (m_mag == null && c.m_mag == null)
+    {
+      return m_value == c.m_value;
+    }
+    if (m_mag != null && c.m_mag != null)
+    {
+      if (m_length != c.m_length)
+      {
+        return false;
+      }
+      for (int i = 0; i < m_length; i++)
+      {
+        if (m_mag[i] != c.m_mag[i])
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+    // Values that fit in a long are always stored as one
+    return false;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    if (m_mag == null)
+    {
+      return (int) (m_value ^ (m_value >>> 32));
+    }
+    int h = 0;
+    for (int i = m_length - 1; i >= 0; i--)
+    {
+      h = 31 * h + m_mag[i];
+    }
+    return h;
+  }
+
+  @Override
+  public String toString()
+  {
+    if (m_mag == null)
+    {
+      return Long.toString(m_value);
+    }
+    return get().toString();
+  }
+}
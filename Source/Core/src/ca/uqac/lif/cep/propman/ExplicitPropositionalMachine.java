@@ -47,6 +47,24 @@ public class ExplicitPropositionalMachine extends PropositionalMachine
    */
   protected Map<Object,List<Transition>> m_delta;
 
+  /**
+   * The transition relation compiled into arrays; <tt>null</tt> when the
+   * relation has changed since it was last compiled
+   */
+  /*@ null @*/ protected transient CompiledMachine m_compiled = null;
+
+  /**
+   * The ID of the current state in {@link #m_compiled}; only meaningful
+   * when the latter is not <tt>null</tt>
+   */
+  protected transient int m_stateId = -1;
+
+  /**
+   * The number of modifications made to the transition relation and the
+   * initial state of the machine
+   */
+  protected long m_version = 0;
+
   /**
    * Creates a new empty propositional machine
    */
@@ -87,6 +105,8 @@ public class ExplicitPropositionalMachine extends PropositionalMachine
   public ExplicitPropositionalMachine setInitialState(int state)
   {
     m_initialState = state;
+    m_compiled = null;
+    m_version++;
     return this;
   }
 
@@ -110,59 +130,90 @@ public class ExplicitPropositionalMachine extends PropositionalMachine
     }
     list.add(t);
     m_delta.put(source, list);
+    m_compiled = null;
+    m_version++;
     return this;
   }
 
+  /**
+   * Gets the transition relation of this machine compiled into arrays. The
+   * compiled machine is cached until a transition is added or the initial
+   * state changes.
+   * @return The compiled machine
+   */
+  /*@ non_null @*/ public CompiledMachine getCompiledMachine()
+  {
+    if (m_compiled == null)
+    {
+      m_compiled = CompiledMachine.compile(this, m_delta.keySet());
+      m_stateId = m_compiled.getStateId(m_state);
+    }
+    return m_compiled;
+  }
+
+  @Override
+  public long getVersion()
+  {
+    return m_version;
+  }
+
   @Override
   protected boolean compute(Object[] inputs, Queue<Object[]> outputs)
   {
     MultiEvent input_event = (MultiEvent) inputs[0];
-    if (!m_delta.containsKey(m_state))
+    CompiledMachine machine = getCompiledMachine();
+    if (m_stateId < 0)
     {
       // No transition from this state: output nothing
       return false;
     }
-    List<Transition> transitions = new ArrayList<Transition>();
-    transitions = m_delta.get(m_state);
-    Transition candidate = null, otherwise = null, to_take = null;
-    for (Transition t : transitions)
+    int first = machine.getFirstTransition(m_stateId);
+    int last = machine.getFirstTransition(m_stateId + 1);
+    int to_take = -1;
+    if (input_event instanceof ConcreteMultiEvent)
     {
-      if (t instanceof TransitionOtherwise)
+      // Look up the transition fired by each valuation; as in the general
+      // case below, the last transition fired by some valuation wins
+      StateDispatch dispatch = machine.getDispatch(m_stateId);
+      for (Valuation v : input_event.getValuations())
       {
-        otherwise = t;
+        to_take = Math.max(to_take, dispatch.getTransition(v));
+        if (to_take == last - 1)
+        {
+          break;
+        }
       }
-      else
+    }
+    else
+    {
+      for (int t = first; t < last; t++)
       {
-        MultiEvent condition = t.getCondition();
-        if (input_event.getIntersection(condition).size() > 0)
+        MultiEvent condition = machine.getCondition(t);
+        if (condition != null && input_event.getIntersection(condition).size() > 0)
         {
           // This happens at most once if the machine is deterministic
-          candidate = t;
+          to_take = t;
         }
-      }
-    } // end of for: end up with one candidate
-    if (candidate != null)
-    {
-      // Take this transition
-      to_take = candidate;
+      } // end of for: end up with one candidate
     }
-    else if (otherwise != null)
+    if (to_take < 0)
     {
-      to_take = otherwise;
+      to_take = machine.getOtherwise(m_stateId);
     }
-    if (to_take == null)
+    if (to_take < 0)
     {
       // Nowhere to go
       return false;
     }
     // Produce output event and update state
-    MultiEventFunction f = to_take.getFunction();
+    MultiEventFunction f = machine.getFunction(to_take);
     MultiEvent output_event = f.getValue(input_event);
     if (output_event != null)
     {
       outputs.add(new Object[] {output_event});
     }
-    m_state = to_take.getDestination();
+    m_stateId = machine.getDestination(to_take);
+    m_state = machine.getState(m_stateId);
     return true;
   }
 
@@ -179,8 +230,26 @@ public class ExplicitPropositionalMachine extends PropositionalMachine
   @Override
   public ExplicitPropositionalMachine duplicate(boolean with_state)
   {
-    // TODO Let's do this later
-    throw new UnsupportedOperationException("Not implemented yet");
+    ExplicitPropositionalMachine m = new ExplicitPropositionalMachine();
+    for (Map.Entry<Object,List<Transition>> e : m_delta.entrySet())
+    {
+      m.m_delta.put(e.getKey(), new ArrayList<Transition>(e.getValue()));
+    }
+    m.m_initialState = m_initialState;
+    m.m_version = m_version;
+    // The compiled machine is immutable and can be shared
+    m.m_compiled = m_compiled;
+    if (with_state)
+    {
+      m.m_state = m_state;
+      m.m_stateId = m_stateId;
+    }
+    else
+    {
+      m.m_state = m_initialState;
+      m.m_stateId = m_compiled == null ? -1 : m_compiled.getStateId(m_initialState);
+    }
+    return m;
   }
 
   /**
@@ -229,5 +298,7 @@ public class ExplicitPropositionalMachine extends PropositionalMachine
         m_delta.remove(i);
       }
     }
+    m_compiled = null;
+    m_version++;
   }
 }
@@ -19,14 +19,15 @@ package ca.uqac.lif.cep.propman;
 
 import ca.uqac.lif.cep.functions.UnaryFunction;
 import ca.uqac.lif.cep.ltl.Troolean.Value;
-import ca.uqac.lif.cep.propman.MultiMonitor.VerdictCount;
-import java.math.BigInteger;
 
 /**
- * Computes the entropy of a multi-monitor verdict.
+ * Computes the entropy of a multi-monitor verdict. The function accepts
+ * any {@link VerdictDistribution}, so that it can be applied to the exact
+ * path counts of a {@link MultiMonitor} as well as to the proportions
+ * computed by a {@link ProbabilisticMultiMonitor}.
  * @author Sylvain Hallé, Rania Taleb
  */
-public class GetEntropy extends UnaryFunction<VerdictCount,Number>
+public class GetEntropy extends UnaryFunction<VerdictDistribution,Number>
 {
   /**
    * A single visible instance of the function
@@ -37,36 +38,25 @@ public class GetEntropy extends UnaryFunction<VerdictCount,Number>
    * The value of ln 2
    */
   protected static final transient double LN2 = Math.log(2);
-  
-  /**
-   * The precision used in integer divisions
-   */
-  protected static final float m_intPrecision = 1000;
-  
-  /**
-   * The precision used in integer divisions
-   */
-  protected static final BigInteger m_precision = BigInteger.valueOf((long) m_intPrecision);
 
   /**
    * Creates a new instance of the function
    */
   private GetEntropy()
   {
-    super(VerdictCount.class, Number.class);
+    super(VerdictDistribution.class, Number.class);
   }
   
   @Override
-  public Number getValue(VerdictCount x)
+  public Number getValue(VerdictDistribution x)
   {
-    BigInteger total = x.get(Value.FALSE).add(x.get(Value.TRUE)).add(x.get(Value.INCONCLUSIVE));
-    if (total.equals(BigInteger.ZERO))
+    double p_false = x.getProbability(Value.FALSE);
+    double p_true = x.getProbability(Value.TRUE);
+    double p_inc = x.getProbability(Value.INCONCLUSIVE);
+    if (p_false + p_true + p_inc == 0)
     {
       return 0;
     }
-    float p_false = (float) x.get(Value.FALSE).multiply(m_precision).divide(total).floatValue() / m_intPrecision;
-    float p_true = (float) x.get(Value.TRUE).multiply(m_precision).divide(total).floatValue() / m_intPrecision;
-    float p_inc = (float) x.get(Value.INCONCLUSIVE).multiply(m_precision).divide(total).floatValue() / m_intPrecision;
     double h = -(p_false * log2(p_false)) - (p_true * log2(p_true)) -( p_inc * log2(p_inc));
     return h;
   }
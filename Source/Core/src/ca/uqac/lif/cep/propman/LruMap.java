@@ -0,0 +1,92 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A map that keeps at most a fixed number of entries. When this number is
+ * exceeded, the entry that was least recently read or written is removed.
+ * Like {@link LinkedHashMap}, this class is not thread-safe.
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ */
+public class LruMap<K,V> extends LinkedHashMap<K,V>
+{
+  /**
+   * Dummy UID
+   */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The maximum number of entries in the map
+   */
+  protected final int m_capacity;
+
+  /**
+   * The number of entries removed because the map was full
+   */
+  protected long m_evictions = 0;
+
+  /**
+   * Creates a new map
+   * @param capacity The maximum number of entries in the map
+   */
+  public LruMap(int capacity)
+  {
+    super(16, 0.75f, true);
+    m_capacity = Math.max(1, capacity);
+  }
+
+  /**
+   * Gets the maximum number of entries in the map
+   * @return The capacity
+   */
+  public int getCapacity()
+  {
+    return m_capacity;
+  }
+
+  /**
+   * Gets the number of entries removed because the map was full
+   * @return The number of evictions
+   */
+  public long getEvictions()
+  {
+    return m_evictions;
+  }
+
+  @Override
+  public void clear()
+  {
+    super.clear();
+    m_evictions = 0;
+  }
+
+  @Override
+  protected boolean removeEldestEntry(Map.Entry<K,V> eldest)
+  {
+    if (size() > m_capacity)
+    {
+      m_evictions++;
+      return true;
+    }
+    return false;
+  }
+}
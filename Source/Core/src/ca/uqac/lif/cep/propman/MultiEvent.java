@@ -39,6 +39,25 @@ public interface MultiEvent
    */
   public Set<Valuation> getIntersection(MultiEvent e);
   
+  /**
+   * Counts the common valuations between two multi-events. The result is
+   * the size of the set returned by {@link #getIntersection(MultiEvent)},
+   * but implementations compute it without creating that set.
+   * @param e The other multi-event
+   * @return The number of common valuations
+   */
+  public long getIntersectionCount(MultiEvent e);
+  
+  /**
+   * Counts the valuations represented by this multi-event. The result is
+   * the size of the set returned by {@link #getValuations()}, but
+   * implementations may compute it without creating that set.
+   * @return The number of valuations
+   * @throws ArithmeticException If the number of valuations does not fit
+   * in a <tt>long</tt>
+   */
+  public long getValuationCount();
+  
   /**
    * Gets the domain of this multi-event, i.e. the set of all propositional
    * variables in the valuations it contains
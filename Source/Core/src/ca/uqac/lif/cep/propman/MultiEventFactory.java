@@ -27,6 +27,11 @@ public class MultiEventFactory
    */
   /*@ non_null @*/ protected String[] m_variables;
   
+  /**
+   * The indices of these variables in the {@link VariableRegistry}
+   */
+  /*@ non_null @*/ protected int[] m_indices;
+  
   /**
    * Creates a new multi-event factory
    * @param variables The variables used in the multi-events to generate
@@ -35,6 +40,7 @@ public class MultiEventFactory
   {
     super();
     m_variables = variables;
+    m_indices = VariableRegistry.instance.getIndices(variables);
   }
   
   /**
@@ -66,7 +72,7 @@ public class MultiEventFactory
     Set<Valuation> s_val = new HashSet<Valuation>();
     for (String v : valuations)
     {
-      Valuation val = Valuation.readFromString(v, m_variables);
+      Valuation val = Valuation.readFromString(v, m_indices);
       if (val != null)
       {
         s_val.add(val);
@@ -0,0 +1,80 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+/**
+ * A number of consecutive copies of the same multi-event. When a
+ * {@link MultiMonitor} receives a run instead of a multi-event, it
+ * advances by all the copies at once, and outputs a single
+ * {@link MultiMonitor.RunVerdictCount}. Runs are not accepted by a
+ * {@link ProbabilisticMultiMonitor}.
+ */
+public class MultiEventRun
+{
+  /**
+   * The multi-event
+   */
+  /*@ non_null @*/ protected final MultiEvent m_event;
+
+  /**
+   * The number of copies of the multi-event
+   */
+  protected final long m_length;
+
+  /**
+   * Creates a new run
+   * @param e The multi-event
+   * @param length The number of copies of the multi-event
+   * @throws IllegalArgumentException If the number of copies is not
+   * positive
+   */
+  public MultiEventRun(/*@ non_null @*/ MultiEvent e, long length)
+  {
+    super();
+    if (length < 1)
+    {
+      throw new IllegalArgumentException("A run must contain at least one multi-event");
+    }
+    m_event = e;
+    m_length = length;
+  }
+
+  /**
+   * Gets the multi-event repeated in this run
+   * @return The multi-event
+   */
+  /*@ non_null @*/ public MultiEvent getEvent()
+  {
+    return m_event;
+  }
+
+  /**
+   * Gets the number of copies of the multi-event
+   * @return The number of copies
+   */
+  public long getLength()
+  {
+    return m_length;
+  }
+
+  @Override
+  public String toString()
+  {
+    return m_length + "x" + m_event;
+  }
+}
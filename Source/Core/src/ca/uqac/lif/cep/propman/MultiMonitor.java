@@ -17,18 +17,12 @@
  */
 package ca.uqac.lif.cep.propman;
 
-import ca.uqac.lif.cep.SynchronousProcessor;
 import ca.uqac.lif.cep.ltl.Troolean;
 import ca.uqac.lif.cep.propman.MultiEventFunction.EmitConstant;
-import ca.uqac.lif.cep.propman.PropositionalMachine.TransitionOtherwise;
 import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map.Entry;
 import java.util.Queue;
-import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * A multi-monitor lifted from a uni-monitor expressed as a propositional
@@ -37,7 +31,7 @@ import java.util.Set;
  * 
  * @author Sylvain Hallé, Rania Taleb
  */
-public class MultiMonitor extends SynchronousProcessor
+public class MultiMonitor extends AbstractMultiMonitor
 {
   /**
    * The constant function that produces the total multi-event
@@ -55,14 +49,16 @@ public class MultiMonitor extends SynchronousProcessor
   public static final transient EmitConstant EPSILON = new EmitConstant(null);
   
   /**
-   * The uni-monitor from which the multi-monitor is lifted
+   * The default minimum number of live states for a step to be processed
+   * in parallel
    */
-  /* @ non_null @ */ protected PropositionalMachine m_monitor;
+  public static final int DEFAULT_PARALLEL_THRESHOLD = 64;
 
   /**
-   * An association between uni-monitor states and a number of paths
+   * An association between uni-monitor states and a number of paths,
+   * indexed by the state IDs of {@link #m_machine}
    */
-  protected transient PathCount m_sigma;
+  protected transient CountVector m_sigma;
 
   /**
    * An association between uni-monitor verdicts and a number of paths
@@ -70,159 +66,579 @@ public class MultiMonitor extends SynchronousProcessor
   protected transient VerdictCount m_verdicts;
 
   /**
-   * Creates a new multi-monitor lifted from a uni-monitor
+   * The mapping &sigma; being computed by the current step. It is swapped
+   * with {@link #m_sigma} at the end of each step, so that the two vectors
+   * are reused instead of allocating a new one for every event.
+   */
+  protected transient CountVector m_sigmaPrime;
+
+  /**
+   * The mapping &beta; being computed by the current step. Only a copy of
+   * it is output, so that it can be reused by the next step.
+   */
+  protected transient VerdictCount m_beta;
+
+  /**
+   * A buffer of 3 elements receiving the verdict counts of products by
+   * transfer matrices
+   */
+  /*@ non_null @*/ protected transient long[] m_verdictBuffer = new long[3];
+
+  /**
+   * The cache of the effect of input multi-events on each state;
+   * <tt>null</tt> if no cache is used
+   */
+  /*@ null @*/ protected transient StepCache m_cache = null;
+
+  /**
+   * The rows of {@link #m_cache} for the multi-event being processed;
+   * <tt>null</tt> if no cache is used
+   */
+  /*@ null @*/ protected transient StepCache.Row[] m_stepRows = null;
+
+  /**
+   * The transfer matrices of the input multi-events read so far;
+   * <tt>null</tt> if steps are not computed with transfer matrices
+   */
+  /*@ null @*/ protected transient LruMap<MultiEvent,TransferMatrix> m_matrices = null;
+
+  /**
+   * The power tables of the input multi-events read in runs so far;
+   * <tt>null</tt> if transfer matrices are not cached
+   */
+  /*@ null @*/ protected transient LruMap<MultiEvent,PowerTable> m_powers = null;
+
+  /**
+   * The minimum number of live states for a step to be processed in
+   * parallel
+   */
+  protected int m_parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+  /**
+   * The table in which the configurations of this multi-monitor are
+   * interned, if any
+   */
+  /*@ null @*/ protected transient ConfigurationTable m_configurations = null;
+
+  /**
+   * The configuration of this multi-monitor in
+   * {@link #m_configurations}; when a table is used, {@link #m_sigma} and
+   * {@link #m_verdicts} are those of this configuration, and must not be
+   * modified
+   */
+  /*@ null @*/ protected transient ConfigurationTable.Configuration m_configuration = null;
+
+  /**
+   * Creates a new multi-monitor lifted from a uni-monitor. The transition
+   * relation of the uni-monitor is compiled at this moment; if the
+   * uni-monitor is modified afterwards, the multi-monitor throws an
+   * exception on the next event instead of ignoring the change.
    * 
    * @param monitor
    *          The uni-monitor
    */
   public MultiMonitor(/* @ non_null @ */ PropositionalMachine monitor)
   {
-    super(1, 1);
-    m_monitor = monitor;
+    this(monitor, CompiledMachine.compile(monitor));
+  }
+
+  /**
+   * Creates a new multi-monitor lifted from a uni-monitor whose transition
+   * relation has already been compiled. Since compiled machines are
+   * immutable, this allows multi-monitors to share the same compiled
+   * machine.
+   * 
+   * @param monitor
+   *          The uni-monitor
+   * @param machine
+   *          The compiled transition relation of the uni-monitor
+   */
+  public MultiMonitor(/* @ non_null @ */ PropositionalMachine monitor, /* @ non_null @ */ CompiledMachine machine)
+  {
+    super(monitor, machine);
     // Initializes sigma
-    m_sigma = new PathCount();
-    m_sigma.put(m_monitor.getInitialState(), BigInteger.ONE);
+    m_sigma = new CountVector(m_machine.getStateCount());
+    m_sigma.set(m_machine.getInitialState(), 1);
+    m_sigmaPrime = new CountVector(m_machine.getStateCount());
     m_verdicts = new VerdictCount();
+    m_beta = new VerdictCount();
   }
 
   @Override
   protected boolean compute(Object[] inputs, Queue<Object[]> outputs)// input: 1 multiEvent ---
                                                                      // output: verdicts and sigma
   {
-    VerdictCount beta = new VerdictCount();
-    PathCount sigma_prime = new PathCount();
+    checkMachine();
+    if (m_configurations != null)
+    {
+      return computeShared(inputs[0], outputs);
+    }
+    if (inputs[0] instanceof MultiEventRun)
+    {
+      return computeRun((MultiEventRun) inputs[0], outputs);
+    }
+    VerdictCount beta = m_beta;
+    CountVector sigma_prime = m_sigmaPrime;
+    beta.clear();
+    sigma_prime.clear();
     MultiEvent input_event = (MultiEvent) inputs[0];
     boolean transition_taken = false;
-    Set<Valuation> all_valuations = input_event.getValuations();
-    for (Entry<Object,BigInteger> sigma_state : m_sigma.entrySet())
+    if (m_matrices != null)
+    {
+      transition_taken = getTransferMatrix(input_event).multiply(m_sigma, sigma_prime, beta, m_verdictBuffer);
+      return commitStep(sigma_prime, new VerdictCount(beta), transition_taken, outputs);
+    }
+    boolean parallel = m_pool != null && getLiveStateCount() >= m_parallelThreshold;
+    m_stepRows = m_cache == null ? null : m_cache.getRows(input_event);
+    if (parallel || m_stepRows == null)
+    {
+      startStep(input_event);
+    }
+    // Otherwise, the step is only started if some row is not in the cache
+    if (parallel)
+    {
+      if (!(input_event instanceof ConcreteMultiEvent))
+      {
+        // Computed once here rather than lazily by each worker
+        m_inputCount = input_event.getValuationCount();
+      }
+      StepTask task = new StepTask(0, m_sigma.size(), input_event);
+      m_pool.invoke(task);
+      sigma_prime.add(task.m_sigmaPrime);
+      beta.add(task.m_beta);
+      transition_taken = task.m_transitionTaken;
+    }
+    else
+    {
+      transition_taken = step(0, m_sigma.size(), input_event, sigma_prime, beta, m_counts);
+    }
+    endStep();
+    return commitStep(sigma_prime, new VerdictCount(beta), transition_taken, outputs);
+  } // end of compute
+
+  /**
+   * Advances the multi-monitor by all the multi-events of a run. The
+   * steps before the last one produce no output: runs shorter than the
+   * number of states of the uni-monitor are processed one transfer matrix
+   * product at a time, and longer runs with the {@link PowerTable} of
+   * the multi-event, which uses a number of matrix products logarithmic
+   * in the length of the run when this is cheaper. The output is the verdict count of the last
+   * step, from which those of the other steps can be obtained on demand.
+   * @param run The run
+   * @param outputs The queue where the verdicts are added
+   * @return The value to be returned by {@link #compute(Object[], Queue)}
+   */
+  protected boolean computeRun(/*@ non_null @*/ MultiEventRun run, Queue<Object[]> outputs)
+  {
+    MultiEvent input_event = run.getEvent();
+    long length = run.getLength();
+    TransferMatrix m = getTransferMatrix(input_event);
+    PowerTable table = getPowerTable(input_event, m);
+    CountVector start = new CountVector(m_sigma);
+    if (length - 1 <= m_machine.getStateCount())
+    {
+      for (long i = 1; i < length; i++)
+      {
+        m_sigmaPrime.clear();
+        m.multiply(m_sigma, m_sigmaPrime, m_beta, m_verdictBuffer);
+        CountVector sigma = m_sigma;
+        m_sigma = m_sigmaPrime;
+        m_sigmaPrime = sigma;
+      }
+    }
+    else
+    {
+      m_sigma = table.apply(m_sigma, length - 1);
+    }
+    m_beta.clear();
+    m_sigmaPrime.clear();
+    boolean transition_taken = m.multiply(m_sigma, m_sigmaPrime, m_beta, m_verdictBuffer);
+    return commitStep(m_sigmaPrime, new RunVerdictCount(m_beta, start, table, length), transition_taken, outputs);
+  }
+
+  /**
+   * Advances a multi-monitor whose configurations are interned in a
+   * {@link ConfigurationTable}. Steps on single multi-events are delegated
+   * to the table; runs are processed on a private copy of &sigma;, whose
+   * final value is then interned.
+   * @param input The input multi-event or run
+   * @param outputs The queue where the verdicts are added
+   * @return The value to be returned by {@link #compute(Object[], Queue)}
+   */
+  protected boolean computeShared(/*@ non_null @*/ Object input, Queue<Object[]> outputs)
+  {
+    if (input instanceof MultiEventRun)
+    {
+      m_sigma = new CountVector(m_sigma);
+      m_sigmaPrime = new CountVector(m_sigma.size());
+      boolean transition_taken = computeRun((MultiEventRun) input, outputs);
+      share(m_configurations.intern(m_sigma, m_verdicts));
+      return transition_taken;
+    }
+    share(m_configurations.step(m_configuration, (MultiEvent) input));
+    // A transition fired from a state reached by some uni-trace leaves at
+    // least one uni-trace in the next configuration
+    if (m_configuration.isEmpty())
+    {
+      return false;
+    }
+    outputs.add(new Object[] {new VerdictCount(m_verdicts)});
+    return true;
+  }
+
+  /**
+   * Makes this multi-monitor use a configuration of its table
+   * @param c The configuration
+   */
+  protected void share(/*@ non_null @*/ ConfigurationTable.Configuration c)
+  {
+    m_configuration = c;
+    m_sigma = c.m_sigma;
+    m_verdicts = c.m_verdicts;
+    // Not needed as long as the configuration is shared
+    m_sigmaPrime = null;
+  }
+
+  /**
+   * Replaces &sigma; and &beta; by the mappings computed by a step, and
+   * outputs the verdicts
+   * @param sigma_prime The mapping &sigma; computed by the step
+   * @param beta A copy of the mapping &beta; computed by the step, which
+   * is output
+   * @param transition_taken Whether some input valuation fired a
+   * transition
+   * @param outputs The queue where the verdicts are added
+   * @return The value to be returned by {@link #compute(Object[], Queue)}
+   */
+  protected boolean commitStep(CountVector sigma_prime, VerdictCount beta, boolean transition_taken, Queue<Object[]> outputs)
+  {
+    // Swap the two buffers: the old sigma is overwritten by the next step
+    m_sigmaPrime = m_sigma;
+    m_sigma = sigma_prime;
+    m_verdicts = beta;
+
+    // the function will return false if none of the input valuations takes any
+    // transition from any state
+    if (!transition_taken)
+    { // i.e. if no input valuation fired a transition
+      return false;
+    }
+    outputs.add(new Object[] {m_verdicts});
+    return true;
+  }
+
+  @Override
+  protected void endStep()
+  {
+    super.endStep();
+    m_stepRows = null;
+  }
+
+  /**
+   * Processes a range of uni-monitor states for one input multi-event.
+   * @param from The ID of the first state of the range (inclusive)
+   * @param to The ID of the last state of the range (exclusive)
+   * @param input_event The input multi-event
+   * @param sigma_prime The mapping &sigma; to update
+   * @param beta The mapping &beta; to update
+   * @param counts A buffer of at least {@link #getMaxDegree()} elements,
+   * used to count the firings of the transitions of each state
+   * @return <tt>true</tt> if some input valuation fired a transition from
+   * some state of the range, <tt>false</tt> otherwise
+   */
+  protected boolean step(int from, int to, MultiEvent input_event, CountVector sigma_prime, VerdictCount beta, long[] counts)
+  {
+    boolean transition_taken = false;
+    StepCache.Row[] rows = m_stepRows;
+    long hits = 0;
+    long misses = 0;
+    for (int s = from; s < to; s++)
     { // iterating on each state of m_sigma
-      Set<Valuation> to_evaluate = new HashSet<Valuation>(); // will store all the valuations of the multi-event input
-      to_evaluate.addAll(all_valuations);
-      if (sigma_state.getValue().equals(BigInteger.ZERO))
+      if (m_sigma.isZero(s))
       {
         continue;
       }
-      List<PropositionalMachine.Transition> outgoing_edges = new ArrayList<PropositionalMachine.Transition>();
-      outgoing_edges = m_monitor.getTransitionsFor(sigma_state.getKey());
-      PropositionalMachine.Transition otherwise = null;
-
-      // iterate through the outgoing transitions of a state in m_sigma
-      for (PropositionalMachine.Transition t : outgoing_edges)
+      if (rows != null)
       {
-        if (to_evaluate.isEmpty())
+        StepCache.Row row = rows[s];
+        if (row == null)
         {
-          break;
+          row = getRow(s, input_event, counts);
+          rows[s] = row;
+          misses++;
         }
-        if (t instanceof TransitionOtherwise)
+        else
         {
-          otherwise = t;
+          hits++;
         }
-        else // if it is not an otherwise transition, we test if we can check it or not
+        for (int i = 0; i < row.size(); i++)
         {
-          MultiEvent condition = t.getCondition();
-          Set<Valuation> common_valuations = condition.getIntersection(input_event);
-          if (common_valuations.size() > 0)// valuations that take this transition will not take any
-                                           // other transition because the monitor is deterministic
-          {
-            transition_taken = true;
-            // add the new state to sigma_prime
-            BigInteger paths = sigma_state.getValue().multiply(BigInteger.valueOf(common_valuations.size()));
-            sigma_prime.increment(t.getDestination(), paths);
-            
-            // get the value of the output (verdict) on this transition + update beta
-            MultiEventFunction f = t.getFunction();
-            MultiEvent output_event = f.getValue(input_event);
-
-            // beta increment ..
-            if (output_event instanceof SymbolicMultiEvent.All || output_event instanceof ConcreteMultiEvent.All)
-            {
-              beta.increment(Troolean.Value.TRUE, paths);
-            }
-            else if (output_event instanceof SymbolicMultiEvent.Nothing || output_event instanceof ConcreteMultiEvent.Nothing)
-            {
-              beta.increment(Troolean.Value.FALSE, paths);
-            }
-            else
-            {
-              beta.increment(Troolean.Value.INCONCLUSIVE, paths);
-            }
-
-            /* Remove the common valuations that are evaluated, the remaining non-evaluated
-               valuations will either go through another outgoing transition or take the
-               otherwise transition. NOTE: this is only valid if the monitor is
-               *deterministic*, i.e. each valuation fires at most one transition. */
-            to_evaluate.removeAll(common_valuations);
-          }
+          transition_taken = true;
+          sigma_prime.addProduct(row.getDestination(i), m_sigma, s, row.getMultiplier(i));
+          beta.increment(row.getVerdict(i), m_sigma, s, row.getMultiplier(i));
         }
-      } // end of outgoing transitions from one sigma state
-
-      // the remaining valuations in the set to_evaluate that did not take any
-      // transition will take the otherwise transition
-      if (otherwise != null && !to_evaluate.isEmpty())
+        continue;
+      }
+      int degree = countFirings(s, input_event, counts);
+      int first = m_machine.getFirstTransition(s);
+      for (int i = 0; i < degree; i++)
       {
-        transition_taken = true;
-        BigInteger paths = sigma_state.getValue().multiply(BigInteger.valueOf(to_evaluate.size()));
-        sigma_prime.increment(otherwise.getDestination(), paths);
-
-        // get the value of the output (verdict) + update beta
-        MultiEventFunction f = otherwise.getFunction();
-        MultiEvent output_event = f.getValue(input_event);
-
-        // beta increment ..
-        if (output_event instanceof SymbolicMultiEvent.All)
+        if (counts[i] > 0)
         {
-          beta.increment(Troolean.Value.TRUE, paths);
-        }
-        else if (output_event instanceof SymbolicMultiEvent.Nothing)
-        {
-          beta.increment(Troolean.Value.FALSE, paths);
-        }
-        else
-        {
-          beta.increment(Troolean.Value.INCONCLUSIVE, paths);
+          transition_taken = true;
+          fire(first + i, s, counts[i], input_event, sigma_prime, beta);
         }
       }
     } // end of states in m_sigma
-
-    // update sigma and beta of the monitor
-    if (beta.get(Troolean.Value.TRUE).equals(BigInteger.ZERO) && beta.get(Troolean.Value.INCONCLUSIVE).equals(BigInteger.ZERO))
+    if (rows != null)
     {
-      System.out.println("SCREWED");
-      System.out.println(m_sigma);
-      System.out.println(sigma_prime);
+      m_cache.record(hits, misses);
     }
-    m_sigma = sigma_prime;
-    m_verdicts = beta;
+    return transition_taken;
+  }
 
-    // the function will return false if none of the input valuations takes any
-    // transition from any state
-    if (!transition_taken)
-    { // i.e. if nothing is removed from to_evaluate set
-      return false;
+  /**
+   * Computes the effect of an input multi-event on the uni-traces in a
+   * state, in the form of a row of a {@link StepCache}
+   * @param state The ID of the state
+   * @param input_event The input multi-event
+   * @param counts A buffer of at least {@link #getMaxDegree()} elements
+   * @return The row
+   */
+  /*@ non_null @*/ protected StepCache.Row getRow(int state, /*@ non_null @*/ MultiEvent input_event, /*@ non_null @*/ long[] counts)
+  {
+    if (!m_stepStarted)
+    {
+      startStep(input_event);
     }
-    outputs.add(new Object[] {beta});
-    return true;
-  } // end of compute
+    int degree = countFirings(state, input_event, counts);
+    int first = m_machine.getFirstTransition(state);
+    int fired = 0;
+    for (int i = 0; i < degree; i++)
+    {
+      if (counts[i] > 0)
+      {
+        fired++;
+      }
+    }
+    int[] destinations = new int[fired];
+    long[] multipliers = new long[fired];
+    Troolean.Value[] verdicts = new Troolean.Value[fired];
+    int j = 0;
+    for (int i = 0; i < degree; i++)
+    {
+      if (counts[i] > 0)
+      {
+        destinations[j] = m_machine.getDestination(first + i);
+        multipliers[j] = counts[i];
+        verdicts[j] = m_machine.getVerdict(first + i, input_event);
+        j++;
+      }
+    }
+    return new StepCache.Row(destinations, multipliers, verdicts);
+  }
 
+  /**
+   * Sets the pool used to process the states of &sigma; in parallel. When
+   * a pool is set and at least {@link #setParallelThreshold(int) a given
+   * number} of states are reached by some uni-trace, the states are split
+   * into ranges that are processed by separate tasks, each accumulating
+   * into its own copy of &sigma; and &beta;; these copies are summed at the
+   * end of the step. The same pool is used to classify the valuations of
+   * large concrete multi-events (see {@link #setShardSize(int)}). The
+   * output functions of the transitions must then be safe to call from
+   * multiple threads.
+   * @param pool The pool, or <tt>null</tt> to process all states on the
+   * calling thread
+   * @return This multi-monitor
+   */
   @Override
-  public void reset()
+  public MultiMonitor setParallel(/*@ null @*/ ForkJoinPool pool)
   {
-    super.reset();
-    m_sigma.put(m_monitor.getInitialState(), BigInteger.ONE);
+    super.setParallel(pool);
+    return this;
+  }
+
+  /**
+   * Sets the cache used to remember the effect of input multi-events on
+   * each state of the uni-monitor (see {@link StepCache}). When a
+   * multi-event is read again in a state, the uni-traces in this state are
+   * moved according to the cached row, without computing any intersection
+   * nor calling {@link #fire(int, int, long, MultiEvent, CountVector,
+   * VerdictCount) fire}. The output functions of the transitions must then
+   * always produce the same verdict for the same input multi-event.
+   * @param capacity The maximum number of distinct multi-events in the
+   * cache; 0 or less to use no cache
+   * @return This multi-monitor
+   */
+  public MultiMonitor setStepCache(int capacity)
+  {
+    m_cache = capacity > 0 ? new StepCache(m_machine.getStateCount(), capacity) : null;
+    return this;
+  }
+
+  /**
+   * Gets the cache used to remember the effect of input multi-events on
+   * each state of the uni-monitor
+   * @return The cache, or <tt>null</tt> if no cache is used
+   */
+  /*@ null @*/ public StepCache getStepCache()
+  {
+    return m_cache;
+  }
+
+  /**
+   * Makes this multi-monitor compute each step as the product of a
+   * {@link TransferMatrix} by &sigma;. The matrix of each distinct input
+   * multi-event is computed for all states the first time it is read, and
+   * kept in a cache, so that steps on multi-events that are read again
+   * are reduced to a single sparse product. When matrices are used, the
+   * {@link #setStepCache(int) step cache} and the
+   * {@link #setParallel(ForkJoinPool) pool} are ignored.
+   * @param capacity The maximum number of matrices in the cache; 0 or
+   * less to process steps without matrices
+   * @return This multi-monitor
+   */
+  public MultiMonitor setTransferMatrixCache(int capacity)
+  {
+    m_matrices = capacity > 0 ? new LruMap<MultiEvent,TransferMatrix>(capacity) : null;
+    m_powers = capacity > 0 ? new LruMap<MultiEvent,PowerTable>(capacity) : null;
+    return this;
+  }
+
+  /**
+   * Gets the transfer matrix of an input multi-event for the uni-monitor
+   * of this multi-monitor. If matrices are cached (see
+   * {@link #setTransferMatrixCache(int)}), the matrix is taken from the
+   * cache, or added to it.
+   * @param input_event The input multi-event
+   * @return The matrix
+   */
+  /*@ non_null @*/ public TransferMatrix getTransferMatrix(/*@ non_null @*/ MultiEvent input_event)
+  {
+    TransferMatrix m = m_matrices == null ? null : m_matrices.get(input_event);
+    if (m != null)
+    {
+      return m;
+    }
+    StepCache.Row[] rows = new StepCache.Row[m_machine.getStateCount()];
+    startStep(input_event);
+    for (int s = 0; s < rows.length; s++)
+    {
+      rows[s] = getRow(s, input_event, m_counts);
+    }
+    endStep();
+    m = new TransferMatrix(rows);
+    if (m_matrices != null)
+    {
+      m_matrices.put(input_event, m);
+    }
+    return m;
+  }
+
+  /**
+   * Gets the power table of an input multi-event. If matrices are cached
+   * (see {@link #setTransferMatrixCache(int)}), the table is taken from
+   * the cache, or added to it.
+   * @param input_event The input multi-event
+   * @param m The transfer matrix of the multi-event
+   * @return The table
+   */
+  /*@ non_null @*/ protected PowerTable getPowerTable(/*@ non_null @*/ MultiEvent input_event, /*@ non_null @*/ TransferMatrix m)
+  {
+    PowerTable table = m_powers == null ? null : m_powers.get(input_event);
+    if (table == null || table.getMatrix() != m)
+    {
+      table = new PowerTable(m);
+      if (m_powers != null)
+      {
+        m_powers.put(input_event, table);
+      }
+    }
+    return table;
+  }
+
+  /**
+   * Makes this multi-monitor keep its state as a configuration of a
+   * {@link ConfigurationTable}. The current state of the multi-monitor is
+   * interned in the table, and each step on a multi-event is then
+   * delegated to the table, which memoizes it; the
+   * {@link #setStepCache(int) step cache}, the
+   * {@link #setTransferMatrixCache(int) transfer matrices} and the
+   * {@link #setParallel(ForkJoinPool) pool} of this multi-monitor are
+   * ignored.
+   * @param table The table, or <tt>null</tt> to keep a private copy of the
+   * state
+   * @return This multi-monitor
+   * @throws IllegalArgumentException If the table is not for the compiled
+   * uni-monitor of this multi-monitor
+   */
+  public MultiMonitor setConfigurationTable(/*@ null @*/ ConfigurationTable table)
+  {
+    if (table == null)
+    {
+      if (m_configurations != null)
+      {
+        m_sigma = new CountVector(m_sigma);
+        m_sigmaPrime = new CountVector(m_sigma.size());
+        m_verdicts = new VerdictCount(m_verdicts);
+        m_configurations = null;
+        m_configuration = null;
+      }
+      return this;
+    }
+    if (table.getMachine() != m_machine)
+    {
+      throw new IllegalArgumentException("The table is for another compiled machine");
+    }
+    m_configurations = table;
+    share(table.intern(m_sigma, m_verdicts));
+    return this;
   }
 
   @Override
-  public MultiMonitor duplicate(boolean with_state)
+  public MultiMonitor setShardSize(int size)
+  {
+    super.setShardSize(size);
+    return this;
+  }
+
+  /**
+   * Sets the minimum number of states reached by some uni-trace for a step
+   * to be processed in parallel. This is also the number of states below
+   * which a range is no longer split.
+   * @param threshold The number of states
+   * @return This multi-monitor
+   */
+  public MultiMonitor setParallelThreshold(int threshold)
   {
-    // TODO Let's do this later
-    throw new UnsupportedOperationException("Not implemented yet");
+    m_parallelThreshold = Math.max(1, threshold);
+    return this;
+  }
+
+  /**
+   * Counts the states of the uni-monitor that are reached by at least one
+   * uni-trace
+   * @return The number of states
+   */
+  protected int getLiveStateCount()
+  {
+    int live = 0;
+    for (int s = 0; s < m_sigma.size(); s++)
+    {
+      if (!m_sigma.isZero(s))
+      {
+        live++;
+      }
+    }
+    return live;
   }
 
   /**
-   * A data structure associating machine states to a number of uni-traces. This
-   * corresponds to the mapping &sigma; in Algorithm 1.
+   * Processes a range of states of &sigma;, splitting it among subtasks if
+   * it is large enough.
    */
-  protected static class PathCount extends HashMap<Object,BigInteger>
+  protected class StepTask extends RecursiveAction
   {
     /**
      * Dummy UID
@@ -230,71 +646,221 @@ public class MultiMonitor extends SynchronousProcessor
     private static final long serialVersionUID = 1L;
 
     /**
-     * Increments the number of paths associated to a state
-     * 
-     * @param state
-     *          The state
-     * @param paths
-     *          The number of paths to add
+     * The ID of the first state of the range (inclusive)
      */
-    public void increment(Object state, int paths)
-    {
-      BigInteger b_paths = BigInteger.valueOf(paths);
-      if (!containsKey(state))
-      {
-        put(state, b_paths);
-      }
-      else
-      {
-        BigInteger c = get(state);
-        put(state, c.add(b_paths));
-      }
-    }
-    
+    protected final int m_from;
+
     /**
-     * Increments the number of paths associated to a state
-     * 
-     * @param state
-     *          The state
-     * @param paths
-     *          The number of paths to add
+     * The ID of the last state of the range (exclusive)
+     */
+    protected final int m_to;
+
+    /**
+     * The input multi-event
+     */
+    protected final MultiEvent m_inputEvent;
+
+    /**
+     * The partial mapping &sigma; computed by this task
+     */
+    protected CountVector m_sigmaPrime;
+
+    /**
+     * The partial mapping &beta; computed by this task
+     */
+    protected VerdictCount m_beta;
+
+    /**
+     * Whether a transition has been fired from a state of the range
+     */
+    protected boolean m_transitionTaken;
+
+    /**
+     * Creates a new task
+     * @param from The ID of the first state of the range (inclusive)
+     * @param to The ID of the last state of the range (exclusive)
+     * @param input_event The input multi-event
      */
-    public void increment(Object state, BigInteger paths)
+    public StepTask(int from, int to, MultiEvent input_event)
     {
-      if (!containsKey(state))
-      {
-        put(state, paths);
-      }
-      else
+      super();
+      m_from = from;
+      m_to = to;
+      m_inputEvent = input_event;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if (m_to - m_from <= m_parallelThreshold)
       {
-        BigInteger c = get(state);
-        put(state, c.add(paths));
+        m_sigmaPrime = new CountVector(m_sigma.size());
+        m_beta = new VerdictCount();
+        m_transitionTaken = step(m_from, m_to, m_inputEvent, m_sigmaPrime, m_beta, new long[m_counts.length]);
+        return;
       }
+      int middle = (m_from + m_to) >>> 1;
+      StepTask left = new StepTask(m_from, middle, m_inputEvent);
+      StepTask right = new StepTask(middle, m_to, m_inputEvent);
+      invokeAll(left, right);
+      left.m_sigmaPrime.add(right.m_sigmaPrime);
+      left.m_beta.add(right.m_beta);
+      m_sigmaPrime = left.m_sigmaPrime;
+      m_beta = left.m_beta;
+      m_transitionTaken = left.m_transitionTaken || right.m_transitionTaken;
     }
   }
-  
-  
+
+  /**
+   * Updates &sigma; and &beta; for the uni-traces that fire a transition.
+   * @param t The position of the transition in {@link #m_machine}
+   * @param source The ID of the source state of the transition
+   * @param count The number of input valuations that fire the transition
+   * @param input_event The input multi-event
+   * @param sigma_prime The mapping &sigma; to update
+   * @param beta The mapping &beta; to update
+   */
+  protected void fire(int t, int source, long count, MultiEvent input_event, CountVector sigma_prime, VerdictCount beta)
+  {
+    // add the new state to sigma_prime
+    sigma_prime.addProduct(m_machine.getDestination(t), m_sigma, source, count);
+    // get the value of the output (verdict) on this transition + update beta
+    beta.increment(m_machine.getVerdict(t, input_event), m_sigma, source, count);
+  }
+
+  /**
+   * Gets the verdict corresponding to the output multi-event of a
+   * transition of the uni-monitor
+   * @param output_event The output multi-event
+   * @return The verdict
+   */
+  protected static Troolean.Value getVerdict(MultiEvent output_event)
+  {
+    if (output_event instanceof SymbolicMultiEvent.All || output_event instanceof ConcreteMultiEvent.All)
+    {
+      return Troolean.Value.TRUE;
+    }
+    if (output_event instanceof SymbolicMultiEvent.Nothing || output_event instanceof ConcreteMultiEvent.Nothing)
+    {
+      return Troolean.Value.FALSE;
+    }
+    return Troolean.Value.INCONCLUSIVE;
+  }
+
+  @Override
+  public void reset()
+  {
+    super.reset();
+    if (m_configurations != null)
+    {
+      share(m_configurations.getInitial());
+      return;
+    }
+    m_sigma.clear();
+    m_sigma.set(m_machine.getInitialState(), 1);
+    m_verdicts = new VerdictCount();
+  }
+
+  @Override
+  public MultiMonitor duplicate(boolean with_state)
+  {
+    // The compiled machine is immutable and can be shared; caches are not
+    MultiMonitor m = new MultiMonitor(m_monitor, m_machine);
+    m.m_pool = m_pool;
+    m.m_parallelThreshold = m_parallelThreshold;
+    m.m_shardSize = m_shardSize;
+    if (m_cache != null)
+    {
+      m.setStepCache(m_cache.getCapacity());
+    }
+    if (m_matrices != null)
+    {
+      m.setTransferMatrixCache(m_matrices.getCapacity());
+    }
+    if (m_configurations != null)
+    {
+      m.setConfigurationTable(m_configurations);
+    }
+    if (!with_state)
+    {
+      return m;
+    }
+    if (m_configurations != null)
+    {
+      m.share(m_configuration);
+    }
+    else
+    {
+      m.m_sigma = new CountVector(m_sigma);
+      m.m_verdicts = new VerdictCount(m_verdicts);
+    }
+    return m;
+  }
 
   /**
    * A data structure associating monitor verdicts to a number of uni-traces. This
    * corresponds to the mapping &beta; in Algorithm 1.
    */
-  public static class VerdictCount
+  public static class VerdictCount implements VerdictDistribution
   {
     /**
      * The number of uni-traces leading to the true verdict
      */
-    protected BigInteger m_numTrue = BigInteger.ZERO;
+    protected final Counter m_numTrue = new Counter();
 
     /**
      * The number of uni-traces leading to the false verdict
      */
-    protected BigInteger m_numFalse = BigInteger.ZERO;
+    protected final Counter m_numFalse = new Counter();
 
     /**
      * The number of uni-traces leading to the inconclusive verdict
      */
-    protected BigInteger m_numInconclusive = BigInteger.ZERO;
+    protected final Counter m_numInconclusive = new Counter();
+
+    /**
+     * Creates a new verdict count where all numbers of paths are zero
+     */
+    public VerdictCount()
+    {
+      super();
+    }
+
+    /**
+     * Creates a copy of a verdict count
+     *
+     * @param c
+     *          The verdict count to copy
+     */
+    public VerdictCount(/*@ non_null @*/ VerdictCount c)
+    {
+      super();
+      set(c);
+    }
+
+    /**
+     * Sets the numbers of paths of this verdict count to those of another
+     * one
+     *
+     * @param c
+     *          The other verdict count
+     */
+    public void set(/*@ non_null @*/ VerdictCount c)
+    {
+      m_numTrue.set(c.m_numTrue);
+      m_numFalse.set(c.m_numFalse);
+      m_numInconclusive.set(c.m_numInconclusive);
+    }
+
+    /**
+     * Sets all the numbers of paths to zero
+     */
+    public void clear()
+    {
+      m_numTrue.set(0);
+      m_numFalse.set(0);
+      m_numInconclusive.set(0);
+    }
 
     /**
      * Increments the number of paths associated to a given monitor verdict
@@ -306,18 +872,10 @@ public class MultiMonitor extends SynchronousProcessor
      */
     public void increment(Troolean.Value v, int paths)
     {
-      BigInteger b_paths = BigInteger.valueOf(paths);
-      if (v == Troolean.Value.TRUE)
-      {
-        m_numTrue = m_numTrue.add(b_paths);
-      }
-      if (v == Troolean.Value.FALSE)
-      {
-        m_numFalse = m_numFalse.add(b_paths);
-      }
-      if (v == Troolean.Value.INCONCLUSIVE)
+      Counter c = getCounter(v);
+      if (c != null)
       {
-        m_numInconclusive = m_numInconclusive.add(b_paths);
+        c.add(paths);
       }
     }
     
@@ -331,20 +889,68 @@ public class MultiMonitor extends SynchronousProcessor
      */
     public void increment(Troolean.Value v, BigInteger paths)
     {
-      if (v == Troolean.Value.TRUE)
+      Counter c = getCounter(v);
+      if (c != null)
       {
-        m_numTrue = m_numTrue.add(paths);
+        c.add(paths);
       }
-      if (v == Troolean.Value.FALSE)
+    }
+    
+    /**
+     * Increments the number of paths associated to a given monitor verdict
+     * by the product of a number of paths and a factor
+     * 
+     * @param v
+     *          The verdict
+     * @param paths
+     *          The number of paths
+     * @param factor
+     *          The factor
+     */
+    public void increment(Troolean.Value v, Counter paths, long factor)
+    {
+      Counter c = getCounter(v);
+      if (c != null)
       {
-        m_numFalse = m_numFalse.add(paths);
+        c.addProduct(paths, factor);
       }
-      if (v == Troolean.Value.INCONCLUSIVE)
+    }
+
+    /**
+     * Increments the number of paths associated to a given monitor verdict
+     * by the product of an element of a vector of path counts and a factor
+     * 
+     * @param v
+     *          The verdict
+     * @param paths
+     *          The vector of path counts
+     * @param i
+     *          The position of the element in the vector
+     * @param factor
+     *          The factor
+     */
+    public void increment(Troolean.Value v, CountVector paths, int i, long factor)
+    {
+      Counter c = getCounter(v);
+      if (c != null)
       {
-        m_numInconclusive = m_numInconclusive.add(paths);
+        c.addProduct(paths, i, factor);
       }
     }
 
+    /**
+     * Adds the numbers of paths of another verdict count to this one
+     * 
+     * @param c
+     *          The other verdict count
+     */
+    public void add(VerdictCount c)
+    {
+      m_numTrue.add(c.m_numTrue);
+      m_numFalse.add(c.m_numFalse);
+      m_numInconclusive.add(c.m_numInconclusive);
+    }
+
     /**
      * Gets the number of uni-traces associated to a monitor verdict
      * 
@@ -353,6 +959,47 @@ public class MultiMonitor extends SynchronousProcessor
      * @return The number of traces
      */
     public BigInteger get(Troolean.Value v)
+    {
+      Counter c = getCounter(v);
+      if (c != null)
+      {
+        return c.get();
+      }
+      return BigInteger.ZERO; // Not supposed to happen
+    }
+    
+    @Override
+    public double getProbability(Troolean.Value v)
+    {
+      Counter c = getCounter(v);
+      if (c == null)
+      {
+        return 0;
+      }
+      if (m_numTrue.isLong() && m_numFalse.isLong() && m_numInconclusive.isLong())
+      {
+        double total = (double) m_numTrue.longValue() + (double) m_numFalse.longValue() + (double) m_numInconclusive.longValue();
+        if (total == 0)
+        {
+          return 0;
+        }
+        return (double) c.longValue() / total;
+      }
+      BigInteger total = m_numTrue.get().add(m_numFalse.get()).add(m_numInconclusive.get());
+      // Drop the low-order bits of both numbers so that the ratio can be
+      // computed on doubles without overflowing
+      int shift = Math.max(0, total.bitLength() - 62);
+      return c.get().shiftRight(shift).doubleValue() / total.shiftRight(shift).doubleValue();
+    }
+
+    /**
+     * Gets the counter associated to a monitor verdict
+     * 
+     * @param v
+     *          The verdict
+     * @return The counter
+     */
+    /*@ null @*/ protected Counter getCounter(Troolean.Value v)
     {
       if (v == Troolean.Value.TRUE)
       {
@@ -366,9 +1013,26 @@ public class MultiMonitor extends SynchronousProcessor
       {
         return m_numInconclusive;
       }
-      return BigInteger.ZERO; // Not supposed to happen
+      return null;
     }
     
+    @Override
+    public boolean equals(Object o)
+    {
+      if (o == null || !(o instanceof VerdictCount))
+      {
+        return false;
+      }
+      VerdictCount c = (VerdictCount) o;
+      return m_numTrue.equals(c.m_numTrue) && m_numFalse.equals(c.m_numFalse) && m_numInconclusive.equals(c.m_numInconclusive);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return 31 * (31 * m_numTrue.hashCode() + m_numFalse.hashCode()) + m_numInconclusive.hashCode();
+    }
+
     @Override
     public String toString()
     {
@@ -377,4 +1041,83 @@ public class MultiMonitor extends SynchronousProcessor
       return out.toString();
     }
   }
+
+  /**
+   * The verdict count output by a multi-monitor for a
+   * {@link MultiEventRun}. It contains the verdicts of the last step of the
+   * run; those of the other steps are only computed if they are asked for,
+   * from the mapping &sigma; at the start of the run and the
+   * {@link PowerTable} of the multi-event.
+   */
+  public static class RunVerdictCount extends VerdictCount
+  {
+    /**
+     * The mapping &sigma; before the first step of the run
+     */
+    /*@ non_null @*/ protected final CountVector m_start;
+
+    /**
+     * The power table of the multi-event of the run
+     */
+    /*@ non_null @*/ protected final PowerTable m_table;
+
+    /**
+     * The number of steps of the run
+     */
+    protected final long m_length;
+
+    /**
+     * Creates a new verdict count for a run
+     *
+     * @param last
+     *          The verdicts of the last step of the run
+     * @param start
+     *          The mapping &sigma; before the first step of the run
+     * @param table
+     *          The power table of the multi-event of the run
+     * @param length
+     *          The number of steps of the run
+     */
+    public RunVerdictCount(/*@ non_null @*/ VerdictCount last, /*@ non_null @*/ CountVector start, /*@ non_null @*/ PowerTable table, long length)
+    {
+      super(last);
+      m_start = start;
+      m_table = table;
+      m_length = length;
+    }
+
+    /**
+     * Gets the number of steps of the run
+     *
+     * @return The number of steps
+     */
+    public long getLength()
+    {
+      return m_length;
+    }
+
+    /**
+     * Gets the verdicts produced by a step of the run
+     *
+     * @param i
+     *          The number of the step, starting at 1
+     * @return The verdicts
+     * @throws IndexOutOfBoundsException If the run has no such step
+     */
+    /*@ non_null @*/ public VerdictCount getVerdicts(long i)
+    {
+      if (i < 1 || i > m_length)
+      {
+        throw new IndexOutOfBoundsException("Step " + i + " is not in a run of length " + m_length);
+      }
+      if (i == m_length)
+      {
+        return new VerdictCount(this);
+      }
+      CountVector sigma = m_table.apply(m_start, i - 1);
+      VerdictCount beta = new VerdictCount();
+      m_table.getMatrix().multiply(sigma, new CountVector(sigma.size()), beta);
+      return beta;
+    }
+  }
 }
@@ -0,0 +1,411 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import ca.uqac.lif.cep.propman.MultiMonitor.VerdictCount;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A set of multi-monitors lifted from the same uni-monitor, each following
+ * its own trace (for example, one per user session). Instead of one
+ * {@link MultiMonitor} processor per session, all sessions share the same
+ * compiled machine and the same cache of {@link TransferMatrix transfer
+ * matrices}, and the state of each session is a slot of primitive
+ * numbers in a {@link SlotStore}: its mapping &sigma; (one <tt>long</tt>
+ * per state) followed by the verdicts of its last step (three
+ * <tt>long</tt>s). For a machine with <i>n</i> states, a session
+ * therefore takes 8(<i>n</i> + 3) bytes, which can be kept on the heap or
+ * outside of it.
+ * <p>
+ * Sessions are identified by integers, which are reused once a session is
+ * closed. A session whose counts no longer fit in a <tt>long</tt> is moved
+ * out of its slot to an overflow area on the heap, and is from then on
+ * stepped with arbitrary-precision numbers.
+ * <p>
+ * A pool is not thread-safe; several pools can share the same compiled
+ * machine.
+ */
+public class MultiMonitorPool
+{
+  /**
+   * The default maximum number of transfer matrices kept by a pool
+   */
+  public static final int DEFAULT_MATRIX_CACHE_CAPACITY = 1024;
+
+  /**
+   * The compiled uni-monitor
+   */
+  /*@ non_null @*/ protected final CompiledMachine m_machine;
+
+  /**
+   * The multi-monitor used to compute transfer matrices, and that keeps
+   * them in its cache
+   */
+  /*@ non_null @*/ protected final MultiMonitor m_builder;
+
+  /**
+   * The number of states of the machine
+   */
+  protected final int m_stateCount;
+
+  /**
+   * The slots of the sessions; the slot of a session contains the number
+   * of uni-traces in each state <i>s</i> at position <i>s</i>, and the
+   * number of uni-traces for verdict <i>v</i> (in the order true, false,
+   * inconclusive) at position <i>n</i> + <i>v</i>
+   */
+  /*@ non_null @*/ protected final SlotStore m_slots;
+
+  /**
+   * The sessions that are open
+   */
+  /*@ non_null @*/ protected final BitSet m_open;
+
+  /**
+   * The number of slots used so far, open or closed
+   */
+  protected int m_slotCount = 0;
+
+  /**
+   * The IDs of the closed sessions, whose slots can be reused
+   */
+  /*@ non_null @*/ protected int[] m_free = new int[16];
+
+  /**
+   * The number of elements of {@link #m_free}
+   */
+  protected int m_freeCount = 0;
+
+  /**
+   * The state of the sessions whose counts have overflowed, indexed by
+   * session ID
+   */
+  /*@ non_null @*/ protected final Map<Integer,SessionState> m_overflowed;
+
+  /**
+   * A buffer receiving the mapping &sigma; computed by a step
+   */
+  /*@ non_null @*/ protected final long[] m_sigmaBuffer;
+
+  /**
+   * A buffer receiving the verdicts computed by a step
+   */
+  /*@ non_null @*/ protected final long[] m_verdictBuffer = new long[3];
+
+  /**
+   * Creates a new pool
+   * @param monitor The uni-monitor; its transition relation is compiled at
+   * this moment
+   */
+  public MultiMonitorPool(/*@ non_null @*/ PropositionalMachine monitor)
+  {
+    this(monitor, CompiledMachine.compile(monitor));
+  }
+
+  /**
+   * Creates a new pool for a uni-monitor that has already been compiled
+   * @param monitor The uni-monitor
+   * @param machine The compiled transition relation of the uni-monitor
+   */
+  public MultiMonitorPool(/*@ non_null @*/ PropositionalMachine monitor, /*@ non_null @*/ CompiledMachine machine)
+  {
+    this(monitor, machine, false);
+  }
+
+  /**
+   * Creates a new pool for a uni-monitor that has already been compiled,
+   * whose sessions are possibly kept outside of the heap
+   * @param monitor The uni-monitor
+   * @param machine The compiled transition relation of the uni-monitor
+   * @param off_heap Set to <tt>true</tt> to keep the sessions in a
+   * {@link SlotStore.Direct direct store}, <tt>false</tt> to keep them in
+   * an array on the heap
+   */
+  public MultiMonitorPool(/*@ non_null @*/ PropositionalMachine monitor, /*@ non_null @*/ CompiledMachine machine, boolean off_heap)
+  {
+    super();
+    m_machine = machine;
+    m_builder = new MultiMonitor(monitor, machine).setTransferMatrixCache(DEFAULT_MATRIX_CACHE_CAPACITY);
+    m_stateCount = machine.getStateCount();
+    if (off_heap)
+    {
+      m_slots = new SlotStore.Direct(m_stateCount + 3);
+    }
+    else
+    {
+      m_slots = new SlotStore.Heap(m_stateCount + 3);
+    }
+    m_open = new BitSet();
+    m_overflowed = new HashMap<Integer,SessionState>();
+    m_sigmaBuffer = new long[m_stateCount];
+  }
+
+  /**
+   * Sets the maximum number of transfer matrices kept by the pool
+   * @param capacity The number of matrices
+   * @return This pool
+   */
+  public MultiMonitorPool setMatrixCacheCapacity(int capacity)
+  {
+    m_builder.setTransferMatrixCache(Math.max(1, capacity));
+    return this;
+  }
+
+  /**
+   * Opens a new session, whose uni-traces are all in the initial state of
+   * the uni-monitor
+   * @return The session ID
+   */
+  public int open()
+  {
+    int session;
+    if (m_freeCount > 0)
+    {
+      session = m_free[--m_freeCount];
+    }
+    else
+    {
+      session = m_slotCount++;
+      m_slots.ensureCapacity(m_slotCount);
+    }
+    m_open.set(session);
+    reset(session);
+    return session;
+  }
+
+  /**
+   * Closes a session. Its ID may be returned by a later call to
+   * {@link #open()}.
+   * @param session The session ID
+   */
+  public void close(int session)
+  {
+    checkOpen(session);
+    m_open.clear(session);
+    m_overflowed.remove(session);
+    addFree(session);
+  }
+
+  /**
+   * Opens a session with a given ID, which must not be open. This is used
+   * to rebuild a pool whose sessions were saved elsewhere; the IDs skipped
+   * to reach this one can be returned by later calls to {@link #open()}.
+   * @param session The session ID
+   * @throws IllegalArgumentException If the session is already open
+   */
+  protected void claim(int session)
+  {
+    if (session < 0 || m_open.get(session))
+    {
+      throw new IllegalArgumentException("Session " + session + " cannot be opened");
+    }
+    if (session >= m_slotCount)
+    {
+      for (int i = m_slotCount; i < session; i++)
+      {
+        addFree(i);
+      }
+      m_slotCount = session + 1;
+      m_slots.ensureCapacity(m_slotCount);
+    }
+    else
+    {
+      for (int i = 0; i < m_freeCount; i++)
+      {
+        if (m_free[i] == session)
+        {
+          m_free[i] = m_free[--m_freeCount];
+          break;
+        }
+      }
+    }
+    m_open.set(session);
+    reset(session);
+  }
+
+  /**
+   * Adds a session ID to the IDs that can be reused
+   * @param session The session ID
+   */
+  protected void addFree(int session)
+  {
+    if (m_freeCount == m_free.length)
+    {
+      m_free = Arrays.copyOf(m_free, m_freeCount * 2);
+    }
+    m_free[m_freeCount++] = session;
+  }
+
+  /**
+   * Puts all the uni-traces of a session back in the initial state of the
+   * uni-monitor
+   * @param session The session ID
+   */
+  public void reset(int session)
+  {
+    checkOpen(session);
+    if (!m_overflowed.isEmpty())
+    {
+      m_overflowed.remove(session);
+    }
+    m_slots.clear(session);
+    m_slots.set(session, m_machine.getInitialState(), 1);
+  }
+
+  /**
+   * Makes a session read a multi-event
+   * @param session The session ID
+   * @param e The multi-event
+   * @return <tt>true</tt> if some input valuation fired a transition,
+   * <tt>false</tt> otherwise
+   */
+  public boolean step(int session, /*@ non_null @*/ MultiEvent e)
+  {
+    checkOpen(session);
+    TransferMatrix m = m_builder.getTransferMatrix(e);
+    SessionState big = m_overflowed.isEmpty() ? null : m_overflowed.get(session);
+    if (big == null)
+    {
+      Arrays.fill(m_sigmaBuffer, 0);
+      Arrays.fill(m_verdictBuffer, 0);
+      try
+      {
+        boolean moved = m_slots.multiply(m, session, m_sigmaBuffer, m_verdictBuffer);
+        m_slots.put(session, 0, m_sigmaBuffer);
+        m_slots.put(session, m_stateCount, m_verdictBuffer);
+        return moved;
+      }
+      catch (ArithmeticException ex)
+      {
+        // Overflow: the session leaves its slot
+        big = new SessionState(getSigma(session), getVerdicts(session));
+        m_overflowed.put(session, big);
+      }
+    }
+    CountVector sigma_prime = new CountVector(m_stateCount);
+    VerdictCount beta = new VerdictCount();
+    boolean moved = m.multiply(big.m_sigma, sigma_prime, beta);
+    big.m_sigma = sigma_prime;
+    big.m_verdicts = beta;
+    return moved;
+  }
+
+  /**
+   * Gets the verdicts produced by the last step of a session
+   * @param session The session ID
+   * @return A new verdict count
+   */
+  /*@ non_null @*/ public VerdictCount getVerdicts(int session)
+  {
+    checkOpen(session);
+    SessionState big = m_overflowed.isEmpty() ? null : m_overflowed.get(session);
+    if (big != null)
+    {
+      return new VerdictCount(big.m_verdicts);
+    }
+    VerdictCount beta = new VerdictCount();
+    beta.m_numTrue.set(m_slots.get(session, m_stateCount));
+    beta.m_numFalse.set(m_slots.get(session, m_stateCount + 1));
+    beta.m_numInconclusive.set(m_slots.get(session, m_stateCount + 2));
+    return beta;
+  }
+
+  /**
+   * Gets the mapping &sigma; of a session, indexed by the state IDs of the
+   * compiled uni-monitor
+   * @param session The session ID
+   * @return A new vector containing the mapping
+   */
+  /*@ non_null @*/ public CountVector getSigma(int session)
+  {
+    checkOpen(session);
+    SessionState big = m_overflowed.isEmpty() ? null : m_overflowed.get(session);
+    if (big != null)
+    {
+      return new CountVector(big.m_sigma);
+    }
+    CountVector sigma = new CountVector(m_stateCount);
+    for (int s = 0; s < m_stateCount; s++)
+    {
+      sigma.m_values[s] = m_slots.get(session, s);
+    }
+    return sigma;
+  }
+
+  /**
+   * Gets the number of sessions currently open
+   * @return The number of sessions
+   */
+  public int getSessionCount()
+  {
+    return m_slotCount - m_freeCount;
+  }
+
+  /**
+   * Gets the compiled uni-monitor shared by the sessions
+   * @return The compiled machine
+   */
+  /*@ non_null @*/ public CompiledMachine getMachine()
+  {
+    return m_machine;
+  }
+
+  /**
+   * Checks that a session is open
+   * @param session The session ID
+   * @throws IllegalArgumentException If the session is not open
+   */
+  protected void checkOpen(int session)
+  {
+    if (session < 0 || !m_open.get(session))
+    {
+      throw new IllegalArgumentException("Session " + session + " is not open");
+    }
+  }
+
+  /**
+   * The state of a session whose counts no longer fit in a <tt>long</tt>
+   */
+  protected static class SessionState
+  {
+    /**
+     * The mapping &sigma; of the session
+     */
+    /*@ non_null @*/ protected CountVector m_sigma;
+
+    /**
+     * The verdicts of the last step of the session
+     */
+    /*@ non_null @*/ protected VerdictCount m_verdicts;
+
+    /**
+     * Creates a new session state
+     * @param sigma The mapping &sigma; of the session
+     * @param verdicts The verdicts of the last step of the session
+     */
+    public SessionState(/*@ non_null @*/ CountVector sigma, /*@ non_null @*/ VerdictCount verdicts)
+    {
+      super();
+      m_sigma = sigma;
+      m_verdicts = verdicts;
+    }
+  }
+}
@@ -0,0 +1,545 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import ca.uqac.lif.cep.propman.MultiMonitor.VerdictCount;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Evaluates a multi-monitor on a recorded trace using several threads.
+ * Since each step of a {@link MultiMonitor} is a linear map (see
+ * {@link TransferMatrix}), the effect of a sequence of multi-events is
+ * the product of their matrices, and these products can be grouped in any
+ * order. The evaluator therefore splits the trace into chunks of
+ * consecutive multi-events and proceeds as a parallel prefix scan:
+ * <ol>
+ * <li>the matrix of each chunk is computed in parallel, and these
+ * matrices are multiplied pairwise, in parallel, up a balanced tree of
+ * ranges of chunks;</li>
+ * <li>the mapping &sigma; at the start of each range is then passed down
+ * the tree: the right half of a range starts from the mapping at the
+ * start of the range multiplied by the matrix of the left half.</li>
+ * </ol>
+ * The result is the mapping &sigma; and the verdicts at the end of each
+ * chunk, starting from the initial state of the uni-monitor.
+ * <p>
+ * Within a chunk, only the mapping &sigma; is carried from one
+ * multi-event to the next, through the sparse transfer matrix of each
+ * event. The dense matrix of a chunk is only computed when a range to its
+ * right needs it, one row per state of the uni-monitor: the scan thus
+ * does about as many sparse products as the uni-monitor has states for
+ * each multi-event, where a sequential pass does one. When the
+ * uni-monitor has more states than a {@link #setMaxScanStates(int) given
+ * number}, which by default is the parallelism of the pool, the scan
+ * cannot be faster than a sequential pass. The transfer matrices of the
+ * chunks, which classify every multi-event, are then still computed in
+ * parallel, a bounded number of chunks ahead, but &sigma; is carried from
+ * one chunk to the next by the calling thread. The evaluator uses no
+ * processor and does not modify any multi-monitor.
+ */
+public class OfflineEvaluator
+{
+  /**
+   * The default number of multi-events in a chunk
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+  /**
+   * The uni-monitor
+   */
+  /*@ non_null @*/ protected final PropositionalMachine m_monitor;
+
+  /**
+   * The compiled transition relation of the uni-monitor
+   */
+  /*@ non_null @*/ protected final CompiledMachine m_machine;
+
+  /**
+   * The pool running the tasks of the evaluator
+   */
+  /*@ non_null @*/ protected final ForkJoinPool m_pool;
+
+  /**
+   * The number of multi-events in a chunk
+   */
+  protected int m_chunkSize = DEFAULT_CHUNK_SIZE;
+
+  /**
+   * The maximum number of states of the uni-monitor for the trace to be
+   * evaluated by a parallel scan
+   */
+  protected int m_maxScanStates;
+
+  /**
+   * Creates a new evaluator
+   * @param monitor The uni-monitor; its transition relation is compiled
+   * at this moment
+   * @param pool The pool running the tasks of the evaluator
+   */
+  public OfflineEvaluator(/*@ non_null @*/ PropositionalMachine monitor, /*@ non_null @*/ ForkJoinPool pool)
+  {
+    super();
+    m_monitor = monitor;
+    m_machine = CompiledMachine.compile(monitor);
+    m_pool = pool;
+    m_maxScanStates = pool.getParallelism();
+  }
+
+  /**
+   * Sets the number of multi-events in a chunk. Verdicts are only
+   * produced at the end of each chunk.
+   * @param size The number of multi-events
+   * @return This evaluator
+   */
+  public OfflineEvaluator setChunkSize(int size)
+  {
+    m_chunkSize = Math.max(1, size);
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of states of the uni-monitor for the trace to
+   * be evaluated by a parallel scan; above it, the chunks are evaluated
+   * one after the other
+   * @param states The number of states
+   * @return This evaluator
+   */
+  public OfflineEvaluator setMaxScanStates(int states)
+  {
+    m_maxScanStates = states;
+    return this;
+  }
+
+  /**
+   * Evaluates the multi-monitor on a trace, starting from the initial
+   * state of the uni-monitor
+   * @param trace The trace
+   * @return The checkpoints at the end of each chunk, in the order of the
+   * trace
+   */
+  /*@ non_null @*/ public List<Checkpoint> evaluate(/*@ non_null @*/ List<MultiEvent> trace)
+  {
+    if (trace.isEmpty())
+    {
+      return new ArrayList<Checkpoint>(0);
+    }
+    int chunks = (trace.size() + m_chunkSize - 1) / m_chunkSize;
+    CountVector sigma = new CountVector(m_machine.getStateCount());
+    sigma.set(m_machine.getInitialState(), 1);
+    Checkpoint[] checkpoints = new Checkpoint[chunks];
+    if (m_machine.getStateCount() > m_maxScanStates)
+    {
+      // At most this many chunks hold their matrices at the same time
+      int ahead = 2 * m_pool.getParallelism();
+      MatrixTask[] tasks = new MatrixTask[chunks];
+      for (int c = 0; c < Math.min(ahead, chunks); c++)
+      {
+        tasks[c] = new MatrixTask(trace, c);
+        m_pool.execute(tasks[c]);
+      }
+      for (int c = 0; c < chunks; c++)
+      {
+        if (c + ahead < chunks)
+        {
+          tasks[c + ahead] = new MatrixTask(trace, c + ahead);
+          m_pool.execute(tasks[c + ahead]);
+        }
+        Node node = tasks[c].join();
+        tasks[c] = null;
+        checkpoints[c] = advance(node, sigma);
+        sigma = checkpoints[c].m_sigma;
+      }
+      return Arrays.asList(checkpoints);
+    }
+    Node root = m_pool.invoke(new UpsweepTask(trace, 0, chunks, false));
+    m_pool.invoke(new DownsweepTask(root, sigma, checkpoints));
+    return Arrays.asList(checkpoints);
+  }
+
+  /**
+   * Creates the multi-monitor used to compute the transfer matrices of a
+   * chunk, with a cache for the multi-events that occur more than once
+   * @return The multi-monitor
+   */
+  /*@ non_null @*/ protected MultiMonitor newBuilder()
+  {
+    return new MultiMonitor(m_monitor, m_machine).setTransferMatrixCache(StepCache.DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Computes the transfer matrices of the multi-events of a chunk
+   * @param mm The multi-monitor computing the matrices
+   * @param trace The trace
+   * @param chunk The index of the chunk
+   * @param node The node of the chunk, whose matrices and position are
+   * set
+   */
+  protected void getMatrices(/*@ non_null @*/ MultiMonitor mm, /*@ non_null @*/ List<MultiEvent> trace, int chunk, /*@ non_null @*/ Node node)
+  {
+    int start = chunk * m_chunkSize;
+    int end = Math.min(trace.size(), start + m_chunkSize);
+    node.m_matrices = new TransferMatrix[end - start];
+    for (int i = start; i < end; i++)
+    {
+      node.m_matrices[i - start] = mm.getTransferMatrix(trace.get(i));
+    }
+    node.m_position = end;
+  }
+
+  /**
+   * Applies the transfer matrices of a chunk to a mapping &sigma;
+   * @param node The node of the chunk
+   * @param sigma The mapping &sigma; at the start of the chunk; it is not
+   * modified
+   * @return The checkpoint at the end of the chunk
+   */
+  /*@ non_null @*/ protected static Checkpoint advance(/*@ non_null @*/ Node node, /*@ non_null @*/ CountVector sigma)
+  {
+    int size = sigma.size();
+    CountVector current = new CountVector(sigma);
+    CountVector next = new CountVector(size);
+    VerdictCount beta = new VerdictCount();
+    long[] verdicts = new long[3];
+    for (TransferMatrix m : node.m_matrices)
+    {
+      // Only the verdicts of the last multi-event are kept
+      beta.clear();
+      m.multiply(current, next, beta, verdicts);
+      CountVector swap = current;
+      current = next;
+      next = swap;
+      next.clear();
+    }
+    return new Checkpoint(node.m_position, current, beta);
+  }
+
+  /**
+   * The state of a multi-monitor at some position of a trace
+   */
+  public static class Checkpoint
+  {
+    /**
+     * The number of multi-events read so far
+     */
+    protected final int m_position;
+
+    /**
+     * The mapping &sigma; after the last multi-event read
+     */
+    /*@ non_null @*/ protected final CountVector m_sigma;
+
+    /**
+     * The verdicts produced by the last multi-event read
+     */
+    /*@ non_null @*/ protected final VerdictCount m_verdicts;
+
+    /**
+     * Creates a new checkpoint
+     * @param position The number of multi-events read so far
+     * @param sigma The mapping &sigma; after the last multi-event read
+     * @param verdicts The verdicts produced by the last multi-event read
+     */
+    public Checkpoint(int position, /*@ non_null @*/ CountVector sigma, /*@ non_null @*/ VerdictCount verdicts)
+    {
+      super();
+      m_position = position;
+      m_sigma = sigma;
+      m_verdicts = verdicts;
+    }
+
+    /**
+     * Gets the number of multi-events read so far
+     * @return The number of multi-events
+     */
+    public int getPosition()
+    {
+      return m_position;
+    }
+
+    /**
+     * Gets the mapping &sigma; after the last multi-event read, indexed by
+     * the state IDs of the compiled uni-monitor
+     * @return The mapping
+     */
+    /*@ non_null @*/ public CountVector getSigma()
+    {
+      return m_sigma;
+    }
+
+    /**
+     * Gets the verdicts produced by the last multi-event read
+     * @return The verdicts
+     */
+    /*@ non_null @*/ public VerdictCount getVerdicts()
+    {
+      return m_verdicts;
+    }
+
+    @Override
+    public String toString()
+    {
+      return m_position + ":" + m_verdicts;
+    }
+  }
+
+  /**
+   * A node of the tree of ranges of chunks built by the scan
+   */
+  protected static class Node
+  {
+    /**
+     * The index of the first chunk of the range (inclusive)
+     */
+    protected int m_from;
+
+    /**
+     * The index of the last chunk of the range (exclusive)
+     */
+    protected int m_to;
+
+    /**
+     * The node of the left half of the range; <tt>null</tt> for a single
+     * chunk
+     */
+    /*@ null @*/ protected Node m_left;
+
+    /**
+     * The node of the right half of the range; <tt>null</tt> for a single
+     * chunk
+     */
+    /*@ null @*/ protected Node m_right;
+
+    /**
+     * The product of the matrices of the range; <tt>null</tt> if no
+     * range to the right of this one needs it
+     */
+    /*@ null @*/ protected CountMatrix m_product;
+
+    /**
+     * For a single chunk, the transfer matrix of each of its multi-events
+     */
+    /*@ null @*/ protected TransferMatrix[] m_matrices;
+
+    /**
+     * For a single chunk, the position in the trace after its last
+     * multi-event
+     */
+    protected int m_position;
+  }
+
+  /**
+   * Computes the matrices of a range of chunks
+   */
+  protected class UpsweepTask extends RecursiveTask<Node>
+  {
+    /**
+     * Dummy UID
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The trace
+     */
+    /*@ non_null @*/ protected final List<MultiEvent> m_trace;
+
+    /**
+     * The index of the first chunk of the range (inclusive)
+     */
+    protected final int m_from;
+
+    /**
+     * The index of the last chunk of the range (exclusive)
+     */
+    protected final int m_to;
+
+    /**
+     * Whether the product of the matrices of the range is needed
+     */
+    protected final boolean m_needProduct;
+
+    /**
+     * Creates a new task
+     * @param trace The trace
+     * @param from The index of the first chunk of the range (inclusive)
+     * @param to The index of the last chunk of the range (exclusive)
+     * @param need_product Whether the product of the matrices of the range
+     * is needed
+     */
+    public UpsweepTask(/*@ non_null @*/ List<MultiEvent> trace, int from, int to, boolean need_product)
+    {
+      super();
+      m_trace = trace;
+      m_from = from;
+      m_to = to;
+      m_needProduct = need_product;
+    }
+
+    @Override
+    protected Node compute()
+    {
+      Node node = new Node();
+      node.m_from = m_from;
+      node.m_to = m_to;
+      if (m_to - m_from == 1)
+      {
+        computeChunk(node);
+        return node;
+      }
+      int middle = (m_from + m_to) >>> 1;
+      // The left half always passes its product to the right half
+      UpsweepTask left = new UpsweepTask(m_trace, m_from, middle, true);
+      UpsweepTask right = new UpsweepTask(m_trace, middle, m_to, m_needProduct);
+      invokeAll(left, right);
+      node.m_left = left.getRawResult();
+      node.m_right = right.getRawResult();
+      if (m_needProduct)
+      {
+        node.m_product = node.m_left.m_product.then(node.m_right.m_product);
+      }
+      return node;
+    }
+
+    /**
+     * Computes the matrices of a single chunk
+     * @param node The node of the chunk
+     */
+    protected void computeChunk(Node node)
+    {
+      // A multi-monitor of its own computes the matrices of the chunk
+      getMatrices(newBuilder(), m_trace, m_from, node);
+      if (!m_needProduct)
+      {
+        return;
+      }
+      // Each row of the product is the effect of the chunk on the
+      // uni-traces of one state, obtained with sparse products only
+      int size = m_machine.getStateCount();
+      CountMatrix product = new CountMatrix(size);
+      CountVector unit = new CountVector(size);
+      for (int s = 0; s < size; s++)
+      {
+        unit.set(s, 1);
+        product.m_rows[s] = advance(node, unit).m_sigma;
+        unit.set(s, 0);
+      }
+      node.m_product = product;
+    }
+  }
+
+  /**
+   * Computes the transfer matrices of a single chunk
+   */
+  protected class MatrixTask extends RecursiveTask<Node>
+  {
+    /**
+     * Dummy UID
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The trace
+     */
+    /*@ non_null @*/ protected final List<MultiEvent> m_trace;
+
+    /**
+     * The index of the chunk
+     */
+    protected final int m_chunk;
+
+    /**
+     * Creates a new task
+     * @param trace The trace
+     * @param chunk The index of the chunk
+     */
+    public MatrixTask(/*@ non_null @*/ List<MultiEvent> trace, int chunk)
+    {
+      super();
+      m_trace = trace;
+      m_chunk = chunk;
+    }
+
+    @Override
+    protected Node compute()
+    {
+      Node node = new Node();
+      node.m_from = m_chunk;
+      node.m_to = m_chunk + 1;
+      getMatrices(newBuilder(), m_trace, m_chunk, node);
+      return node;
+    }
+  }
+
+  /**
+   * Computes the checkpoints of a range of chunks, given the mapping
+   * &sigma; at the start of the range
+   */
+  protected class DownsweepTask extends RecursiveAction
+  {
+    /**
+     * Dummy UID
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The node of the range
+     */
+    /*@ non_null @*/ protected final Node m_node;
+
+    /**
+     * The mapping &sigma; at the start of the range
+     */
+    /*@ non_null @*/ protected final CountVector m_sigma;
+
+    /**
+     * The array where the checkpoints are written, indexed by chunk
+     */
+    /*@ non_null @*/ protected final Checkpoint[] m_checkpoints;
+
+    /**
+     * Creates a new task
+     * @param node The node of the range
+     * @param sigma The mapping &sigma; at the start of the range
+     * @param checkpoints The array where the checkpoints are written
+     */
+    public DownsweepTask(/*@ non_null @*/ Node node, /*@ non_null @*/ CountVector sigma, /*@ non_null @*/ Checkpoint[] checkpoints)
+    {
+      super();
+      m_node = node;
+      m_sigma = sigma;
+      m_checkpoints = checkpoints;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if (m_node.m_left == null)
+      {
+        m_checkpoints[m_node.m_from] = advance(m_node, m_sigma);
+        return;
+      }
+      CountVector middle = new CountVector(m_sigma.size());
+      m_node.m_left.m_product.apply(m_sigma, middle);
+      invokeAll(new DownsweepTask(m_node.m_left, m_sigma, m_checkpoints), new DownsweepTask(m_node.m_right, middle, m_checkpoints));
+    }
+  }
+}
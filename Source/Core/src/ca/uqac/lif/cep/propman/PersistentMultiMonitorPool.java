@@ -0,0 +1,1025 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import ca.uqac.lif.cep.ltl.Troolean;
+import ca.uqac.lif.cep.propman.MultiMonitor.VerdictCount;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link MultiMonitorPool} whose sessions survive a restart of the
+ * process. The state of the pool is kept in a directory containing two
+ * files:
+ * <ul>
+ * <li>an <em>image</em>, mapped in memory, holding the slot of each
+ * session as of the last checkpoint;</li>
+ * <li>a write-ahead <em>log</em> of the operations on the pool (opening,
+ * closing and resetting sessions, and the multi-events they read) since
+ * the last checkpoint.</li>
+ * </ul>
+ * Every operation is appended to the log before it is applied. A
+ * checkpoint writes to the image the slots of the sessions modified since
+ * the previous one, forces the image to disk, and atomically replaces the
+ * log by an empty one; checkpoints are taken every
+ * {@link #setCheckpointInterval(int) given number} of operations, or when
+ * {@link #checkpoint()} is called. When a pool is created on a directory
+ * that already contains these files, it reads the image and replays the
+ * log, which only contains the operations since the last checkpoint.
+ * <p>
+ * Each session has two copies of its slot in the image, each with the
+ * number of the checkpoint that wrote it and a checksum; a checkpoint
+ * overwrites the copy that is not the current one. A crash while a
+ * checkpoint is written therefore leaves the previous copy of each slot
+ * intact, and the copies of a checkpoint are only used once the log
+ * carrying its number has replaced the old one. Before writing any copy, a
+ * checkpoint forces the log to disk, so that the operations that produced
+ * the copies are replayed after such a crash; it also records its number
+ * in the header of the image, so that the number of a checkpoint that did
+ * not complete is never given to another one. The log records are also
+ * checksummed, so that a record partially written before a crash ends the
+ * replay. Records are buffered: those written since the last call to
+ * {@link #sync()} or {@link #checkpoint()} may be lost if the machine
+ * fails, and the source of the events should be able to send them again.
+ * <p>
+ * Sessions whose counts no longer fit in a <tt>long</tt> are written at
+ * the start of each new log. Only concrete multi-events, as well as
+ * {@link SymbolicMultiEvent#ALL} and {@link SymbolicMultiEvent#NOTHING},
+ * can be written to the log. The files use a fixed byte order and can be
+ * moved from one machine to another.
+ */
+public class PersistentMultiMonitorPool extends MultiMonitorPool
+{
+  /**
+   * The default number of operations between two checkpoints
+   */
+  public static final int DEFAULT_CHECKPOINT_INTERVAL = 100000;
+
+  /**
+   * The name of the image file
+   */
+  public static final String IMAGE_FILE = "sessions.img";
+
+  /**
+   * The name of the log file
+   */
+  public static final String LOG_FILE = "sessions.log";
+
+  /**
+   * The number present at the start of the image
+   */
+  protected static final long IMAGE_MAGIC = 0x50524f504d4f4e31L;
+
+  /**
+   * The number present at the start of the log
+   */
+  protected static final int LOG_MAGIC = 0x504d4c47;
+
+  /**
+   * The size of the header of the image, in bytes
+   */
+  protected static final int HEADER_BYTES = 64;
+
+  /**
+   * The approximate size of the regions of the image mapped at once, in
+   * bytes
+   */
+  protected static final int CHUNK_BYTES = 1 << 22;
+
+  /**
+   * The status of a slot whose session is closed
+   */
+  protected static final long STATUS_CLOSED = 1;
+
+  /**
+   * The status of a slot whose session is open and whose counts are in
+   * the slot
+   */
+  protected static final long STATUS_OPEN = 2;
+
+  /**
+   * The status of a slot whose session is open and whose counts are in the
+   * log
+   */
+  protected static final long STATUS_OVERFLOWED = 3;
+
+  /**
+   * The type of the log record of {@link #open()}
+   */
+  protected static final byte RECORD_OPEN = 1;
+
+  /**
+   * The type of the log record of {@link #close(int)}
+   */
+  protected static final byte RECORD_CLOSE = 2;
+
+  /**
+   * The type of the log record of {@link #reset(int)}
+   */
+  protected static final byte RECORD_RESET = 3;
+
+  /**
+   * The type of the log record of {@link #step(int, MultiEvent)}
+   */
+  protected static final byte RECORD_STEP = 4;
+
+  /**
+   * The type of the log record of the state of an overflowed session
+   */
+  protected static final byte RECORD_STATE = 5;
+
+  /**
+   * The code of a concrete multi-event in the log
+   */
+  protected static final byte EVENT_CONCRETE = 1;
+
+  /**
+   * The code of {@link SymbolicMultiEvent#ALL} in the log
+   */
+  protected static final byte EVENT_ALL = 2;
+
+  /**
+   * The code of {@link SymbolicMultiEvent#NOTHING} in the log
+   */
+  protected static final byte EVENT_NOTHING = 3;
+
+  /**
+   * The directory containing the files of the pool
+   */
+  /*@ non_null @*/ protected final File m_directory;
+
+  /**
+   * The image file
+   */
+  /*@ non_null @*/ protected final RandomAccessFile m_imageFile;
+
+  /**
+   * The channel of the image file
+   */
+  /*@ non_null @*/ protected final FileChannel m_image;
+
+  /**
+   * The number of <tt>long</tt>s in a copy of a slot: the number of the
+   * checkpoint, the status, the slot and the checksum
+   */
+  protected final int m_copyWidth;
+
+  /**
+   * The number of sessions in each mapped region of the image
+   */
+  protected int m_chunkSessions;
+
+  /**
+   * The header of the image, mapped in memory
+   */
+  /*@ null @*/ protected MappedByteBuffer m_header = null;
+
+  /**
+   * The mapped regions of the image
+   */
+  /*@ non_null @*/ protected MappedByteBuffer[] m_chunks = new MappedByteBuffer[0];
+
+  /**
+   * The mapped regions of the image, seen as <tt>long</tt>s
+   */
+  /*@ non_null @*/ protected LongBuffer[] m_chunkValues = new LongBuffer[0];
+
+  /**
+   * The stream of the log file
+   */
+  /*@ null @*/ protected FileOutputStream m_logFile = null;
+
+  /**
+   * The log, written through a buffer
+   */
+  /*@ null @*/ protected DataOutputStream m_log = null;
+
+  /**
+   * The buffer in which a log record is built
+   */
+  /*@ non_null @*/ protected final ByteArrayOutputStream m_recordBytes = new ByteArrayOutputStream();
+
+  /**
+   * The stream writing to {@link #m_recordBytes}
+   */
+  /*@ non_null @*/ protected final DataOutputStream m_record = new DataOutputStream(m_recordBytes);
+
+  /**
+   * The number of the last checkpoint
+   */
+  protected long m_checkpoint = 0;
+
+  /**
+   * The sessions modified since the last checkpoint
+   */
+  /*@ non_null @*/ protected final BitSet m_dirty = new BitSet();
+
+  /**
+   * The sessions whose current copy in the image is the second one
+   */
+  /*@ non_null @*/ protected final BitSet m_current = new BitSet();
+
+  /**
+   * Whether operations are written to the log; they are not while the log
+   * is replayed
+   */
+  protected boolean m_logging = false;
+
+  /**
+   * The number of operations written to the log since the last checkpoint
+   */
+  protected int m_recordCount = 0;
+
+  /**
+   * The number of operations between two checkpoints
+   */
+  protected int m_checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+  /**
+   * Creates a pool kept in a directory, and restores the sessions it
+   * contains, if any
+   * @param monitor The uni-monitor; its transition relation is compiled at
+   * this moment
+   * @param directory The directory, which is created if it does not exist
+   * @throws IOException If the files of the pool cannot be read or
+   * written, or were created for a uni-monitor with another number of
+   * states
+   */
+  public PersistentMultiMonitorPool(/*@ non_null @*/ PropositionalMachine monitor, /*@ non_null @*/ File directory) throws IOException
+  {
+    this(monitor, CompiledMachine.compile(monitor), directory, false);
+  }
+
+  /**
+   * Creates a pool kept in a directory, and restores the sessions it
+   * contains, if any
+   * @param monitor The uni-monitor
+   * @param machine The compiled transition relation of the uni-monitor
+   * @param directory The directory, which is created if it does not exist
+   * @param off_heap Set to <tt>true</tt> to keep the sessions in memory
+   * in a {@link SlotStore.Direct direct store}, <tt>false</tt> to keep
+   * them in an array on the heap
+   * @throws IOException If the files of the pool cannot be read or
+   * written, or were created for a uni-monitor with another number of
+   * states
+   */
+  public PersistentMultiMonitorPool(/*@ non_null @*/ PropositionalMachine monitor, /*@ non_null @*/ CompiledMachine machine, /*@ non_null @*/ File directory, boolean off_heap) throws IOException
+  {
+    super(monitor, machine, off_heap);
+    m_directory = directory;
+    m_copyWidth = m_stateCount + 6;
+    if (!directory.isDirectory() && !directory.mkdirs())
+    {
+      throw new IOException("Cannot create " + directory);
+    }
+    m_imageFile = new RandomAccessFile(new File(directory, IMAGE_FILE), "rw");
+    m_image = m_imageFile.getChannel();
+    recover();
+  }
+
+  /**
+   * Sets the number of operations between two checkpoints
+   * @param interval The number of operations
+   * @return This pool
+   */
+  public PersistentMultiMonitorPool setCheckpointInterval(int interval)
+  {
+    m_checkpointInterval = Math.max(1, interval);
+    return this;
+  }
+
+  /**
+   * Gets the number of the last checkpoint
+   * @return The number
+   */
+  public long getCheckpoint()
+  {
+    return m_checkpoint;
+  }
+
+  @Override
+  public int open()
+  {
+    // The reset done by the pool is part of the operation
+    boolean logging = m_logging;
+    m_logging = false;
+    int session;
+    try
+    {
+      session = super.open();
+    }
+    finally
+    {
+      m_logging = logging;
+    }
+    log(RECORD_OPEN, session, null);
+    checkInterval();
+    return session;
+  }
+
+  @Override
+  public void close(int session)
+  {
+    super.close(session);
+    log(RECORD_CLOSE, session, null);
+    checkInterval();
+  }
+
+  @Override
+  public void reset(int session)
+  {
+    super.reset(session);
+    log(RECORD_RESET, session, null);
+    checkInterval();
+  }
+
+  @Override
+  public boolean step(int session, /*@ non_null @*/ MultiEvent e)
+  {
+    checkOpen(session);
+    log(RECORD_STEP, session, e);
+    boolean moved = super.step(session, e);
+    checkInterval();
+    return moved;
+  }
+
+  /**
+   * Writes the buffered log records to disk
+   * @throws IOException If the log cannot be written
+   */
+  public void sync() throws IOException
+  {
+    m_log.flush();
+    m_logFile.getFD().sync();
+  }
+
+  /**
+   * Writes the slots of the sessions modified since the last checkpoint to
+   * the image, and replaces the log by an empty one
+   * @throws IOException If the files cannot be written
+   */
+  public void checkpoint() throws IOException
+  {
+    installLog(writeCopies());
+  }
+
+  /**
+   * Performs the first half of a checkpoint: writes the slots of the
+   * sessions modified since the last checkpoint to the image, without
+   * replacing the log
+   * @return The number of the checkpoint
+   * @throws IOException If the files cannot be written
+   */
+  protected long writeCopies() throws IOException
+  {
+    // The operations that led to the copies must survive if the
+    // checkpoint does not complete
+    if (m_log != null)
+    {
+      sync();
+    }
+    long number = Math.max(m_checkpoint, m_header.getLong(24)) + 1;
+    m_header.putLong(24, number);
+    m_header.force();
+    mapChunks((m_slotCount + m_chunkSessions - 1) / m_chunkSessions);
+    for (int s = m_dirty.nextSetBit(0); s >= 0; s = m_dirty.nextSetBit(s + 1))
+    {
+      writeCopy(s, m_current.get(s) ? 0 : 1, number);
+    }
+    for (MappedByteBuffer chunk : m_chunks)
+    {
+      chunk.force();
+    }
+    return number;
+  }
+
+  /**
+   * Performs the second half of a checkpoint: replaces the log by an empty
+   * one carrying the number of the checkpoint
+   * @param number The number of the checkpoint
+   * @throws IOException If the files cannot be written
+   */
+  protected void installLog(long number) throws IOException
+  {
+    // The new log only takes effect once it has replaced the old one
+    File log = new File(m_directory, LOG_FILE);
+    File tmp = new File(m_directory, LOG_FILE + ".tmp");
+    FileOutputStream tmp_file = new FileOutputStream(tmp);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tmp_file));
+    out.writeInt(LOG_MAGIC);
+    out.writeLong(number);
+    for (Map.Entry<Integer,SessionState> entry : m_overflowed.entrySet())
+    {
+      writeRecord(out, RECORD_STATE, entry.getKey(), entry.getValue());
+    }
+    out.flush();
+    tmp_file.getFD().sync();
+    out.close();
+    if (m_log != null)
+    {
+      m_log.close();
+    }
+    Files.move(tmp.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    // The rename itself is only durable once the directory is synced
+    FileChannel dir = FileChannel.open(m_directory.toPath(), StandardOpenOption.READ);
+    try
+    {
+      dir.force(true);
+    }
+    finally
+    {
+      dir.close();
+    }
+    for (int s = m_dirty.nextSetBit(0); s >= 0; s = m_dirty.nextSetBit(s + 1))
+    {
+      m_current.flip(s);
+    }
+    m_dirty.clear();
+    m_checkpoint = number;
+    m_recordCount = 0;
+    m_logFile = new FileOutputStream(log, true);
+    m_log = new DataOutputStream(new BufferedOutputStream(m_logFile));
+  }
+
+  /**
+   * Takes a checkpoint and releases the files of the pool. The pool can no
+   * longer be used afterwards.
+   * @throws IOException If the files cannot be written
+   */
+  public void shutdown() throws IOException
+  {
+    checkpoint();
+    m_log.close();
+    m_image.close();
+    m_imageFile.close();
+  }
+
+  /**
+   * Releases the files of the pool without taking a checkpoint or writing
+   * the buffered log records, as if the process had stopped. The pool can
+   * no longer be used afterwards; only the operations written by the last
+   * call to {@link #sync()} survive.
+   * @throws IOException If the files cannot be closed
+   */
+  protected void abandon() throws IOException
+  {
+    m_logFile.close();
+    m_image.close();
+    m_imageFile.close();
+  }
+
+  /**
+   * Restores the sessions saved in the directory, and takes a checkpoint
+   * @throws IOException If the files cannot be read or written
+   */
+  protected void recover() throws IOException
+  {
+    MappedByteBuffer header = m_image.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+    m_header = header;
+    if (header.getLong(0) == 0)
+    {
+      m_chunkSessions = Math.max(1, CHUNK_BYTES / (16 * m_copyWidth));
+      header.putLong(0, IMAGE_MAGIC);
+      header.putLong(8, m_stateCount);
+      header.putLong(16, m_chunkSessions);
+      // The number of the last checkpoint started
+      header.putLong(24, 0);
+      header.force();
+    }
+    else if (header.getLong(0) != IMAGE_MAGIC || header.getLong(8) != m_stateCount)
+    {
+      throw new IOException("The image was not created for this monitor");
+    }
+    m_chunkSessions = (int) header.getLong(16);
+    List<byte[]> records = new ArrayList<byte[]>();
+    File log = new File(m_directory, LOG_FILE);
+    if (log.exists())
+    {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)));
+      try
+      {
+        if (in.readInt() != LOG_MAGIC)
+        {
+          throw new IOException("Malformed log");
+        }
+        m_checkpoint = in.readLong();
+        readRecords(in, records);
+      }
+      finally
+      {
+        in.close();
+      }
+    }
+    long chunk_bytes = 16L * m_copyWidth * m_chunkSessions;
+    mapChunks((int) ((m_image.size() - HEADER_BYTES) / chunk_bytes));
+    if (!log.exists() && hasCopies())
+    {
+      // Without the log, the checkpoint of the image cannot be trusted
+      throw new IOException("The image holds sessions but the log is missing");
+    }
+    long[] values = new long[m_stateCount + 3];
+    for (int s = 0; s < m_chunks.length * m_chunkSessions; s++)
+    {
+      LongBuffer b = m_chunkValues[s / m_chunkSessions];
+      for (int c = 0; c < 2; c++)
+      {
+        // A copy written by a checkpoint that did not complete is discarded
+        if (b.get(getCopyOffset(s, c)) > m_checkpoint)
+        {
+          b.put(getCopyOffset(s, c), 0);
+        }
+      }
+      int copy = getValidCopy(s);
+      if (copy < 0)
+      {
+        continue;
+      }
+      m_current.set(s, copy == 1);
+      int base = getCopyOffset(s, copy);
+      long status = b.get(base + 1);
+      if (status == STATUS_CLOSED)
+      {
+        continue;
+      }
+      claim(s);
+      if (status == STATUS_OPEN)
+      {
+        for (int i = 0; i < values.length; i++)
+        {
+          values[i] = b.get(base + 2 + i);
+        }
+        m_slots.put(s, 0, values);
+      }
+    }
+    // Only the sessions modified by the log are written again
+    m_dirty.clear();
+    for (byte[] record : records)
+    {
+      replay(record);
+    }
+    m_logging = true;
+    checkpoint();
+  }
+
+  /**
+   * Reads the records of the log, until its end or the first record that
+   * was not completely written
+   * @param in The stream to read from
+   * @param records The list to which the contents of the records are added
+   * @throws IOException If the log cannot be read
+   */
+  protected static void readRecords(/*@ non_null @*/ DataInputStream in, /*@ non_null @*/ List<byte[]> records) throws IOException
+  {
+    CRC32 crc = new CRC32();
+    try
+    {
+      while (true)
+      {
+        int length = in.readInt();
+        if (length <= 0)
+        {
+          return;
+        }
+        byte[] record = new byte[length];
+        in.readFully(record);
+        long checksum = in.readLong();
+        crc.reset();
+        crc.update(record);
+        if (crc.getValue() != checksum)
+        {
+          return;
+        }
+        records.add(record);
+      }
+    }
+    catch (EOFException e)
+    {
+      // End of the log
+    }
+  }
+
+  /**
+   * Applies an operation read from the log
+   * @param record The contents of the log record
+   * @throws IOException If the record is malformed
+   */
+  protected void replay(/*@ non_null @*/ byte[] record) throws IOException
+  {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    byte type = in.readByte();
+    int session = in.readInt();
+    switch (type)
+    {
+    case RECORD_OPEN:
+      claim(session);
+      break;
+    case RECORD_CLOSE:
+      close(session);
+      break;
+    case RECORD_RESET:
+      reset(session);
+      break;
+    case RECORD_STEP:
+      step(session, readEvent(in));
+      break;
+    case RECORD_STATE:
+      CountVector sigma = new CountVector(m_stateCount);
+      for (int s = 0; s < m_stateCount; s++)
+      {
+        sigma.add(s, readBigInteger(in));
+      }
+      VerdictCount verdicts = new VerdictCount();
+      verdicts.m_numTrue.set(readBigInteger(in));
+      verdicts.m_numFalse.set(readBigInteger(in));
+      verdicts.m_numInconclusive.set(readBigInteger(in));
+      m_overflowed.put(session, new SessionState(sigma, verdicts));
+      break;
+    default:
+      throw new IOException("Malformed log record");
+    }
+  }
+
+  /**
+   * Writes an operation to the log, before it is applied. The session is
+   * also marked as modified.
+   * @param type The type of the operation
+   * @param session The session
+   * @param e The multi-event read by the session, if any
+   */
+  protected void log(byte type, int session, /*@ null @*/ MultiEvent e)
+  {
+    m_dirty.set(session);
+    if (!m_logging)
+    {
+      return;
+    }
+    try
+    {
+      writeRecord(m_log, type, session, e);
+      m_recordCount++;
+    }
+    catch (IOException ex)
+    {
+      throw new IllegalStateException("Cannot write the log", ex);
+    }
+  }
+
+  /**
+   * Takes a checkpoint if the interval between two checkpoints is reached.
+   * This is done once an operation has been applied, since the checkpoint
+   * discards its log record.
+   */
+  protected void checkInterval()
+  {
+    if (!m_logging || m_recordCount < m_checkpointInterval)
+    {
+      return;
+    }
+    try
+    {
+      checkpoint();
+    }
+    catch (IOException ex)
+    {
+      throw new IllegalStateException("Cannot write a checkpoint", ex);
+    }
+  }
+
+  /**
+   * Writes a record to a log
+   * @param out The stream to write to
+   * @param type The type of the record
+   * @param session The session
+   * @param contents The multi-event of a step, the state of an overflowed
+   * session, or <tt>null</tt>
+   * @throws IOException If the record cannot be written
+   */
+  protected void writeRecord(/*@ non_null @*/ DataOutputStream out, byte type, int session, /*@ null @*/ Object contents) throws IOException
+  {
+    m_recordBytes.reset();
+    m_record.writeByte(type);
+    m_record.writeInt(session);
+    if (contents instanceof MultiEvent)
+    {
+      writeEvent(m_record, (MultiEvent) contents);
+    }
+    else if (contents instanceof SessionState)
+    {
+      SessionState state = (SessionState) contents;
+      for (int s = 0; s < m_stateCount; s++)
+      {
+        writeBigInteger(m_record, state.m_sigma.get(s));
+      }
+      writeBigInteger(m_record, state.m_verdicts.get(Troolean.Value.TRUE));
+      writeBigInteger(m_record, state.m_verdicts.get(Troolean.Value.FALSE));
+      writeBigInteger(m_record, state.m_verdicts.get(Troolean.Value.INCONCLUSIVE));
+    }
+    m_record.flush();
+    CRC32 crc = new CRC32();
+    crc.update(m_recordBytes.toByteArray());
+    out.writeInt(m_recordBytes.size());
+    m_recordBytes.writeTo(out);
+    out.writeLong(crc.getValue());
+  }
+
+  /**
+   * Writes a multi-event. The variables are written by name, so that the
+   * event can be read by another process.
+   * @param out The stream to write to
+   * @param e The multi-event
+   * @throws IOException If the event cannot be written
+   * @throws IllegalArgumentException If the multi-event is symbolic
+   */
+  protected static void writeEvent(/*@ non_null @*/ DataOutputStream out, /*@ non_null @*/ MultiEvent e) throws IOException
+  {
+    if (e == SymbolicMultiEvent.ALL)
+    {
+      out.writeByte(EVENT_ALL);
+      return;
+    }
+    if (e == SymbolicMultiEvent.NOTHING)
+    {
+      out.writeByte(EVENT_NOTHING);
+      return;
+    }
+    if (!(e instanceof ConcreteMultiEvent))
+    {
+      throw new IllegalArgumentException("Only concrete multi-events can be written to the log");
+    }
+    Set<Valuation> valuations = e.getValuations();
+    Set<String> names = new HashSet<String>();
+    for (Valuation v : valuations)
+    {
+      names.addAll(v.keySet());
+    }
+    List<String> variables = new ArrayList<String>(names);
+    Collections.sort(variables);
+    out.writeByte(EVENT_CONCRETE);
+    out.writeInt(variables.size());
+    for (String name : variables)
+    {
+      out.writeUTF(name);
+    }
+    out.writeInt(valuations.size());
+    for (Valuation v : valuations)
+    {
+      for (String name : variables)
+      {
+        Troolean.Value b = v.get(name);
+        if (b == Troolean.Value.TRUE)
+        {
+          out.writeByte(1);
+        }
+        else if (b == Troolean.Value.FALSE)
+        {
+          out.writeByte(2);
+        }
+        else if (b == Troolean.Value.INCONCLUSIVE)
+        {
+          out.writeByte(3);
+        }
+        else
+        {
+          out.writeByte(0);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads a multi-event written by
+   * {@link #writeEvent(DataOutputStream, MultiEvent)}
+   * @param in The stream to read from
+   * @return The multi-event
+   * @throws IOException If the event cannot be read
+   */
+  /*@ non_null @*/ protected static MultiEvent readEvent(/*@ non_null @*/ DataInputStream in) throws IOException
+  {
+    byte code = in.readByte();
+    if (code == EVENT_ALL)
+    {
+      return SymbolicMultiEvent.ALL;
+    }
+    if (code == EVENT_NOTHING)
+    {
+      return SymbolicMultiEvent.NOTHING;
+    }
+    if (code != EVENT_CONCRETE)
+    {
+      throw new IOException("Malformed multi-event");
+    }
+    String[] variables = new String[in.readInt()];
+    for (int i = 0; i < variables.length; i++)
+    {
+      variables[i] = in.readUTF();
+    }
+    int[] indices = VariableRegistry.instance.getIndices(variables);
+    Troolean.Value[] values = {Troolean.Value.TRUE, Troolean.Value.FALSE, Troolean.Value.INCONCLUSIVE};
+    int num_valuations = in.readInt();
+    Set<Valuation> valuations = new HashSet<Valuation>();
+    for (int j = 0; j < num_valuations; j++)
+    {
+      Valuation v = new Valuation();
+      for (int i = 0; i < indices.length; i++)
+      {
+        byte b = in.readByte();
+        if (b < 0 || b > 3)
+        {
+          throw new IOException("Malformed multi-event");
+        }
+        if (b > 0)
+        {
+          v.put(indices[i], values[b - 1]);
+        }
+      }
+      valuations.add(v);
+    }
+    return new ConcreteMultiEvent(valuations);
+  }
+
+  /**
+   * Writes an arbitrary-precision number
+   * @param out The stream to write to
+   * @param x The number
+   * @throws IOException If the number cannot be written
+   */
+  protected static void writeBigInteger(/*@ non_null @*/ DataOutputStream out, /*@ non_null @*/ BigInteger x) throws IOException
+  {
+    byte[] bytes = x.toByteArray();
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads an arbitrary-precision number
+   * @param in The stream to read from
+   * @return The number
+   * @throws IOException If the number cannot be read
+   */
+  /*@ non_null @*/ protected static BigInteger readBigInteger(/*@ non_null @*/ DataInputStream in) throws IOException
+  {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new BigInteger(bytes);
+  }
+
+  /**
+   * Maps regions of the image so that a number of regions are mapped
+   * @param chunks The number of regions
+   * @throws IOException If the image cannot be extended
+   */
+  protected void mapChunks(int chunks) throws IOException
+  {
+    int old = m_chunks.length;
+    if (chunks <= old)
+    {
+      return;
+    }
+    long chunk_bytes = 16L * m_copyWidth * m_chunkSessions;
+    m_chunks = Arrays.copyOf(m_chunks, chunks);
+    m_chunkValues = Arrays.copyOf(m_chunkValues, chunks);
+    for (int c = old; c < chunks; c++)
+    {
+      // Mapping beyond the end of the file extends it with zeros
+      m_chunks[c] = m_image.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + c * chunk_bytes, chunk_bytes);
+      m_chunkValues[c] = m_chunks[c].asLongBuffer();
+    }
+  }
+
+  /**
+   * Gets the position of a copy of a slot in its mapped region
+   * @param session The session
+   * @param copy The copy (0 or 1)
+   * @return The position, counted in <tt>long</tt>s
+   */
+  protected int getCopyOffset(int session, int copy)
+  {
+    return ((session % m_chunkSessions) * 2 + copy) * m_copyWidth;
+  }
+
+  /**
+   * Writes a copy of the slot of a session in the image
+   * @param session The session
+   * @param copy The copy (0 or 1)
+   * @param number The number of the checkpoint
+   */
+  protected void writeCopy(int session, int copy, long number)
+  {
+    LongBuffer b = m_chunkValues[session / m_chunkSessions];
+    int base = getCopyOffset(session, copy);
+    long status = STATUS_CLOSED;
+    if (m_open.get(session))
+    {
+      status = m_overflowed.containsKey(session) ? STATUS_OVERFLOWED : STATUS_OPEN;
+    }
+    b.put(base, number);
+    b.put(base + 1, status);
+    for (int i = 0; i < m_stateCount + 3; i++)
+    {
+      b.put(base + 2 + i, status == STATUS_OPEN ? m_slots.get(session, i) : 0);
+    }
+    b.put(base + m_copyWidth - 1, getChecksum(b, base, m_copyWidth - 1));
+  }
+
+  /**
+   * Determines whether a copy of some session was ever written to the image
+   * @return <tt>true</tt> if a copy has a checkpoint number,
+   * <tt>false</tt> otherwise
+   */
+  protected boolean hasCopies()
+  {
+    for (int s = 0; s < m_chunks.length * m_chunkSessions; s++)
+    {
+      LongBuffer b = m_chunkValues[s / m_chunkSessions];
+      if (b.get(getCopyOffset(s, 0)) != 0 || b.get(getCopyOffset(s, 1)) != 0)
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets the copy of the slot of a session that holds its state as of the
+   * last checkpoint
+   * @param session The session
+   * @return The copy (0 or 1), or -1 if no copy was written by a
+   * checkpoint that has completed
+   */
+  protected int getValidCopy(int session)
+  {
+    LongBuffer b = m_chunkValues[session / m_chunkSessions];
+    int copy = -1;
+    long best = 0;
+    for (int c = 0; c < 2; c++)
+    {
+      int base = getCopyOffset(session, c);
+      long number = b.get(base);
+      if (number > best && number <= m_checkpoint && b.get(base + m_copyWidth - 1) == getChecksum(b, base, m_copyWidth - 1))
+      {
+        best = number;
+        copy = c;
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * Computes the checksum of consecutive <tt>long</tt>s
+   * @param b The buffer containing the numbers
+   * @param from The position of the first number
+   * @param length The number of numbers
+   * @return The checksum
+   */
+  protected static long getChecksum(/*@ non_null @*/ LongBuffer b, int from, int length)
+  {
+    long h = 0xcbf29ce484222325L;
+    for (int i = from; i < from + length; i++)
+    {
+      h = (h ^ b.get(i)) * 0x100000001b3L;
+      h ^= h >>> 29;
+    }
+    return h;
+  }
+}
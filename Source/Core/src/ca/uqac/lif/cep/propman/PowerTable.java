@@ -0,0 +1,160 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import ca.uqac.lif.cep.propman.MultiMonitor.VerdictCount;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The powers of the transfer matrix of a multi-event whose exponents are
+ * powers of 2, used to compute the effect of <i>k</i> consecutive copies
+ * of the multi-event with O(log <i>k</i>) matrix products instead of
+ * <i>k</i> steps. Powers are computed by repeated squaring the first time
+ * they are needed, and then kept, so that later runs of the same
+ * multi-event only cost products of a vector by a matrix.
+ * <p>
+ * Since the number of uni-traces can grow exponentially with the length
+ * of a run, the entries of high powers can be very large numbers; the
+ * table is meant for runs that are long compared to the number of states
+ * of the machine.
+ * <p>
+ * The powers are dense: each takes memory quadratic, and each squaring a
+ * time cubic, in the number <i>n</i> of states. A run of <i>k</i> copies
+ * is therefore only computed with powers when the machine has at most
+ * {@link #MAX_DENSE_STATES} states, and when the squarings still missing
+ * cost fewer operations than <i>k</i> products by the sparse transfer
+ * matrix; otherwise, the transfer matrix is applied <i>k</i> times.
+ */
+public class PowerTable
+{
+  /**
+   * The maximum number of states of the machine for powers of its
+   * transfer matrix to be computed
+   */
+  public static final int MAX_DENSE_STATES = 1024;
+
+  /**
+   * The transfer matrix
+   */
+  /*@ non_null @*/ protected final TransferMatrix m_matrix;
+
+  /**
+   * The matrices <i>M</i><sup>2<sup><i>j</i></sup></sup> computed so far,
+   * indexed by <i>j</i>
+   */
+  /*@ non_null @*/ protected final List<CountMatrix> m_powers;
+
+  /**
+   * Creates a new power table
+   * @param m The transfer matrix
+   */
+  public PowerTable(/*@ non_null @*/ TransferMatrix m)
+  {
+    super();
+    m_matrix = m;
+    m_powers = new ArrayList<CountMatrix>();
+  }
+
+  /**
+   * Gets the transfer matrix whose powers are computed
+   * @return The matrix
+   */
+  /*@ non_null @*/ public TransferMatrix getMatrix()
+  {
+    return m_matrix;
+  }
+
+  /**
+   * Gets the power of the matrix with exponent 2<sup><i>j</i></sup>,
+   * computing it if needed
+   * @param j The logarithm of the exponent
+   * @return The power
+   */
+  /*@ non_null @*/ public synchronized CountMatrix getPower(int j)
+  {
+    if (m_powers.isEmpty())
+    {
+      m_powers.add(CountMatrix.of(m_matrix));
+    }
+    while (m_powers.size() <= j)
+    {
+      CountMatrix last = m_powers.get(m_powers.size() - 1);
+      m_powers.add(last.then(last));
+    }
+    return m_powers.get(j);
+  }
+
+  /**
+   * Computes the mapping &sigma; obtained after reading <i>k</i> copies of
+   * the multi-event
+   * @param sigma The mapping &sigma; before the first copy
+   * @param k The number of copies
+   * @return A new vector containing the mapping after the last copy
+   */
+  /*@ non_null @*/ public CountVector apply(/*@ non_null @*/ CountVector sigma, long k)
+  {
+    CountVector x = new CountVector(sigma);
+    if (!usePowers(k))
+    {
+      CountVector y = new CountVector(x.size());
+      VerdictCount beta = new VerdictCount();
+      long[] verdicts = new long[3];
+      for (long i = 0; i < k; i++)
+      {
+        y.clear();
+        m_matrix.multiply(x, y, beta, verdicts);
+        CountVector swap = x;
+        x = y;
+        y = swap;
+      }
+      return x;
+    }
+    for (int j = 0; k > 0; j++, k >>>= 1)
+    {
+      if ((k & 1) != 0)
+      {
+        CountVector y = new CountVector(x.size());
+        getPower(j).apply(x, y);
+        x = y;
+      }
+    }
+    return x;
+  }
+
+  /**
+   * Determines if <i>k</i> copies of the multi-event are computed with
+   * powers of the matrix rather than <i>k</i> sparse products
+   * @param k The number of copies
+   * @return <tt>true</tt> if powers are used, <tt>false</tt> otherwise
+   */
+  protected synchronized boolean usePowers(long k)
+  {
+    int n = m_matrix.getSize();
+    if (n > MAX_DENSE_STATES)
+    {
+      return false;
+    }
+    int missing = (64 - Long.numberOfLeadingZeros(k)) - m_powers.size();
+    if (missing <= 0)
+    {
+      return true;
+    }
+    return (double) n * n * n * missing < (double) Math.max(1, m_matrix.getEntryCount()) * k;
+  }
+}
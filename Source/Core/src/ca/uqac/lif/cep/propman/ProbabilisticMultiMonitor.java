@@ -0,0 +1,386 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import ca.uqac.lif.cep.ltl.Troolean;
+import java.util.Arrays;
+import java.util.Queue;
+
+/**
+ * A multi-monitor that keeps track of the <em>proportion</em> of uni-traces
+ * in each state of the uni-monitor, rather than their exact number. The
+ * mapping &sigma; associates each state to a probability, and is normalized
+ * after each event so that these probabilities sum to 1. The monitor
+ * outputs a {@link VerdictProbability} instead of a
+ * {@link MultiMonitor.VerdictCount}.
+ * <p>
+ * Since path counts in a {@link MultiMonitor} can grow exponentially with
+ * the length of the trace, this monitor is meant for traces of unbounded
+ * length: the memory it uses and the cost of each step do not depend on
+ * the number of events processed so far. The price to pay is that the
+ * counts are only known up to rounding. When the proportion of some states
+ * can become smaller than what a <tt>double</tt> can represent, the monitor
+ * can be instructed to store the natural logarithm of each probability
+ * instead.
+ * <p>
+ * As in a {@link MultiMonitor}, an event that fires no transition from any
+ * state produces no output, and leaves no uni-trace in any state: all the
+ * proportions become zero, and the monitor produces no more output until
+ * it is reset.
+ */
+public class ProbabilisticMultiMonitor extends AbstractMultiMonitor
+{
+  /**
+   * The association between uni-monitor states and the proportion of
+   * uni-traces that lead to them (or its logarithm, in log-space mode),
+   * indexed by the state IDs of {@link #m_machine}
+   */
+  protected transient double[] m_weights;
+
+  /**
+   * The weights being computed by the current step; swapped with
+   * {@link #m_weights} at the end of each step
+   */
+  protected transient double[] m_weightsPrime;
+
+  /**
+   * The weight of each verdict being computed by the current step, in the
+   * order true, false, inconclusive
+   */
+  protected transient double[] m_verdictWeights;
+
+  /**
+   * Whether the weights are stored as logarithms
+   */
+  protected final boolean m_logSpace;
+
+  /**
+   * Creates a new probabilistic multi-monitor lifted from a uni-monitor
+   * 
+   * @param monitor
+   *          The uni-monitor
+   */
+  public ProbabilisticMultiMonitor(/*@ non_null @*/ PropositionalMachine monitor)
+  {
+    this(monitor, false);
+  }
+
+  /**
+   * Creates a new probabilistic multi-monitor lifted from a uni-monitor
+   * 
+   * @param monitor
+   *          The uni-monitor
+   * @param log_space
+   *          Set to <tt>true</tt> to store the logarithm of probabilities
+   *          instead of the probabilities themselves
+   */
+  public ProbabilisticMultiMonitor(/*@ non_null @*/ PropositionalMachine monitor, boolean log_space)
+  {
+    this(monitor, CompiledMachine.compile(monitor), log_space);
+  }
+
+  /**
+   * Creates a new probabilistic multi-monitor lifted from a uni-monitor
+   * whose transition relation has already been compiled
+   * 
+   * @param monitor
+   *          The uni-monitor
+   * @param machine
+   *          The compiled transition relation of the uni-monitor
+   * @param log_space
+   *          Set to <tt>true</tt> to store the logarithm of probabilities
+   *          instead of the probabilities themselves
+   */
+  public ProbabilisticMultiMonitor(/*@ non_null @*/ PropositionalMachine monitor, /*@ non_null @*/ CompiledMachine machine, boolean log_space)
+  {
+    super(monitor, machine);
+    m_logSpace = log_space;
+    m_weights = new double[m_machine.getStateCount()];
+    m_weightsPrime = new double[m_weights.length];
+    m_verdictWeights = new double[3];
+    clearWeights(m_weights);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @throws IllegalArgumentException If the input is a
+   * {@link MultiEventRun}
+   * @throws IllegalStateException If the uni-monitor has been modified
+   * since it was compiled
+   */
+  @Override
+  protected boolean compute(Object[] inputs, Queue<Object[]> outputs)
+  {
+    checkMachine();
+    if (inputs[0] instanceof MultiEventRun)
+    {
+      throw new IllegalArgumentException("A probabilistic multi-monitor does not accept runs of multi-events");
+    }
+    MultiEvent input_event = (MultiEvent) inputs[0];
+    double[] weights_prime = m_weightsPrime;
+    double[] beta = m_verdictWeights;
+    Arrays.fill(weights_prime, zero());
+    Arrays.fill(beta, zero());
+    boolean transition_taken = false;
+    startStep(input_event);
+    for (int s = 0; s < m_weights.length; s++)
+    {
+      double w = m_weights[s];
+      if (w == zero())
+      {
+        continue;
+      }
+      long[] counts = m_counts;
+      int degree = countFirings(s, input_event, counts);
+      int first = m_machine.getFirstTransition(s);
+      for (int i = 0; i < degree; i++)
+      {
+        if (counts[i] <= 0)
+        {
+          continue;
+        }
+        transition_taken = true;
+        double added = times(w, counts[i]);
+        int dest = m_machine.getDestination(first + i);
+        weights_prime[dest] = plus(weights_prime[dest], added);
+        int v = getVerdictIndex(m_machine.getVerdict(first + i, input_event));
+        beta[v] = plus(beta[v], added);
+      }
+    }
+    endStep();
+    // Swap the two buffers: the old weights are overwritten by the next step
+    m_weightsPrime = m_weights;
+    m_weights = weights_prime;
+    if (!transition_taken)
+    {
+      // All the weights are zero, like sigma in a multi-monitor
+      return false;
+    }
+    // Every uni-trace that moves to a new state produces exactly one
+    // verdict, so both mappings share the same normalization factor
+    double total = plus(plus(beta[0], beta[1]), beta[2]);
+    for (int s = 0; s < weights_prime.length; s++)
+    {
+      weights_prime[s] = divide(weights_prime[s], total);
+    }
+    for (int i = 0; i < beta.length; i++)
+    {
+      beta[i] = divide(beta[i], total);
+    }
+    outputs.add(new Object[] {new VerdictProbability(beta.clone(), m_logSpace)});
+    return true;
+  }
+
+  /**
+   * Gets the proportion of uni-traces that are currently in a given state
+   * of the uni-monitor
+   * @param state The state
+   * @return The proportion, between 0 and 1
+   */
+  public double getProbability(Object state)
+  {
+    int s = m_machine.getStateId(state);
+    if (s < 0)
+    {
+      return 0;
+    }
+    return m_logSpace ? Math.exp(m_weights[s]) : m_weights[s];
+  }
+
+  @Override
+  public void reset()
+  {
+    super.reset();
+    clearWeights(m_weights);
+  }
+
+  @Override
+  public ProbabilisticMultiMonitor duplicate(boolean with_state)
+  {
+    ProbabilisticMultiMonitor m = new ProbabilisticMultiMonitor(m_monitor, m_machine, m_logSpace);
+    m.m_pool = m_pool;
+    m.m_shardSize = m_shardSize;
+    if (with_state)
+    {
+      System.arraycopy(m_weights, 0, m.m_weights, 0, m_weights.length);
+    }
+    return m;
+  }
+
+  /**
+   * Resets an array of weights so that all uni-traces are in the initial
+   * state
+   * @param weights The array
+   */
+  protected void clearWeights(double[] weights)
+  {
+    Arrays.fill(weights, zero());
+    weights[m_machine.getInitialState()] = one();
+  }
+
+  /**
+   * Gets the weight representing a probability of 1
+   * @return The weight
+   */
+  protected double one()
+  {
+    return m_logSpace ? 0 : 1;
+  }
+
+  /**
+   * Gets the weight representing a probability of 0
+   * @return The weight
+   */
+  protected double zero()
+  {
+    return m_logSpace ? Double.NEGATIVE_INFINITY : 0;
+  }
+
+  /**
+   * Adds two weights
+   * @param x The first weight
+   * @param y The second weight
+   * @return The weight of the sum
+   */
+  protected double plus(double x, double y)
+  {
+    if (!m_logSpace)
+    {
+      return x + y;
+    }
+    return logAdd(x, y);
+  }
+
+  /**
+   * Multiplies a weight by a number of valuations
+   * @param x The weight
+   * @param n The number of valuations
+   * @return The weight of the product
+   */
+  protected double times(double x, long n)
+  {
+    return m_logSpace ? x + Math.log(n) : x * n;
+  }
+
+  /**
+   * Divides two weights
+   * @param x The numerator
+   * @param y The denominator
+   * @return The weight of the quotient
+   */
+  protected double divide(double x, double y)
+  {
+    return m_logSpace ? x - y : x / y;
+  }
+
+  /**
+   * Computes log(e<sup>x</sup> + e<sup>y</sup>) without leaving log-space
+   * @param x The first logarithm
+   * @param y The second logarithm
+   * @return The logarithm of the sum
+   */
+  protected static double logAdd(double x, double y)
+  {
+    if (x == Double.NEGATIVE_INFINITY)
+    {
+      return y;
+    }
+    if (y == Double.NEGATIVE_INFINITY)
+    {
+      return x;
+    }
+    double max = Math.max(x, y);
+    return max + Math.log1p(Math.exp(-Math.abs(x - y)));
+  }
+
+  /**
+   * Gets the position of a verdict in the arrays of weights
+   * @param v The verdict
+   * @return The position
+   */
+  protected static int getVerdictIndex(Troolean.Value v)
+  {
+    if (v == Troolean.Value.TRUE)
+    {
+      return 0;
+    }
+    if (v == Troolean.Value.FALSE)
+    {
+      return 1;
+    }
+    return 2;
+  }
+
+  /**
+   * The proportion of uni-traces leading to each monitor verdict, as
+   * produced by a {@link ProbabilisticMultiMonitor}.
+   */
+  public static class VerdictProbability implements VerdictDistribution
+  {
+    /**
+     * The weight of each verdict, in the order true, false, inconclusive
+     */
+    protected final double[] m_weights;
+
+    /**
+     * Whether the weights are logarithms
+     */
+    protected final boolean m_logSpace;
+
+    /**
+     * Creates a new verdict distribution
+     * @param weights The weight of each verdict, in the order true, false,
+     * inconclusive
+     * @param log_space Whether the weights are logarithms
+     */
+    protected VerdictProbability(double[] weights, boolean log_space)
+    {
+      super();
+      m_weights = weights;
+      m_logSpace = log_space;
+    }
+
+    @Override
+    public double getProbability(Troolean.Value v)
+    {
+      double w = m_weights[getVerdictIndex(v)];
+      return m_logSpace ? Math.exp(w) : w;
+    }
+
+    /**
+     * Gets the natural logarithm of the proportion of uni-traces associated
+     * to a monitor verdict
+     * @param v The verdict
+     * @return The logarithm; negative infinity if no uni-trace leads to
+     * this verdict
+     */
+    public double getLogProbability(Troolean.Value v)
+    {
+      double w = m_weights[getVerdictIndex(v)];
+      return m_logSpace ? w : Math.log(w);
+    }
+
+    @Override
+    public String toString()
+    {
+      StringBuilder out = new StringBuilder();
+      out.append("{T=").append(getProbability(Troolean.Value.TRUE)).append(",F=").append(getProbability(Troolean.Value.FALSE)).append(",?=").append(getProbability(Troolean.Value.INCONCLUSIVE)).append("}");
+      return out.toString();
+    }
+  }
+}
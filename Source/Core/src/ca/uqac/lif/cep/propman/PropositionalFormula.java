@@ -30,6 +30,47 @@ import java.util.Set;
  */
 public class PropositionalFormula extends FunctionTree
 {
+  /**
+   * The diagram representing this formula in the last manager it was
+   * asked for, or <tt>null</tt> if it has not been computed yet
+   */
+  protected transient volatile Diagram m_bdd = null;
+  
+  /**
+   * The compiled version of this formula
+   */
+  protected transient CompiledFormula m_compiled = null;
+  
+  /**
+   * Whether the formula has already been compiled. The flag is volatile so
+   * that a formula can be shared by threads once this is done.
+   */
+  protected transient volatile boolean m_isCompiled = false;
+  
+  /**
+   * The truth table of this formula
+   */
+  protected transient TruthTable m_truthTable = null;
+  
+  /**
+   * Whether the truth table of the formula has already been computed
+   */
+  protected transient volatile boolean m_isTabulated = false;
+
+  /**
+   * The number of rows of the truth table of this formula; 0 if the formula
+   * has too many variables to be tabulated, and -1 if this number has not
+   * been computed yet
+   */
+  protected transient volatile int m_tableRows = -1;
+
+  /**
+   * The number of times {@link #evaluate(Valuation)} has been called
+   * before the truth table was computed. Concurrent calls may lose
+   * increments, which only delays the computation of the table.
+   */
+  protected transient int m_evaluations = 0;
+  
   /**
    * Creates a new propositional formula
    * @param f The function
@@ -49,11 +90,103 @@ public class PropositionalFormula extends FunctionTree
   }
   
   /**
-   * Evaluates a propositional formula on a given valuation.
+   * Evaluates a propositional formula on a given valuation. Formulas over
+   * at most {@link TruthTable#MAX_VARIABLES} variables are evaluated by a
+   * lookup in their truth table, when the valuation gives a Boolean value
+   * to all of them. Since computing the table costs one evaluation per
+   * row, it is only computed once the formula has been evaluated as many
+   * times as the table has rows, unless it has already been asked for with
+   * {@link #getTruthTable()}. Otherwise, the formula is compiled into a
+   * {@link CompiledFormula}; formulas that cannot be compiled are evaluated
+   * with {@link #evaluateTree(Valuation)}.
    * @param v The valuation
    * @return The value of the formula for this valuation
    */
   public Troolean.Value evaluate(Valuation v)
+  {
+    TruthTable t = null;
+    if (m_isTabulated || isWorthTabulating())
+    {
+      t = getTruthTable();
+    }
+    if (t != null && t.isBoolean())
+    {
+      int row = t.getRow(v);
+      if (row >= 0)
+      {
+        return t.get(row) ? Troolean.Value.TRUE : Troolean.Value.FALSE;
+      }
+    }
+    CompiledFormula c = getCompiled();
+    if (c != null)
+    {
+      return c.evaluate(v);
+    }
+    return evaluateTree(v);
+  }
+  
+  /**
+   * Counts a call to {@link #evaluate(Valuation)}, and determines if the
+   * truth table of the formula is now worth computing
+   * @return <tt>true</tt> if the table should be computed, <tt>false</tt>
+   * otherwise
+   */
+  protected boolean isWorthTabulating()
+  {
+    int rows = m_tableRows;
+    if (rows < 0)
+    {
+      int num_vars = getDomain().size();
+      rows = num_vars > TruthTable.MAX_VARIABLES ? 0 : 1 << num_vars;
+      m_tableRows = rows;
+    }
+    if (rows == 0)
+    {
+      return false;
+    }
+    return ++m_evaluations >= rows;
+  }
+  
+  /**
+   * Gets the compiled version of this formula. The formula is compiled on
+   * the first call to this method, and then reused.
+   * @return The compiled formula, or <tt>null</tt> if the formula cannot be
+   * compiled
+   */
+  /*@ null @*/ public CompiledFormula getCompiled()
+  {
+    if (!m_isCompiled)
+    {
+      m_compiled = CompiledFormula.compile(this);
+      m_isCompiled = true;
+    }
+    return m_compiled;
+  }
+  
+  /**
+   * Gets the truth table of this formula. The table is computed on the
+   * first call to this method, and then reused.
+   * @return The truth table, or <tt>null</tt> if the formula has more than
+   * {@link TruthTable#MAX_VARIABLES} variables
+   */
+  /*@ null @*/ public TruthTable getTruthTable()
+  {
+    if (!m_isTabulated)
+    {
+      m_truthTable = TruthTable.compute(this);
+      m_isTabulated = true;
+    }
+    return m_truthTable;
+  }
+  
+  /**
+   * Evaluates a propositional formula on a given valuation, by evaluating
+   * its function tree. This is the reference implementation of
+   * {@link #evaluate(Valuation)}.
+   * @param v The valuation
+   * @return The value of the formula for this valuation
+   */
+  public Troolean.Value evaluateTree(Valuation v)
   {
     Object[] inputs = new Object[] {v};
     Object[] outputs = new Object[1];
@@ -65,6 +198,128 @@ public class PropositionalFormula extends FunctionTree
     return (Troolean.Value) outputs[0];
   }
   
+  /**
+   * Gets the function at the root of this formula
+   * @return The function
+   */
+  protected Function getConnective()
+  {
+    return m_function;
+  }
+  
+  /**
+   * Gets the arguments of the function at the root of this formula
+   * @return The arguments
+   */
+  protected Function[] getOperands()
+  {
+    return m_children;
+  }
+  
+  /**
+   * Gets the binary decision diagram representing this formula in a
+   * manager. The diagram is computed on the first call to this method for
+   * this manager, and then reused until the formula is asked for its
+   * diagram in another manager.
+   * @param manager The manager, usually obtained from
+   * {@link BddManager#getInstance()}
+   * @return The ID of the diagram, or -1 if the formula contains a
+   * function that cannot be converted into a diagram
+   */
+  public int getBdd(/*@ non_null @*/ BddManager manager)
+  {
+    Diagram d = m_bdd;
+    if (d == null || d.m_manager != manager)
+    {
+      d = new Diagram(manager, toBdd(this, manager));
+      m_bdd = d;
+    }
+    return d.m_id;
+  }
+  
+  /**
+   * Recursively converts a function into a binary decision diagram
+   * @param f The function
+   * @param manager The manager where the diagram is created
+   * @return The ID of the diagram, or -1 if the function cannot be
+   * converted
+   */
+  protected static int toBdd(Function f, BddManager manager)
+  {
+    if (f instanceof PropositionalVariable)
+    {
+      return manager.variable(((PropositionalVariable) f).m_index);
+    }
+    Function root = f;
+    int[] args = new int[0];
+    if (f instanceof PropositionalFormula)
+    {
+      PropositionalFormula pf = (PropositionalFormula) f;
+      Diagram d = pf.m_bdd;
+      if (d != null && d.m_manager == manager)
+      {
+        return d.m_id;
+      }
+      root = pf.m_function;
+      args = new int[pf.m_children.length];
+      for (int i = 0; i < args.length; i++)
+      {
+        args[i] = toBdd(pf.m_children[i], manager);
+        if (args[i] < 0)
+        {
+          return -1;
+        }
+      }
+    }
+    int table = getBooleanTable(root, args.length);
+    if (table < 0)
+    {
+      return -1;
+    }
+    return manager.compose(table, args);
+  }
+  
+  /**
+   * Computes the truth table of a function on Boolean inputs.
+   * @param f The function, whose inputs and output are Troolean values
+   * @param arity The number of arguments the function is expected to take
+   * @return The truth table, where bit <i>i</i> is set if the function
+   * returns {@link Troolean.Value#TRUE} when argument <i>j</i> is true
+   * exactly for the bits <i>j</i> set in <i>i</i>; -1 if the function does
+   * not have the expected arity, has more than 5 arguments, or cannot be
+   * evaluated on Troolean values
+   */
+  public static int getBooleanTable(Function f, int arity)
+  {
+    if (arity > 5 || f.getInputArity() != arity)
+    {
+      return -1;
+    }
+    int table = 0;
+    Object[] inputs = new Object[arity];
+    Object[] outputs = new Object[1];
+    for (int i = 0; i < (1 << arity); i++)
+    {
+      for (int j = 0; j < arity; j++)
+      {
+        inputs[j] = (i & (1 << j)) != 0 ? Troolean.Value.TRUE : Troolean.Value.FALSE;
+      }
+      try
+      {
+        f.evaluate(inputs, outputs);
+      }
+      catch (RuntimeException e)
+      {
+        return -1;
+      }
+      if (outputs[0] == Troolean.Value.TRUE)
+      {
+        table |= 1 << i;
+      }
+    }
+    return table;
+  }
+  
   /**
    * Gets the set of propositional variables contained in this formula
    * @return The set of variable names
@@ -98,4 +353,33 @@ public class PropositionalFormula extends FunctionTree
       }  
     }
   }
+
+  /**
+   * The ID of a diagram, along with the manager where it is defined
+   */
+  protected static class Diagram
+  {
+    /**
+     * The manager
+     */
+    protected final BddManager m_manager;
+
+    /**
+     * The ID of the diagram in the manager, or -1 if the formula cannot be
+     * represented as a diagram
+     */
+    protected final int m_id;
+
+    /**
+     * Creates a new diagram reference
+     * @param manager The manager
+     * @param id The ID of the diagram in the manager
+     */
+    protected Diagram(BddManager manager, int id)
+    {
+      super();
+      m_manager = manager;
+      m_id = id;
+    }
+  }
 }
@@ -58,6 +58,18 @@ public abstract class PropositionalMachine extends SynchronousProcessor
    * @return The number of transitions
    */
   public abstract long getTransitionCount();
+
+  /**
+   * Gets a number that changes every time the transition relation or the
+   * initial state of the machine is modified. Processors that compile the
+   * machine use it to detect that their compiled copy is out of date.
+   * Machines that cannot be modified always return 0.
+   * @return The version
+   */
+  public long getVersion()
+  {
+    return 0;
+  }
   
   /**
    * A transition in the propositional machine
@@ -30,6 +30,11 @@ public class PropositionalVariable extends UnaryFunction<Valuation,Troolean.Valu
    */
   /*@ non_null @*/ protected String m_varName;
   
+  /**
+   * The index of the variable in the {@link VariableRegistry}
+   */
+  protected int m_index;
+  
   /**
    * Gets an instance of the propositional variable for a given name
    * @param var_name The name of the variable
@@ -48,14 +53,16 @@ public class PropositionalVariable extends UnaryFunction<Valuation,Troolean.Valu
   {
     super(Valuation.class, Troolean.Value.class);
     m_varName = var_name;
+    m_index = VariableRegistry.instance.getIndex(var_name);
   }
 
   @Override
   public Troolean.Value getValue(Valuation v)
   {
-    if (v.containsKey(m_varName))
+    Troolean.Value b = v.get(m_index);
+    if (b != null)
     {
-      return v.get(m_varName);
+      return b;
     }
     return Troolean.Value.INCONCLUSIVE;
   }
@@ -0,0 +1,405 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A store of byte records on disk, each associated to a key. Records are
+ * appended to segment files of bounded size; the key of each record and
+ * its position are kept in memory. When a record is removed or replaced,
+ * its space becomes garbage. A segment that no longer contains any record
+ * is deleted, and the records of a segment that is mostly garbage are
+ * copied to the end of the current segment so that it can be deleted too.
+ * <p>
+ * The store is meant to hold data that does not fit in memory, not to
+ * survive a restart: the segments are deleted when the store is closed.
+ * It is not thread-safe.
+ */
+public class SegmentStore
+{
+  /**
+   * The default maximum size of a segment, in bytes
+   */
+  public static final long DEFAULT_SEGMENT_BYTES = 1L << 24;
+
+  /**
+   * The directory containing the segments
+   */
+  /*@ non_null @*/ protected final File m_directory;
+
+  /**
+   * The size beyond which a new segment is started
+   */
+  protected final long m_segmentBytes;
+
+  /**
+   * The segments, indexed by number
+   */
+  /*@ non_null @*/ protected final Map<Integer,Segment> m_segments;
+
+  /**
+   * The position of the record of each key
+   */
+  /*@ non_null @*/ protected final Map<Object,Location> m_index;
+
+  /**
+   * The segment to which records are appended
+   */
+  /*@ non_null @*/ protected Segment m_current;
+
+  /**
+   * The number of the next segment
+   */
+  protected int m_nextSegment = 0;
+
+  /**
+   * The number of bytes occupied by the live records
+   */
+  protected long m_liveBytes = 0;
+
+  /**
+   * Creates a new store
+   * @param directory The directory containing the segments, which is
+   * created if it does not exist
+   * @throws IOException If the first segment cannot be created
+   */
+  public SegmentStore(/*@ non_null @*/ File directory) throws IOException
+  {
+    this(directory, DEFAULT_SEGMENT_BYTES);
+  }
+
+  /**
+   * Creates a new store
+   * @param directory The directory containing the segments, which is
+   * created if it does not exist
+   * @param segment_bytes The size beyond which a new segment is started
+   * @throws IOException If the first segment cannot be created
+   */
+  public SegmentStore(/*@ non_null @*/ File directory, long segment_bytes) throws IOException
+  {
+    super();
+    if (!directory.isDirectory() && !directory.mkdirs())
+    {
+      throw new IOException("Cannot create " + directory);
+    }
+    m_directory = directory;
+    m_segmentBytes = Math.max(1, segment_bytes);
+    m_segments = new HashMap<Integer,Segment>();
+    m_index = new HashMap<Object,Location>();
+    m_current = newSegment();
+  }
+
+  /**
+   * Associates a record to a key, replacing the previous record of this
+   * key if any
+   * @param key The key
+   * @param record The record
+   * @throws IOException If the record cannot be written
+   */
+  public void put(/*@ non_null @*/ Object key, /*@ non_null @*/ byte[] record) throws IOException
+  {
+    discard(key);
+    append(key, record);
+  }
+
+  /**
+   * Determines if a record is associated to a key
+   * @param key The key
+   * @return <tt>true</tt> if there is a record, <tt>false</tt> otherwise
+   */
+  public boolean contains(/*@ non_null @*/ Object key)
+  {
+    return m_index.containsKey(key);
+  }
+
+  /**
+   * Gets the record of a key and removes it from the store
+   * @param key The key
+   * @return The record, or <tt>null</tt> if there is none
+   * @throws IOException If the record cannot be read
+   */
+  /*@ null @*/ public byte[] remove(/*@ non_null @*/ Object key) throws IOException
+  {
+    Location loc = m_index.get(key);
+    if (loc == null)
+    {
+      return null;
+    }
+    byte[] record = read(loc);
+    discard(key);
+    return record;
+  }
+
+  /**
+   * Gets the number of records in the store
+   * @return The number of records
+   */
+  public int size()
+  {
+    return m_index.size();
+  }
+
+  /**
+   * Gets the number of bytes occupied by the records in the store
+   * @return The number of bytes
+   */
+  public long getLiveBytes()
+  {
+    return m_liveBytes;
+  }
+
+  /**
+   * Gets the size of all the segments, including garbage
+   * @return The number of bytes
+   */
+  public long getDiskBytes()
+  {
+    long bytes = 0;
+    for (Segment s : m_segments.values())
+    {
+      bytes += s.m_size;
+    }
+    return bytes;
+  }
+
+  /**
+   * Gets the number of segments
+   * @return The number of segments
+   */
+  public int getSegmentCount()
+  {
+    return m_segments.size();
+  }
+
+  /**
+   * Deletes all the segments. The store can no longer be used afterwards.
+   * @throws IOException If a segment cannot be closed
+   */
+  public void close() throws IOException
+  {
+    for (Segment s : m_segments.values())
+    {
+      s.m_file.close();
+      s.m_path.delete();
+    }
+    m_segments.clear();
+    m_index.clear();
+    m_liveBytes = 0;
+  }
+
+  /**
+   * Appends a record to the current segment
+   * @param key The key of the record, which has no record in the store
+   * @param record The record
+   * @throws IOException If the record cannot be written
+   */
+  protected void append(/*@ non_null @*/ Object key, /*@ non_null @*/ byte[] record) throws IOException
+  {
+    if (m_current.m_size > 0 && m_current.m_size + record.length > m_segmentBytes)
+    {
+      Segment full = m_current;
+      m_current = newSegment();
+      // Records may have been removed while it was the current segment
+      if (2 * full.m_liveBytes < full.m_size)
+      {
+        reclaim(full);
+      }
+    }
+    Segment s = m_current;
+    s.m_file.seek(s.m_size);
+    s.m_file.write(record);
+    m_index.put(key, new Location(s, s.m_size, record.length));
+    s.m_keys.add(key);
+    s.m_size += record.length;
+    s.m_liveBytes += record.length;
+    m_liveBytes += record.length;
+  }
+
+  /**
+   * Removes the record of a key from the index, and reclaims the segment
+   * that contained it if it is mostly garbage
+   * @param key The key
+   * @throws IOException If the segment cannot be reclaimed
+   */
+  protected void discard(/*@ non_null @*/ Object key) throws IOException
+  {
+    Location loc = m_index.remove(key);
+    if (loc == null)
+    {
+      return;
+    }
+    Segment s = loc.m_segment;
+    s.m_keys.remove(key);
+    s.m_liveBytes -= loc.m_length;
+    m_liveBytes -= loc.m_length;
+    if (s != m_current && 2 * s.m_liveBytes < s.m_size)
+    {
+      reclaim(s);
+    }
+  }
+
+  /**
+   * Copies the live records of a segment to the current segment, and
+   * deletes it
+   * @param s The segment
+   * @throws IOException If the records cannot be copied
+   */
+  protected void reclaim(/*@ non_null @*/ Segment s) throws IOException
+  {
+    List<Object> keys = new ArrayList<Object>(s.m_keys);
+    for (Object key : keys)
+    {
+      Location loc = m_index.remove(key);
+      m_liveBytes -= loc.m_length;
+      append(key, read(loc));
+    }
+    m_segments.remove(s.m_number);
+    s.m_file.close();
+    s.m_path.delete();
+  }
+
+  /**
+   * Reads a record
+   * @param loc The position of the record
+   * @return The record
+   * @throws IOException If the record cannot be read
+   */
+  /*@ non_null @*/ protected byte[] read(/*@ non_null @*/ Location loc) throws IOException
+  {
+    byte[] record = new byte[loc.m_length];
+    loc.m_segment.m_file.seek(loc.m_offset);
+    loc.m_segment.m_file.readFully(record);
+    return record;
+  }
+
+  /**
+   * Creates a new empty segment
+   * @return The segment
+   * @throws IOException If the file of the segment cannot be created
+   */
+  /*@ non_null @*/ protected Segment newSegment() throws IOException
+  {
+    int number = m_nextSegment++;
+    File path = new File(m_directory, "segment-" + number + ".dat");
+    RandomAccessFile file = new RandomAccessFile(path, "rw");
+    file.setLength(0);
+    Segment s = new Segment(number, path, file);
+    m_segments.put(number, s);
+    return s;
+  }
+
+  @Override
+  public String toString()
+  {
+    return m_index.size() + " records, " + m_liveBytes + " live bytes, " + m_segments.size() + " segments";
+  }
+
+  /**
+   * A file to which records are appended
+   */
+  protected static class Segment
+  {
+    /**
+     * The number of the segment
+     */
+    protected final int m_number;
+
+    /**
+     * The path of the file
+     */
+    /*@ non_null @*/ protected final File m_path;
+
+    /**
+     * The file
+     */
+    /*@ non_null @*/ protected final RandomAccessFile m_file;
+
+    /**
+     * The keys whose record is in this segment
+     */
+    /*@ non_null @*/ protected final Set<Object> m_keys = new HashSet<Object>();
+
+    /**
+     * The size of the file
+     */
+    protected long m_size = 0;
+
+    /**
+     * The number of bytes occupied by live records
+     */
+    protected long m_liveBytes = 0;
+
+    /**
+     * Creates a new segment
+     * @param number The number of the segment
+     * @param path The path of the file
+     * @param file The file
+     */
+    public Segment(int number, /*@ non_null @*/ File path, /*@ non_null @*/ RandomAccessFile file)
+    {
+      super();
+      m_number = number;
+      m_path = path;
+      m_file = file;
+    }
+  }
+
+  /**
+   * The position of a record
+   */
+  protected static class Location
+  {
+    /**
+     * The segment containing the record
+     */
+    /*@ non_null @*/ protected final Segment m_segment;
+
+    /**
+     * The position of the record in the segment
+     */
+    protected final long m_offset;
+
+    /**
+     * The length of the record
+     */
+    protected final int m_length;
+
+    /**
+     * Creates a new location
+     * @param segment The segment containing the record
+     * @param offset The position of the record in the segment
+     * @param length The length of the record
+     */
+    public Location(/*@ non_null @*/ Segment segment, long offset, int length)
+    {
+      super();
+      m_segment = segment;
+      m_offset = offset;
+      m_length = length;
+    }
+  }
+}
@@ -0,0 +1,409 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import ca.uqac.lif.cep.Connector;
+import ca.uqac.lif.cep.Processor;
+import ca.uqac.lif.cep.Pushable;
+import ca.uqac.lif.cep.tmf.QueueSink;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs one monitor per key (for example, one {@link MultiMonitor} or
+ * {@link AccessControlledMonitor} per tenant or session) on several
+ * threads. Each multi-event is submitted with its key; the keys are
+ * hashed to a fixed number of <em>shards</em>, and each shard owns the
+ * processors of its keys and a bounded queue of pending events.
+ * <p>
+ * A shard is processed by at most one thread at a time: when events are
+ * added to an idle shard, a task draining its queue is scheduled on a
+ * {@link ForkJoinPool}, and the task reschedules itself after a bounded
+ * number of events if the queue is not empty. Processors are therefore
+ * never accessed concurrently and need no locking, and the events of a
+ * key are processed, and their verdicts reported to the
+ * {@link VerdictListener}, in the order in which they were submitted.
+ * Load is balanced by the work stealing of the pool: since there are
+ * several times more shards than threads, the tasks of the other shards
+ * are taken by idle threads while a thread is busy with a hot shard.
+ * <p>
+ * When the queue of a shard is full, {@link #submit(Object, MultiEvent)}
+ * blocks until some of its events have been processed; it must therefore
+ * not be called by the listener.
+ */
+public class ShardedRuntime
+{
+  /**
+   * The default maximum number of pending events in a shard
+   */
+  public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+  /**
+   * The maximum number of events processed by a task before it lets other
+   * shards run
+   */
+  public static final int BATCH_SIZE = 256;
+
+  /**
+   * Creates the processor that monitors the events of a key
+   */
+  public static interface ProcessorFactory
+  {
+    /**
+     * Creates a processor
+     * @param key The key
+     * @return A new processor with one input and one output
+     */
+    /*@ non_null @*/ public Processor newProcessor(/*@ non_null @*/ Object key);
+  }
+
+  /**
+   * Receives the verdicts produced for each key
+   */
+  public static interface VerdictListener
+  {
+    /**
+     * Called for each output of the processor of a key. This method is
+     * called by the thread processing the shard of the key, and must be
+     * thread-safe if keys are spread over several shards.
+     * @param key The key
+     * @param verdict The output of the processor
+     */
+    public void verdict(/*@ non_null @*/ Object key, Object verdict);
+  }
+
+  /**
+   * The factory creating the processor of each key
+   */
+  /*@ non_null @*/ protected final ProcessorFactory m_factory;
+
+  /**
+   * The listener receiving the verdicts
+   */
+  /*@ non_null @*/ protected final VerdictListener m_listener;
+
+  /**
+   * The pool running the tasks draining the shards
+   */
+  /*@ non_null @*/ protected final ForkJoinPool m_pool;
+
+  /**
+   * The shards
+   */
+  /*@ non_null @*/ protected final Shard[] m_shards;
+
+  /**
+   * The number of events submitted and not yet processed
+   */
+  /*@ non_null @*/ protected final AtomicLong m_pending = new AtomicLong();
+
+  /**
+   * The first exception thrown by a processor since the last call to
+   * {@link #flush()}
+   */
+  /*@ non_null @*/ protected final AtomicReference<Throwable> m_error = new AtomicReference<Throwable>();
+
+  /**
+   * The object on which {@link #flush()} waits
+   */
+  /*@ non_null @*/ protected final Object m_lock = new Object();
+
+  /**
+   * Creates a new runtime with four shards per thread of the pool
+   * @param factory The factory creating the processor of each key
+   * @param listener The listener receiving the verdicts
+   * @param pool The pool running the tasks draining the shards
+   */
+  public ShardedRuntime(/*@ non_null @*/ ProcessorFactory factory, /*@ non_null @*/ VerdictListener listener, /*@ non_null @*/ ForkJoinPool pool)
+  {
+    this(factory, listener, pool, 4 * pool.getParallelism(), DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * Creates a new runtime
+   * @param factory The factory creating the processor of each key
+   * @param listener The listener receiving the verdicts
+   * @param pool The pool running the tasks draining the shards
+   * @param num_shards The number of shards
+   * @param queue_capacity The maximum number of pending events in a shard
+   */
+  public ShardedRuntime(/*@ non_null @*/ ProcessorFactory factory, /*@ non_null @*/ VerdictListener listener, /*@ non_null @*/ ForkJoinPool pool, int num_shards, int queue_capacity)
+  {
+    super();
+    m_factory = factory;
+    m_listener = listener;
+    m_pool = pool;
+    m_shards = new Shard[Math.max(1, num_shards)];
+    for (int i = 0; i < m_shards.length; i++)
+    {
+      m_shards[i] = new Shard(Math.max(1, queue_capacity));
+    }
+  }
+
+  /**
+   * Submits a multi-event for a key. The processor of the key is created
+   * when its first event is processed.
+   * @param key The key
+   * @param e The multi-event
+   * @throws InterruptedException If the thread is interrupted while
+   * waiting for room in the queue of the shard
+   */
+  public void submit(/*@ non_null @*/ Object key, /*@ non_null @*/ MultiEvent e) throws InterruptedException
+  {
+    getShard(key).add(new Object[] {key, e});
+  }
+
+  /**
+   * Discards the processor of a key, once the events submitted before for
+   * this key have been processed. A later event for the key starts a new
+   * processor.
+   * @param key The key
+   * @throws InterruptedException If the thread is interrupted while
+   * waiting for room in the queue of the shard
+   */
+  public void remove(/*@ non_null @*/ Object key) throws InterruptedException
+  {
+    getShard(key).add(new Object[] {key, null});
+  }
+
+  /**
+   * Waits until all the events submitted so far have been processed
+   * @throws InterruptedException If the thread is interrupted while
+   * waiting
+   * @throws RuntimeException The first exception thrown by a processor
+   * since the last call to this method, if any
+   * @throws Error The first error thrown by a processor since the last
+   * call to this method, if it came before any exception
+   */
+  public void flush() throws InterruptedException
+  {
+    synchronized (m_lock)
+    {
+      while (m_pending.get() > 0)
+      {
+        m_lock.wait();
+      }
+    }
+    Throwable e = m_error.getAndSet(null);
+    if (e instanceof Error)
+    {
+      throw (Error) e;
+    }
+    if (e != null)
+    {
+      throw (RuntimeException) e;
+    }
+  }
+
+  /**
+   * Gets the number of shards of this runtime
+   * @return The number of shards
+   */
+  public int getShardCount()
+  {
+    return m_shards.length;
+  }
+
+  /**
+   * Gets the shard of a key
+   * @param key The key
+   * @return The shard
+   */
+  /*@ non_null @*/ protected Shard getShard(/*@ non_null @*/ Object key)
+  {
+    int h = key.hashCode();
+    h ^= h >>> 16;
+    return m_shards[(h & 0x7fffffff) % m_shards.length];
+  }
+
+  /**
+   * The keys hashed to the same value, their processors and their pending
+   * events
+   */
+  protected class Shard implements Runnable
+  {
+    /**
+     * The pending events, as pairs made of a key and a multi-event (or
+     * <tt>null</tt> to discard the processor of the key)
+     */
+    /*@ non_null @*/ protected final ArrayBlockingQueue<Object[]> m_queue;
+
+    /**
+     * The input of the processor of each key. This map is only accessed by
+     * the thread draining the shard.
+     */
+    /*@ non_null @*/ protected final Map<Object,Pushable> m_inputs;
+
+    /**
+     * The outputs of the processor of each key, not yet sent to the
+     * listener. This map is only accessed by the thread draining the
+     * shard.
+     */
+    /*@ non_null @*/ protected final Map<Object,Queue<Object>> m_outputs;
+
+    /**
+     * Whether a task draining the shard is scheduled or running
+     */
+    /*@ non_null @*/ protected final AtomicBoolean m_scheduled = new AtomicBoolean(false);
+
+    /**
+     * Creates a new shard
+     * @param capacity The maximum number of pending events
+     */
+    public Shard(int capacity)
+    {
+      super();
+      m_queue = new ArrayBlockingQueue<Object[]>(capacity);
+      m_inputs = new HashMap<Object,Pushable>();
+      m_outputs = new HashMap<Object,Queue<Object>>();
+    }
+
+    /**
+     * Adds an event to the queue, and schedules a task to process it
+     * @param item The pair made of a key and a multi-event
+     * @throws InterruptedException If the thread is interrupted while
+     * waiting for room in the queue
+     */
+    protected void add(Object[] item) throws InterruptedException
+    {
+      m_pending.incrementAndGet();
+      try
+      {
+        m_queue.put(item);
+      }
+      catch (InterruptedException e)
+      {
+        done();
+        throw e;
+      }
+      schedule();
+    }
+
+    /**
+     * Schedules a task draining the shard, unless one is already
+     * scheduled
+     */
+    protected void schedule()
+    {
+      if (m_scheduled.compareAndSet(false, true))
+      {
+        m_pool.execute(this);
+      }
+    }
+
+    /**
+     * Processes at most {@link ShardedRuntime#BATCH_SIZE} events of the
+     * queue
+     */
+    @Override
+    public void run()
+    {
+      try
+      {
+        for (int i = 0; i < BATCH_SIZE; i++)
+        {
+          Object[] item = m_queue.poll();
+          if (item == null)
+          {
+            break;
+          }
+          try
+          {
+            process(item[0], (MultiEvent) item[1]);
+          }
+          catch (RuntimeException e)
+          {
+            m_error.compareAndSet(null, e);
+          }
+          catch (Error e)
+          {
+            m_error.compareAndSet(null, e);
+            throw e;
+          }
+          finally
+          {
+            // Always account for the event, otherwise flush() never returns
+            done();
+          }
+        }
+      }
+      finally
+      {
+        m_scheduled.set(false);
+      }
+      // Events added after the last poll, but before the flag was reset,
+      // have not scheduled a task
+      if (!m_queue.isEmpty())
+      {
+        schedule();
+      }
+    }
+
+    /**
+     * Processes an event of a key
+     * @param key The key
+     * @param e The multi-event, or <tt>null</tt> to discard the processor
+     * of the key
+     */
+    protected void process(Object key, /*@ null @*/ MultiEvent e)
+    {
+      if (e == null)
+      {
+        m_inputs.remove(key);
+        m_outputs.remove(key);
+        return;
+      }
+      Pushable p = m_inputs.get(key);
+      if (p == null)
+      {
+        Processor proc = m_factory.newProcessor(key);
+        QueueSink sink = new QueueSink();
+        Connector.connect(proc, sink);
+        p = proc.getPushableInput();
+        m_inputs.put(key, p);
+        m_outputs.put(key, sink.getQueue());
+      }
+      p.push(e);
+      Queue<Object> outputs = m_outputs.get(key);
+      while (!outputs.isEmpty())
+      {
+        m_listener.verdict(key, outputs.remove());
+      }
+    }
+
+    /**
+     * Records that a pending event has been processed
+     */
+    protected void done()
+    {
+      if (m_pending.decrementAndGet() == 0)
+      {
+        synchronized (m_lock)
+        {
+          m_lock.notifyAll();
+        }
+      }
+    }
+  }
+}
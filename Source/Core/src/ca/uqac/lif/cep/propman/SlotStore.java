@@ -0,0 +1,334 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * Storage for the state of many sessions, as fixed-size slots of
+ * <tt>long</tt>s. A {@link MultiMonitorPool} keeps in each slot the
+ * mapping &sigma; of a session followed by the verdicts of its last
+ * step. Steps are computed by {@link TransferMatrix transfer matrices}
+ * directly on the contents of the slots, so that the state of a session is
+ * never converted to objects; sessions whose counts no longer fit in a
+ * <tt>long</tt> are kept elsewhere by the pool.
+ * <p>
+ * Two implementations are provided: {@link Heap} keeps all slots in a
+ * single array on the heap, and {@link Direct} keeps them in direct
+ * buffers, outside of the heap, so that very large numbers of sessions do
+ * not add to the work of the garbage collector.
+ */
+public abstract class SlotStore
+{
+  /**
+   * The number of <tt>long</tt>s in each slot
+   */
+  protected final int m_width;
+
+  /**
+   * Creates a new store
+   * @param width The number of <tt>long</tt>s in each slot
+   */
+  public SlotStore(int width)
+  {
+    super();
+    m_width = width;
+  }
+
+  /**
+   * Gets the number of <tt>long</tt>s in each slot
+   * @return The width of the slots
+   */
+  public int getWidth()
+  {
+    return m_width;
+  }
+
+  /**
+   * Gets the number of slots that can be used without allocating memory
+   * @return The number of slots
+   */
+  public abstract int getCapacity();
+
+  /**
+   * Makes sure that a number of slots can be used
+   * @param slots The number of slots
+   * @throws IllegalStateException If the store cannot hold that many
+   * slots
+   */
+  public abstract void ensureCapacity(int slots);
+
+  /**
+   * Gets an element of a slot
+   * @param slot The slot
+   * @param i The position of the element in the slot
+   * @return The value of the element
+   */
+  public abstract long get(int slot, int i);
+
+  /**
+   * Sets an element of a slot
+   * @param slot The slot
+   * @param i The position of the element in the slot
+   * @param value The value of the element
+   */
+  public abstract void set(int slot, int i, long value);
+
+  /**
+   * Copies values into consecutive elements of a slot
+   * @param slot The slot
+   * @param i The position of the first element in the slot
+   * @param values The values
+   */
+  public abstract void put(int slot, int i, /*@ non_null @*/ long[] values);
+
+  /**
+   * Sets all the elements of a slot to zero
+   * @param slot The slot
+   */
+  public abstract void clear(int slot);
+
+  /**
+   * Applies a transfer matrix to the first elements of a slot (see
+   * {@link TransferMatrix#multiply(long[], int, long[], long[])})
+   * @param m The matrix
+   * @param slot The slot
+   * @param y The array to which the result is added
+   * @param verdicts The array to which the number of uni-traces of each
+   * verdict is added
+   * @return <tt>true</tt> if some uni-trace was moved, <tt>false</tt>
+   * otherwise
+   * @throws ArithmeticException If some number overflows
+   */
+  public abstract boolean multiply(/*@ non_null @*/ TransferMatrix m, int slot, /*@ non_null @*/ long[] y, /*@ non_null @*/ long[] verdicts);
+
+  /**
+   * A store keeping all the slots in one array on the heap
+   */
+  public static class Heap extends SlotStore
+  {
+    /**
+     * The largest number of elements of an array that all virtual machines
+     * can allocate
+     */
+    public static final int MAX_ELEMENTS = Integer.MAX_VALUE - 8;
+
+    /**
+     * The elements of the slots; element <i>i</i> of slot <i>k</i> is at
+     * position <i>k</i>&middot;<i>w</i> + <i>i</i>
+     */
+    /*@ non_null @*/ protected long[] m_values;
+
+    /**
+     * Creates a new store
+     * @param width The number of <tt>long</tt>s in each slot
+     */
+    public Heap(int width)
+    {
+      super(width);
+      m_values = new long[16 * width];
+    }
+
+    @Override
+    public int getCapacity()
+    {
+      return m_width == 0 ? Integer.MAX_VALUE : m_values.length / m_width;
+    }
+
+    @Override
+    public void ensureCapacity(int slots)
+    {
+      int capacity = getCapacity();
+      if (slots <= capacity)
+      {
+        return;
+      }
+      long max_slots = MAX_ELEMENTS / m_width;
+      if (slots > max_slots)
+      {
+        throw new IllegalStateException("A heap store cannot hold " + slots + " slots of " + m_width + " elements");
+      }
+      // Doubling is computed on longs, and stops at the largest array
+      long new_slots = Math.min(Math.max(slots, 2L * capacity), max_slots);
+      m_values = Arrays.copyOf(m_values, (int) (new_slots * m_width));
+    }
+
+    @Override
+    public long get(int slot, int i)
+    {
+      return m_values[getIndex(slot, i)];
+    }
+
+    @Override
+    public void set(int slot, int i, long value)
+    {
+      m_values[getIndex(slot, i)] = value;
+    }
+
+    @Override
+    public void put(int slot, int i, long[] values)
+    {
+      System.arraycopy(values, 0, m_values, getIndex(slot, i), values.length);
+    }
+
+    @Override
+    public void clear(int slot)
+    {
+      int from = getIndex(slot, 0);
+      Arrays.fill(m_values, from, from + m_width, 0);
+    }
+
+    @Override
+    public boolean multiply(TransferMatrix m, int slot, long[] y, long[] verdicts)
+    {
+      return m.multiply(m_values, getIndex(slot, 0), y, verdicts);
+    }
+
+    /**
+     * Gets the position of an element in {@link #m_values}. The position
+     * is computed on a <tt>long</tt>, so that a slot beyond the capacity
+     * of the store cannot wrap around to the position of another slot.
+     * @param slot The slot
+     * @param i The position of the element in the slot
+     * @return The position in the array
+     * @throws IndexOutOfBoundsException If the slot is beyond the capacity
+     * of the store
+     */
+    protected int getIndex(int slot, int i)
+    {
+      long index = (long) slot * m_width + i;
+      if (index < 0 || index >= m_values.length)
+      {
+        throw new IndexOutOfBoundsException("Slot " + slot + " is beyond the capacity of the store");
+      }
+      return (int) index;
+    }
+  }
+
+  /**
+   * A store keeping the slots in direct buffers, outside of the heap. The
+   * buffers are allocated in chunks of a fixed number of slots, so that
+   * the number of slots is not limited by the maximum size of a buffer,
+   * and existing slots are never copied when the store grows.
+   */
+  public static class Direct extends SlotStore
+  {
+    /**
+     * The default size of a chunk, in bytes
+     */
+    public static final int DEFAULT_CHUNK_BYTES = 1 << 22;
+
+    /**
+     * The number of slots in each chunk
+     */
+    protected final int m_chunkSlots;
+
+    /**
+     * The chunks
+     */
+    /*@ non_null @*/ protected LongBuffer[] m_chunks = new LongBuffer[0];
+
+    /**
+     * Creates a new store with chunks of the default size
+     * @param width The number of <tt>long</tt>s in each slot
+     */
+    public Direct(int width)
+    {
+      this(width, DEFAULT_CHUNK_BYTES);
+    }
+
+    /**
+     * Creates a new store
+     * @param width The number of <tt>long</tt>s in each slot
+     * @param chunk_bytes The size of a chunk, in bytes; a chunk holds at
+     * least one slot
+     */
+    public Direct(int width, int chunk_bytes)
+    {
+      super(width);
+      m_chunkSlots = Math.max(1, chunk_bytes / (8 * Math.max(1, width)));
+    }
+
+    @Override
+    public int getCapacity()
+    {
+      return (int) Math.min(Integer.MAX_VALUE, (long) m_chunks.length * m_chunkSlots);
+    }
+
+    @Override
+    public void ensureCapacity(int slots)
+    {
+      // Computed on longs: the number of slots can be close to the largest
+      // integer
+      int chunks = (int) (((long) slots + m_chunkSlots - 1) / m_chunkSlots);
+      if (chunks <= m_chunks.length)
+      {
+        return;
+      }
+      int old = m_chunks.length;
+      m_chunks = Arrays.copyOf(m_chunks, chunks);
+      for (int c = old; c < chunks; c++)
+      {
+        m_chunks[c] = ByteBuffer.allocateDirect(m_chunkSlots * m_width * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+      }
+    }
+
+    @Override
+    public long get(int slot, int i)
+    {
+      return m_chunks[slot / m_chunkSlots].get((slot % m_chunkSlots) * m_width + i);
+    }
+
+    @Override
+    public void set(int slot, int i, long value)
+    {
+      m_chunks[slot / m_chunkSlots].put((slot % m_chunkSlots) * m_width + i, value);
+    }
+
+    @Override
+    public void put(int slot, int i, long[] values)
+    {
+      LongBuffer chunk = m_chunks[slot / m_chunkSlots];
+      int offset = (slot % m_chunkSlots) * m_width + i;
+      for (int j = 0; j < values.length; j++)
+      {
+        chunk.put(offset + j, values[j]);
+      }
+    }
+
+    @Override
+    public void clear(int slot)
+    {
+      LongBuffer chunk = m_chunks[slot / m_chunkSlots];
+      int offset = (slot % m_chunkSlots) * m_width;
+      for (int j = 0; j < m_width; j++)
+      {
+        chunk.put(offset + j, 0);
+      }
+    }
+
+    @Override
+    public boolean multiply(TransferMatrix m, int slot, long[] y, long[] verdicts)
+    {
+      return m.multiply(m_chunks[slot / m_chunkSlots], (slot % m_chunkSlots) * m_width, y, verdicts);
+    }
+  }
+}
@@ -0,0 +1,261 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import ca.uqac.lif.cep.ltl.Troolean;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Maps a single valuation to the outgoing transition of a state of a
+ * {@link CompiledMachine} that it fires. Whenever possible, the dispatch
+ * uses a jump table indexed by the values of the variables that occur in
+ * the conditions of the state, so that finding the transition only costs
+ * a lookup of these variables in the valuation. The table is not built
+ * when these conditions involve more than {@link #MAX_VARIABLES} variables,
+ * or when some concrete condition is not expressed over all of them; in
+ * this case, and for valuations that are not Boolean on the variables of
+ * the table, the conditions are tested one by one.
+ * <p>
+ * A valuation is considered to fire a transition when it belongs to its
+ * condition. Otherwise transitions are ignored: it is up to the caller to
+ * take them when no other transition fires.
+ */
+public class StateDispatch
+{
+  /**
+   * The maximum number of variables over which a jump table is built
+   */
+  public static final int MAX_VARIABLES = 12;
+
+  /**
+   * The conditions of the state's transitions, as in
+   * {@link CompiledMachine}; <tt>null</tt> for otherwise transitions
+   */
+  /*@ non_null @*/ protected final MultiEvent[] m_conditions;
+
+  /**
+   * The position in the compiled machine of the first transition of the
+   * state
+   */
+  protected final int m_first;
+
+  /**
+   * The indices of the variables of the jump table, in ascending order;
+   * <tt>null</tt> if there is no table
+   */
+  /*@ null @*/ protected final int[] m_domain;
+
+  /**
+   * The jump table; each row holds the position of the transition fired by
+   * the corresponding valuation, or -1
+   */
+  /*@ null @*/ protected final int[] m_table;
+
+  /**
+   * Whether some condition of the state is a concrete multi-event; in such
+   * a case, a valuation may only fire the transition if it defines
+   * exactly the variables of the table
+   */
+  protected final boolean m_exactDomain;
+
+  /**
+   * Creates the dispatch structure for a state of a compiled machine
+   * @param machine The compiled machine
+   * @param state The ID of the state
+   */
+  public StateDispatch(/*@ non_null @*/ CompiledMachine machine, int state)
+  {
+    super();
+    m_first = machine.getFirstTransition(state);
+    m_conditions = new MultiEvent[machine.getFirstTransition(state + 1) - m_first];
+    for (int i = 0; i < m_conditions.length; i++)
+    {
+      m_conditions[i] = machine.getCondition(m_first + i);
+    }
+    // Find the variables involved in the conditions
+    Set<String> names = new HashSet<String>();
+    boolean exact = false;
+    for (MultiEvent c : m_conditions)
+    {
+      if (c == null || c instanceof ConcreteMultiEvent.All || c instanceof SymbolicMultiEvent.All)
+      {
+        continue;
+      }
+      if (c instanceof ConcreteMultiEvent)
+      {
+        exact = true;
+        for (Valuation v : c.getValuations())
+        {
+          names.addAll(v.keySet());
+        }
+      }
+      else
+      {
+        names.addAll(c.getDomain());
+      }
+    }
+    m_exactDomain = exact;
+    int[] domain = BddManager.getDomain(names);
+    int[] table = null;
+    if (domain.length <= MAX_VARIABLES)
+    {
+      table = buildTable(domain);
+    }
+    m_domain = table == null ? null : domain;
+    m_table = table;
+  }
+
+  /**
+   * Gets the transition fired by a valuation. If the valuation belongs to
+   * the conditions of more than one transition, the last one in the order
+   * of the machine is returned.
+   * @param v The valuation
+   * @return The position in the compiled machine of the transition, or -1
+   * if the valuation fires no transition other than an otherwise
+   * transition
+   */
+  public int getTransition(/*@ non_null @*/ Valuation v)
+  {
+    if (m_table != null && (!m_exactDomain || v.size() == m_domain.length))
+    {
+      int row = getRow(v, m_domain);
+      if (row >= 0)
+      {
+        return m_table[row];
+      }
+    }
+    for (int i = m_conditions.length - 1; i >= 0; i--)
+    {
+      if (m_conditions[i] != null && contains(m_conditions[i], v))
+      {
+        return m_first + i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Determines if this dispatch uses a jump table
+   * @return <tt>true</tt> if it does, <tt>false</tt> otherwise
+   */
+  public boolean hasTable()
+  {
+    return m_table != null;
+  }
+
+  /**
+   * Fills the jump table over a set of variables
+   * @param domain The indices of the variables
+   * @return The table, or <tt>null</tt> if some concrete condition is not
+   * expressed over exactly these variables
+   */
+  /*@ null @*/ protected int[] buildTable(int[] domain)
+  {
+    int rows = 1 << domain.length;
+    int[] table = new int[rows];
+    Arrays.fill(table, -1);
+    Valuation u = new Valuation();
+    for (int i = 0; i < m_conditions.length; i++)
+    {
+      MultiEvent c = m_conditions[i];
+      if (c == null || c instanceof SymbolicMultiEvent.Nothing || c instanceof ConcreteMultiEvent.Nothing)
+      {
+        continue;
+      }
+      if (c instanceof ConcreteMultiEvent && !(c instanceof ConcreteMultiEvent.All))
+      {
+        for (Valuation v : c.getValuations())
+        {
+          if (v.size() != domain.length)
+          {
+            return null;
+          }
+          int row = getRow(v, domain);
+          if (row >= 0)
+          {
+            // Later transitions take precedence
+            table[row] = m_first + i;
+          }
+        }
+        continue;
+      }
+      for (int r = 0; r < rows; r++)
+      {
+        for (int j = 0; j < domain.length; j++)
+        {
+          u.put(domain[j], (r & (1 << j)) != 0 ? Troolean.Value.TRUE : Troolean.Value.FALSE);
+        }
+        if (contains(c, u))
+        {
+          table[r] = m_first + i;
+        }
+      }
+    }
+    return table;
+  }
+
+  /**
+   * Gets the row of a jump table corresponding to a valuation
+   * @param v The valuation
+   * @param domain The indices of the variables of the table
+   * @return The row, or -1 if a variable of the domain is inconclusive or
+   * not defined in the valuation
+   */
+  protected static int getRow(Valuation v, int[] domain)
+  {
+    int row = 0;
+    for (int j = 0; j < domain.length; j++)
+    {
+      int code = v.getCode(domain[j]);
+      if (code == 2)
+      {
+        return -1;
+      }
+      row |= code << j;
+    }
+    return row;
+  }
+
+  /**
+   * Determines if a valuation belongs to a multi-event, in the same sense
+   * as {@link MultiEvent#getIntersection(MultiEvent)} when applied to a
+   * concrete multi-event made of this valuation
+   * @param e The multi-event
+   * @param v The valuation
+   * @return <tt>true</tt> if the valuation belongs to the multi-event,
+   * <tt>false</tt> otherwise
+   */
+  public static boolean contains(/*@ non_null @*/ MultiEvent e, /*@ non_null @*/ Valuation v)
+  {
+    if (e instanceof ConcreteMultiEvent.All || e instanceof SymbolicMultiEvent.All)
+    {
+      return true;
+    }
+    if (e instanceof SymbolicMultiEvent)
+    {
+      return ((SymbolicMultiEvent) e).getFormula().evaluate(v) == Troolean.Value.TRUE;
+    }
+    if (e instanceof ConcreteMultiEvent)
+    {
+      return ((ConcreteMultiEvent) e).contains(v);
+    }
+    return e.getValuations().contains(v);
+  }
+}
@@ -0,0 +1,255 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import ca.uqac.lif.cep.ltl.Troolean;
+
+/**
+ * Remembers the effect of input multi-events on the states of a
+ * {@link CompiledMachine}. For a fixed machine, the uni-traces that are in
+ * a given state and read a given multi-event always move to the same
+ * destinations, with the same multiplicities and the same verdicts; a
+ * {@link MultiMonitor} can therefore compute this effect once (a
+ * {@link Row}) and reuse it every time the same multi-event is read again
+ * in the same state, without intersecting any condition.
+ * <p>
+ * Multi-events are compared with their <tt>equals</tt> method: two
+ * {@link ConcreteMultiEvent}s with the same valuations share their rows,
+ * while other multi-events are only recognized when the same object is
+ * read again. The cache keeps the rows of at most a fixed number of
+ * distinct multi-events; when this number is exceeded, the multi-event
+ * that was least recently read is evicted. A multi-event used as a key
+ * must not be modified afterwards.
+ * <p>
+ * The rows of a cache are only meaningful for the machine they were
+ * computed on, and a cache must therefore not be shared between
+ * multi-monitors lifted from different uni-monitors.
+ */
+public class StepCache
+{
+  /**
+   * The default maximum number of distinct multi-events in a cache
+   */
+  public static final int DEFAULT_CAPACITY = 256;
+
+  /**
+   * The rows computed for each multi-event, indexed by state ID, in
+   * access order
+   */
+  /*@ non_null @*/ protected final LruMap<MultiEvent,Row[]> m_rows;
+
+  /**
+   * The number of states of the machine
+   */
+  protected final int m_stateCount;
+
+  /**
+   * The number of lookups of a row that was already in the cache
+   */
+  protected long m_hits;
+
+  /**
+   * The number of lookups of a row that had to be computed
+   */
+  protected long m_misses;
+
+  /**
+   * Creates a new cache
+   * @param state_count The number of states of the machine
+   * @param capacity The maximum number of distinct multi-events whose
+   * rows are kept
+   */
+  public StepCache(int state_count, int capacity)
+  {
+    super();
+    m_stateCount = state_count;
+    m_rows = new LruMap<MultiEvent,Row[]>(capacity);
+  }
+
+  /**
+   * Gets the rows of a multi-event. If the multi-event is not in the
+   * cache, an array of empty rows is added for it (possibly evicting
+   * another multi-event). The rows of the states that have not been
+   * computed yet are <tt>null</tt>; the caller is expected to fill them.
+   * @param e The multi-event
+   * @return The array of rows, indexed by state ID
+   */
+  /*@ non_null @*/ public synchronized Row[] getRows(/*@ non_null @*/ MultiEvent e)
+  {
+    Row[] rows = m_rows.get(e);
+    if (rows == null)
+    {
+      rows = new Row[m_stateCount];
+      m_rows.put(e, rows);
+    }
+    return rows;
+  }
+
+  /**
+   * Adds to the statistics of the cache
+   * @param hits The number of rows found in the cache
+   * @param misses The number of rows that had to be computed
+   */
+  public synchronized void record(long hits, long misses)
+  {
+    m_hits += hits;
+    m_misses += misses;
+  }
+
+  /**
+   * Gets the number of lookups of a row that was already in the cache
+   * @return The number of hits
+   */
+  public synchronized long getHits()
+  {
+    return m_hits;
+  }
+
+  /**
+   * Gets the number of lookups of a row that had to be computed
+   * @return The number of misses
+   */
+  public synchronized long getMisses()
+  {
+    return m_misses;
+  }
+
+  /**
+   * Gets the number of multi-events that were evicted from the cache
+   * because it was full
+   * @return The number of evictions
+   */
+  public synchronized long getEvictions()
+  {
+    return m_rows.getEvictions();
+  }
+
+  /**
+   * Gets the number of distinct multi-events currently in the cache
+   * @return The number of multi-events
+   */
+  public synchronized int size()
+  {
+    return m_rows.size();
+  }
+
+  /**
+   * Gets the maximum number of distinct multi-events in the cache
+   * @return The capacity
+   */
+  public int getCapacity()
+  {
+    return m_rows.getCapacity();
+  }
+
+  /**
+   * Removes all the rows from the cache and resets its statistics
+   */
+  public synchronized void clear()
+  {
+    m_rows.clear();
+    m_hits = 0;
+    m_misses = 0;
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    StringBuilder out = new StringBuilder();
+    out.append("{size=").append(m_rows.size()).append(",hits=").append(m_hits).append(",misses=").append(m_misses).append(",evictions=").append(m_rows.getEvictions()).append("}");
+    return out.toString();
+  }
+
+  /**
+   * The effect of an input multi-event on the uni-traces in one state of a
+   * machine: for each transition fired by some valuation of the
+   * multi-event, the state it leads to, the number of valuations that
+   * fire it and the verdict it produces. Rows are immutable.
+   */
+  public static class Row
+  {
+    /**
+     * The destination of each fired transition
+     */
+    /*@ non_null @*/ protected final int[] m_destinations;
+
+    /**
+     * The number of input valuations that fire each transition
+     */
+    /*@ non_null @*/ protected final long[] m_multipliers;
+
+    /**
+     * The verdict produced by each transition
+     */
+    /*@ non_null @*/ protected final Troolean.Value[] m_verdicts;
+
+    /**
+     * Creates a new row
+     * @param destinations The destination of each fired transition
+     * @param multipliers The number of input valuations that fire each
+     * transition
+     * @param verdicts The verdict produced by each transition
+     */
+    public Row(/*@ non_null @*/ int[] destinations, /*@ non_null @*/ long[] multipliers, /*@ non_null @*/ Troolean.Value[] verdicts)
+    {
+      super();
+      m_destinations = destinations;
+      m_multipliers = multipliers;
+      m_verdicts = verdicts;
+    }
+
+    /**
+     * Gets the number of transitions fired in this row
+     * @return The number of transitions
+     */
+    public int size()
+    {
+      return m_destinations.length;
+    }
+
+    /**
+     * Gets the destination of a fired transition
+     * @param i The position of the transition in the row
+     * @return The ID of the destination state
+     */
+    public int getDestination(int i)
+    {
+      return m_destinations[i];
+    }
+
+    /**
+     * Gets the number of input valuations that fire a transition
+     * @param i The position of the transition in the row
+     * @return The number of valuations
+     */
+    public long getMultiplier(int i)
+    {
+      return m_multipliers[i];
+    }
+
+    /**
+     * Gets the verdict produced by a fired transition
+     * @param i The position of the transition in the row
+     * @return The verdict
+     */
+    public Troolean.Value getVerdict(int i)
+    {
+      return m_verdicts[i];
+    }
+  }
+}
@@ -72,7 +72,18 @@ public class SymbolicMultiEvent implements MultiEvent
   @Override
   public Set<Valuation> getValuations()
   {
+    TruthTable t = m_formula.getTruthTable();
+    if (t != null)
+    {
+      return t.getValuations();
+    }
     Set<String> domain = getDomain();
+    BddManager manager = BddManager.getInstance();
+    int bdd = m_formula.getBdd(manager);
+    if (bdd >= 0)
+    {
+      return manager.getValuations(bdd, BddManager.getDomain(domain));
+    }
     HashSet<Valuation> valuations = new HashSet<Valuation>();
     ValuationIterator it = new ValuationIterator(domain);
     while (it.hasNext())
@@ -100,6 +111,20 @@ public class SymbolicMultiEvent implements MultiEvent
     return null;
   }
 
+  @Override
+  public long getIntersectionCount(MultiEvent e)
+  {
+    if (e instanceof ConcreteMultiEvent)
+    {
+      return countCommon((ConcreteMultiEvent) e);
+    }
+    if (e instanceof SymbolicMultiEvent)
+    {
+      return countCommon((SymbolicMultiEvent) e);
+    }
+    return 0;
+  }
+
   /**
    * Determines if this multi-event intersects with another symbolic
    * multi-event.
@@ -108,9 +133,27 @@ public class SymbolicMultiEvent implements MultiEvent
    */
   protected Set<Valuation> intersectsWith(SymbolicMultiEvent e)
   {
-    Set<Valuation> common_valuations = new HashSet<Valuation>();
+    TruthTable t1 = m_formula.getTruthTable();
+    TruthTable t2 = e.m_formula.getTruthTable();
+    if (t1 != null && t2 != null)
+    {
+      TruthTable conj = t1.and(t2);
+      if (conj != null)
+      {
+        return conj.getValuations();
+      }
+    }
     Set<String> domain = getDomain();
     domain.addAll(e.getDomain());
+    BddManager manager = BddManager.getInstance();
+    int f = m_formula.getBdd(manager);
+    int g = e.m_formula.getBdd(manager);
+    if (f >= 0 && g >= 0)
+    {
+      // Conjunction of the diagrams: no enumeration of the domain
+      return manager.getValuations(manager.and(f, g), BddManager.getDomain(domain));
+    }
+    Set<Valuation> common_valuations = new HashSet<Valuation>();
     ValuationIterator it = new ValuationIterator(domain);
     while (it.hasNext())
     {
@@ -143,6 +186,91 @@ public class SymbolicMultiEvent implements MultiEvent
     return common_valuations;
   }
   
+  /**
+   * Counts the common valuations between this multi-event and another
+   * symbolic multi-event.
+   * @param e The other multi-event
+   * @return The number of common valuations
+   * @throws ArithmeticException If the number of valuations does not fit
+   * in a <tt>long</tt>
+   */
+  protected long countCommon(SymbolicMultiEvent e)
+  {
+    TruthTable t1 = m_formula.getTruthTable();
+    TruthTable t2 = e.m_formula.getTruthTable();
+    if (t1 != null && t2 != null)
+    {
+      long count = t1.countCommon(t2);
+      if (count >= 0)
+      {
+        return count;
+      }
+    }
+    Set<String> domain = getDomain();
+    domain.addAll(e.getDomain());
+    BddManager manager = BddManager.getInstance();
+    int f = m_formula.getBdd(manager);
+    int g = e.m_formula.getBdd(manager);
+    if (f >= 0 && g >= 0)
+    {
+      return manager.satCount(manager.and(f, g), BddManager.getDomain(domain)).longValueExact();
+    }
+    long count = 0;
+    ValuationIterator it = new ValuationIterator(domain);
+    while (it.hasNext())
+    {
+      Valuation v = it.next();
+      if (e.m_formula.evaluate(v) == Troolean.Value.TRUE && m_formula.evaluate(v) == Troolean.Value.TRUE)
+      {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Counts the common valuations between this multi-event and a concrete
+   * multi-event.
+   * @param e The other multi-event
+   * @return The number of common valuations
+   */
+  protected long countCommon(ConcreteMultiEvent e)
+  {
+    long count = 0;
+    Valuation v = new Valuation();
+    for (int i = 0; i < e.getValuationCount(); i++)
+    {
+      if (m_formula.evaluate(e.getValuation(i, v)) == Troolean.Value.TRUE)
+      {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Counts the valuations represented by this multi-event
+   * @return The number of valuations
+   * @throws ArithmeticException If the number of valuations does not fit
+   * in a <tt>long</tt>
+   */
+  @Override
+  public long getValuationCount()
+  {
+    TruthTable t = m_formula.getTruthTable();
+    if (t != null)
+    {
+      return t.count();
+    }
+    BddManager manager = BddManager.getInstance();
+    int bdd = m_formula.getBdd(manager);
+    if (bdd >= 0)
+    {
+      return manager.satCount(bdd, BddManager.getDomain(getDomain())).longValueExact();
+    }
+    return getValuations().size();
+  }
+
   /**
    * Multi-event that contains all valuations
    */
@@ -164,6 +292,18 @@ public class SymbolicMultiEvent implements MultiEvent
     {
       return e.getValuations();
     }
+    
+    @Override
+    protected long countCommon(SymbolicMultiEvent e)
+    {
+      return e.getValuationCount();
+    }
+    
+    @Override
+    protected long countCommon(ConcreteMultiEvent e)
+    {
+      return e.getValuationCount();
+    }
   }
 
   /**
@@ -175,6 +315,18 @@ public class SymbolicMultiEvent implements MultiEvent
     {
       super(new PropositionalFormula(Troolean.FALSE));
     }
+    
+    @Override
+    protected long countCommon(SymbolicMultiEvent e)
+    {
+      return 0;
+    }
+    
+    @Override
+    protected long countCommon(ConcreteMultiEvent e)
+    {
+      return 0;
+    }
   }
   
   @Override
@@ -0,0 +1,588 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import ca.uqac.lif.cep.Connector;
+import ca.uqac.lif.cep.Pushable;
+import ca.uqac.lif.cep.propman.MultiMonitor.VerdictCount;
+import ca.uqac.lif.cep.tmf.QueueSink;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Multi-monitors, each optionally preceded by an access proxy, associated
+ * to keys (for example, one per user session), of which only the
+ * recently used ones are kept in memory. Each key gets its own copy of the
+ * proxy and its own {@link MultiMonitor} lifted from a shared compiled
+ * uni-monitor, created on its first event.
+ * <p>
+ * The monitors are kept in memory in the order of their last access. When
+ * there are more than a {@link #setMaxResident(int) maximum number} of
+ * them, or when a monitor has not been accessed for a
+ * {@link #setIdleTimeout(long) given time}, its state (the mapping
+ * &sigma; and the verdicts of the multi-monitor, and the current state of
+ * the proxy) is written to a {@link SegmentStore} on disk, and the
+ * objects are released. The state is read back, and the objects created
+ * again, on the next event for the key. This state is written compactly:
+ * counts take a variable number of bytes, and most counts are zero.
+ * <p>
+ * The store is not thread-safe; a {@link ShardedRuntime} can give one
+ * store to each of its shards.
+ */
+public class TieredMonitorStore
+{
+  /**
+   * The default maximum number of monitors in memory
+   */
+  public static final int DEFAULT_MAX_RESIDENT = 10000;
+
+  /**
+   * The access proxy copied for each key, or <tt>null</tt> if events go
+   * directly to the multi-monitors
+   */
+  /*@ null @*/ protected final ExplicitPropositionalMachine m_proxy;
+
+  /**
+   * The compiled transition relation of the proxy
+   */
+  /*@ null @*/ protected final CompiledMachine m_proxyMachine;
+
+  /**
+   * The uni-monitor
+   */
+  /*@ non_null @*/ protected final PropositionalMachine m_monitor;
+
+  /**
+   * The compiled uni-monitor, shared by all the multi-monitors
+   */
+  /*@ non_null @*/ protected final CompiledMachine m_machine;
+
+  /**
+   * The monitors in memory, in the order of their last access
+   */
+  /*@ non_null @*/ protected final LinkedHashMap<Object,Resident> m_resident;
+
+  /**
+   * The state of the monitors that are not in memory
+   */
+  /*@ non_null @*/ protected final SegmentStore m_spilled;
+
+  /**
+   * The maximum number of monitors in memory
+   */
+  protected int m_maxResident = DEFAULT_MAX_RESIDENT;
+
+  /**
+   * The time after which a monitor that has not been accessed is written to
+   * disk, in milliseconds; 0 or less to keep monitors regardless of their
+   * last access
+   */
+  protected long m_idleTimeout = 0;
+
+  /**
+   * The number of events for a monitor that was in memory
+   */
+  protected long m_hits = 0;
+
+  /**
+   * The number of monitors read back from disk
+   */
+  protected long m_loads = 0;
+
+  /**
+   * The number of monitors written to disk
+   */
+  protected long m_evictions = 0;
+
+  /**
+   * Creates a new store
+   * @param proxy The access proxy copied for each key, or <tt>null</tt>
+   * to send events directly to the multi-monitors
+   * @param monitor The uni-monitor; its transition relation is compiled at
+   * this moment
+   * @param directory The directory where the state of the monitors is
+   * written
+   * @throws IOException If the directory cannot be used
+   */
+  public TieredMonitorStore(/*@ null @*/ ExplicitPropositionalMachine proxy, /*@ non_null @*/ PropositionalMachine monitor, /*@ non_null @*/ File directory) throws IOException
+  {
+    super();
+    m_proxy = proxy;
+    // Compiled once here, so that the copies of the proxy share it
+    m_proxyMachine = proxy == null ? null : proxy.getCompiledMachine();
+    m_monitor = monitor;
+    m_machine = CompiledMachine.compile(monitor);
+    m_resident = new LinkedHashMap<Object,Resident>(16, 0.75f, true);
+    m_spilled = new SegmentStore(directory);
+  }
+
+  /**
+   * Sets the maximum number of monitors kept in memory
+   * @param max The number of monitors
+   * @return This store
+   * @throws IOException If monitors in excess cannot be written to disk
+   */
+  public TieredMonitorStore setMaxResident(int max) throws IOException
+  {
+    m_maxResident = Math.max(1, max);
+    evictExcess();
+    return this;
+  }
+
+  /**
+   * Sets the time after which a monitor that has not been accessed is
+   * written to disk. Idle monitors are written by
+   * {@link #evictIdle(long)}, and before each event.
+   * @param timeout The time, in milliseconds; 0 or less to keep monitors
+   * regardless of their last access
+   * @return This store
+   */
+  public TieredMonitorStore setIdleTimeout(long timeout)
+  {
+    m_idleTimeout = timeout;
+    return this;
+  }
+
+  /**
+   * Sends a multi-event to the monitor of a key
+   * @param key The key
+   * @param e The multi-event
+   * @return The verdict count produced by the multi-monitor, or
+   * <tt>null</tt> if the proxy or the multi-monitor produced no output
+   * @throws IOException If monitors cannot be written to or read from disk
+   */
+  /*@ null @*/ public VerdictCount push(/*@ non_null @*/ Object key, /*@ non_null @*/ MultiEvent e) throws IOException
+  {
+    long now = System.currentTimeMillis();
+    evictIdle(now);
+    Resident r = getResident(key);
+    r.m_lastAccess = now;
+    r.m_input.push(e);
+    VerdictCount verdict = null;
+    while (!r.m_outputs.isEmpty())
+    {
+      verdict = (VerdictCount) r.m_outputs.remove();
+    }
+    evictExcess();
+    return verdict;
+  }
+
+  /**
+   * Forgets the monitor of a key, in memory or on disk. A later event for
+   * the key starts a new monitor.
+   * @param key The key
+   * @throws IOException If the state of the monitor cannot be removed from
+   * disk
+   */
+  public void remove(/*@ non_null @*/ Object key) throws IOException
+  {
+    if (m_resident.remove(key) == null)
+    {
+      m_spilled.remove(key);
+    }
+  }
+
+  /**
+   * Writes to disk the monitors that have not been accessed for the idle
+   * timeout
+   * @param now The current time, in milliseconds
+   * @return The number of monitors written
+   * @throws IOException If the monitors cannot be written
+   */
+  public int evictIdle(long now) throws IOException
+  {
+    if (m_idleTimeout <= 0)
+    {
+      return 0;
+    }
+    int evicted = 0;
+    Iterator<Map.Entry<Object,Resident>> it = m_resident.entrySet().iterator();
+    while (it.hasNext())
+    {
+      Map.Entry<Object,Resident> entry = it.next();
+      if (now - entry.getValue().m_lastAccess < m_idleTimeout)
+      {
+        // The other monitors were accessed more recently
+        break;
+      }
+      spill(entry.getKey(), entry.getValue());
+      it.remove();
+      evicted++;
+    }
+    return evicted;
+  }
+
+  /**
+   * Writes to disk all the monitors in memory
+   * @throws IOException If the monitors cannot be written
+   */
+  public void evictAll() throws IOException
+  {
+    for (Map.Entry<Object,Resident> entry : m_resident.entrySet())
+    {
+      spill(entry.getKey(), entry.getValue());
+    }
+    m_resident.clear();
+  }
+
+  /**
+   * Gets the number of monitors in memory
+   * @return The number of monitors
+   */
+  public int getResidentCount()
+  {
+    return m_resident.size();
+  }
+
+  /**
+   * Gets the number of monitors on disk
+   * @return The number of monitors
+   */
+  public int getSpilledCount()
+  {
+    return m_spilled.size();
+  }
+
+  /**
+   * Gets the number of events for a monitor that was in memory
+   * @return The number of hits
+   */
+  public long getHits()
+  {
+    return m_hits;
+  }
+
+  /**
+   * Gets the number of monitors read back from disk
+   * @return The number of loads
+   */
+  public long getLoads()
+  {
+    return m_loads;
+  }
+
+  /**
+   * Gets the number of monitors written to disk
+   * @return The number of evictions
+   */
+  public long getEvictions()
+  {
+    return m_evictions;
+  }
+
+  /**
+   * Gets the store holding the monitors on disk
+   * @return The store
+   */
+  /*@ non_null @*/ public SegmentStore getSpilled()
+  {
+    return m_spilled;
+  }
+
+  /**
+   * Releases the monitors and deletes their state on disk. The store can
+   * no longer be used afterwards.
+   * @throws IOException If the files cannot be deleted
+   */
+  public void close() throws IOException
+  {
+    m_resident.clear();
+    m_spilled.close();
+  }
+
+  @Override
+  public String toString()
+  {
+    return m_resident.size() + " resident, " + m_spilled.size() + " spilled, " + m_hits + " hits, " + m_loads + " loads, " + m_evictions + " evictions";
+  }
+
+  /**
+   * Gets the monitor of a key, reading it from disk or creating it if it
+   * is not in memory
+   * @param key The key
+   * @return The monitor
+   * @throws IOException If the monitor cannot be read
+   */
+  /*@ non_null @*/ protected Resident getResident(/*@ non_null @*/ Object key) throws IOException
+  {
+    Resident r = m_resident.get(key);
+    if (r != null)
+    {
+      m_hits++;
+      return r;
+    }
+    r = new Resident();
+    byte[] record = m_spilled.remove(key);
+    if (record != null)
+    {
+      m_loads++;
+      restore(r, record);
+    }
+    m_resident.put(key, r);
+    return r;
+  }
+
+  /**
+   * Writes to disk the least recently used monitors in excess of the
+   * maximum
+   * @throws IOException If the monitors cannot be written
+   */
+  protected void evictExcess() throws IOException
+  {
+    Iterator<Map.Entry<Object,Resident>> it = m_resident.entrySet().iterator();
+    while (m_resident.size() > m_maxResident && it.hasNext())
+    {
+      Map.Entry<Object,Resident> entry = it.next();
+      spill(entry.getKey(), entry.getValue());
+      it.remove();
+    }
+  }
+
+  /**
+   * Writes the state of a monitor to disk
+   * @param key The key of the monitor
+   * @param r The monitor
+   * @throws IOException If the state cannot be written
+   */
+  protected void spill(/*@ non_null @*/ Object key, /*@ non_null @*/ Resident r) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    if (r.m_proxy != null)
+    {
+      r.m_proxy.getCompiledMachine();
+      writeVarLong(out, r.m_proxy.m_stateId + 1);
+    }
+    CountVector sigma = r.m_monitor.m_sigma;
+    VerdictCount beta = r.m_monitor.m_verdicts;
+    boolean small = sigma.isLong() && beta.m_numTrue.isLong() && beta.m_numFalse.isLong() && beta.m_numInconclusive.isLong();
+    out.writeBoolean(small);
+    for (int s = 0; s < sigma.size(); s++)
+    {
+      if (small)
+      {
+        writeVarLong(out, sigma.longValue(s));
+      }
+      else
+      {
+        writeBigInteger(out, sigma.get(s));
+      }
+    }
+    writeCount(out, small, beta.m_numTrue);
+    writeCount(out, small, beta.m_numFalse);
+    writeCount(out, small, beta.m_numInconclusive);
+    out.flush();
+    m_spilled.put(key, bytes.toByteArray());
+    m_evictions++;
+  }
+
+  /**
+   * Restores the state of a monitor read from disk
+   * @param r The monitor, as created for a new key
+   * @param record The state written by
+   * {@link #spill(Object, Resident)}
+   * @throws IOException If the state is malformed
+   */
+  protected void restore(/*@ non_null @*/ Resident r, /*@ non_null @*/ byte[] record) throws IOException
+  {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    if (r.m_proxy != null)
+    {
+      int id = (int) readVarLong(in) - 1;
+      r.m_proxy.m_stateId = id;
+      // A state without transitions is not in the compiled machine
+      r.m_proxy.m_state = id < 0 ? null : m_proxyMachine.getState(id);
+    }
+    boolean small = in.readBoolean();
+    CountVector sigma = new CountVector(m_machine.getStateCount());
+    for (int s = 0; s < sigma.size(); s++)
+    {
+      if (small)
+      {
+        sigma.set(s, readVarLong(in));
+      }
+      else
+      {
+        sigma.add(s, readBigInteger(in));
+      }
+    }
+    VerdictCount beta = new VerdictCount();
+    Counter[] counters = {beta.m_numTrue, beta.m_numFalse, beta.m_numInconclusive};
+    for (Counter c : counters)
+    {
+      if (small)
+      {
+        c.set(readVarLong(in));
+      }
+      else
+      {
+        c.set(readBigInteger(in));
+      }
+    }
+    r.m_monitor.m_sigma = sigma;
+    r.m_monitor.m_verdicts = beta;
+  }
+
+  /**
+   * Writes a count
+   * @param out The stream to write to
+   * @param small Whether all the counts of the monitor fit in a
+   * <tt>long</tt>
+   * @param c The count
+   * @throws IOException If the count cannot be written
+   */
+  protected static void writeCount(/*@ non_null @*/ DataOutputStream out, boolean small, /*@ non_null @*/ Counter c) throws IOException
+  {
+    if (small)
+    {
+      writeVarLong(out, c.longValue());
+    }
+    else
+    {
+      writeBigInteger(out, c.get());
+    }
+  }
+
+  /**
+   * Writes a count as an arbitrary-precision number
+   * @param out The stream to write to
+   * @param big The count
+   * @throws IOException If the count cannot be written
+   */
+  protected static void writeBigInteger(/*@ non_null @*/ DataOutputStream out, /*@ non_null @*/ BigInteger big) throws IOException
+  {
+    byte[] bytes = big.toByteArray();
+    writeVarLong(out, bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a count written as an arbitrary-precision number
+   * @param in The stream to read from
+   * @return The count
+   * @throws IOException If the count cannot be read
+   */
+  /*@ non_null @*/ protected static BigInteger readBigInteger(/*@ non_null @*/ DataInputStream in) throws IOException
+  {
+    byte[] bytes = new byte[(int) readVarLong(in)];
+    in.readFully(bytes);
+    return new BigInteger(bytes);
+  }
+
+  /**
+   * Writes a non-negative number on as few bytes as possible, seven bits
+   * at a time
+   * @param out The stream to write to
+   * @param x The number
+   * @throws IOException If the number cannot be written
+   */
+  protected static void writeVarLong(/*@ non_null @*/ DataOutputStream out, long x) throws IOException
+  {
+    while ((x & ~0x7fL) != 0)
+    {
+      out.writeByte((int) ((x & 0x7f) | 0x80));
+      x >>>= 7;
+    }
+    out.writeByte((int) x);
+  }
+
+  /**
+   * Reads a number written by
+   * {@link #writeVarLong(DataOutputStream, long)}
+   * @param in The stream to read from
+   * @return The number
+   * @throws IOException If the number cannot be read
+   */
+  protected static long readVarLong(/*@ non_null @*/ DataInputStream in) throws IOException
+  {
+    long x = 0;
+    for (int shift = 0; shift < 64; shift += 7)
+    {
+      int b = in.readUnsignedByte();
+      x |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+      {
+        return x;
+      }
+    }
+    throw new IOException("Malformed number");
+  }
+
+  /**
+   * The objects making up the monitor of a key while it is in memory
+   */
+  protected class Resident
+  {
+    /**
+     * The copy of the access proxy, if any
+     */
+    /*@ null @*/ protected final ExplicitPropositionalMachine m_proxy;
+
+    /**
+     * The multi-monitor
+     */
+    /*@ non_null @*/ protected final MultiMonitor m_monitor;
+
+    /**
+     * The input to which events are pushed
+     */
+    /*@ non_null @*/ protected final Pushable m_input;
+
+    /**
+     * The outputs of the multi-monitor
+     */
+    /*@ non_null @*/ protected final Queue<Object> m_outputs;
+
+    /**
+     * The time of the last event, in milliseconds
+     */
+    protected long m_lastAccess = 0;
+
+    /**
+     * Creates the monitor of a new key
+     */
+    public Resident()
+    {
+      super();
+      m_monitor = new MultiMonitor(TieredMonitorStore.this.m_monitor, m_machine);
+      QueueSink sink = new QueueSink();
+      Connector.connect(m_monitor, sink);
+      m_outputs = sink.getQueue();
+      if (TieredMonitorStore.this.m_proxy == null)
+      {
+        m_proxy = null;
+        m_input = m_monitor.getPushableInput();
+      }
+      else
+      {
+        m_proxy = TieredMonitorStore.this.m_proxy.duplicate(false);
+        Connector.connect(m_proxy, m_monitor);
+        m_input = m_proxy.getPushableInput();
+      }
+    }
+  }
+}
@@ -0,0 +1,368 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import ca.uqac.lif.cep.ltl.Troolean;
+import ca.uqac.lif.cep.propman.MultiMonitor.VerdictCount;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * The effect of an input multi-event on a {@link MultiMonitor}, seen as a
+ * linear map. Reading a multi-event moves the uni-traces in each state
+ * <i>s</i> to the destinations of the transitions fired from <i>s</i>,
+ * each uni-trace being multiplied by the number of valuations that fire
+ * the transition; the new mapping &sigma;' is therefore the product of a
+ * sparse matrix of non-negative integers, which only depends on the
+ * multi-event, by the vector &sigma;. The verdicts produced by the step
+ * are obtained the same way, by adding the product to the count of the
+ * verdict of each transition.
+ * <p>
+ * The matrix is stored by rows in compressed form: the entries of source
+ * state <i>s</i> are at positions {@link #getFirstEntry(int)
+ * getFirstEntry(s)} (inclusive) to <tt>getFirstEntry(s + 1)</tt>
+ * (exclusive) of primitive arrays giving the destination, multiplier and
+ * verdict of each entry. Matrices are immutable.
+ */
+public class TransferMatrix
+{
+  /**
+   * The verdicts, in the order of their index in {@link #m_verdicts}
+   */
+  protected static final Troolean.Value[] VERDICTS = new Troolean.Value[] {Troolean.Value.TRUE, Troolean.Value.FALSE, Troolean.Value.INCONCLUSIVE};
+
+  /**
+   * The position of the first entry of each source state, followed by the
+   * total number of entries
+   */
+  /*@ non_null @*/ protected final int[] m_offsets;
+
+  /**
+   * The destination state of each entry
+   */
+  /*@ non_null @*/ protected final int[] m_destinations;
+
+  /**
+   * The multiplier of each entry
+   */
+  /*@ non_null @*/ protected final long[] m_multipliers;
+
+  /**
+   * The index in {@link #VERDICTS} of the verdict of each entry
+   */
+  /*@ non_null @*/ protected final byte[] m_verdicts;
+
+  /**
+   * Creates a transfer matrix from the effect of a multi-event on each
+   * state of a machine
+   * @param rows The effect of the multi-event, indexed by source state;
+   * no element can be <tt>null</tt>
+   */
+  public TransferMatrix(/*@ non_null @*/ StepCache.Row[] rows)
+  {
+    super();
+    m_offsets = new int[rows.length + 1];
+    for (int s = 0; s < rows.length; s++)
+    {
+      m_offsets[s + 1] = m_offsets[s] + rows[s].size();
+    }
+    int entries = m_offsets[rows.length];
+    m_destinations = new int[entries];
+    m_multipliers = new long[entries];
+    m_verdicts = new byte[entries];
+    for (int s = 0; s < rows.length; s++)
+    {
+      StepCache.Row row = rows[s];
+      for (int i = 0; i < row.size(); i++)
+      {
+        int k = m_offsets[s] + i;
+        m_destinations[k] = row.getDestination(i);
+        m_multipliers[k] = row.getMultiplier(i);
+        m_verdicts[k] = (byte) getVerdictIndex(row.getVerdict(i));
+      }
+    }
+  }
+
+  /**
+   * Gets the number of states of the machine, i.e. the number of rows and
+   * columns of the matrix
+   * @return The number of states
+   */
+  public int getSize()
+  {
+    return m_offsets.length - 1;
+  }
+
+  /**
+   * Gets the number of non-zero entries of the matrix
+   * @return The number of entries
+   */
+  public int getEntryCount()
+  {
+    return m_destinations.length;
+  }
+
+  /**
+   * Gets the position of the first entry of a source state
+   * @param state The ID of the state; the number of states gives the total
+   * number of entries
+   * @return The position
+   */
+  public int getFirstEntry(int state)
+  {
+    return m_offsets[state];
+  }
+
+  /**
+   * Gets the destination state of an entry
+   * @param k The position of the entry
+   * @return The ID of the destination state
+   */
+  public int getDestination(int k)
+  {
+    return m_destinations[k];
+  }
+
+  /**
+   * Gets the multiplier of an entry
+   * @param k The position of the entry
+   * @return The number of input valuations moving a uni-trace from the
+   * source to the destination of the entry
+   */
+  public long getMultiplier(int k)
+  {
+    return m_multipliers[k];
+  }
+
+  /**
+   * Gets the verdict of an entry
+   * @param k The position of the entry
+   * @return The verdict
+   */
+  public Troolean.Value getVerdict(int k)
+  {
+    return VERDICTS[m_verdicts[k]];
+  }
+
+  /**
+   * Applies the matrix to a mapping &sigma;. As long as all numbers fit in
+   * a <tt>long</tt>, the product is computed directly on the arrays of the
+   * vectors; on the first overflow, it is computed again with
+   * arbitrary-precision arithmetic.
+   * @param sigma The mapping &sigma; before the step
+   * @param sigma_prime The vector where the mapping &sigma; after the step
+   * is written; all its elements must be zero
+   * @param beta The verdict count to which the verdicts of the step are
+   * added
+   * @return <tt>true</tt> if some uni-trace in &sigma; was moved by the
+   * step, <tt>false</tt> otherwise
+   */
+  public boolean multiply(/*@ non_null @*/ CountVector sigma, /*@ non_null @*/ CountVector sigma_prime, /*@ non_null @*/ VerdictCount beta)
+  {
+    return multiply(sigma, sigma_prime, beta, new long[3]);
+  }
+
+  /**
+   * Applies the matrix to a mapping &sigma;, using a buffer provided by
+   * the caller for the verdict counts. Callers that apply matrices on
+   * every event can keep this buffer from one call to the next, so that
+   * the product creates no object as long as no number overflows.
+   * @param sigma The mapping &sigma; before the step
+   * @param sigma_prime The vector where the mapping &sigma; after the step
+   * is written; all its elements must be zero
+   * @param beta The verdict count to which the verdicts of the step are
+   * added
+   * @param verdicts A buffer of 3 elements; its contents are overwritten
+   * @return <tt>true</tt> if some uni-trace in &sigma; was moved by the
+   * step, <tt>false</tt> otherwise
+   */
+  public boolean multiply(/*@ non_null @*/ CountVector sigma, /*@ non_null @*/ CountVector sigma_prime, /*@ non_null @*/ VerdictCount beta, /*@ non_null @*/ long[] verdicts)
+  {
+    if (sigma.isLong() && sigma_prime.isLong())
+    {
+      try
+      {
+        return multiplyLong(sigma.m_values, sigma_prime.m_values, beta, verdicts);
+      }
+      catch (ArithmeticException e)
+      {
+        // Overflow: start again from scratch
+        sigma_prime.clear();
+      }
+    }
+    boolean moved = false;
+    for (int s = 0; s < getSize(); s++)
+    {
+      if (sigma.isZero(s))
+      {
+        continue;
+      }
+      for (int k = m_offsets[s]; k < m_offsets[s + 1]; k++)
+      {
+        moved = true;
+        sigma_prime.addProduct(m_destinations[k], sigma, s, m_multipliers[k]);
+        beta.increment(VERDICTS[m_verdicts[k]], sigma, s, m_multipliers[k]);
+      }
+    }
+    return moved;
+  }
+
+  /**
+   * Applies the matrix to a mapping &sigma; whose elements all fit in a
+   * <tt>long</tt>. The verdict count is only updated once the product
+   * has been computed without overflow.
+   * @param x The elements of &sigma;
+   * @param y The elements of &sigma;', all zero
+   * @param beta The verdict count to which the verdicts of the step are
+   * added
+   * @param verdicts A buffer of 3 elements; its contents are overwritten
+   * @return <tt>true</tt> if some uni-trace was moved, <tt>false</tt>
+   * otherwise
+   * @throws ArithmeticException If some number overflows
+   */
+  protected boolean multiplyLong(long[] x, long[] y, VerdictCount beta, long[] verdicts)
+  {
+    Arrays.fill(verdicts, 0);
+    boolean moved = multiply(x, 0, y, verdicts);
+    beta.m_numTrue.add(verdicts[0]);
+    beta.m_numFalse.add(verdicts[1]);
+    beta.m_numInconclusive.add(verdicts[2]);
+    return moved;
+  }
+
+  /**
+   * Applies the matrix to a mapping &sigma; stored in a slice of an array
+   * of <tt>long</tt>s.
+   * @param x The array containing &sigma;
+   * @param offset The position in <tt>x</tt> of the element of state 0
+   * @param y An array of at least {@link #getSize()} elements to which
+   * &sigma;' is added
+   * @param verdicts An array of 3 elements to which the number of
+   * uni-traces leading to each verdict is added, in the order true,
+   * false, inconclusive
+   * @return <tt>true</tt> if some uni-trace was moved, <tt>false</tt>
+   * otherwise
+   * @throws ArithmeticException If some number overflows; the contents
+   * of <tt>y</tt> and <tt>verdicts</tt> are then undefined
+   */
+  public boolean multiply(long[] x, int offset, long[] y, long[] verdicts)
+  {
+    boolean moved = false;
+    int size = getSize();
+    for (int s = 0; s < size; s++)
+    {
+      moved |= multiplyRow(s, x[offset + s], y, verdicts);
+    }
+    return moved;
+  }
+
+  /**
+   * Applies the matrix to a mapping &sigma; stored in a slice of a buffer
+   * of <tt>long</tt>s, such as a direct buffer outside of the heap. This
+   * method only differs from {@link #multiply(long[], int, long[], long[])}
+   * in the way the elements of &sigma; are read.
+   * @param x The buffer containing &sigma;
+   * @param offset The position in <tt>x</tt> of the element of state 0
+   * @param y An array of at least {@link #getSize()} elements to which
+   * &sigma;' is added
+   * @param verdicts An array of 3 elements to which the number of
+   * uni-traces leading to each verdict is added, in the order true,
+   * false, inconclusive
+   * @return <tt>true</tt> if some uni-trace was moved, <tt>false</tt>
+   * otherwise
+   * @throws ArithmeticException If some number overflows; the contents
+   * of <tt>y</tt> and <tt>verdicts</tt> are then undefined
+   */
+  public boolean multiply(LongBuffer x, int offset, long[] y, long[] verdicts)
+  {
+    boolean moved = false;
+    int size = getSize();
+    for (int s = 0; s < size; s++)
+    {
+      moved |= multiplyRow(s, x.get(offset + s), y, verdicts);
+    }
+    return moved;
+  }
+
+  /**
+   * Moves the uni-traces of one source state to the destinations of its
+   * entries. This is the kernel of all the products by a transfer matrix
+   * on primitive numbers; callers only differ in the way they read the
+   * number of uni-traces in each state.
+   * @param s The ID of the source state
+   * @param paths The number of uni-traces in the state
+   * @param y An array of at least {@link #getSize()} elements to which
+   * the uni-traces moved from the state are added
+   * @param verdicts An array of 3 elements to which the number of
+   * uni-traces leading to each verdict is added
+   * @return <tt>true</tt> if some uni-trace was moved, <tt>false</tt>
+   * otherwise
+   * @throws ArithmeticException If some number overflows
+   */
+  protected boolean multiplyRow(int s, long paths, long[] y, long[] verdicts)
+  {
+    if (paths == 0)
+    {
+      return false;
+    }
+    int end = m_offsets[s + 1];
+    for (int k = m_offsets[s]; k < end; k++)
+    {
+      long p = Math.multiplyExact(paths, m_multipliers[k]);
+      int d = m_destinations[k];
+      y[d] = Math.addExact(y[d], p);
+      int v = m_verdicts[k];
+      verdicts[v] = Math.addExact(verdicts[v], p);
+    }
+    return end > m_offsets[s];
+  }
+
+  /**
+   * Gets the index of a verdict in {@link #VERDICTS}
+   * @param v The verdict
+   * @return The index
+   */
+  protected static int getVerdictIndex(Troolean.Value v)
+  {
+    if (v == Troolean.Value.TRUE)
+    {
+      return 0;
+    }
+    if (v == Troolean.Value.FALSE)
+    {
+      return 1;
+    }
+    return 2;
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder out = new StringBuilder();
+    for (int s = 0; s < getSize(); s++)
+    {
+      out.append(s).append(" ->");
+      for (int k = m_offsets[s]; k < m_offsets[s + 1]; k++)
+      {
+        out.append(" ").append(m_destinations[k]).append("x").append(m_multipliers[k]).append("/").append(getVerdict(k));
+      }
+      out.append("\n");
+    }
+    return out.toString();
+  }
+}
@@ -0,0 +1,323 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import ca.uqac.lif.cep.ltl.Troolean;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The truth table of a propositional formula over a small domain. The
+ * table has one bit per valuation of the domain, set if the formula is
+ * true for this valuation; bits are packed in an array of <tt>long</tt>s,
+ * so that a formula over at most 6 variables fits in a single
+ * <tt>long</tt>. Row <i>r</i> of the table corresponds to the valuation
+ * where the <i>j</i>-th variable of the domain (by ascending registry
+ * index) is true if and only if bit <i>j</i> of <i>r</i> is set.
+ * <p>
+ * Truth tables are immutable.
+ */
+public class TruthTable
+{
+  /**
+   * The maximum number of variables of a truth table
+   */
+  public static final int MAX_VARIABLES = 16;
+
+  /**
+   * The indices of the variables of the domain, in ascending order
+   */
+  protected final int[] m_domain;
+
+  /**
+   * The bits of the table
+   */
+  protected final long[] m_bits;
+
+  /**
+   * Whether the formula only takes Boolean values on Boolean inputs
+   */
+  protected final boolean m_boolean;
+
+  /**
+   * Creates a new truth table
+   * @param domain The indices of the variables of the domain, in ascending
+   * order
+   * @param bits The bits of the table
+   * @param is_boolean Whether the formula only takes Boolean values on
+   * Boolean inputs
+   */
+  protected TruthTable(int[] domain, long[] bits, boolean is_boolean)
+  {
+    super();
+    m_domain = domain;
+    m_bits = bits;
+    m_boolean = is_boolean;
+  }
+
+  /**
+   * Computes the truth table of a formula.
+   * @param f The formula
+   * @return The truth table, or <tt>null</tt> if the formula has more
+   * than {@link #MAX_VARIABLES} variables
+   */
+  /*@ null @*/ public static TruthTable compute(/*@ non_null @*/ PropositionalFormula f)
+  {
+    Set<String> names = f.getDomain();
+    if (names.size() > MAX_VARIABLES)
+    {
+      return null;
+    }
+    int[] domain = BddManager.getDomain(names);
+    int rows = 1 << domain.length;
+    long[] bits = new long[(rows + 63) >>> 6];
+    boolean is_boolean = true;
+    CompiledFormula c = f.getCompiled();
+    int[] stack = c == null ? null : new int[c.getStackSize()];
+    Valuation v = new Valuation();
+    for (int r = 0; r < rows; r++)
+    {
+      for (int j = 0; j < domain.length; j++)
+      {
+        v.put(domain[j], (r & (1 << j)) != 0 ? Troolean.Value.TRUE : Troolean.Value.FALSE);
+      }
+      Troolean.Value b = c != null ? c.evaluate(v, stack) : f.evaluateTree(v);
+      if (b == Troolean.Value.TRUE)
+      {
+        bits[r >>> 6] |= 1L << r;
+      }
+      else if (b != Troolean.Value.FALSE)
+      {
+        is_boolean = false;
+      }
+    }
+    return new TruthTable(domain, bits, is_boolean);
+  }
+
+  /**
+   * Gets the indices of the variables of the domain of the table
+   * @return The indices, in ascending order
+   */
+  public int[] getDomain()
+  {
+    return m_domain;
+  }
+
+  /**
+   * Determines if the formula of this table only takes Boolean values on
+   * Boolean inputs. If not, the table cannot replace the formula for
+   * evaluation, since it does not distinguish false from inconclusive.
+   * @return <tt>true</tt> if the formula is Boolean, <tt>false</tt>
+   * otherwise
+   */
+  public boolean isBoolean()
+  {
+    return m_boolean;
+  }
+
+  /**
+   * Gets the value of a row of the table
+   * @param row The row
+   * @return <tt>true</tt> if the formula is true on this row,
+   * <tt>false</tt> otherwise
+   */
+  public boolean get(int row)
+  {
+    return (m_bits[row >>> 6] & (1L << row)) != 0;
+  }
+
+  /**
+   * Gets the row of the table corresponding to a valuation
+   * @param v The valuation
+   * @return The row, or -1 if a variable of the domain is inconclusive or
+   * not defined in the valuation
+   */
+  public int getRow(Valuation v)
+  {
+    int row = 0;
+    for (int j = 0; j < m_domain.length; j++)
+    {
+      int code = v.getCode(m_domain[j]);
+      if (code == 2)
+      {
+        return -1;
+      }
+      row |= code << j;
+    }
+    return row;
+  }
+
+  /**
+   * Counts the valuations for which the formula is true
+   * @return The number of valuations
+   */
+  public long count()
+  {
+    long count = 0;
+    for (long w : m_bits)
+    {
+      count += Long.bitCount(w);
+    }
+    return count;
+  }
+
+  /**
+   * Gets the valuations for which the formula is true
+   * @return The set of valuations
+   */
+  public Set<Valuation> getValuations()
+  {
+    Set<Valuation> valuations = new HashSet<Valuation>();
+    for (int i = 0; i < m_bits.length; i++)
+    {
+      long w = m_bits[i];
+      while (w != 0)
+      {
+        int row = (i << 6) + Long.numberOfTrailingZeros(w);
+        w &= w - 1;
+        Valuation v = new Valuation();
+        for (int j = 0; j < m_domain.length; j++)
+        {
+          v.put(m_domain[j], (row & (1 << j)) != 0 ? Troolean.Value.TRUE : Troolean.Value.FALSE);
+        }
+        valuations.add(v);
+      }
+    }
+    return valuations;
+  }
+
+  /**
+   * Computes the conjunction of this table with another one. The domain of
+   * the result is the union of the domains of both tables.
+   * @param t The other table
+   * @return The resulting table, or <tt>null</tt> if the union of the
+   * domains has more than {@link #MAX_VARIABLES} variables
+   */
+  /*@ null @*/ public TruthTable and(TruthTable t)
+  {
+    int[] domain = union(m_domain, t.m_domain);
+    if (domain == null)
+    {
+      return null;
+    }
+    long[] a = extend(domain);
+    long[] b = t.extend(domain);
+    for (int i = 0; i < a.length; i++)
+    {
+      a[i] &= b[i];
+    }
+    return new TruthTable(domain, a, m_boolean && t.m_boolean);
+  }
+
+  /**
+   * Counts the valuations for which both this table and another one are
+   * true, without creating the table of their conjunction when both have
+   * the same domain.
+   * @param t The other table
+   * @return The number of valuations, or -1 if the union of the domains has
+   * more than {@link #MAX_VARIABLES} variables
+   */
+  public long countCommon(TruthTable t)
+  {
+    if (Arrays.equals(m_domain, t.m_domain))
+    {
+      long count = 0;
+      for (int i = 0; i < m_bits.length; i++)
+      {
+        count += Long.bitCount(m_bits[i] & t.m_bits[i]);
+      }
+      return count;
+    }
+    TruthTable conj = and(t);
+    if (conj == null)
+    {
+      return -1;
+    }
+    return conj.count();
+  }
+
+  /**
+   * Expresses this table over a larger domain
+   * @param domain The indices of the variables of the larger domain, in
+   * ascending order; it must contain the domain of this table
+   * @return The bits of the table over the larger domain
+   */
+  protected long[] extend(int[] domain)
+  {
+    if (Arrays.equals(domain, m_domain))
+    {
+      return m_bits.clone();
+    }
+    // Position in the larger domain of each variable of this table
+    int[] positions = new int[m_domain.length];
+    for (int j = 0; j < m_domain.length; j++)
+    {
+      positions[j] = Arrays.binarySearch(domain, m_domain[j]);
+    }
+    int rows = 1 << domain.length;
+    long[] bits = new long[(rows + 63) >>> 6];
+    for (int r = 0; r < rows; r++)
+    {
+      int row = 0;
+      for (int j = 0; j < positions.length; j++)
+      {
+        row |= ((r >>> positions[j]) & 1) << j;
+      }
+      if (get(row))
+      {
+        bits[r >>> 6] |= 1L << r;
+      }
+    }
+    return bits;
+  }
+
+  /**
+   * Computes the union of two sorted arrays of variable indices
+   * @param d1 The first array
+   * @param d2 The second array
+   * @return The sorted union, or <tt>null</tt> if it has more than
+   * {@link #MAX_VARIABLES} elements
+   */
+  /*@ null @*/ protected static int[] union(int[] d1, int[] d2)
+  {
+    int[] out = new int[d1.length + d2.length];
+    int i = 0, j = 0, k = 0;
+    while (i < d1.length || j < d2.length)
+    {
+      if (j == d2.length || (i < d1.length && d1[i] < d2[j]))
+      {
+        out[k++] = d1[i++];
+      }
+      else if (i == d1.length || d2[j] < d1[i])
+      {
+        out[k++] = d2[j++];
+      }
+      else
+      {
+        out[k++] = d1[i++];
+        j++;
+      }
+    }
+    if (k > MAX_VARIABLES)
+    {
+      return null;
+    }
+    return Arrays.copyOf(out, k);
+  }
+}
@@ -18,19 +18,61 @@
 package ca.uqac.lif.cep.propman;
 
 import ca.uqac.lif.cep.ltl.Troolean;
-import java.util.HashMap;
-import java.util.Map; 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * A map between variable names and ternary Boolean values (i.e. Trooleans).
+ * <p>
+ * Rather than storing its entries in a hash map, a valuation stores them
+ * in bit planes, using the index given to each variable name by the
+ * {@link VariableRegistry}. A first plane indicates which variables are
+ * defined, a second one which of them are true, and a third one which of
+ * them are inconclusive. The first 64 variables are stored in three
+ * <tt>long</tt> fields; the remaining ones, if any, are stored in an
+ * array of <tt>long</tt>s.
  */
-public class Valuation extends HashMap<String,Troolean.Value>
+public class Valuation extends AbstractMap<String,Troolean.Value>
 {
   /**
-   * Dummy UID
+   * The registry giving an index to each variable name
    */
-  private static final transient long serialVersionUID = 1L;
-  
+  protected static final transient VariableRegistry s_registry = VariableRegistry.instance;
+
+  /**
+   * The variables defined in this valuation (indices 0-63)
+   */
+  protected long m_defined;
+
+  /**
+   * The variables whose value is true (indices 0-63)
+   */
+  protected long m_true;
+
+  /**
+   * The variables whose value is inconclusive (indices 0-63)
+   */
+  protected long m_inconclusive;
+
+  /**
+   * The bit planes for variables with index 64 and up. Each group of
+   * 64 variables is stored in three consecutive elements of the array,
+   * in the order: defined, true, inconclusive. This array is
+   * <tt>null</tt> as long as no such variable is defined.
+   */
+  protected long[] m_wide;
+
+  /**
+   * The hash code of this valuation, or 0 if it has not been computed since
+   * the valuation was last modified
+   */
+  protected transient int m_hashCode;
+
   /**
    * Creates a new empty valuation.
    */
@@ -38,7 +80,7 @@ public class Valuation extends HashMap<String,Troolean.Value>
   {
     super();
   }
-  
+
   /**
    * Creates a new valuation by copying the contents of another valuation.
    * @param v The other valuation to copy from
@@ -46,50 +88,585 @@ public class Valuation extends HashMap<String,Troolean.Value>
   public Valuation(Valuation v)
   {
     super();
-    putAll(v);
+    m_defined = v.m_defined;
+    m_true = v.m_true;
+    m_inconclusive = v.m_inconclusive;
+    if (v.m_wide != null)
+    {
+      m_wide = v.m_wide.clone();
+    }
+    m_hashCode = v.m_hashCode;
   }
-  
+
+  /**
+   * Gets the value of a variable, designated by its index in the
+   * {@link VariableRegistry}.
+   * @param index The index of the variable
+   * @return The value, or <tt>null</tt> if the variable is not defined in
+   * this valuation
+   */
+  /*@ null @*/ public Troolean.Value get(int index)
+  {
+    long mask = 1L << index;
+    long defined, value, inconclusive;
+    if (index < 64)
+    {
+      defined = m_defined;
+      value = m_true;
+      inconclusive = m_inconclusive;
+    }
+    else
+    {
+      int pos = 3 * ((index >>> 6) - 1);
+      if (m_wide == null || pos >= m_wide.length)
+      {
+        return null;
+      }
+      defined = m_wide[pos];
+      value = m_wide[pos + 1];
+      inconclusive = m_wide[pos + 2];
+    }
+    if ((defined & mask) == 0)
+    {
+      return null;
+    }
+    if ((inconclusive & mask) != 0)
+    {
+      return Troolean.Value.INCONCLUSIVE;
+    }
+    if ((value & mask) != 0)
+    {
+      return Troolean.Value.TRUE;
+    }
+    return Troolean.Value.FALSE;
+  }
+
+  /**
+   * Gets the value of a variable as an integer, designated by its index
+   * in the {@link VariableRegistry}. As in {@link PropositionalVariable},
+   * a variable that is not defined is considered inconclusive.
+   * @param index The index of the variable
+   * @return 0 if the variable is false, 1 if it is true, 2 if it is
+   * inconclusive or not defined
+   */
+  public int getCode(int index)
+  {
+    long defined, value, inconclusive;
+    if (index < 64)
+    {
+      defined = m_defined;
+      value = m_true;
+      inconclusive = m_inconclusive;
+    }
+    else
+    {
+      int pos = 3 * ((index >>> 6) - 1);
+      if (m_wide == null || pos >= m_wide.length)
+      {
+        return 2;
+      }
+      defined = m_wide[pos];
+      value = m_wide[pos + 1];
+      inconclusive = m_wide[pos + 2];
+    }
+    int shift = index & 63;
+    if ((((defined & ~inconclusive) >>> shift) & 1) == 0)
+    {
+      return 2;
+    }
+    return (int) ((value >>> shift) & 1);
+  }
+
+  /**
+   * Sets the value of a variable, designated by its index in the
+   * {@link VariableRegistry}.
+   * @param index The index of the variable
+   * @param b The value; <tt>null</tt> removes the variable from the
+   * valuation
+   * @return The previous value of the variable, or <tt>null</tt> if it was
+   * not defined
+   */
+  /*@ null @*/ public Troolean.Value put(int index, /*@ null @*/ Troolean.Value b)
+  {
+    Troolean.Value old = get(index);
+    m_hashCode = 0;
+    long mask = 1L << index;
+    long defined = 0, value = 0, inconclusive = 0;
+    if (b != null)
+    {
+      defined = mask;
+      if (b == Troolean.Value.TRUE)
+      {
+        value = mask;
+      }
+      else if (b == Troolean.Value.INCONCLUSIVE)
+      {
+        inconclusive = mask;
+      }
+    }
+    if (index < 64)
+    {
+      m_defined = (m_defined & ~mask) | defined;
+      m_true = (m_true & ~mask) | value;
+      m_inconclusive = (m_inconclusive & ~mask) | inconclusive;
+      return old;
+    }
+    int pos = 3 * ((index >>> 6) - 1);
+    if (m_wide == null || pos >= m_wide.length)
+    {
+      if (b == null)
+      {
+        return old;
+      }
+      long[] wide = new long[pos + 3];
+      if (m_wide != null)
+      {
+        System.arraycopy(m_wide, 0, wide, 0, m_wide.length);
+      }
+      m_wide = wide;
+    }
+    m_wide[pos] = (m_wide[pos] & ~mask) | defined;
+    m_wide[pos + 1] = (m_wide[pos + 1] & ~mask) | value;
+    m_wide[pos + 2] = (m_wide[pos + 2] & ~mask) | inconclusive;
+    return old;
+  }
+
+  /**
+   * Determines if a variable, designated by its index in the
+   * {@link VariableRegistry}, is defined in this valuation.
+   * @param index The index of the variable
+   * @return <tt>true</tt> if the variable is defined, <tt>false</tt>
+   * otherwise
+   */
+  public boolean isDefined(int index)
+  {
+    if (index < 64)
+    {
+      return (m_defined & (1L << index)) != 0;
+    }
+    int pos = 3 * ((index >>> 6) - 1);
+    return m_wide != null && pos < m_wide.length && (m_wide[pos] & (1L << index)) != 0;
+  }
+
+  @Override
+  /*@ null @*/ public Troolean.Value get(Object key)
+  {
+    if (!(key instanceof String))
+    {
+      return null;
+    }
+    int index = s_registry.lookup((String) key);
+    if (index < 0)
+    {
+      return null;
+    }
+    return get(index);
+  }
+
+  @Override
+  public boolean containsKey(Object key)
+  {
+    if (!(key instanceof String))
+    {
+      return false;
+    }
+    int index = s_registry.lookup((String) key);
+    return index >= 0 && isDefined(index);
+  }
+
+  /**
+   * Sets the value of a variable.
+   * @param key The name of the variable
+   * @param b The value; <tt>null</tt> removes the variable from the
+   * valuation
+   * @return The previous value of the variable, or <tt>null</tt> if it was
+   * not defined
+   */
+  @Override
+  /*@ null @*/ public Troolean.Value put(/*@ non_null @*/ String key, /*@ null @*/ Troolean.Value b)
+  {
+    return put(s_registry.getIndex(key), b);
+  }
+
+  @Override
+  public void putAll(Map<? extends String,? extends Troolean.Value> m)
+  {
+    if (m instanceof Valuation)
+    {
+      Valuation v = (Valuation) m;
+      m_hashCode = 0;
+      m_defined |= v.m_defined;
+      m_true = (m_true & ~v.m_defined) | v.m_true;
+      m_inconclusive = (m_inconclusive & ~v.m_defined) | v.m_inconclusive;
+      if (v.m_wide != null)
+      {
+        if (m_wide == null || m_wide.length < v.m_wide.length)
+        {
+          long[] wide = new long[v.m_wide.length];
+          if (m_wide != null)
+          {
+            System.arraycopy(m_wide, 0, wide, 0, m_wide.length);
+          }
+          m_wide = wide;
+        }
+        for (int i = 0; i < v.m_wide.length; i += 3)
+        {
+          long mask = v.m_wide[i];
+          m_wide[i] |= mask;
+          m_wide[i + 1] = (m_wide[i + 1] & ~mask) | v.m_wide[i + 1];
+          m_wide[i + 2] = (m_wide[i + 2] & ~mask) | v.m_wide[i + 2];
+        }
+      }
+      return;
+    }
+    super.putAll(m);
+  }
+
+  @Override
+  /*@ null @*/ public Troolean.Value remove(Object key)
+  {
+    if (!(key instanceof String))
+    {
+      return null;
+    }
+    int index = s_registry.lookup((String) key);
+    if (index < 0)
+    {
+      return null;
+    }
+    return put(index, null);
+  }
+
+  @Override
+  public int size()
+  {
+    int size = Long.bitCount(m_defined);
+    if (m_wide != null)
+    {
+      for (int i = 0; i < m_wide.length; i += 3)
+      {
+        size += Long.bitCount(m_wide[i]);
+      }
+    }
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty()
+  {
+    return size() == 0;
+  }
+
+  @Override
+  public void clear()
+  {
+    m_defined = 0;
+    m_true = 0;
+    m_inconclusive = 0;
+    m_wide = null;
+    m_hashCode = 0;
+  }
+
+  @Override
+  public Set<Map.Entry<String,Troolean.Value>> entrySet()
+  {
+    return new EntrySet();
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * As required by {@link Map#hashCode()}, the result is the sum of the
+   * hash codes of the entries of the valuation. It is computed from the
+   * bit planes, without creating the entries, and is cached until the
+   * valuation is modified.
+   */
   @Override
   public int hashCode()
+  {
+    int h = m_hashCode;
+    if (h == 0)
+    {
+      h = hashPlanes(0, m_defined, m_true, m_inconclusive);
+      int length = m_wide == null ? 0 : m_wide.length;
+      for (int i = 0; i < length; i += 3)
+      {
+        h += hashPlanes(64 * (i / 3 + 1), m_wide[i], m_wide[i + 1], m_wide[i + 2]);
+      }
+      m_hashCode = h;
+    }
+    return h;
+  }
+
+  /**
+   * Computes the hash code of a valuation stored in an array of
+   * <tt>long</tt>s by {@link #write(long[], int)}. The result is the same
+   * as the value of {@link #hashCode()} for this valuation.
+   * @param a The array
+   * @param offset The position of the valuation in the array
+   * @param width The number of elements occupied by the valuation
+   * @return The hash code
+   */
+  protected static int hashCode(/*@ non_null @*/ long[] a, int offset, int width)
   {
     int h = 0;
-    for (Map.Entry<String,Troolean.Value> e : entrySet())
+    for (int i = 0; i < width; i += 3)
     {
-      if (e.getValue() == Troolean.Value.TRUE)
+      h += hashPlanes(64 * (i / 3), a[offset + i], a[offset + i + 1], a[offset + i + 2]);
+    }
+    return h;
+  }
+
+  /**
+   * Computes the sum of the hash codes of the entries stored in one group
+   * of 64 variables of the bit planes
+   * @param base The index of the first variable of the group
+   * @param defined The variables of the group that are defined
+   * @param value The variables of the group that are true
+   * @param inconclusive The variables of the group that are inconclusive
+   * @return The sum of the hash codes
+   */
+  protected static int hashPlanes(int base, long defined, long value, long inconclusive)
+  {
+    int h = 0;
+    while (defined != 0)
+    {
+      long mask = defined & -defined;
+      Troolean.Value v = Troolean.Value.FALSE;
+      if ((inconclusive & mask) != 0)
       {
-        h++;
+        v = Troolean.Value.INCONCLUSIVE;
       }
-      if (e.getValue() == Troolean.Value.INCONCLUSIVE)
+      else if ((value & mask) != 0)
       {
-        h += 2;
+        v = Troolean.Value.TRUE;
       }
+      // Same value as the hash code of the corresponding map entry
+      h += s_registry.getName(base + Long.numberOfTrailingZeros(mask)).hashCode() ^ v.hashCode();
+      defined ^= mask;
     }
     return h;
   }
-  
+
+  /**
+   * Gets the number of <tt>long</tt>s needed to store the bit planes of
+   * this valuation, ignoring the groups of 64 variables at the end in
+   * which no variable is defined
+   * @return The number of elements, which is at least 3
+   */
+  protected int getWidth()
+  {
+    int length = m_wide == null ? 0 : m_wide.length;
+    while (length > 0 && m_wide[length - 3] == 0)
+    {
+      length -= 3;
+    }
+    return length + 3;
+  }
+
+  /**
+   * Writes the bit planes of this valuation in an array of
+   * <tt>long</tt>s. The planes take {@link #getWidth()} elements.
+   * @param a The array
+   * @param offset The position in the array of the first plane
+   */
+  protected void write(/*@ non_null @*/ long[] a, int offset)
+  {
+    a[offset] = m_defined;
+    a[offset + 1] = m_true;
+    a[offset + 2] = m_inconclusive;
+    int length = getWidth() - 3;
+    if (length > 0)
+    {
+      System.arraycopy(m_wide, 0, a, offset + 3, length);
+    }
+  }
+
+  /**
+   * Replaces the contents of this valuation by bit planes stored in an
+   * array of <tt>long</tt>s by {@link #write(long[], int)}. This allows a
+   * single valuation object to be reused to visit many stored valuations.
+   * @param a The array
+   * @param offset The position in the array of the first plane
+   * @param width The number of elements occupied by the planes
+   * @return This valuation
+   */
+  /*@ non_null @*/ protected Valuation read(/*@ non_null @*/ long[] a, int offset, int width)
+  {
+    m_defined = a[offset];
+    m_true = a[offset + 1];
+    m_inconclusive = a[offset + 2];
+    m_hashCode = 0;
+    int length = width - 3;
+    if (m_wide != null)
+    {
+      Arrays.fill(m_wide, 0);
+    }
+    if (length > 0)
+    {
+      if (m_wide == null || m_wide.length < length)
+      {
+        m_wide = new long[length];
+      }
+      System.arraycopy(a, offset + 3, m_wide, 0, length);
+    }
+    return this;
+  }
+
+  /**
+   * Determines if this valuation is equal to a valuation stored in an
+   * array of <tt>long</tt>s by {@link #write(long[], int)}
+   * @param a The array
+   * @param offset The position of the valuation in the array
+   * @param width The number of elements occupied by the valuation
+   * @return <tt>true</tt> if the two valuations are equal, <tt>false</tt>
+   * otherwise
+   */
+  protected boolean equals(/*@ non_null @*/ long[] a, int offset, int width)
+  {
+    if (a[offset] != m_defined || a[offset + 1] != m_true || a[offset + 2] != m_inconclusive)
+    {
+      return false;
+    }
+    int len = Math.max(m_wide == null ? 0 : m_wide.length, width - 3);
+    for (int i = 0; i < len; i++)
+    {
+      long w = i < width - 3 ? a[offset + 3 + i] : 0;
+      if (wideWord(i) != w)
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
   @Override
   public boolean equals(Object o)
   {
     if (o == null || !(o instanceof Valuation))
     {
-      return false;
+      // Any other map is compared entry by entry
+      return super.equals(o);
     }
     Valuation v = (Valuation) o;
-    if (v.size() != size())
+    if (v.m_defined != m_defined || v.m_true != m_true || v.m_inconclusive != m_inconclusive)
     {
       return false;
     }
-    for (Map.Entry<String,Troolean.Value> e : entrySet())
+    int len = Math.max(m_wide == null ? 0 : m_wide.length, v.m_wide == null ? 0 : v.m_wide.length);
+    for (int i = 0; i < len; i++)
     {
-      String k = e.getKey();
-      if (!v.containsKey(k) || e.getValue() != v.get(k))
+      if (wideWord(i) != v.wideWord(i))
       {
         return false;
       }
     }
     return true;
   }
-  
+
+  /**
+   * Gets an element of the array of wide bit planes, treating elements
+   * beyond the end of the array as zero.
+   * @param i The position in the array
+   * @return The value of the element
+   */
+  protected long wideWord(int i)
+  {
+    if (m_wide == null || i >= m_wide.length)
+    {
+      return 0;
+    }
+    return m_wide[i];
+  }
+
+  /**
+   * Finds the index of the next variable defined in this valuation
+   * @param from The index from which to start looking
+   * @return The index of the next defined variable, or -1 if there is
+   * none
+   */
+  protected int nextDefined(int from)
+  {
+    int word = from >>> 6;
+    long bits;
+    if (word == 0)
+    {
+      bits = m_defined;
+    }
+    else
+    {
+      bits = wideWord(3 * (word - 1));
+    }
+    bits &= -1L << from;
+    while (true)
+    {
+      if (bits != 0)
+      {
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+      }
+      word++;
+      int pos = 3 * (word - 1);
+      if (m_wide == null || pos >= m_wide.length)
+      {
+        return -1;
+      }
+      bits = m_wide[pos];
+    }
+  }
+
+  /**
+   * A view of the valuation as a set of map entries, enumerated in the
+   * order of the variables' index.
+   */
+  protected class EntrySet extends AbstractSet<Map.Entry<String,Troolean.Value>>
+  {
+    @Override
+    public Iterator<Map.Entry<String,Troolean.Value>> iterator()
+    {
+      return new Iterator<Map.Entry<String,Troolean.Value>>()
+      {
+        protected int m_next = nextDefined(0);
+
+        protected int m_last = -1;
+
+        @Override
+        public boolean hasNext()
+        {
+          return m_next >= 0;
+        }
+
+        @Override
+        public Map.Entry<String,Troolean.Value> next()
+        {
+          if (m_next < 0)
+          {
+            throw new NoSuchElementException();
+          }
+          m_last = m_next;
+          m_next = nextDefined(m_next + 1);
+          return new SimpleImmutableEntry<String,Troolean.Value>(s_registry.getName(m_last), get(m_last));
+        }
+
+        @Override
+        public void remove()
+        {
+          if (m_last < 0)
+          {
+            throw new IllegalStateException();
+          }
+          put(m_last, null);
+          m_last = -1;
+        }
+      };
+    }
+
+    @Override
+    public int size()
+    {
+      return Valuation.this.size();
+    }
+  }
+
   /**
    * Prints a valuation as a list of Boolean values
    * @param variables The order in which the variables must be enumerated
@@ -131,11 +708,29 @@ public class Valuation extends HashMap<String,Troolean.Value>
       // Incorrect length
       return null;
     }
+    return readFromString(v, s_registry.getIndices(variables));
+  }
+
+  /**
+   * Reads a valuation from a string
+   * @param v The string to read from 
+   * @param indices The indices of the variables in the
+   * {@link VariableRegistry}, in the order their value appears in
+   * <tt>v</tt>
+   * @return A valuation, or <tt>null</tt> if the string is malformed
+   */
+  public static Valuation readFromString(String v, int[] indices)
+  {
+    if (v.length() != indices.length)
+    {
+      // Incorrect length
+      return null;
+    }
     Valuation val = new Valuation();
-    for (int i = 0; i < variables.length; i++)
+    for (int i = 0; i < indices.length; i++)
     {
       String c = v.substring(i, i+1);
-      val.put(variables[i], getBooleanValue(c));
+      val.put(indices[i], getBooleanValue(c));
     }
     return val;
   }
@@ -33,10 +33,15 @@ public class ValuationIterator implements Iterator<Valuation>
    */
   protected String[] m_variables;
   
+  /**
+   * The indices of the variables in the {@link VariableRegistry}
+   */
+  protected int[] m_indices;
+  
   /**
    * The array of values given to each variable
    */
-  protected Troolean.Value[] m_vector;
+  protected boolean[] m_vector;
   
   /**
    * Whether the iterator is done enumerating valuations
@@ -58,16 +63,13 @@ public class ValuationIterator implements Iterator<Valuation>
   {
     super();
     m_variables = new String[domain.size()];
-    m_vector = new Troolean.Value[m_variables.length];
+    m_vector = new boolean[m_variables.length];
     int i = 0;
     for (String s : domain)
     {
       m_variables[i++] = s;
     }
-    for (i = 0; i < m_variables.length; i++)
-    {
-      m_vector[i] = Troolean.Value.FALSE;
-    }
+    m_indices = VariableRegistry.instance.getIndices(m_variables);
     m_done = false;
     m_update = false;
   }
@@ -81,16 +83,13 @@ public class ValuationIterator implements Iterator<Valuation>
   {
     super();
     m_variables = domain;
-    m_vector = new Troolean.Value[m_variables.length];
+    m_vector = new boolean[m_variables.length];
     int i = 0;
     for (String s : domain)
     {
       m_variables[i++] = s;
     }
-    for (i = 0; i < m_variables.length; i++)
-    {
-      m_vector[i] = Troolean.Value.FALSE;
-    }
+    m_indices = VariableRegistry.instance.getIndices(m_variables);
     m_done = false;
     m_update = false;
   }
@@ -102,14 +101,14 @@ public class ValuationIterator implements Iterator<Valuation>
     {
       for (int i = 0; i < m_vector.length; i++)
       {
-        if (m_vector[i] == Troolean.Value.FALSE)
+        if (!m_vector[i])
         {
-          m_vector[i] = Troolean.Value.TRUE;
+          m_vector[i] = true;
           break;
         }
         else
         {
-          m_vector[i] = Troolean.Value.FALSE;
+          m_vector[i] = false;
           if (i == m_vector.length - 1)
           {
             m_done = true;
@@ -131,7 +130,7 @@ public class ValuationIterator implements Iterator<Valuation>
     Valuation v = new Valuation();
     for (int i = 0; i < m_vector.length; i++)
     {
-      v.put(m_variables[i], m_vector[i]);
+      v.put(m_indices[i], m_vector[i] ? Troolean.Value.TRUE : Troolean.Value.FALSE);
     }
     m_update = true;
     return v;
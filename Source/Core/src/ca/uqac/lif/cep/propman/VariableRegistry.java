@@ -0,0 +1,208 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Associates propositional variable names to integer indices. The registry
+ * is shared by all {@link Valuation}s, which use these indices as positions
+ * in their bit planes. Indices are attributed in the order in which
+ * variable names are first encountered, and never change afterwards.
+ * <p>
+ * Since indices are never reclaimed, an application that creates variable
+ * names on the fly (for instance from event data) would make the registry,
+ * and the bit planes of valuations, grow without bound. The number of
+ * variables is therefore limited to {@link #getMaxSize()}; registering a
+ * variable beyond this limit throws an exception. Looking up the value of
+ * an unknown variable in a valuation does not register it.
+ */
+public class VariableRegistry
+{
+  /**
+   * A single visible instance of the registry
+   */
+  public static final transient VariableRegistry instance = new VariableRegistry();
+
+  /**
+   * The default maximum number of variables of a registry
+   */
+  public static final int DEFAULT_MAX_SIZE = 1 << 16;
+
+  /**
+   * The association between variable names and their index
+   */
+  protected final ConcurrentHashMap<String,Integer> m_indices;
+
+  /**
+   * The variable names, in the order of their index
+   */
+  protected volatile String[] m_names;
+
+  /**
+   * The number of variables registered so far
+   */
+  protected volatile int m_size;
+
+  /**
+   * The maximum number of variables of the registry
+   */
+  protected volatile int m_maxSize = DEFAULT_MAX_SIZE;
+
+  /**
+   * Creates a new empty registry
+   */
+  protected VariableRegistry()
+  {
+    super();
+    m_indices = new ConcurrentHashMap<String,Integer>();
+    m_names = new String[64];
+    m_size = 0;
+  }
+
+  /**
+   * Gets the index associated to a variable name, registering the
+   * variable if it has not been seen before.
+   * @param name The name of the variable
+   * @return The index of the variable
+   */
+  public int getIndex(/*@ non_null @*/ String name)
+  {
+    Integer i = m_indices.get(name);
+    if (i != null)
+    {
+      return i;
+    }
+    return register(name);
+  }
+
+  /**
+   * Gets the index associated to a variable name, without registering it.
+   * @param name The name of the variable
+   * @return The index of the variable, or -1 if the variable is unknown
+   */
+  public int lookup(/*@ non_null @*/ String name)
+  {
+    Integer i = m_indices.get(name);
+    if (i == null)
+    {
+      return -1;
+    }
+    return i;
+  }
+
+  /**
+   * Gets the indices associated to a list of variable names, registering
+   * the variables that have not been seen before.
+   * @param names The names of the variables
+   * @return The array of indices, in the same order as the names
+   */
+  public int[] getIndices(/*@ non_null @*/ String ... names)
+  {
+    int[] indices = new int[names.length];
+    for (int i = 0; i < names.length; i++)
+    {
+      indices[i] = getIndex(names[i]);
+    }
+    return indices;
+  }
+
+  /**
+   * Gets the name of the variable associated to an index
+   * @param index The index
+   * @return The name of the variable, or <tt>null</tt> if no variable has
+   * this index
+   */
+  /*@ null @*/ public String getName(int index)
+  {
+    String[] names = m_names;
+    if (index < 0 || index >= names.length)
+    {
+      return null;
+    }
+    return names[index];
+  }
+
+  /**
+   * Gets the number of variables registered so far
+   * @return The number of variables
+   */
+  public int size()
+  {
+    return m_size;
+  }
+
+  /**
+   * Gets the maximum number of variables of the registry
+   * @return The number of variables
+   */
+  public int getMaxSize()
+  {
+    return m_maxSize;
+  }
+
+  /**
+   * Sets the maximum number of variables of the registry. Variables
+   * already registered are kept even if they exceed the new limit.
+   * @param size The number of variables
+   * @return This registry
+   */
+  public VariableRegistry setMaxSize(int size)
+  {
+    if (size < 0)
+    {
+      throw new IllegalArgumentException("The maximum size cannot be negative");
+    }
+    m_maxSize = size;
+    return this;
+  }
+
+  /**
+   * Registers a new variable name
+   * @param name The name of the variable
+   * @return The index given to the variable
+   * @throws IllegalStateException If the registry already contains the
+   * maximum number of variables
+   */
+  protected synchronized int register(String name)
+  {
+    Integer i = m_indices.get(name);
+    if (i != null)
+    {
+      // Registered by another thread in the meantime
+      return i;
+    }
+    int index = m_size;
+    if (index >= m_maxSize)
+    {
+      throw new IllegalStateException("Cannot register variable " + name + ": the registry already contains " + index + " variables");
+    }
+    String[] names = m_names;
+    if (index >= names.length)
+    {
+      String[] new_names = new String[names.length * 2];
+      System.arraycopy(names, 0, new_names, 0, names.length);
+      names = new_names;
+    }
+    names[index] = name;
+    m_names = names;
+    m_size = index + 1;
+    m_indices.put(name, index);
+    return index;
+  }
+}
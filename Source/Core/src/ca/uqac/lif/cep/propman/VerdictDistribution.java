@@ -0,0 +1,38 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import ca.uqac.lif.cep.ltl.Troolean;
+
+/**
+ * Gives the fraction of uni-traces of a multi-trace that lead to each
+ * monitor verdict. Functions that only care about the relative weight of
+ * each verdict, such as {@link GetEntropy}, can work from this interface
+ * regardless of whether the monitor counts paths exactly or only keeps
+ * track of their proportions.
+ */
+public interface VerdictDistribution
+{
+  /**
+   * Gets the fraction of uni-traces associated to a monitor verdict
+   * @param v The verdict
+   * @return A number between 0 and 1; the values for all three verdicts
+   * sum to 1, unless no uni-trace is left, in which case they are all 0
+   */
+  public double getProbability(Troolean.Value v);
+}
@@ -18,16 +18,35 @@
 package ca.uqac.lif.cep.propman;
 
 import static org.junit.Assert.*;
+import org.junit.Assume;
 import org.junit.Test;
 
 import ca.uqac.lif.cep.Connector;
+import ca.uqac.lif.cep.Processor;
 import ca.uqac.lif.cep.Pushable;
 import ca.uqac.lif.cep.ltl.Troolean.Value;
+import ca.uqac.lif.cep.propman.MultiEventFunction.EmitConstant;
+import ca.uqac.lif.cep.propman.MultiEventFunction.Identity;
+import ca.uqac.lif.cep.propman.MultiMonitor.RunVerdictCount;
+import ca.uqac.lif.cep.propman.OfflineEvaluator.Checkpoint;
 import ca.uqac.lif.cep.propman.MultiMonitor.VerdictCount;
 import ca.uqac.lif.cep.propman.PropositionalMachine.Transition;
 import ca.uqac.lif.cep.propman.PropositionalMachine.TransitionOtherwise;
 import ca.uqac.lif.cep.tmf.SinkLast;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import static ca.uqac.lif.cep.propman.MultiMonitor.EMPTY;
 import static ca.uqac.lif.cep.propman.MultiMonitor.EPSILON;
@@ -105,6 +124,1099 @@ public class MultiMonitorTest
     assertBeta(beta, 2, 0, 2);
   }
   
+  @Test
+  public void test4()
+  {
+    // A uni-monitor without otherwise transitions
+    MultiEventFactory factory = new MultiEventFactory("a");
+    ExplicitPropositionalMachine uni_monitor = new ExplicitPropositionalMachine();
+    uni_monitor.addTransition(0, new Transition(1, factory.readFromValuations("T"), EPSILON));
+    uni_monitor.addTransition(0, new Transition(0, factory.readFromValuations("F"), EPSILON));
+    uni_monitor.addTransition(1, new Transition(1, factory.readFromValuations("T,F"), NU));
+    MultiMonitor mul_monitor = new MultiMonitor(uni_monitor);
+    SinkLast sink = new SinkLast();
+    Connector.connect(mul_monitor, sink);
+    Pushable p = mul_monitor.getPushableInput();
+    VerdictCount beta = null;
+    p.push(factory.readFromValuations("T,F"));
+    beta = (VerdictCount) sink.getLast()[0];
+    assertBeta(beta, 0, 0, 2);
+    p.push(factory.readFromValuations("T,F"));
+    beta = (VerdictCount) sink.getLast()[0];
+    assertBeta(beta, 2, 0, 2);
+  }
+  
+  @Test
+  public void testOverflow()
+  {
+    // Each step multiplies the number of paths by 16: counts exceed a long
+    // after 16 steps
+    ExplicitPropositionalMachine uni_monitor = getMachine2();
+    MultiMonitor mul_monitor = new MultiMonitor(uni_monitor);
+    SinkLast sink = new SinkLast();
+    Connector.connect(mul_monitor, sink);
+    Pushable p = mul_monitor.getPushableInput();
+    MultiEvent all = new ConcreteMultiEvent.All("a", "b", "c", "d");
+    for (int i = 1; i <= 20; i++)
+    {
+      p.push(all);
+      VerdictCount beta = (VerdictCount) sink.getLast()[0];
+      BigInteger total = BigInteger.valueOf(16).pow(i);
+      BigInteger inconclusive = BigInteger.valueOf(15).pow(i);
+      assertEquals(inconclusive, beta.get(Value.INCONCLUSIVE));
+      assertEquals(total.subtract(inconclusive), beta.get(Value.TRUE));
+      assertEquals(BigInteger.ZERO, beta.get(Value.FALSE));
+    }
+  }
+  
+  @Test
+  public void testProbabilistic()
+  {
+    // The fraction of inconclusive paths after i steps is (15/16)^i
+    ExplicitPropositionalMachine uni_monitor = getMachine2();
+    MultiMonitor exact = new MultiMonitor(uni_monitor);
+    ProbabilisticMultiMonitor linear = new ProbabilisticMultiMonitor(uni_monitor);
+    ProbabilisticMultiMonitor log = new ProbabilisticMultiMonitor(uni_monitor, true);
+    SinkLast sink_exact = new SinkLast();
+    SinkLast sink_linear = new SinkLast();
+    SinkLast sink_log = new SinkLast();
+    Connector.connect(exact, sink_exact);
+    Connector.connect(linear, sink_linear);
+    Connector.connect(log, sink_log);
+    MultiEvent all = new ConcreteMultiEvent.All("a", "b", "c", "d");
+    for (int i = 1; i <= 100; i++)
+    {
+      exact.getPushableInput().push(all);
+      linear.getPushableInput().push(all);
+      log.getPushableInput().push(all);
+      double expected = Math.pow(15d / 16d, i);
+      VerdictDistribution[] betas = new VerdictDistribution[] {(VerdictCount) sink_exact.getLast()[0],
+          (VerdictDistribution) sink_linear.getLast()[0], (VerdictDistribution) sink_log.getLast()[0]};
+      for (VerdictDistribution beta : betas)
+      {
+        assertEquals(expected, beta.getProbability(Value.INCONCLUSIVE), 1e-9);
+        assertEquals(1 - expected, beta.getProbability(Value.TRUE), 1e-9);
+        assertEquals(0, beta.getProbability(Value.FALSE), 0);
+        assertEquals(GetEntropy.instance.getValue(betas[0]).doubleValue(), GetEntropy.instance.getValue(beta).doubleValue(), 1e-9);
+      }
+      assertEquals(expected, linear.getProbability(0), 1e-9);
+      assertEquals(expected, log.getProbability(0), 1e-9);
+    }
+    ProbabilisticMultiMonitor copy = linear.duplicate(true);
+    ProbabilisticMultiMonitor fresh = log.duplicate(false);
+    assertEquals(linear.getProbability(0), copy.getProbability(0), 0);
+    assertEquals(1, fresh.getProbability(0), 0);
+    SinkLast sink_copy = new SinkLast();
+    Connector.connect(copy, sink_copy);
+    linear.getPushableInput().push(all);
+    copy.getPushableInput().push(all);
+    assertEquals(((VerdictDistribution) sink_linear.getLast()[0]).getProbability(Value.TRUE), ((VerdictDistribution) sink_copy.getLast()[0]).getProbability(Value.TRUE), 0);
+    try
+    {
+      linear.compute(new Object[] {new MultiEventRun(all, 2)}, new ArrayDeque<Object[]>());
+      fail("Expected an IllegalArgumentException");
+    }
+    catch (IllegalArgumentException e)
+    {
+      // Expected
+    }
+    linear.reset();
+    assertEquals(1, linear.getProbability(0), 0);
+    assertEquals(0, linear.getProbability(1), 0);
+    // An event that fires no transition leaves no uni-trace in any state,
+    // as in a multi-monitor
+    MultiEventFactory factory = new MultiEventFactory("a", "b");
+    ExplicitPropositionalMachine partial = new ExplicitPropositionalMachine();
+    partial.addTransition(0, new Transition(1, factory.readFromValuations("TT"), NU));
+    partial.addTransition(1, new TransitionOtherwise(1, NU));
+    ProbabilisticMultiMonitor stuck = new ProbabilisticMultiMonitor(partial);
+    Queue<Object[]> outputs = new ArrayDeque<Object[]>();
+    assertFalse(stuck.compute(new Object[] {factory.readFromValuations("FF")}, outputs));
+    assertTrue(outputs.isEmpty());
+    assertEquals(0, stuck.getProbability(0), 0);
+    assertFalse(stuck.compute(new Object[] {factory.readFromValuations("TT")}, outputs));
+    assertEquals(0, stuck.getProbability(1), 0);
+    stuck.reset();
+    assertTrue(stuck.compute(new Object[] {factory.readFromValuations("TT")}, outputs));
+    assertEquals(1, stuck.getProbability(1), 0);
+  }
+  
+  @Test
+  public void testModifiedMonitor()
+  {
+    ExplicitPropositionalMachine uni_monitor = getMachine1();
+    MultiMonitor mm = new MultiMonitor(uni_monitor);
+    MultiMonitor copy = mm.duplicate(false);
+    MultiEvent all = new ConcreteMultiEvent.All("a", "b");
+    Queue<Object[]> outputs = new ArrayDeque<Object[]>();
+    mm.compute(new Object[] {all}, outputs);
+    uni_monitor.addTransition(1, new TransitionOtherwise(0, EPSILON));
+    try
+    {
+      mm.compute(new Object[] {all}, outputs);
+      fail("Expected an IllegalStateException");
+    }
+    catch (IllegalStateException e)
+    {
+      // Expected
+    }
+    try
+    {
+      copy.compute(new Object[] {all}, outputs);
+      fail("Expected an IllegalStateException");
+    }
+    catch (IllegalStateException e)
+    {
+      // Expected
+    }
+    // A multi-monitor created after the change sees it
+    assertTrue(new MultiMonitor(uni_monitor).compute(new Object[] {all}, outputs));
+    // Removing states is also a change
+    uni_monitor.addTransition(5, new TransitionOtherwise(0, EPSILON));
+    MultiMonitor pruned = new MultiMonitor(uni_monitor);
+    uni_monitor.removeUnreachableStates();
+    try
+    {
+      pruned.compute(new Object[] {all}, outputs);
+      fail("Expected an IllegalStateException");
+    }
+    catch (IllegalStateException e)
+    {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testParallel()
+  {
+    // A chain of 100 states, advancing on a; most states become live
+    MultiEventFactory factory = new MultiEventFactory("a", "b");
+    ExplicitPropositionalMachine uni_monitor = new ExplicitPropositionalMachine();
+    for (int i = 0; i < 100; i++)
+    {
+      uni_monitor.addTransition(i, new Transition(i + 1, factory.readFromValuations("TT,TF"), i % 3 == 0 ? NU : EPSILON));
+      uni_monitor.addTransition(i, new TransitionOtherwise(i, i % 2 == 0 ? EMPTY : EPSILON));
+    }
+    uni_monitor.addTransition(100, new TransitionOtherwise(100, NU));
+    MultiMonitor sequential = new MultiMonitor(uni_monitor);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    MultiMonitor parallel = new MultiMonitor(uni_monitor).setParallel(pool).setParallelThreshold(4);
+    SinkLast sink_s = new SinkLast();
+    SinkLast sink_p = new SinkLast();
+    Connector.connect(sequential, sink_s);
+    Connector.connect(parallel, sink_p);
+    MultiEvent all = new ConcreteMultiEvent.All("a", "b");
+    for (int i = 0; i < 120; i++)
+    {
+      sequential.getPushableInput().push(all);
+      parallel.getPushableInput().push(all);
+      assertSameVerdicts(sink_s, sink_p);
+    }
+    pool.shutdown();
+  }
+  
+  @Test
+  public void testSymbolicInput()
+  {
+    // A symbolic input must give the same verdicts as the concrete event
+    // with the same valuations
+    MultiEventFactory factory = new MultiEventFactory("a", "b");
+    ExplicitPropositionalMachine uni_monitor = getMachine1();
+    MultiMonitor symbolic = new MultiMonitor(uni_monitor);
+    MultiMonitor concrete = new MultiMonitor(uni_monitor);
+    SinkLast sink_s = new SinkLast();
+    SinkLast sink_c = new SinkLast();
+    Connector.connect(symbolic, sink_s);
+    Connector.connect(concrete, sink_c);
+    MultiEvent e_s = new SymbolicMultiEvent(SymbolicMultiEventTest.or(SymbolicMultiEventTest.var("a"), SymbolicMultiEventTest.var("b")));
+    MultiEvent e_c = factory.readFromValuations("TT,TF,FT");
+    for (int i = 0; i < 3; i++)
+    {
+      symbolic.getPushableInput().push(e_s);
+      concrete.getPushableInput().push(e_c);
+      assertSameVerdicts(sink_c, sink_s);
+    }
+    assertBeta((VerdictCount) sink_s.getLast()[0], 12, 12, 3);
+  }
+  
+  @Test
+  public void testOverlappingConditions()
+  {
+    // Valuation TT fires both conditions: the number of valuations taking
+    // the otherwise transition cannot be obtained by subtraction
+    MultiEventFactory factory = new MultiEventFactory("a", "b");
+    ExplicitPropositionalMachine uni_monitor = new ExplicitPropositionalMachine();
+    uni_monitor.addTransition(0, new Transition(1, factory.readFromValuations("TT,TF"), EPSILON));
+    uni_monitor.addTransition(0, new Transition(2, factory.readFromValuations("TT,FT"), EPSILON));
+    uni_monitor.addTransition(0, new TransitionOtherwise(0, EPSILON));
+    MultiMonitor mul_monitor = new MultiMonitor(uni_monitor);
+    MultiEvent e = new SymbolicMultiEvent(SymbolicMultiEventTest.or(SymbolicMultiEventTest.var("a"), SymbolicMultiEventTest.var("b")));
+    try
+    {
+      mul_monitor.compute(new Object[] {e}, new ArrayDeque<Object[]>());
+      fail("Expected an IllegalStateException");
+    }
+    catch (IllegalStateException ex)
+    {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testSnapshot()
+  {
+    // Verdicts output by earlier steps must not be modified by later ones,
+    // even though the monitor reuses its buffers
+    MultiEventFactory factory = new MultiEventFactory("a", "b");
+    ExplicitPropositionalMachine uni_monitor = getMachine1();
+    MultiMonitor mm = new MultiMonitor(uni_monitor);
+    SinkLast sink = new SinkLast();
+    Connector.connect(mm, sink);
+    MultiEvent e = factory.readFromValuations("TT,TF,FT");
+    mm.getPushableInput().push(e);
+    VerdictCount first = (VerdictCount) sink.getLast()[0];
+    mm.getPushableInput().push(e);
+    VerdictCount second = (VerdictCount) sink.getLast()[0];
+    mm.getPushableInput().push(e);
+    assertBeta(first, 0, 0, 3);
+    assertBeta(second, 3, 3, 3);
+    assertBeta((VerdictCount) sink.getLast()[0], 12, 12, 3);
+  }
+  
+  @Test
+  public void testCounter()
+  {
+    // Random additions that overflow, compared with BigInteger arithmetic
+    Random r = new Random(0);
+    Counter c = new Counter();
+    Counter other = new Counter(Long.MAX_VALUE);
+    BigInteger expected = BigInteger.ZERO;
+    BigInteger expected_other = BigInteger.valueOf(Long.MAX_VALUE);
+    for (int i = 0; i < 2000; i++)
+    {
+      long x = r.nextLong() >>> (1 + r.nextInt(63));
+      switch (r.nextInt(5))
+      {
+      case 0:
+        c.add(x);
+        expected = expected.add(BigInteger.valueOf(x));
+        break;
+      case 1:
+        c.addProduct(x, x);
+        expected = expected.add(BigInteger.valueOf(x).multiply(BigInteger.valueOf(x)));
+        break;
+      case 2:
+        c.addProduct(other, x);
+        expected = expected.add(expected_other.multiply(BigInteger.valueOf(x)));
+        break;
+      case 3:
+        c.add(other);
+        expected = expected.add(expected_other);
+        break;
+      default:
+        other.add(c);
+        expected_other = expected_other.add(expected);
+        break;
+      }
+      assertEquals(expected, c.get());
+      assertEquals(expected_other, other.get());
+    }
+    c.addProduct(c, 3);
+    assertEquals(expected.shiftLeft(2), c.get());
+    // Equal values have the same representation
+    Counter big = new Counter();
+    big.set(BigInteger.ONE.shiftLeft(100));
+    Counter sum = new Counter(1L << 62);
+    sum.addProduct(1L << 30, 1L << 40);
+    sum.add(-(1L << 62));
+    assertEquals(big.get().shiftRight(30), sum.get());
+    assertFalse(sum.isLong());
+    Counter small = new Counter(5);
+    Counter promoted = new Counter(Long.MAX_VALUE);
+    promoted.add(1);
+    assertFalse(promoted.isLong());
+    promoted.add(BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE).negate().add(BigInteger.valueOf(5)));
+    assertTrue(promoted.isLong());
+    assertEquals(small, promoted);
+    assertEquals(small.hashCode(), promoted.hashCode());
+    assertEquals(new Counter(big), big);
+    assertEquals(big.hashCode(), new Counter(big).hashCode());
+    // Elements of a vector that overflow, compared with BigInteger
+    // arithmetic
+    CountVector v = new CountVector(3);
+    BigInteger[] expected_v = {BigInteger.ZERO, BigInteger.ZERO, BigInteger.ZERO};
+    Counter total = new Counter();
+    BigInteger expected_total = BigInteger.ZERO;
+    for (int i = 0; i < 500; i++)
+    {
+      long x = r.nextLong() >>> (1 + r.nextInt(63));
+      int j = r.nextInt(3);
+      int k = r.nextInt(3);
+      if (r.nextBoolean())
+      {
+        v.add(j, x);
+        expected_v[j] = expected_v[j].add(BigInteger.valueOf(x));
+      }
+      else
+      {
+        v.addProduct(j, v, k, x);
+        expected_v[j] = expected_v[j].add(expected_v[k].multiply(BigInteger.valueOf(x)));
+      }
+      total.addProduct(v, k, x);
+      expected_total = expected_total.add(expected_v[k].multiply(BigInteger.valueOf(x)));
+      for (int s = 0; s < 3; s++)
+      {
+        assertEquals(expected_v[s], v.get(s));
+      }
+      assertEquals(expected_total, total.get());
+    }
+    assertFalse(v.isLong());
+    CountVector copy = new CountVector(v);
+    assertEquals(v, copy);
+    assertEquals(v.hashCode(), copy.hashCode());
+    copy.add(0, 1);
+    assertEquals(expected_v[0], v.get(0));
+    assertNotEquals(v, copy);
+  }
+
+  @Test
+  public void testStepAllocation()
+  {
+    // In the steady state, a step only creates the verdict snapshot it
+    // outputs, and the array that carries it
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+    Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+    MultiEventFactory factory = new MultiEventFactory("a", "b");
+    ExplicitPropositionalMachine uni_monitor = getMachine1();
+    // Events of one valuation keep the counts constant
+    Object[] inputs = new Object[] {factory.readFromValuations("TF")};
+    MultiMonitor[] monitors = new MultiMonitor[] {new MultiMonitor(uni_monitor), new MultiMonitor(uni_monitor).setTransferMatrixCache(4)};
+    ArrayDeque<Object[]> outputs = new ArrayDeque<Object[]>();
+    long id = Thread.currentThread().getId();
+    int steps = 10000;
+    for (MultiMonitor m : monitors)
+    {
+      for (int i = 0; i < steps; i++)
+      {
+        m.compute(inputs, outputs);
+        outputs.clear();
+      }
+      long before = threads.getThreadAllocatedBytes(id);
+      for (int i = 0; i < steps; i++)
+      {
+        m.compute(inputs, outputs);
+        outputs.clear();
+      }
+      long per_step = (threads.getThreadAllocatedBytes(id) - before) / steps;
+      assertTrue("Allocated " + per_step + " bytes per step", per_step <= 256);
+    }
+  }
+
+  @Test
+  public void testStepCache()
+  {
+    MultiEventFactory factory = new MultiEventFactory("a", "b");
+    ExplicitPropositionalMachine uni_monitor = getMachine1();
+    MultiMonitor cached = new MultiMonitor(uni_monitor).setStepCache(2);
+    MultiMonitor plain = new MultiMonitor(uni_monitor);
+    SinkLast sink_c = new SinkLast();
+    SinkLast sink_p = new SinkLast();
+    Connector.connect(cached, sink_c);
+    Connector.connect(plain, sink_p);
+    for (int i = 0; i < 4; i++)
+    {
+      // Equal events created separately must share their rows
+      MultiEvent e = factory.readFromValuations(i % 2 == 0 ? "TT,TF,FT" : "TF,FF");
+      cached.getPushableInput().push(e);
+      plain.getPushableInput().push(e);
+      assertSameVerdicts(sink_p, sink_c);
+    }
+    StepCache cache = cached.getStepCache();
+    assertEquals(2, cache.size());
+    // Live states per step: 1, 3, 3, 3; the third step finds the row of
+    // state 0, and the last one finds all its rows
+    assertEquals(10, cache.getHits() + cache.getMisses());
+    assertEquals(4, cache.getHits());
+  }
+  
+  @Test
+  public void testTransferMatrix()
+  {
+    // Same as testOverflow, with steps computed as matrix products
+    ExplicitPropositionalMachine uni_monitor = getMachine2();
+    MultiMonitor mul_monitor = new MultiMonitor(uni_monitor).setTransferMatrixCache(4);
+    MultiEvent all = new ConcreteMultiEvent.All("a", "b", "c", "d");
+    TransferMatrix m = mul_monitor.getTransferMatrix(all);
+    assertEquals(2, m.getSize());
+    assertEquals(3, m.getEntryCount());
+    assertSame(m, mul_monitor.getTransferMatrix(all));
+    SinkLast sink = new SinkLast();
+    Connector.connect(mul_monitor, sink);
+    Pushable p = mul_monitor.getPushableInput();
+    for (int i = 1; i <= 20; i++)
+    {
+      p.push(all);
+      VerdictCount beta = (VerdictCount) sink.getLast()[0];
+      BigInteger total = BigInteger.valueOf(16).pow(i);
+      BigInteger inconclusive = BigInteger.valueOf(15).pow(i);
+      assertEquals(inconclusive, beta.get(Value.INCONCLUSIVE));
+      assertEquals(total.subtract(inconclusive), beta.get(Value.TRUE));
+      assertEquals(BigInteger.ZERO, beta.get(Value.FALSE));
+    }
+  }
+  
+  @Test
+  public void testRun()
+  {
+    // After i copies of the event, the verdicts are 16^i - 15^i true and
+    // 15^i inconclusive
+    ExplicitPropositionalMachine uni_monitor = getMachine2();
+    MultiMonitor mul_monitor = new MultiMonitor(uni_monitor);
+    SinkLast sink = new SinkLast();
+    Connector.connect(mul_monitor, sink);
+    Pushable p = mul_monitor.getPushableInput();
+    MultiEvent all = new ConcreteMultiEvent.All("a", "b", "c", "d");
+    // A short run, processed step by step, then a long one, processed
+    // with powers of the matrix
+    p.push(new MultiEventRun(all, 2));
+    p.push(new MultiEventRun(all, 1000));
+    RunVerdictCount beta = (RunVerdictCount) sink.getLast()[0];
+    assertEquals(1000, beta.getLength());
+    for (int i : new int[] {1, 7, 500, 1000})
+    {
+      VerdictCount beta_i = beta.getVerdicts(i);
+      BigInteger total = BigInteger.valueOf(16).pow(i + 2);
+      BigInteger inconclusive = BigInteger.valueOf(15).pow(i + 2);
+      assertEquals(inconclusive, beta_i.get(Value.INCONCLUSIVE));
+      assertEquals(total.subtract(inconclusive), beta_i.get(Value.TRUE));
+      assertEquals(BigInteger.ZERO, beta_i.get(Value.FALSE));
+    }
+    // Single events can follow a run
+    p.push(all);
+    assertEquals(BigInteger.valueOf(15).pow(1003), ((VerdictCount) sink.getLast()[0]).get(Value.INCONCLUSIVE));
+    // Short runs are cheaper with sparse products, until the powers
+    // they need have been computed; both give the same mapping
+    PowerTable table = new PowerTable(mul_monitor.getTransferMatrix(all));
+    CountVector start = new CountVector(2);
+    start.set(0, 1);
+    assertFalse(table.usePowers(3));
+    CountVector sparse = table.apply(start, 3);
+    assertTrue(table.usePowers(1000));
+    table.apply(start, 1000);
+    assertTrue(table.usePowers(3));
+    assertEquals(sparse, table.apply(start, 3));
+    assertEquals(BigInteger.valueOf(15).pow(3), sparse.get(0));
+  }
+  
+  @Test
+  public void testOffline()
+  {
+    MultiEventFactory factory = new MultiEventFactory("a", "b");
+    ExplicitPropositionalMachine uni_monitor = new ExplicitPropositionalMachine();
+    uni_monitor.addTransition(0, new Transition(1, factory.readFromValuations("TF"), EPSILON));
+    uni_monitor.addTransition(0, new Transition(2, factory.readFromValuations("FT"), EPSILON));
+    uni_monitor.addTransition(0, new TransitionOtherwise(0, EPSILON));
+    uni_monitor.addTransition(1, new Transition(0, factory.readFromValuations("FF"), NU));
+    uni_monitor.addTransition(1, new TransitionOtherwise(1, NU));
+    uni_monitor.addTransition(2, new TransitionOtherwise(2, EMPTY));
+    MultiEvent[] events = new MultiEvent[] {factory.readFromValuations("TT,TF,FT"), factory.readFromValuations("TF,FF"), factory.readFromValuations("FF")};
+    List<MultiEvent> trace = new ArrayList<MultiEvent>();
+    for (int i = 0; i < 10; i++)
+    {
+      trace.add(events[(i * 7) % 3]);
+    }
+    ForkJoinPool pool = new ForkJoinPool(4);
+    List<Checkpoint> checkpoints = new OfflineEvaluator(uni_monitor, pool).setChunkSize(3).evaluate(trace);
+    // Above the maximum number of states, the chunks are evaluated one
+    // after the other, with the same result
+    List<Checkpoint> sequential = new OfflineEvaluator(uni_monitor, pool).setChunkSize(3).setMaxScanStates(2).evaluate(trace);
+    // A machine with more states than the pool has threads, with one
+    // chunk per event
+    ForkJoinPool small_pool = new ForkJoinPool(2);
+    List<Checkpoint> large = new OfflineEvaluator(uni_monitor, small_pool).setChunkSize(1).evaluate(trace);
+    List<Checkpoint> large_scan = new OfflineEvaluator(uni_monitor, small_pool).setChunkSize(1).setMaxScanStates(3).evaluate(trace);
+    small_pool.shutdown();
+    pool.shutdown();
+    assertEquals(4, checkpoints.size());
+    assertEquals(4, sequential.size());
+    assertEquals(trace.size(), large.size());
+    for (int i = 0; i < large.size(); i++)
+    {
+      assertEquals(i + 1, large.get(i).getPosition());
+      assertEquals(large_scan.get(i).getSigma(), large.get(i).getSigma());
+      assertEquals(large_scan.get(i).getVerdicts(), large.get(i).getVerdicts());
+    }
+    assertEquals(checkpoints.get(3).getSigma(), large.get(trace.size() - 1).getSigma());
+    for (int i = 0; i < checkpoints.size(); i++)
+    {
+      assertEquals(checkpoints.get(i).getPosition(), sequential.get(i).getPosition());
+      assertEquals(checkpoints.get(i).getSigma(), sequential.get(i).getSigma());
+      assertEquals(checkpoints.get(i).getVerdicts(), sequential.get(i).getVerdicts());
+    }
+    MultiMonitor mm = new MultiMonitor(uni_monitor);
+    SinkLast sink = new SinkLast();
+    Connector.connect(mm, sink);
+    int c = 0;
+    for (int i = 0; i < trace.size(); i++)
+    {
+      mm.getPushableInput().push(trace.get(i));
+      if (i == trace.size() - 1 || i % 3 == 2)
+      {
+        Checkpoint cp = checkpoints.get(c++);
+        assertEquals(i + 1, cp.getPosition());
+        VerdictCount beta = (VerdictCount) sink.getLast()[0];
+        for (Value v : new Value[] {Value.TRUE, Value.FALSE, Value.INCONCLUSIVE})
+        {
+          assertEquals(beta.get(v), cp.getVerdicts().get(v));
+        }
+      }
+    }
+  }
+  
+  @Test
+  public void testShards()
+  {
+    // The valuations of each event are split into shards of 2 valuations
+    MultiEventFactory factory = new MultiEventFactory("a", "b", "c", "d");
+    ExplicitPropositionalMachine uni_monitor = new ExplicitPropositionalMachine();
+    uni_monitor.addTransition(0, new Transition(1, factory.readFromValuations("TTTT,TFTF"), NU));
+    uni_monitor.addTransition(0, new Transition(2, factory.readFromValuations("FFFF"), EMPTY));
+    uni_monitor.addTransition(0, new TransitionOtherwise(0, EPSILON));
+    uni_monitor.addTransition(1, new TransitionOtherwise(1, NU));
+    uni_monitor.addTransition(2, new TransitionOtherwise(0, EMPTY));
+    ForkJoinPool pool = new ForkJoinPool(4);
+    MultiMonitor sharded = new MultiMonitor(uni_monitor).setParallel(pool).setShardSize(2);
+    MultiMonitor plain = new MultiMonitor(uni_monitor);
+    SinkLast sink_s = new SinkLast();
+    SinkLast sink_p = new SinkLast();
+    Connector.connect(sharded, sink_s);
+    Connector.connect(plain, sink_p);
+    MultiEvent all = new ConcreteMultiEvent.All("a", "b", "c", "d");
+    for (int i = 0; i < 4; i++)
+    {
+      sharded.getPushableInput().push(all);
+      plain.getPushableInput().push(all);
+      assertSameVerdicts(sink_p, sink_s);
+    }
+    pool.shutdown();
+  }
+  
+  @Test
+  public void testPool()
+  {
+    // Session i reads i + 15 events, so that the counts of some sessions
+    // overflow
+    ExplicitPropositionalMachine uni_monitor = getMachine2();
+    MultiEvent all = new ConcreteMultiEvent.All("a", "b", "c", "d");
+    MultiMonitorPool pool = new MultiMonitorPool(uni_monitor);
+    int[] sessions = new int[40];
+    for (int i = 0; i < sessions.length; i++)
+    {
+      sessions[i] = pool.open();
+    }
+    pool.close(sessions[3]);
+    assertEquals(sessions[3], pool.open());
+    assertEquals(40, pool.getSessionCount());
+    for (int j = 1; j <= 15 + sessions.length; j++)
+    {
+      for (int i = 0; i < sessions.length; i++)
+      {
+        if (j <= i + 15)
+        {
+          assertTrue(pool.step(sessions[i], all));
+        }
+      }
+    }
+    for (int i = 0; i < sessions.length; i++)
+    {
+      VerdictCount beta = pool.getVerdicts(sessions[i]);
+      BigInteger total = BigInteger.valueOf(16).pow(i + 15);
+      BigInteger inconclusive = BigInteger.valueOf(15).pow(i + 15);
+      assertEquals(inconclusive, beta.get(Value.INCONCLUSIVE));
+      assertEquals(total.subtract(inconclusive), beta.get(Value.TRUE));
+    }
+    pool.reset(sessions[39]);
+    assertEquals(BigInteger.ZERO, pool.getVerdicts(sessions[39]).get(Value.TRUE));
+  }
+  
+  @Test
+  public void testShardedRuntime() throws InterruptedException
+  {
+    // Key i reads i + 1 events, submitted interleaved with the events of
+    // the other keys
+    final ExplicitPropositionalMachine uni_monitor = getMachine2();
+    MultiEvent all = new ConcreteMultiEvent.All("a", "b", "c", "d");
+    final Map<Object,List<Object>> verdicts = new HashMap<Object,List<Object>>();
+    ForkJoinPool pool = new ForkJoinPool(4);
+    ShardedRuntime runtime = new ShardedRuntime(new ShardedRuntime.ProcessorFactory() {
+      @Override
+      public Processor newProcessor(Object key)
+      {
+        return new MultiMonitor(uni_monitor);
+      }
+    }, new ShardedRuntime.VerdictListener() {
+      @Override
+      public void verdict(Object key, Object verdict)
+      {
+        synchronized (verdicts)
+        {
+          if (!verdicts.containsKey(key))
+          {
+            verdicts.put(key, new ArrayList<Object>());
+          }
+          verdicts.get(key).add(verdict);
+        }
+      }
+    }, pool, 8, 4);
+    int num_keys = 20;
+    for (int j = 0; j < num_keys; j++)
+    {
+      for (int i = j; i < num_keys; i++)
+      {
+        runtime.submit(i, all);
+      }
+    }
+    runtime.flush();
+    for (int i = 0; i < num_keys; i++)
+    {
+      List<Object> outputs = verdicts.get(i);
+      assertEquals(i + 1, outputs.size());
+      for (int j = 0; j < outputs.size(); j++)
+      {
+        VerdictCount beta = (VerdictCount) outputs.get(j);
+        BigInteger total = BigInteger.valueOf(16).pow(j + 1);
+        BigInteger inconclusive = BigInteger.valueOf(15).pow(j + 1);
+        assertEquals(inconclusive, beta.get(Value.INCONCLUSIVE));
+        assertEquals(total.subtract(inconclusive), beta.get(Value.TRUE));
+      }
+    }
+    // A removed key starts over with a new monitor
+    runtime.remove(5);
+    runtime.submit(5, all);
+    runtime.flush();
+    assertBeta((VerdictCount) verdicts.get(5).get(6), 1, 0, 15);
+    pool.shutdown();
+  }
+  
+  @Test
+  public void testConfigurationTable()
+  {
+    MultiEventFactory factory = new MultiEventFactory("a", "b");
+    ExplicitPropositionalMachine uni_monitor = getMachine1();
+    ConfigurationTable table = new ConfigurationTable(uni_monitor);
+    MultiMonitor plain = new MultiMonitor(uni_monitor);
+    SinkLast sink_p = new SinkLast();
+    Connector.connect(plain, sink_p);
+    MultiMonitor[] shared = new MultiMonitor[10];
+    SinkLast[] sinks = new SinkLast[shared.length];
+    for (int j = 0; j < shared.length; j++)
+    {
+      shared[j] = table.newMonitor();
+      sinks[j] = new SinkLast();
+      Connector.connect(shared[j], sinks[j]);
+    }
+    for (int i = 0; i < 4; i++)
+    {
+      MultiEvent e = factory.readFromValuations(i % 2 == 0 ? "TT,TF,FT" : "TF,FF");
+      plain.getPushableInput().push(e);
+      VerdictCount beta_p = (VerdictCount) sink_p.getLast()[0];
+      for (int j = 0; j < shared.length; j++)
+      {
+        // Equal events created separately must share their steps
+        shared[j].getPushableInput().push(factory.readFromValuations(i % 2 == 0 ? "TT,TF,FT" : "TF,FF"));
+        assertEquals(beta_p, sinks[j].getLast()[0]);
+      }
+    }
+    // All the monitors are in the same configuration
+    for (int j = 1; j < shared.length; j++)
+    {
+      assertSame(shared[0].m_configuration, shared[j].m_configuration);
+    }
+    assertEquals(plain.m_sigma, shared[0].m_configuration.getSigma());
+    assertEquals(4, table.getMisses());
+    assertEquals(36, table.getHits());
+    assertTrue(table.size() <= 5);
+    shared[3].reset();
+    assertSame(table.getInitial(), shared[3].m_configuration);
+    // Monitors of the same table can step on different threads, even when
+    // the memoized steps are forgotten all the time
+    table.setStepCapacity(1);
+    final MultiEvent[] events = new MultiEvent[] {factory.readFromValuations("TT,TF,FT"), factory.readFromValuations("TF,FF")};
+    final MultiMonitor[] threaded = new MultiMonitor[8];
+    final Throwable[] errors = new Throwable[threaded.length];
+    Thread[] threads = new Thread[threaded.length];
+    for (int j = 0; j < threaded.length; j++)
+    {
+      final int k = j;
+      threaded[k] = table.newMonitor();
+      threads[k] = new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            for (int i = 0; i < 200; i++)
+            {
+              threaded[k].compute(new Object[] {events[i % 2]}, new ArrayDeque<Object[]>());
+            }
+          }
+          catch (Throwable t)
+          {
+            errors[k] = t;
+          }
+        }
+      });
+      threads[k].start();
+    }
+    for (int j = 0; j < threaded.length; j++)
+    {
+      try
+      {
+        threads[j].join();
+      }
+      catch (InterruptedException e)
+      {
+        fail("Interrupted");
+      }
+      assertNull(errors[j]);
+    }
+    plain.reset();
+    for (int i = 0; i < 200; i++)
+    {
+      plain.compute(new Object[] {events[i % 2]}, new ArrayDeque<Object[]>());
+    }
+    for (int j = 0; j < threaded.length; j++)
+    {
+      assertSame(threaded[0].m_configuration, threaded[j].m_configuration);
+    }
+    assertEquals(plain.m_sigma, threaded[0].m_configuration.getSigma());
+    assertEquals(plain.m_verdicts, threaded[0].m_configuration.getVerdicts());
+  }
+  
+  @Test
+  public void testSlotStoreBounds()
+  {
+    // 2^16 slots of 2^16 elements do not fit in an array; in int
+    // arithmetic, the first element of the last slot would wrap around
+    // to position 0
+    SlotStore store = new SlotStore.Heap(1 << 16);
+    store.set(0, 0, 42);
+    try
+    {
+      store.get(1 << 16, 0);
+      fail("Expected an IndexOutOfBoundsException");
+    }
+    catch (IndexOutOfBoundsException e)
+    {
+      // Expected
+    }
+    try
+    {
+      store.ensureCapacity(1 << 16);
+      fail("Expected an IllegalStateException");
+    }
+    catch (IllegalStateException e)
+    {
+      // Expected
+    }
+    assertEquals(16, store.getCapacity());
+    assertEquals(42, store.get(0, 0));
+  }
+
+  @Test
+  public void testPoolOffHeap()
+  {
+    // Same traces as testPool, with sessions kept off heap
+    ExplicitPropositionalMachine uni_monitor = getMachine2();
+    MultiEvent all = new ConcreteMultiEvent.All("a", "b", "c", "d");
+    CompiledMachine machine = CompiledMachine.compile(uni_monitor);
+    MultiMonitorPool heap = new MultiMonitorPool(uni_monitor, machine);
+    MultiMonitorPool direct = new MultiMonitorPool(uni_monitor, machine, true);
+    int[] sessions = new int[40];
+    for (int i = 0; i < sessions.length; i++)
+    {
+      sessions[i] = direct.open();
+      assertEquals(sessions[i], heap.open());
+    }
+    for (int j = 1; j <= 15 + sessions.length; j++)
+    {
+      for (int i = 0; i < sessions.length; i++)
+      {
+        if (j <= i + 15)
+        {
+          assertEquals(heap.step(sessions[i], all), direct.step(sessions[i], all));
+        }
+      }
+    }
+    for (int i = 0; i < sessions.length; i++)
+    {
+      assertEquals(heap.getSigma(sessions[i]), direct.getSigma(sessions[i]));
+      assertEquals(heap.getVerdicts(sessions[i]), direct.getVerdicts(sessions[i]));
+    }
+    // Slots spread over several chunks of two slots each
+    SlotStore store = new SlotStore.Direct(3, 48);
+    store.ensureCapacity(5);
+    assertEquals(6, store.getCapacity());
+    for (int k = 0; k < 5; k++)
+    {
+      store.put(k, 0, new long[] {k, 10 * k, 100 * k});
+    }
+    store.clear(2);
+    assertEquals(0, store.get(2, 1));
+    assertEquals(40, store.get(4, 1));
+    assertEquals(300, store.get(3, 2));
+  }
+  
+  @Test
+  public void testPersistentPool() throws IOException
+  {
+    // Session 0 overflows
+    MultiEventFactory factory = new MultiEventFactory("a", "b", "c", "d");
+    ExplicitPropositionalMachine uni_monitor = getMachine2();
+    MultiEvent all = new ConcreteMultiEvent.All("a", "b", "c", "d");
+    MultiEvent some = factory.readFromValuations("TTTT,FFFF,TFTF");
+    File directory = Files.createTempDirectory("pool").toFile();
+    PersistentMultiMonitorPool pool = new PersistentMultiMonitorPool(uni_monitor, directory).setCheckpointInterval(25);
+    int[] sessions = new int[5];
+    for (int i = 0; i < sessions.length; i++)
+    {
+      sessions[i] = pool.open();
+    }
+    for (int j = 0; j < 20; j++)
+    {
+      for (int i = 0; i < sessions.length; i++)
+      {
+        if (j < 4 * (sessions.length - i))
+        {
+          pool.step(sessions[i], i % 2 == 0 ? all : some);
+        }
+      }
+    }
+    pool.close(sessions[2]);
+    pool.reset(sessions[3]);
+    pool.step(sessions[3], some);
+    assertTrue(pool.getCheckpoint() > 1);
+    // Crash after a sync: the last operations are only in the log
+    pool.sync();
+    Map<Integer,CountVector> sigmas = new HashMap<Integer,CountVector>();
+    Map<Integer,VerdictCount> verdicts = new HashMap<Integer,VerdictCount>();
+    for (int i = 0; i < sessions.length; i++)
+    {
+      if (i != 2)
+      {
+        sigmas.put(sessions[i], pool.getSigma(sessions[i]));
+        verdicts.put(sessions[i], pool.getVerdicts(sessions[i]));
+      }
+    }
+    pool.abandon();
+    PersistentMultiMonitorPool restored = new PersistentMultiMonitorPool(uni_monitor, directory);
+    assertEquals(4, restored.getSessionCount());
+    for (int session : sigmas.keySet())
+    {
+      assertEquals(sigmas.get(session), restored.getSigma(session));
+      assertEquals(verdicts.get(session), restored.getVerdicts(session));
+    }
+    assertEquals(BigInteger.valueOf(16).pow(20).subtract(BigInteger.valueOf(15).pow(20)), restored.getVerdicts(sessions[0]).get(Value.TRUE));
+    assertEquals(sessions[2], restored.open());
+    restored.shutdown();
+    // Crash during a checkpoint, with operations not yet synced: they are
+    // replayed, and the copies of the checkpoint are not used
+    restored = new PersistentMultiMonitorPool(uni_monitor, directory);
+    restored.step(sessions[1], some);
+    restored.step(sessions[4], all);
+    restored.close(sessions[3]);
+    sigmas.remove(sessions[3]);
+    for (int session : sigmas.keySet())
+    {
+      sigmas.put(session, restored.getSigma(session));
+      verdicts.put(session, restored.getVerdicts(session));
+    }
+    long number = restored.writeCopies();
+    restored.abandon();
+    for (int i = 0; i < 2; i++)
+    {
+      restored = new PersistentMultiMonitorPool(uni_monitor, directory);
+      assertTrue(restored.getCheckpoint() > number);
+      assertEquals(4, restored.getSessionCount());
+      for (int session : sigmas.keySet())
+      {
+        assertEquals(sigmas.get(session), restored.getSigma(session));
+        assertEquals(verdicts.get(session), restored.getVerdicts(session));
+      }
+      restored.shutdown();
+    }
+    // An image whose log has disappeared is rejected
+    assertTrue(new File(directory, PersistentMultiMonitorPool.LOG_FILE).delete());
+    try
+    {
+      new PersistentMultiMonitorPool(uni_monitor, directory);
+      fail("Expected an IOException");
+    }
+    catch (IOException e)
+    {
+      // Expected
+    }
+    for (File f : directory.listFiles())
+    {
+      assertTrue(f.delete());
+    }
+    assertTrue(directory.delete());
+  }
+
+  @Test
+  public void testDuplicate()
+  {
+    MultiEventFactory factory = new MultiEventFactory("a", "b");
+    ExplicitPropositionalMachine uni_monitor = new ExplicitPropositionalMachine();
+    uni_monitor.addTransition(0, new Transition(1, factory.readFromValuations("TF"), EPSILON));
+    uni_monitor.addTransition(0, new TransitionOtherwise(0, EPSILON));
+    uni_monitor.addTransition(1, new TransitionOtherwise(1, NU));
+    MultiMonitor mul_monitor = new MultiMonitor(uni_monitor);
+    SinkLast sink = new SinkLast();
+    Connector.connect(mul_monitor, sink);
+    mul_monitor.getPushableInput().push(factory.readFromValuations("TF,FF"));
+    MultiMonitor copy = mul_monitor.duplicate(true);
+    MultiMonitor fresh = mul_monitor.duplicate(false);
+    SinkLast sink_c = new SinkLast();
+    SinkLast sink_f = new SinkLast();
+    Connector.connect(copy, sink_c);
+    Connector.connect(fresh, sink_f);
+    mul_monitor.getPushableInput().push(factory.readFromValuations("TT"));
+    copy.getPushableInput().push(factory.readFromValuations("TT"));
+    fresh.getPushableInput().push(factory.readFromValuations("TT"));
+    assertEquals(sink.getLast()[0], sink_c.getLast()[0]);
+    assertBeta((VerdictCount) sink_c.getLast()[0], 1, 0, 1);
+    assertBeta((VerdictCount) sink_f.getLast()[0], 0, 0, 1);
+  }
+  
+  @Test
+  public void testTieredStore() throws IOException
+  {
+    MultiEventFactory factory = new MultiEventFactory("a", "b");
+    ExplicitPropositionalMachine uni_monitor = getMachine1();
+    // A proxy that lets one event out of two through, and replaces the
+    // other one
+    ExplicitPropositionalMachine proxy = new ExplicitPropositionalMachine();
+    proxy.addTransition(0, new TransitionOtherwise(1, Identity.instance));
+    proxy.addTransition(1, new TransitionOtherwise(0, new EmitConstant(factory.readFromValuations("TF,FF"))));
+    File directory = Files.createTempDirectory("tiered").toFile();
+    TieredMonitorStore store = new TieredMonitorStore(proxy, uni_monitor, directory).setMaxResident(2);
+    int num_keys = 6;
+    SinkLast[] sinks = new SinkLast[num_keys];
+    Pushable[] inputs = new Pushable[num_keys];
+    for (int i = 0; i < num_keys; i++)
+    {
+      ExplicitPropositionalMachine p = proxy.duplicate(false);
+      MultiMonitor m = new MultiMonitor(uni_monitor);
+      sinks[i] = new SinkLast();
+      Connector.connect(p, m);
+      Connector.connect(m, sinks[i]);
+      inputs[i] = p.getPushableInput();
+    }
+    String[] events = {"TT,FT", "TF", "FF,FT,TF"};
+    for (int j = 0; j < 5; j++)
+    {
+      for (int i = 0; i < num_keys; i++)
+      {
+        String e = events[(i + j) % events.length];
+        inputs[i].push(factory.readFromValuations(e));
+        assertEquals(sinks[i].getLast()[0], store.push("key" + i, factory.readFromValuations(e)));
+      }
+    }
+    assertEquals(2, store.getResidentCount());
+    assertEquals(4, store.getSpilledCount());
+    // Keys are accessed in turn, so that every event after the first
+    // round reads its monitor back from disk
+    assertEquals(24, store.getLoads());
+    assertEquals(28, store.getEvictions());
+    store.setIdleTimeout(1000);
+    assertEquals(2, store.evictIdle(System.currentTimeMillis() + 2000));
+    assertEquals(0, store.getResidentCount());
+    for (int j = 0; j < 2; j++)
+    {
+      inputs[0].push(factory.readFromValuations("TF"));
+      assertEquals(sinks[0].getLast()[0], store.push("key0", factory.readFromValuations("TF")));
+    }
+    store.close();
+    assertTrue(directory.delete());
+    // Counts that no longer fit in a long are spilled and read back
+    ExplicitPropositionalMachine big_monitor = getMachine2();
+    MultiEvent all = new ConcreteMultiEvent.All("a", "b", "c", "d");
+    MultiMonitor reference = new MultiMonitor(big_monitor);
+    SinkLast sink = new SinkLast();
+    Connector.connect(reference, sink);
+    directory = Files.createTempDirectory("tiered").toFile();
+    store = new TieredMonitorStore(null, big_monitor, directory).setMaxResident(1);
+    for (int j = 0; j < 20; j++)
+    {
+      reference.getPushableInput().push(all);
+      assertEquals(sink.getLast()[0], store.push("big", all));
+    }
+    assertFalse(((VerdictCount) sink.getLast()[0]).m_numTrue.isLong());
+    store.push("small", all);
+    assertEquals(1, store.getSpilledCount());
+    reference.getPushableInput().push(all);
+    assertEquals(sink.getLast()[0], store.push("big", all));
+    store.close();
+    assertTrue(directory.delete());
+  }
+  
+  /**
+   * Gets a uni-monitor over variables a and b. From state 0, valuation TF
+   * leads to state 1, where uni-traces stay and produce verdict true;
+   * valuation FT leads to state 2, where uni-traces stay and produce
+   * verdict false. Any other valuation loops on state 0.
+   * @return The uni-monitor
+   */
+  public static ExplicitPropositionalMachine getMachine1()
+  {
+    MultiEventFactory factory = new MultiEventFactory("a", "b");
+    ExplicitPropositionalMachine uni_monitor = new ExplicitPropositionalMachine();
+    uni_monitor.addTransition(0, new Transition(1, factory.readFromValuations("TF"), EPSILON));
+    uni_monitor.addTransition(0, new Transition(2, factory.readFromValuations("FT"), EPSILON));
+    uni_monitor.addTransition(0, new TransitionOtherwise(0, EPSILON));
+    uni_monitor.addTransition(1, new TransitionOtherwise(1, NU));
+    uni_monitor.addTransition(2, new TransitionOtherwise(2, EMPTY));
+    return uni_monitor;
+  }
+
+  /**
+   * Gets a uni-monitor over variables a, b, c and d. From state 0,
+   * valuation TTTT leads to state 1, where uni-traces stay; both produce
+   * verdict true. Any other valuation loops on state 0. After <i>i</i>
+   * events containing all valuations, the fraction of inconclusive
+   * uni-traces is therefore (15/16)<sup><i>i</i></sup>.
+   * @return The uni-monitor
+   */
+  public static ExplicitPropositionalMachine getMachine2()
+  {
+    MultiEventFactory factory = new MultiEventFactory("a", "b", "c", "d");
+    ExplicitPropositionalMachine uni_monitor = new ExplicitPropositionalMachine();
+    uni_monitor.addTransition(0, new Transition(1, factory.readFromValuations("TTTT"), NU));
+    uni_monitor.addTransition(0, new TransitionOtherwise(0, EPSILON));
+    uni_monitor.addTransition(1, new TransitionOtherwise(1, NU));
+    return uni_monitor;
+  }
+
+  /**
+   * Asserts that the last verdicts received by two sinks associate the
+   * same number of uni-traces to each verdict
+   * @param expected The sink receiving the reference verdicts
+   * @param actual The sink receiving the verdicts to check
+   */
+  public static void assertSameVerdicts(SinkLast expected, SinkLast actual)
+  {
+    VerdictCount beta_e = (VerdictCount) expected.getLast()[0];
+    VerdictCount beta_a = (VerdictCount) actual.getLast()[0];
+    for (Value v : new Value[] {Value.TRUE, Value.FALSE, Value.INCONCLUSIVE})
+    {
+      assertEquals("For " + v, beta_e.get(v), beta_a.get(v));
+    }
+  }
+
   /**
    * Asserts the values expected in the &beta; mapping
    * @param beta The mapping
@@ -0,0 +1,105 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import ca.uqac.lif.cep.ltl.Troolean;
+
+import static ca.uqac.lif.cep.propman.SymbolicMultiEventTest.and;
+import static ca.uqac.lif.cep.propman.SymbolicMultiEventTest.not;
+import static ca.uqac.lif.cep.propman.SymbolicMultiEventTest.or;
+import static ca.uqac.lif.cep.propman.SymbolicMultiEventTest.var;
+
+public class PropositionalFormulaTest
+{
+  @Test
+  public void testCompiled()
+  {
+    PropositionalFormula[] formulas = new PropositionalFormula[] {
+        and(or(var("a"), var("b")), not(var("c"))),
+        or(and(var("a"), new PropositionalFormula(Troolean.TRUE)), not(and(var("b"), var("d")))),
+        not(new PropositionalFormula(Troolean.FALSE)),
+        and(var("a"), var("a"))
+    };
+    String[] variables = new String[] {"a", "b", "c"};
+    for (PropositionalFormula f : formulas)
+    {
+      assertNotNull(f.getCompiled());
+      // All 27 valuations, including inconclusive values
+      for (int i = 0; i < 27; i++)
+      {
+        StringBuilder s = new StringBuilder();
+        for (int j = 0, pos = i; j < 3; j++, pos /= 3)
+        {
+          s.append("TF?".charAt(pos % 3));
+        }
+        Valuation v = Valuation.readFromString(s.toString(), variables);
+        assertEquals(s.toString(), f.evaluateTree(v), f.evaluate(v));
+        assertEquals(s.toString(), f.evaluateTree(v), f.getCompiled().evaluate(v));
+        assertEquals(s.toString(), f.evaluateTree(v), f.getCompiled().evaluate(v, new int[f.getCompiled().getStackSize()]));
+      }
+    }
+  }
+  
+  @Test
+  public void testLazyTruthTable()
+  {
+    // The table of a formula over 3 variables has 8 rows: it is computed
+    // on the 8th evaluation
+    PropositionalFormula f = and(or(var("a"), var("b")), not(var("c")));
+    ValuationIterator it = new ValuationIterator(f.getDomain());
+    int i = 0;
+    while (it.hasNext())
+    {
+      Valuation v = it.next();
+      assertFalse(f.m_isTabulated);
+      assertEquals(f.evaluateTree(v), f.evaluate(v));
+      i++;
+    }
+    assertEquals(8, i);
+    assertTrue(f.m_isTabulated);
+    assertEquals(3, f.getTruthTable().count());
+  }
+
+  @Test
+  public void testTruthTable()
+  {
+    PropositionalFormula f1 = and(or(var("a"), var("b")), not(var("c")));
+    PropositionalFormula f2 = or(var("c"), and(var("d"), var("a")));
+    TruthTable t1 = f1.getTruthTable();
+    TruthTable t2 = f2.getTruthTable();
+    assertNotNull(t1);
+    assertTrue(t1.isBoolean());
+    assertEquals(3, t1.count());
+    BddManager manager = BddManager.getInstance();
+    assertEquals(manager.satCount(f1.getBdd(manager), t1.getDomain()).longValue(), t1.count());
+    // Conjunction over the union of both domains {a,b,c,d}
+    TruthTable conj = t1.and(t2);
+    assertEquals(4, conj.getDomain().length);
+    int bdd = manager.and(f1.getBdd(manager), f2.getBdd(manager));
+    assertEquals(manager.satCount(bdd, conj.getDomain()).longValue(), conj.count());
+    assertEquals(conj.count(), t1.countCommon(t2));
+    for (Valuation v : conj.getValuations())
+    {
+      assertEquals(Troolean.Value.TRUE, f1.evaluateTree(v));
+      assertEquals(Troolean.Value.TRUE, f2.evaluateTree(v));
+    }
+  }
+}
@@ -80,6 +80,88 @@ public class PropositionalMachineTest
     System.out.println(e);
   }
   
+  @Test
+  public void testCompiled()
+  {
+    ExplicitPropositionalMachine machine = getMachine1();
+    machine.addTransition(3, new TransitionOtherwise(3, Identity.instance));
+    CompiledMachine compiled = machine.getCompiledMachine();
+    assertEquals(3, compiled.getStateCount());
+    assertEquals(5, compiled.getTransitionCount());
+    assertEquals(0, compiled.getInitialState());
+    assertEquals(1, compiled.getState(0));
+    int s2 = compiled.getStateId(2);
+    assertEquals(0, compiled.getFirstTransition(0));
+    assertEquals(2, compiled.getFirstTransition(1));
+    assertEquals(s2, compiled.getDestination(0));
+    assertNull(compiled.getCondition(1));
+    assertEquals(1, compiled.getOtherwise(0));
+    // State 3 is unreachable from the initial state, but kept since the
+    // machine could be placed in it
+    assertTrue(compiled.getStateId(3) >= 0);
+    assertEquals(-1, compiled.getStateId(4));
+    // Reachable states only
+    assertEquals(2, CompiledMachine.compile(machine).getStateCount());
+    assertSame(compiled, machine.getCompiledMachine());
+    machine.addTransition(4, new TransitionOtherwise(4, Identity.instance));
+    assertNotSame(compiled, machine.getCompiledMachine());
+  }
+  
+  @Test
+  public void testDispatch()
+  {
+    MultiEventFactory factory = new MultiEventFactory("a", "b", "c");
+    MultiEvent symbolic = new SymbolicMultiEvent(SymbolicMultiEventTest.and(SymbolicMultiEventTest.var("a"), SymbolicMultiEventTest.var("c")));
+    ExplicitPropositionalMachine machine = new ExplicitPropositionalMachine();
+    machine.addTransition(0, new Transition(1, factory.readFromValuations("TFF,FTF"), Identity.instance));
+    machine.addTransition(0, new Transition(2, symbolic, Identity.instance));
+    machine.addTransition(0, new TransitionOtherwise(0, Identity.instance));
+    CompiledMachine compiled = machine.getCompiledMachine();
+    StateDispatch dispatch = compiled.getDispatch(0);
+    assertTrue(dispatch.hasTable());
+    ValuationIterator it = new ValuationIterator("a", "b", "c");
+    while (it.hasNext())
+    {
+      Valuation v = it.next();
+      int expected = -1;
+      for (int t = 0; t < 3; t++)
+      {
+        if (compiled.getCondition(t) != null && new ConcreteMultiEvent(v).getIntersection(compiled.getCondition(t)).size() > 0)
+        {
+          expected = t;
+        }
+      }
+      assertEquals(expected, dispatch.getTransition(v));
+    }
+    // A valuation over other variables fires no concrete transition
+    assertEquals(-1, dispatch.getTransition(Valuation.readFromString("TF", "a", "b")));
+  }
+  
+  @Test
+  public void testAtoms()
+  {
+    // The conditions of getMachine1 are TFF and FTF: three atoms
+    CompiledMachine compiled = getMachine1().getCompiledMachine();
+    AtomPartition atoms = compiled.getAtomPartition();
+    ValuationIterator it = new ValuationIterator("a", "b", "c");
+    while (it.hasNext())
+    {
+      Valuation v = it.next();
+      int a = atoms.getAtom(v);
+      assertEquals(a, atoms.getAtom(new Valuation(v)));
+      for (int s = 0; s < compiled.getStateCount(); s++)
+      {
+        int expected = compiled.getDispatch(s).getTransition(v);
+        if (expected < 0)
+        {
+          expected = compiled.getOtherwise(s);
+        }
+        assertEquals(expected, atoms.getTransition(a, s));
+      }
+    }
+    assertEquals(3, atoms.getAtomCount());
+  }
+  
   public static ExplicitPropositionalMachine getMachine1()
   {
     MultiEventFunction f = new MergeVariables("a", "b");
@@ -0,0 +1,135 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import ca.uqac.lif.cep.functions.Function;
+import ca.uqac.lif.cep.ltl.Troolean;
+import java.math.BigInteger;
+import java.util.Set;
+
+public class SymbolicMultiEventTest
+{
+  @Test
+  public void testValuations()
+  {
+    // (a or b) and not c
+    PropositionalFormula f = and(or(var("a"), var("b")), not(var("c")));
+    SymbolicMultiEvent e = new SymbolicMultiEvent(f);
+    Set<Valuation> vals = e.getValuations();
+    assertEquals(3, vals.size());
+    assertTrue(vals.contains(Valuation.readFromString("TFF", "a", "b", "c")));
+    assertTrue(vals.contains(Valuation.readFromString("FTF", "a", "b", "c")));
+    assertTrue(vals.contains(Valuation.readFromString("TTF", "a", "b", "c")));
+    for (Valuation v : vals)
+    {
+      assertEquals(Troolean.Value.TRUE, f.evaluate(v));
+    }
+  }
+  
+  @Test
+  public void testIntersection()
+  {
+    SymbolicMultiEvent e1 = new SymbolicMultiEvent(or(var("a"), var("b")));
+    SymbolicMultiEvent e2 = new SymbolicMultiEvent(and(not(var("a")), var("c")));
+    Set<Valuation> vals = e1.getIntersection(e2);
+    assertEquals(1, vals.size());
+    assertTrue(vals.contains(Valuation.readFromString("FTT", "a", "b", "c")));
+    assertEquals(1, e1.getIntersectionCount(e2));
+    MultiEvent e3 = new MultiEventFactory("a", "b", "c").readFromValuations("TFF,FTT,FFT");
+    assertEquals(2, e1.getIntersectionCount(e3));
+    assertEquals(2, e3.getIntersectionCount(e1));
+    assertEquals(2, e3.getIntersectionCount(e2));
+    assertEquals(3, SymbolicMultiEvent.ALL.getIntersectionCount(e3));
+    assertEquals(0, SymbolicMultiEvent.NOTHING.getIntersectionCount(e3));
+  }
+  
+  @Test
+  public void testLargeDomain()
+  {
+    // Conjunction of 40 variables: the domain has 2^40 valuations
+    PropositionalFormula f = and(var("x0"), var("x1"));
+    for (int i = 2; i < 40; i++)
+    {
+      f = and(f, var("x" + i));
+    }
+    SymbolicMultiEvent e1 = new SymbolicMultiEvent(f);
+    SymbolicMultiEvent e2 = new SymbolicMultiEvent(not(var("x0")));
+    assertEquals(1, e1.getValuations().size());
+    assertTrue(e1.getIntersection(e2).isEmpty());
+    BddManager manager = BddManager.getInstance();
+    int bdd = e2.getFormula().getBdd(manager);
+    BigInteger count = manager.satCount(bdd, BddManager.getDomain(f.getDomain()));
+    assertEquals(BigInteger.ONE.shiftLeft(39), count);
+  }
+
+  @Test
+  public void testManagerReplaced()
+  {
+    PropositionalFormula f = and(var("y0"), var("y1"));
+    for (int i = 2; i < 20; i++)
+    {
+      f = and(f, var("y" + i));
+    }
+    SymbolicMultiEvent e1 = new SymbolicMultiEvent(f);
+    SymbolicMultiEvent e2 = new SymbolicMultiEvent(not(var("y0")));
+    BddManager m1 = BddManager.getInstance();
+    assertEquals(1, e1.getValuationCount());
+    BddManager.setMaxNodes(2);
+    try
+    {
+      // The manager now holds the nodes of f: the next one is empty
+      BddManager m2 = BddManager.getInstance();
+      assertNotSame(m1, m2);
+      assertEquals(2, m2.getNodeCount());
+      assertEquals(1, e1.getValuationCount());
+      assertEquals(0, e1.getIntersectionCount(e2));
+      assertTrue(f.getBdd(m2) >= 2);
+      assertTrue(m2.getNodeCount() > 2);
+      assertNotSame(m2, BddManager.getInstance());
+      // The diagram of the old manager is still valid
+      assertEquals(BigInteger.ONE, m1.satCount(f.getBdd(m1), BddManager.getDomain(f.getDomain())));
+    }
+    finally
+    {
+      BddManager.setMaxNodes(BddManager.DEFAULT_MAX_NODES);
+    }
+  }
+
+  public static PropositionalVariable var(String name)
+  {
+    return PropositionalVariable.get(name);
+  }
+  
+  public static PropositionalFormula and(Function f1, Function f2)
+  {
+    return new PropositionalFormula(Troolean.AND_FUNCTION, f1, f2);
+  }
+  
+  public static PropositionalFormula or(Function f1, Function f2)
+  {
+    return new PropositionalFormula(Troolean.OR_FUNCTION, f1, f2);
+  }
+  
+  public static PropositionalFormula not(Function f)
+  {
+    return new PropositionalFormula(Troolean.NOT_FUNCTION, f);
+  }
+}
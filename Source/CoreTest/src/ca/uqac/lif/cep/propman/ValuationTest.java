@@ -0,0 +1,176 @@
+/*
+    Monitors for multi-events
+    Copyright (C) 2020 Sylvain Hallé, Rania Taleb, Raphaël Khoury
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.cep.propman;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import ca.uqac.lif.cep.ltl.Troolean.Value;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class ValuationTest
+{
+  @Test
+  public void testMap()
+  {
+    Valuation v = Valuation.readFromString("TF?", "a", "b", "c");
+    assertEquals(3, v.size());
+    assertEquals(Value.TRUE, v.get("a"));
+    assertEquals(Value.FALSE, v.get("b"));
+    assertEquals(Value.INCONCLUSIVE, v.get("c"));
+    assertFalse(v.containsKey("d"));
+    assertNull(v.get("d"));
+    assertEquals(Value.TRUE, v.put("a", Value.FALSE));
+    assertEquals("FF?", v.toString("a", "b", "c"));
+    v.remove("c");
+    assertEquals(2, v.size());
+    assertEquals(2, v.keySet().size());
+    assertTrue(v.keySet().contains("b"));
+    Valuation v2 = new Valuation(v);
+    assertEquals(v, v2);
+    assertEquals(v.hashCode(), v2.hashCode());
+    v2.put("c", Value.FALSE);
+    assertNotEquals(v, v2);
+    // Same contract as any other map
+    Map<String,Value> map = new HashMap<String,Value>(v2);
+    assertEquals(map, v2);
+    assertEquals(v2, map);
+    assertEquals(map.hashCode(), v2.hashCode());
+    map.put("c", Value.TRUE);
+    assertNotEquals(v2, map);
+  }
+  
+  @Test
+  public void testWide()
+  {
+    String[] variables = new String[150];
+    StringBuilder s = new StringBuilder();
+    for (int i = 0; i < variables.length; i++)
+    {
+      variables[i] = "w" + i;
+      s.append(i % 3 == 0 ? "T" : "F");
+    }
+    Valuation v1 = Valuation.readFromString(s.toString(), variables);
+    Valuation v2 = Valuation.readFromString(s.toString(), variables);
+    assertEquals(150, v1.size());
+    assertEquals(s.toString(), v1.toString(variables));
+    assertEquals(v1, v2);
+    assertEquals(new HashMap<String,Value>(v1).hashCode(), v1.hashCode());
+    assertEquals(new HashMap<String,Value>(v1), v1);
+    long[] planes = new long[v1.getWidth()];
+    v1.write(planes, 0);
+    assertEquals(v1.hashCode(), Valuation.hashCode(planes, 0, planes.length));
+    Set<Valuation> set = new HashSet<Valuation>();
+    set.add(v1);
+    assertTrue(set.contains(v2));
+    v2.put("w149", Value.TRUE);
+    assertNotEquals(v1, v2);
+    assertFalse(set.contains(v2));
+    int count = 0;
+    for (String k : v1.keySet())
+    {
+      assertTrue(k.startsWith("w"));
+      count++;
+    }
+    assertEquals(150, count);
+  }
+  
+  @Test
+  public void testConcreteEvent()
+  {
+    String[] variables = new String[100];
+    for (int i = 0; i < variables.length; i++)
+    {
+      variables[i] = "w" + i;
+    }
+    StringBuilder s = new StringBuilder();
+    for (int i = 0; i < variables.length; i++)
+    {
+      s.append(i % 7 == 0 ? "T" : "F");
+    }
+    Valuation narrow = Valuation.readFromString("TF", "w0", "w1");
+    Valuation wide = Valuation.readFromString(s.toString(), variables);
+    Set<Valuation> set = new HashSet<Valuation>();
+    set.add(narrow);
+    set.add(wide);
+    ConcreteMultiEvent e = new ConcreteMultiEvent(set);
+    assertEquals(2, e.getValuationCount());
+    assertTrue(e.contains(Valuation.readFromString("TF", "w0", "w1")));
+    assertTrue(e.contains(Valuation.readFromString(s.toString(), variables)));
+    assertFalse(e.contains(Valuation.readFromString("FF", "w0", "w1")));
+    // A valuation whose wide planes are all empty is equal to a narrow one
+    Valuation emptied = Valuation.readFromString("TFT", "w0", "w1", "w99");
+    emptied.remove("w99");
+    assertEquals(narrow, emptied);
+    assertEquals(narrow.hashCode(), emptied.hashCode());
+    assertTrue(e.contains(emptied));
+    // Visiting the valuations with a single object
+    Valuation v = new Valuation();
+    Set<Valuation> visited = new HashSet<Valuation>();
+    for (int i = 0; i < e.getValuationCount(); i++)
+    {
+      visited.add(new Valuation(e.getValuation(i, v)));
+    }
+    assertEquals(set, visited);
+    assertEquals(set, e.getValuations());
+    assertEquals(set.hashCode(), e.hashCode());
+    // The event does not change when the original valuations do
+    narrow.put("w1", Value.TRUE);
+    assertFalse(e.contains(narrow));
+    ConcreteMultiEvent e2 = new ConcreteMultiEvent(visited);
+    assertEquals(e, e2);
+    assertEquals(e.hashCode(), e2.hashCode());
+    assertEquals(1, e.getIntersectionCount(new ConcreteMultiEvent(emptied)));
+  }
+
+  @Test
+  public void testRegistryLimit()
+  {
+    VariableRegistry registry = new VariableRegistry().setMaxSize(2);
+    assertEquals(0, registry.getIndex("a"));
+    assertEquals(1, registry.getIndex("b"));
+    assertEquals(-1, registry.lookup("c"));
+    try
+    {
+      registry.getIndex("c");
+      fail("Expected an IllegalStateException");
+    }
+    catch (IllegalStateException e)
+    {
+      // Expected
+    }
+    assertEquals(1, registry.getIndex("b"));
+    assertEquals(2, registry.size());
+  }
+
+  @Test
+  public void testIterator()
+  {
+    ValuationIterator it = new ValuationIterator("a", "b", "c");
+    Set<Valuation> set = new HashSet<Valuation>();
+    while (it.hasNext())
+    {
+      set.add(it.next());
+    }
+    assertEquals(8, set.size());
+    assertTrue(set.contains(Valuation.readFromString("TFT", "a", "b", "c")));
+  }
+}